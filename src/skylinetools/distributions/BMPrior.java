@@ -6,7 +6,16 @@ import beast.core.Input;
 import beast.core.State;
 import beast.core.parameter.RealParameter;
 import beast.math.distributions.ParametricDistribution;
+import skylinetools.parameter.NonCenteredSkyline;
+import skylinetools.util.CacheCheckpointer;
+import skylinetools.util.Checkpointable;
+import skylinetools.util.HotPathMetrics;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -21,10 +30,21 @@ import java.util.Random;
  *
  * For now missing the same constant as the OUPrior
  *
+ * The density is calculated with GaussianKernels (a single log per evaluation, and only a sum of squared differences if
+ * the times are equally spaced).
+ *
+ * The increments are cached as a GaussianMarkovPrior (decay 1 and standard deviation sqrt(dt/tau)) for operators that
+ * propose from the prior. They can be checkpointed with a CacheCheckpointer (restored increments are recalculated if
+ * they do not match the times and precision).
+ *
+ * If x is a NonCenteredSkyline the density is that of its standardised increments (plus x0Prior on x_0), so the
+ * times and sigma/precision of this prior must be the same as the skyline's (or not given) and the skyline must be a
+ * Brownian motion with the same logspace.
+ *
  * @author Louis du Plessis
  *         Date: 2018/07/23
  */
-public class BMPrior extends Distribution {
+public class BMPrior extends Distribution implements GaussianMarkovPrior, Checkpointable {
 
     // the trajectory to compute Ornstein-Uhlenbeck prior of
     public Input<Function> xInput =
@@ -47,10 +67,70 @@ public class BMPrior extends Distribution {
 
     public Input<Boolean> logSpace = new Input<>("logspace", "true if prior should be applied to log(x).", false);
 
+    private static final HotPathMetrics.Timer calculateLogPTimer = HotPathMetrics.timer("BMPrior.calculateLogP");
+
+    /* Cached transitions (GaussianMarkovPrior) and the times and precision they were calculated for */
+    protected double [] decays, standardDeviations, transitionTimes;
+    protected double transitionTau = Double.NaN;
+
+    protected CacheCheckpointer checkpointer;
+
+    /* Reused by the log-density kernel */
+    private double [] buffer;
+
+
+    @Override
+    public void initAndValidate() {
+        if (xInput.get() instanceof NonCenteredSkyline) {
+            final NonCenteredSkyline skyline = (NonCenteredSkyline) xInput.get();
+
+            if (skyline.nuInput.get() != null) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": The NonCenteredSkyline "+skyline.getID()+
+                        " is an Ornstein-Uhlenbeck process (use an OUPrior).");
+            }
+            if (!logSpace.get().equals(skyline.logSpace.get())) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": logspace must be the same as the " +
+                        "logspace of the NonCenteredSkyline "+skyline.getID()+".");
+            }
+            skyline.checkPriorInput(this, timeInput, skyline.timeInput);
+            skyline.checkPriorInput(this, tauInput, skyline.tauInput);
+            skyline.checkPriorInput(this, sigmaInput, skyline.sigmaInput);
+        }
+    }
 
 
     public double calculateLogP() {
 
+        final long start = calculateLogPTimer.start();
+
+        if (xInput.get() instanceof NonCenteredSkyline) {
+            // Non-centered: standard normal density of the increments
+            final NonCenteredSkyline skyline = (NonCenteredSkyline) xInput.get();
+            final double x0 = skyline.getX0();
+
+            double logL = skyline.getIncrementsLogP();
+            if (x0PriorInput.get() != null) logL += x0PriorInput.get().calcLogP(new Function() {
+                @Override
+                public int getDimension() {
+                    return 1;
+                }
+
+                @Override
+                public double getArrayValue() {
+                    return x0;
+                }
+
+                @Override
+                public double getArrayValue(int iDim) {
+                    return x0;
+                }
+            });
+
+            logP = logL;
+            calculateLogPTimer.stop(start);
+            return logP;
+        }
+
         double tau;
         if (tauInput.get() == null) {
             double sigma = sigmaInput.get().getValue();
@@ -61,7 +141,10 @@ public class BMPrior extends Distribution {
 
         ParametricDistribution x0Prior = x0PriorInput.get();
 
-        double[] t = timeInput.get().getDoubleValues();
+        // Equally spaced times are only read if they are not a UniformGrid
+        final Function times = timeInput.get();
+        double step = GaussianKernels.uniformStep(times);
+        double[] t = Double.isNaN(step) ? times.getDoubleValues() : null;
         double[] x = xInput.get().getDoubleValues();
 
         boolean logspace = logSpace.get();
@@ -71,17 +154,18 @@ public class BMPrior extends Distribution {
             }
         }
 
-        int n = x.length - 1;
-
-        double logL = n/2.0 * Math.log(tau);
-
-        for (int i = 1; i <= n; i++) {
-
-            double dt = t[i]-t[i-1];
-            double dx = x[i]-x[i-1];
+        if (t != null) {
+            step = GaussianKernels.uniformStep(t);
+        }
 
-            logL -= 0.5*Math.log(dt);
-            logL -= (0.5*tau*dx*dx)/dt;
+        double logL;
+        if (!Double.isNaN(step)) {
+            logL = GaussianKernels.uniformBrownianMotionLogP(x, step, tau);
+        } else {
+            if (buffer == null || buffer.length < x.length) {
+                buffer = new double[x.length];
+            }
+            logL = GaussianKernels.brownianMotionLogP(t, x, buffer, tau);
         }
 
         if (x0Prior != null) logL += x0Prior.calcLogP(new Function() {
@@ -102,9 +186,130 @@ public class BMPrior extends Distribution {
         });
 
         logP = logL;
+        calculateLogPTimer.stop(start);
         return logP;
     }
 
+
+    /**
+     * Recalculate the cached transitions if the times or precision changed (O(n))
+     */
+    protected void updateTransitions() {
+        final Function times = timeInput.get();
+        final int dim = times.getDimension();
+
+        if (decays == null && checkpointer != null) {
+            // Only tried once (the caches are allocated below if they were not restored)
+            checkpointer.restore(this);
+            checkpointer = null;
+        }
+
+        if (decays == null) {
+            decays = new double[dim];
+            standardDeviations = new double[dim];
+            transitionTimes = new double[dim];
+            Arrays.fill(decays, 1.0);
+        }
+
+        double tau;
+        if (tauInput.get() == null) {
+            double sigma = sigmaInput.get().getValue();
+            tau = 1/(sigma * sigma);
+        } else {
+            tau = tauInput.get().getValue();
+        }
+
+        boolean changed = tau != transitionTau;
+        for (int i = 0; i < dim; i++) {
+            double t = times.getArrayValue(i);
+            if (t != transitionTimes[i]) {
+                transitionTimes[i] = t;
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            transitionTau = tau;
+            for (int i = 1; i < dim; i++) {
+                standardDeviations[i] = Math.sqrt((transitionTimes[i]-transitionTimes[i-1])/tau);
+            }
+        }
+    }
+
+    @Override
+    public Function getX() {
+        return xInput.get();
+    }
+
+    @Override
+    public boolean isLogSpace() {
+        return logSpace.get();
+    }
+
+    @Override
+    public double getReversionMean() {
+        return 0;
+    }
+
+    @Override
+    public double[] getDecays() {
+        updateTransitions();
+        return decays;
+    }
+
+    @Override
+    public double[] getStandardDeviations() {
+        updateTransitions();
+        return standardDeviations;
+    }
+
+
+    @Override
+    public void setCheckpointer(CacheCheckpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    @Override
+    public long getCheckpointFingerprint() {
+        // Increments are checked against the times and precision in updateTransitions()
+        return 0;
+    }
+
+    @Override
+    public void writeCheckpoint(DataOutputStream out) throws IOException {
+        updateTransitions();
+
+        out.writeInt(transitionTimes.length);
+        for (int i = 0; i < transitionTimes.length; i++) {
+            out.writeDouble(transitionTimes[i]);
+            out.writeDouble(standardDeviations[i]);
+        }
+        out.writeDouble(transitionTau);
+    }
+
+    @Override
+    public void readCheckpoint(DataInputStream in) throws IOException {
+        final int dim = in.readInt();
+        if (dim != timeInput.get().getDimension()) {
+            throw new IOException("dimension is "+dim+" instead of "+timeInput.get().getDimension());
+        }
+
+        double [] newTimes = new double[dim],
+                  newStandardDeviations = new double[dim];
+        for (int i = 0; i < dim; i++) {
+            newTimes[i] = in.readDouble();
+            newStandardDeviations[i] = in.readDouble();
+        }
+        final double tau = in.readDouble();
+
+        decays = new double[dim];
+        Arrays.fill(decays, 1.0);
+        standardDeviations = newStandardDeviations;
+        transitionTimes = newTimes;
+        transitionTau = tau;
+    }
+
+
     @Override
     public List<String> getArguments() {
         return null;
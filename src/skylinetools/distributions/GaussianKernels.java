@@ -0,0 +1,279 @@
+package skylinetools.distributions;
+
+import beast.core.Function;
+import skylinetools.parameter.UniformGrid;
+
+/**
+ * Kernels for the log-densities of the Brownian-motion and Ornstein-Uhlenbeck smoothing priors.
+ *
+ * The batched kernels avoid one transcendental call per interval: sums of logarithms are calculated as the logarithm of
+ * a product, with the exponents split off every factor (Math.getExponent/Math.scalb are exact) so the product can never
+ * overflow or underflow, and both exp(-nu dt) and 1 - exp(-2 nu dt) are calculated from a single expm1(-nu dt). This
+ * leaves one log per evaluation for the BMPrior (instead of n) and n expm1s plus one log for the OUPrior (instead of 2n
+ * exps and n logs). The arithmetic loops are kept branch-free over primitive arrays so the JIT compiler can vectorise
+ * them.
+ *
+ * If the times are equally spaced (a UniformGrid, or intervals within UNIFORM_TOLERANCE of each other) the uniform
+ * kernels calculate exp(-nu dt) and the logarithms once and only accumulate squared differences over the values.
+ *
+ * The scalar kernels are the original loops and are used if the JVM is started with -Dskylinetools.scalarKernels=true.
+ *
+ * Tolerance: the error of the batched sum of n logarithms is bounded by about n * 2^-52 (one rounding per
+ * multiplication), so the batched and scalar kernels agree to within 1e-12 * (n + |logP|) (verified in
+ * GaussianKernelsTest). This holds for the OUPrior as long as nu dt > 1e-4; for smaller nu dt the scalar kernel loses
+ * digits to cancellation in 1 - exp(-2 nu dt) and the batched kernel is the more accurate of the two.
+ */
+public final class GaussianKernels {
+
+    public static final boolean SCALAR = Boolean.getBoolean("skylinetools.scalarKernels");
+
+    /* Renormalise products of mantissas (each in [1,2)) at least this often */
+    static final int BLOCK = 256;
+
+    /* Relative difference up to which intervals are treated as equal (the same as rounding errors of the times) */
+    static final double UNIFORM_TOLERANCE = 1e-10;
+
+    private static final double LN2 = Math.log(2);
+
+    private GaussianKernels() { }
+
+
+    /**
+     * Sum of log(a[i]) for i in [from, to), calculated with a single call to Math.log
+     *
+     * @return the same as summing Math.log(a[i]) up to rounding (including -Infinity for zeros and NaN for negative
+     *         values or NaNs)
+     */
+    public static double sumLog(double [] a, int from, int to) {
+        double product = 1;
+        long exponent = 0;
+        boolean negative = false;
+
+        for (int start = from; start < to; start += BLOCK) {
+            final int end = Math.min(start + BLOCK, to);
+
+            for (int i = start; i < end; i++) {
+                final int e = Math.getExponent(a[i]);
+                product *= Math.scalb(a[i], -e);
+                exponent += e;
+                // Signs cancel in the product, so negative values are tracked separately
+                negative |= a[i] < 0;
+            }
+
+            final int e = Math.getExponent(product);
+            if (e > -1023 && e < 1024) {
+                product = Math.scalb(product, -e);
+                exponent += e;
+            }
+        }
+
+        if (negative) {
+            return Double.NaN;
+        }
+        return Math.log(product) + exponent * LN2;
+    }
+
+
+    /**
+     * Spacing of equally spaced times, without looking at the times if they are a UniformGrid
+     *
+     * @param times
+     * @return the spacing, or NaN if the times are not a UniformGrid that is currently uniform (or the scalar kernels
+     *         are used)
+     */
+    public static double uniformStep(Function times) {
+        if (!SCALAR && times instanceof UniformGrid && ((UniformGrid) times).isUniformGrid()) {
+            final double step = ((UniformGrid) times).getGridStep();
+            if (step > 0 && step < Double.POSITIVE_INFINITY) {
+                return step;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Spacing of increasing times if every interval is within UNIFORM_TOLERANCE of the mean interval (O(n), no
+     * transcendental calls)
+     *
+     * @param t times
+     * @return the mean interval, or NaN if the times are not equally spaced (or the scalar kernels are used)
+     */
+    public static double uniformStep(double [] t) {
+        final int n = t.length - 1;
+        if (SCALAR || n < 1) {
+            return Double.NaN;
+        }
+
+        final double step = (t[n]-t[0])/n,
+                     tolerance = UNIFORM_TOLERANCE*step;
+        if (!(step > 0 && step < Double.POSITIVE_INFINITY)) {
+            return Double.NaN;
+        }
+
+        for (int i = 1; i <= n; i++) {
+            if (Math.abs(t[i]-t[i-1]-step) > tolerance) {
+                return Double.NaN;
+            }
+        }
+        return step;
+    }
+
+
+    /**
+     * log-density of Brownian motion with precision tau (without the normalising constant and x0Prior, as in BMPrior)
+     *
+     *    n/2 log(tau) - 1/2 sum log(dt_i) - tau/2 sum dx_i^2/dt_i
+     *
+     * @param t     times
+     * @param x     values
+     * @param dt    buffer of at least the dimension of t
+     * @param tau
+     */
+    public static double brownianMotionLogP(double [] t, double [] x, double [] dt, double tau) {
+        if (SCALAR) return scalarBrownianMotionLogP(t, x, tau);
+
+        final int n = x.length - 1;
+
+        double quadratic = 0;
+        for (int i = 1; i <= n; i++) {
+            dt[i] = t[i]-t[i-1];
+            final double dx = x[i]-x[i-1];
+            quadratic += dx*dx/dt[i];
+        }
+
+        return n/2.0 * Math.log(tau) - 0.5*sumLog(dt, 1, n+1) - 0.5*tau*quadratic;
+    }
+
+
+    /**
+     * brownianMotionLogP() for equally spaced times (every dt_i = dt)
+     *
+     *    n/2 log(tau) - n/2 log(dt) - tau/(2 dt) sum dx_i^2
+     *
+     * @param x     values
+     * @param dt    spacing of the times
+     * @param tau
+     */
+    public static double uniformBrownianMotionLogP(double [] x, double dt, double tau) {
+        final int n = x.length - 1;
+
+        double quadratic = 0;
+        for (int i = 1; i <= n; i++) {
+            final double dx = x[i]-x[i-1];
+            quadratic += dx*dx;
+        }
+
+        return n/2.0 * (Math.log(tau) - Math.log(dt)) - 0.5*tau*quadratic/dt;
+    }
+
+
+    /**
+     * Original loop of BMPrior.calculateLogP()
+     */
+    public static double scalarBrownianMotionLogP(double [] t, double [] x, double tau) {
+        int n = x.length - 1;
+
+        double logL = n/2.0 * Math.log(tau);
+
+        for (int i = 1; i <= n; i++) {
+
+            double dt = t[i]-t[i-1];
+            double dx = x[i]-x[i-1];
+
+            logL -= 0.5*Math.log(dt);
+            logL -= (0.5*tau*dx*dx)/dt;
+        }
+
+        return logL;
+    }
+
+
+    /**
+     * log-density of the Ornstein-Uhlenbeck process (without the normalising constant and x0Prior, as in OUPrior)
+     *
+     *    -n/2 log(sigma^2/(2 nu)) - sum [ 1/2 log(r_i) + nu/sigma^2 (x_i - mu - (x_{i-1} - mu) exp(-nu dt_i))^2/r_i ]
+     *
+     * with r_i = 1 - exp(-2 nu dt_i)
+     *
+     * @param t      times
+     * @param x      values
+     * @param r      buffer of at least the dimension of t
+     * @param period time-scale dt is divided by
+     */
+    public static double ornsteinUhlenbeckLogP(double [] t, double [] x, double [] r, double period,
+                                               double mu, double sigsq, double nu) {
+        if (SCALAR) return scalarOrnsteinUhlenbeckLogP(t, x, period, mu, sigsq, nu);
+
+        final int n = x.length - 1;
+
+        // Transcendental calls in a separate loop (expm1(-nu dt) = exp(-nu dt) - 1)
+        for (int i = 1; i <= n; i++) {
+            r[i] = Math.expm1(-nu*(t[i]-t[i-1])/period);
+        }
+
+        // 1 - exp(-2 nu dt) = -expm1(-nu dt) (2 + expm1(-nu dt)), without cancellation for small dt
+        double quadratic = 0;
+        for (int i = 1; i <= n; i++) {
+            final double em    = r[i],
+                         term  = x[i] - mu - (x[i-1]-mu) * (1.0 + em);
+            r[i] = -em*(2.0 + em);
+            quadratic += term*term/r[i];
+        }
+
+        return -n/2.0 * Math.log(sigsq / (2.0*nu)) - 0.5*sumLog(r, 1, n+1) - nu / sigsq * quadratic;
+    }
+
+
+    /**
+     * ornsteinUhlenbeckLogP() for equally spaced times (every dt_i = dt before dividing by the period), with
+     * exp(-nu dt) and log(r) calculated once
+     *
+     *    -n/2 log(sigma^2/(2 nu)) - n/2 log(r) - nu/(sigma^2 r) sum (x_i - mu - (x_{i-1} - mu) exp(-nu dt))^2
+     *
+     * @param x      values
+     * @param dt     spacing of the times
+     * @param period time-scale dt is divided by
+     */
+    public static double uniformOrnsteinUhlenbeckLogP(double [] x, double dt, double period,
+                                                      double mu, double sigsq, double nu) {
+        final int n = x.length - 1;
+
+        final double em    = Math.expm1(-nu*dt/period),
+                     decay = 1.0 + em,
+                     r     = -em*(2.0 + em);
+
+        double quadratic = 0;
+        for (int i = 1; i <= n; i++) {
+            final double term = x[i] - mu - (x[i-1]-mu) * decay;
+            quadratic += term*term;
+        }
+
+        return -n/2.0 * (Math.log(sigsq / (2.0*nu)) + Math.log(r)) - nu / sigsq * quadratic / r;
+    }
+
+
+    /**
+     * Original loop of OUPrior.calculateLogP()
+     */
+    public static double scalarOrnsteinUhlenbeckLogP(double [] t, double [] x, double period,
+                                                     double mu, double sigsq, double nu) {
+        int n = x.length - 1;
+
+        double logL = -n/2.0 * Math.log(sigsq / (2.0*nu));
+
+        for (int i = 1; i <= n; i++) {
+
+            double dt = (t[i]-t[i-1])/period;
+            double relterm = 1.0-Math.exp(-2.0*nu*(dt));
+
+            logL -= Math.log(relterm)/2.0;
+
+            double term = x[i] - mu - (x[i-1]-mu) * Math.exp(-nu*(dt));
+
+            logL -= nu / sigsq * (term*term / relterm);
+        }
+
+        return logL;
+    }
+
+}
@@ -0,0 +1,48 @@
+package skylinetools.distributions;
+
+import beast.core.Function;
+
+/**
+ * Smoothing prior under which (the log of) x is a Gaussian Markov chain with
+ *
+ *    x_i - c = decay_i (x_{i-1} - c) + sd_i e_i,   e_i ~ N(0,1),   i = 1..n
+ *
+ * Used by operators that propose from the prior, e.g. the EllipticalSliceOperator.
+ */
+public interface GaussianMarkovPrior {
+
+    /**
+     * @return the values the prior is on
+     */
+    Function getX();
+
+    /**
+     * @return the log-density of the prior as last calculated (see Distribution)
+     */
+    double getCurrentLogP();
+
+    /**
+     * @return true if the prior is on log(x)
+     */
+    boolean isLogSpace();
+
+    /**
+     * @return the value c that the conditional mean decays towards
+     */
+    double getReversionMean();
+
+    /**
+     * Cached until the parameters of the prior or the times change (do not modify)
+     *
+     * @return decay_i for i = 1..n (element 0 is not used)
+     */
+    double [] getDecays();
+
+    /**
+     * Cached until the parameters of the prior or the times change (do not modify)
+     *
+     * @return sd_i for i = 1..n (element 0 is not used)
+     */
+    double [] getStandardDeviations();
+
+}
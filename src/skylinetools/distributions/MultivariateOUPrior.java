@@ -0,0 +1,466 @@
+package skylinetools.distributions;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.State;
+import beast.core.parameter.Parameter;
+import beast.core.parameter.RealParameter;
+import beast.math.distributions.ParametricDistribution;
+import skylinetools.util.HotPathMetrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Multivariate Ornstein-Uhlenbeck probability density for use as a joint prior on k skylines (e.g. one per deme in a
+ * BDMM analysis) sharing the same times.
+ *
+ * x is a k-dimensional skyline stored with a stride of k (the minordimension of the parameter), so x[i*k + j] is the
+ * value of skyline j at time t_i. The process is
+ *
+ *    dX = -A(X - mu) dt + S dW
+ *
+ * with A a symmetric, positive definite k x k drift matrix (only the upper triangle of the drift input is used) and S a
+ * diagonal matrix of standard deviations. For k = 1 (and A = nu, S = sigma) the density is the same as the OUPrior and
+ * with a diagonal A it is the sum of independent OUPriors on each skyline. As for the OUPrior the normalising constant
+ * is missing.
+ *
+ * Over an interval of length dt the transition has mean mu + exp(-A dt)(x - mu) and covariance
+ * V(dt) = int_0^dt exp(-As) S^2 exp(-As) ds. Writing A = U L U' (Jacobi eigendecomposition), both have closed forms in
+ * the eigenbasis, so no matrix exponentials are needed. The eigendecomposition is only recalculated when the drift
+ * matrix changes and the transition matrix and Cholesky decomposition of the covariance for every distinct dt are
+ * cached until the drift or sigma changes, so repeated interval lengths (e.g. an equidistant grid) reuse work and
+ * evaluating the density costs O(n k^2) after setup.
+ */
+@Description("Multivariate Ornstein-Uhlenbeck prior on several skylines with correlated changes")
+public class MultivariateOUPrior extends Distribution {
+
+    // the k trajectories to compute the prior of (stride k)
+    public Input<Function> xInput =
+            new Input<>("x", "The x_i values of all skylines (with minordimension equal to the number of skylines)", (Function) null);
+
+    // the times associated with the x_i values
+    public Input<Function> timeInput =
+            new Input<>("times", "The times t_i specifying when x changes", (Function) null);
+
+    // mean
+    public Input<RealParameter> meanInput =
+            new Input<RealParameter>("mean", "The mean of the equilibrium distribution (1 or k values)", (RealParameter) null);
+
+    // sigma
+    public Input<RealParameter> sigmaInput =
+            new Input<RealParameter>("sigma", "The standard deviation parameters of the process (1 or k values)", (RealParameter) null);
+
+    // drift
+    public Input<RealParameter> driftInput =
+            new Input<RealParameter>("drift", "The symmetric k x k mean reversion (drift) matrix (only the upper triangle is used)", (RealParameter) null);
+
+    public Input<ParametricDistribution> x0PriorInput =
+            new Input<>("x0Prior", "The prior to use on each skyline's x0, or null if none.", (ParametricDistribution) null);
+
+    public Input<Boolean> logSpace = new Input<>("logspace", "true if prior should be applied to log(x).", false);
+
+    public Input<Boolean> normalize = new Input<>("normalize", "true if times should be normalized such that t[n]-t[0]=1", false);
+
+    private static final HotPathMetrics.Timer calculateLogPTimer = HotPathMetrics.timer("MultivariateOUPrior.calculateLogP");
+
+    /* Maximum number of sweeps of the Jacobi eigenvalue algorithm */
+    static final int MAX_SWEEPS = 100;
+
+    protected int k, rows;
+
+    /* Drift and sigma the cached eigendecomposition and transitions were calculated for */
+    protected double [] cachedDrift, cachedSigma;
+    protected boolean eigenKnown;
+
+    /* A = U L U' (eigenvectors in the columns of U) and S^2 in the eigenbasis (U'S^2U) */
+    protected double [] eigenValues, eigenVectors, rotatedDiffusion;
+
+    /* Cache of transitions for distinct values of dt (open addressing on the bits of dt) */
+    protected long [] dtKeys;
+    protected boolean [] dtUsed;
+    protected double [][] transitions, choleskys;
+    protected double [] halfLogDets;
+    protected int dtCount;
+
+    /* Buffers */
+    private double [] mu, x, previous, residual, work;
+
+
+    @Override
+    public void initAndValidate() {
+        Function xFunction = xInput.get();
+
+        k = xFunction instanceof Parameter.Base ? ((Parameter.Base<?>) xFunction).getMinorDimension1() : 1;
+        if (xFunction.getDimension() % k != 0) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Dimension of x ("+xFunction.getDimension()+
+                    ") must be a multiple of its minordimension ("+k+")");
+        }
+        rows = xFunction.getDimension() / k;
+
+        if (timeInput.get().getDimension() != rows) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Dimension of times ("+
+                    timeInput.get().getDimension()+") must be equal to the number of rows of x ("+rows+")");
+        }
+        if (driftInput.get().getDimension() != k*k) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Drift matrix must have dimension "+(k*k));
+        }
+        for (RealParameter parameter : new RealParameter[] {meanInput.get(), sigmaInput.get()}) {
+            if (parameter.getDimension() != 1 && parameter.getDimension() != k) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": Dimension of "+parameter.getID()+
+                        " must be 1 or "+k);
+            }
+        }
+
+        cachedDrift      = new double[k*k];
+        cachedSigma      = new double[k];
+        eigenValues      = new double[k];
+        eigenVectors     = new double[k*k];
+        rotatedDiffusion = new double[k*k];
+        eigenKnown = false;
+
+        int capacity = 16;
+        while (capacity < 4*rows) {
+            capacity *= 2;
+        }
+        dtKeys      = new long[capacity];
+        dtUsed      = new boolean[capacity];
+        transitions = new double[capacity][k*k];
+        choleskys   = new double[capacity][k*k];
+        halfLogDets = new double[capacity];
+        dtCount = 0;
+
+        mu       = new double[k];
+        x        = new double[rows*k];
+        previous = new double[k];
+        residual = new double[k];
+        work     = new double[k*k];
+    }
+
+
+    /**
+     * Check if the drift matrix or sigma changed and if so recalculate the eigendecomposition and clear the transitions
+     *
+     * @return false if the drift matrix is not positive definite
+     */
+    protected boolean updateEigenDecomposition() {
+        final RealParameter drift = driftInput.get(),
+                            sigma = sigmaInput.get();
+
+        boolean changed = !eigenKnown;
+        for (int i = 0; i < k; i++) {
+            for (int j = i; j < k; j++) {
+                double a = drift.getArrayValue(i*k + j);
+                if (a != cachedDrift[i*k + j]) {
+                    cachedDrift[i*k + j] = cachedDrift[j*k + i] = a;
+                    changed = true;
+                }
+            }
+            double s = sigma.getArrayValue(sigma.getDimension() == 1 ? 0 : i);
+            if (s != cachedSigma[i]) {
+                cachedSigma[i] = s;
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            System.arraycopy(cachedDrift, 0, work, 0, k*k);
+            jacobiEigen(work, k, eigenValues, eigenVectors);
+
+            // U'S^2U
+            for (int a = 0; a < k; a++) {
+                for (int b = 0; b < k; b++) {
+                    double sum = 0;
+                    for (int j = 0; j < k; j++) {
+                        sum += eigenVectors[j*k + a] * cachedSigma[j] * cachedSigma[j] * eigenVectors[j*k + b];
+                    }
+                    rotatedDiffusion[a*k + b] = sum;
+                }
+            }
+
+            Arrays.fill(dtUsed, false);
+            dtCount = 0;
+            eigenKnown = true;
+        }
+
+        for (int a = 0; a < k; a++) {
+            if (eigenValues[a] <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Find the cached transition for dt or calculate it (O(k^3))
+     *
+     * @return index of the cache slot
+     */
+    protected int getTransition(double dt) {
+        final long key = Double.doubleToLongBits(dt);
+        final int mask = dtKeys.length - 1;
+
+        int slot = (int) (key ^ (key >>> 32)) * 0x9E3779B9 & mask;
+        while (dtUsed[slot]) {
+            if (dtKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (2*dtCount >= dtKeys.length) {
+            // Times changed often enough to fill the cache with lengths that are no longer used
+            Arrays.fill(dtUsed, false);
+            dtCount = 0;
+            return getTransition(dt);
+        }
+
+        dtUsed[slot] = true;
+        dtKeys[slot] = key;
+        dtCount++;
+        halfLogDets[slot] = calculateTransition(dt, transitions[slot], choleskys[slot]);
+        return slot;
+    }
+
+
+    /**
+     * Calculate exp(-A dt) and the Cholesky decomposition of V(dt)
+     *
+     * In the eigenbasis V'(dt)_ab = (U'S^2U)_ab (1 - exp(-(l_a + l_b) dt))/(l_a + l_b)
+     *
+     * @return half the log-determinant of V(dt) (NaN if V(dt) is not positive definite)
+     */
+    protected double calculateTransition(double dt, double [] transition, double [] cholesky) {
+
+        for (int a = 0; a < k; a++) {
+            for (int b = 0; b < k; b++) {
+                double lambda = eigenValues[a] + eigenValues[b];
+                work[a*k + b] = rotatedDiffusion[a*k + b] * -Math.expm1(-lambda*dt) / lambda;
+            }
+        }
+
+        for (int i = 0; i < k; i++) {
+            for (int j = 0; j < k; j++) {
+                double phi = 0, v = 0;
+                for (int a = 0; a < k; a++) {
+                    double uia = eigenVectors[i*k + a];
+                    phi += uia * Math.exp(-eigenValues[a]*dt) * eigenVectors[j*k + a];
+                    for (int b = 0; b < k; b++) {
+                        v += uia * work[a*k + b] * eigenVectors[j*k + b];
+                    }
+                }
+                transition[i*k + j] = phi;
+                cholesky[i*k + j] = v;
+            }
+        }
+
+        return cholesky(cholesky, k);
+    }
+
+
+    public double calculateLogP() {
+
+        final long start = calculateLogPTimer.start();
+
+        if (!updateEigenDecomposition()) {
+            logP = Double.NEGATIVE_INFINITY;
+            calculateLogPTimer.stop(start);
+            return logP;
+        }
+
+        final RealParameter mean = meanInput.get();
+        for (int j = 0; j < k; j++) {
+            mu[j] = mean.getArrayValue(mean.getDimension() == 1 ? 0 : j);
+        }
+
+        final Function xFunction = xInput.get(),
+                       tFunction = timeInput.get();
+        final boolean logspace = logSpace.get();
+        for (int i = 0; i < x.length; i++) {
+            x[i] = logspace ? Math.log(xFunction.getArrayValue(i)) : xFunction.getArrayValue(i);
+        }
+
+        double period = 1;
+        // Standardize differences between times
+        // (so variance and mean-reversion are not dependent on time-scale)
+        if (normalize.get() == true) {
+            period = tFunction.getArrayValue(rows-1)-tFunction.getArrayValue(0);
+        }
+
+        double logL = 0;
+        for (int i = 1; i < rows; i++) {
+
+            double dt = (tFunction.getArrayValue(i)-tFunction.getArrayValue(i-1))/period;
+            int slot = getTransition(dt);
+
+            final double [] transition = transitions[slot],
+                            cholesky   = choleskys[slot];
+
+            for (int j = 0; j < k; j++) {
+                previous[j] = x[(i-1)*k + j] - mu[j];
+            }
+
+            // Solve L z = x_i - mu - exp(-A dt)(x_{i-1} - mu) by forward substitution
+            double quadratic = 0;
+            for (int j = 0; j < k; j++) {
+                double r = x[i*k + j] - mu[j];
+                for (int l = 0; l < k; l++) {
+                    r -= transition[j*k + l] * previous[l];
+                }
+                for (int l = 0; l < j; l++) {
+                    r -= cholesky[j*k + l] * residual[l];
+                }
+                residual[j] = r / cholesky[j*k + j];
+                quadratic += residual[j]*residual[j];
+            }
+
+            logL -= halfLogDets[slot] + quadratic/2;
+        }
+
+        ParametricDistribution x0Prior = x0PriorInput.get();
+        if (x0Prior != null) {
+            for (int j = 0; j < k; j++) {
+                final double x0 = x[j];
+                logL += x0Prior.calcLogP(new Function() {
+                    @Override
+                    public int getDimension() {
+                        return 1;
+                    }
+
+                    @Override
+                    public double getArrayValue() {
+                        return x0;
+                    }
+
+                    @Override
+                    public double getArrayValue(int iDim) {
+                        return x0;
+                    }
+                });
+            }
+        }
+
+        // Singular covariance (dt = 0)
+        if (Double.isNaN(logL)) {
+            logL = Double.NEGATIVE_INFINITY;
+        }
+
+        logP = logL;
+        calculateLogPTimer.stop(start);
+        return logP;
+    }
+
+
+    /**
+     * Eigendecomposition of a symmetric matrix with the cyclic Jacobi method (O(k^3) per sweep)
+     *
+     * @param matrix  k x k symmetric matrix (row-major), overwritten
+     * @param k
+     * @param values  eigenvalues
+     * @param vectors eigenvectors in the columns (row-major), so matrix = vectors diag(values) vectors'
+     */
+    protected static void jacobiEigen(double [] matrix, int k, double [] values, double [] vectors) {
+
+        Arrays.fill(vectors, 0);
+        for (int i = 0; i < k; i++) {
+            vectors[i*k + i] = 1;
+        }
+
+        for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+            double off = 0, diagonal = 0;
+            for (int p = 0; p < k; p++) {
+                diagonal += matrix[p*k + p]*matrix[p*k + p];
+                for (int q = p+1; q < k; q++) {
+                    off += matrix[p*k + q]*matrix[p*k + q];
+                }
+            }
+            if (off <= 1e-30 * diagonal || off == 0) {
+                break;
+            }
+
+            for (int p = 0; p < k; p++) {
+                for (int q = p+1; q < k; q++) {
+                    double apq = matrix[p*k + q];
+                    if (apq == 0) continue;
+
+                    // Rotation that zeroes matrix[p][q]
+                    double theta = (matrix[q*k + q] - matrix[p*k + p]) / (2*apq),
+                           t = (theta >= 0 ? 1 : -1) / (Math.abs(theta) + Math.sqrt(theta*theta + 1)),
+                           c = 1 / Math.sqrt(t*t + 1),
+                           s = t*c;
+
+                    for (int r = 0; r < k; r++) {
+                        double arp = matrix[r*k + p], arq = matrix[r*k + q];
+                        matrix[r*k + p] = c*arp - s*arq;
+                        matrix[r*k + q] = s*arp + c*arq;
+                    }
+                    for (int r = 0; r < k; r++) {
+                        double apr = matrix[p*k + r], aqr = matrix[q*k + r];
+                        matrix[p*k + r] = c*apr - s*aqr;
+                        matrix[q*k + r] = s*apr + c*aqr;
+                    }
+                    for (int r = 0; r < k; r++) {
+                        double vrp = vectors[r*k + p], vrq = vectors[r*k + q];
+                        vectors[r*k + p] = c*vrp - s*vrq;
+                        vectors[r*k + q] = s*vrp + c*vrq;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < k; i++) {
+            values[i] = matrix[i*k + i];
+        }
+    }
+
+
+    /**
+     * In-place Cholesky decomposition of a symmetric positive definite matrix (lower triangle, upper triangle set to 0)
+     *
+     * @return half the log-determinant of the matrix (NaN if it is not positive definite)
+     */
+    protected static double cholesky(double [] matrix, int k) {
+        double halfLogDet = 0;
+        for (int i = 0; i < k; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = matrix[i*k + j];
+                for (int l = 0; l < j; l++) {
+                    sum -= matrix[i*k + l]*matrix[j*k + l];
+                }
+                if (i == j) {
+                    if (!(sum > 0)) {
+                        return Double.NaN;
+                    }
+                    matrix[i*k + i] = Math.sqrt(sum);
+                    halfLogDet += Math.log(matrix[i*k + i]);
+                } else {
+                    matrix[i*k + j] = sum / matrix[j*k + j];
+                }
+            }
+            for (int j = i+1; j < k; j++) {
+                matrix[i*k + j] = 0;
+            }
+        }
+        return halfLogDet;
+    }
+
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+
+    }
+}
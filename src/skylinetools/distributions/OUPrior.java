@@ -4,10 +4,20 @@ import beast.core.Distribution;
 import beast.core.Function;
 import beast.core.Input;
 import beast.core.State;
+import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
+import beast.core.util.Log;
 import beast.math.distributions.ParametricDistribution;
+import beast.util.Randomizer;
+import skylinetools.parameter.NonCenteredSkyline;
+import skylinetools.util.CacheCheckpointer;
+import skylinetools.util.Checkpointable;
+import skylinetools.util.HotPathMetrics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
-import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -21,9 +31,28 @@ import java.util.Random;
  *
  * To ponder: Should normalization be included? I think not...
  *
+ * If observed is given, x only contains values for those times and the values at all other times are latent and
+ * integrated out with a Kalman filter: the predictive mean and variance are propagated through the latent times and
+ * collapse onto x at every observed time (there is no observation noise), which costs O(n). If t_0 is latent it is
+ * drawn from the stationary distribution (and x0Prior is not used). With every time observed the density is the same
+ * as without observed. Use sampleTrajectory() (e.g. through OUTrajectoryLogger) to draw the latent values.
+ *
+ * The transitions between consecutive elements of x (decay exp(-nu dt) and standard deviation
+ * sqrt(sigma^2/(2 nu) (1 - exp(-2 nu dt)))) are cached as a GaussianMarkovPrior for operators that propose from the prior.
+ *
+ * The density is calculated with GaussianKernels (n expm1s and a single log per evaluation, or a single expm1 and two
+ * logs if the times are equally spaced).
+ *
+ * The cached transitions can be checkpointed with a CacheCheckpointer (they are checked against the times, sigma and nu
+ * every time they are used, so restored transitions are recalculated if they do not match).
+ *
+ * If x is a NonCenteredSkyline the density is that of its standardised increments (plus x0Prior on x_0), so the
+ * times, mean, sigma and nu of this prior must be the same as the skyline's (or not given), the skyline must be an
+ * Ornstein-Uhlenbeck process with the same logspace and the times cannot be normalized.
+ *
  * @author Alexei Drummond.
  */
-public class OUPrior extends Distribution {
+public class OUPrior extends Distribution implements GaussianMarkovPrior, Checkpointable {
 
 
     // the trajectory to compute Ornstein-Uhlenbeck prior of
@@ -53,9 +82,113 @@ public class OUPrior extends Distribution {
 
     public Input<Boolean> normalize = new Input<>("normalize", "true if times should be normalized such that t[n]-t[0]=1", false);
 
+    public Input<IntegerParameter> observedInput =
+            new Input<>("observed", "Indices (in increasing order) of the times x has values for. The values at all " +
+                    "other times are latent and integrated out. If null x has a value for every time.", (IntegerParameter) null);
+
+    private static final HotPathMetrics.Timer calculateLogPTimer = HotPathMetrics.timer("OUPrior.calculateLogP");
+
+    /* Index of the time of each element of x (null if all times are observed) */
+    protected int [] observed;
+
+    /* Cached transitions (GaussianMarkovPrior) and the times and parameters they were calculated for */
+    protected double [] decays, standardDeviations, transitionTimes;
+    protected double transitionSigma = Double.NaN, transitionNu = Double.NaN;
+
+    protected CacheCheckpointer checkpointer;
+
+    /* Reused by the log-density kernel */
+    private double [] buffer;
+
+
+    @Override
+    public void initAndValidate() {
+        observed = null;
+
+        if (xInput.get() instanceof NonCenteredSkyline) {
+            final NonCenteredSkyline skyline = (NonCenteredSkyline) xInput.get();
+
+            if (skyline.nuInput.get() == null) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": The NonCenteredSkyline "+skyline.getID()+
+                        " is a Brownian motion (use a BMPrior).");
+            }
+            if (normalize.get()) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": Times cannot be normalized with a " +
+                        "NonCenteredSkyline.");
+            }
+            if (!logSpace.get().equals(skyline.logSpace.get())) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": logspace must be the same as the " +
+                        "logspace of the NonCenteredSkyline "+skyline.getID()+".");
+            }
+            skyline.checkPriorInput(this, timeInput, skyline.timeInput);
+            skyline.checkPriorInput(this, meanInput, skyline.meanInput);
+            skyline.checkPriorInput(this, sigmaInput, skyline.sigmaInput);
+            skyline.checkPriorInput(this, nuInput, skyline.nuInput);
+        }
+
+        if (observedInput.get() != null) {
+            final IntegerParameter observedParameter = observedInput.get();
+            final int times = timeInput.get().getDimension();
+
+            observed = new int[observedParameter.getDimension()];
+            for (int i = 0; i < observed.length; i++) {
+                observed[i] = observedParameter.getNativeValue(i);
+
+                if (observed[i] < 0 || observed[i] >= times || (i > 0 && observed[i] <= observed[i-1])) {
+                    throw new IllegalArgumentException("Error in "+this.getID()+": Observed indices must be increasing " +
+                            "and between 0 and "+(times-1)+".");
+                }
+            }
+
+            if (xInput.get() instanceof NonCenteredSkyline) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": Latent times cannot be used with a NonCenteredSkyline.");
+            }
+
+            if (observed.length != xInput.get().getDimension()) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": Dimension of x ("+
+                        xInput.get().getDimension()+") must be equal to the number of observed times ("+observed.length+")");
+            }
+
+            if (observed[0] != 0 && x0PriorInput.get() != null) {
+                Log.warning.println("Warning in "+this.getID()+": x0 is latent, so x0Prior will be ignored (x0 is " +
+                        "drawn from the stationary distribution).");
+            }
+        }
+    }
+
 
     public double calculateLogP() {
 
+        final long start = calculateLogPTimer.start();
+
+        if (xInput.get() instanceof NonCenteredSkyline) {
+            // Non-centered: standard normal density of the increments
+            final NonCenteredSkyline skyline = (NonCenteredSkyline) xInput.get();
+            final double x0 = skyline.getX0();
+
+            double logL = skyline.getIncrementsLogP();
+            if (x0PriorInput.get() != null) logL += x0PriorInput.get().calcLogP(new Function() {
+                @Override
+                public int getDimension() {
+                    return 1;
+                }
+
+                @Override
+                public double getArrayValue() {
+                    return x0;
+                }
+
+                @Override
+                public double getArrayValue(int iDim) {
+                    return x0;
+                }
+            });
+
+            logP = logL;
+            calculateLogPTimer.stop(start);
+            return logP;
+        }
+
         double mu = meanInput.get().getValue();
         double sigma = sigmaInput.get().getValue();
         double sigsq = sigma * sigma;
@@ -63,7 +196,10 @@ public class OUPrior extends Distribution {
 
         ParametricDistribution x0Prior = x0PriorInput.get();
 
-        double[] t = timeInput.get().getDoubleValues();
+        // Equally spaced times are only read if they are not a UniformGrid (latent times always need the times)
+        final Function times = timeInput.get();
+        double step = observed == null ? GaussianKernels.uniformStep(times) : Double.NaN;
+        double[] t = Double.isNaN(step) ? times.getDoubleValues() : null;
         double[] x = xInput.get().getDoubleValues();
 
         boolean logspace = logSpace.get();
@@ -73,34 +209,51 @@ public class OUPrior extends Distribution {
             }
         }
 
-        int n = x.length - 1;
-
-
-        double logL = -n/2.0 * Math.log(sigsq / (2.0*nu));
-
         double period = 1;
         // Standardize differences between times
         // (so variance and mean-reversion are not dependent on time-scale)
         if (normalize.get() == true) {
-            period = t[t.length-1]-t[0];
+            period = times.getArrayValue(times.getDimension()-1)-times.getArrayValue(0);
         }
-        System.out.println(Arrays.toString(t));
-        System.out.println(period);
-
-        for (int i = 1; i <= n; i++) {
-
-            double dt = (t[i]-t[i-1])/period;
-            double relterm = 1.0-Math.exp(-2.0*nu*(dt));
-
-            logL -= Math.log(relterm)/2.0;
 
-            double term = x[i] - mu - (x[i-1]-mu) * Math.exp(-nu*(dt));
+        if (observed != null) {
+            double logL = calculateLatentLogP(x, t, period, mu, sigsq, nu);
+
+            if (x0Prior != null && observed[0] == 0) logL += x0Prior.calcLogP(new Function() {
+                @Override
+                public int getDimension() {
+                    return 1;
+                }
+
+                @Override
+                public double getArrayValue() {
+                    return x[0];
+                }
+
+                @Override
+                public double getArrayValue(int iDim) {
+                    return x[0];
+                }
+            });
+
+            logP = logL;
+            calculateLogPTimer.stop(start);
+            return logP;
+        }
 
-            logL -= nu / sigsq * (term*term / relterm);
+        if (t != null) {
+            step = GaussianKernels.uniformStep(t);
+        }
 
-            System.out.print(dt+" + ");
+        double logL;
+        if (!Double.isNaN(step)) {
+            logL = GaussianKernels.uniformOrnsteinUhlenbeckLogP(x, step, period, mu, sigsq, nu);
+        } else {
+            if (buffer == null || buffer.length < x.length) {
+                buffer = new double[x.length];
+            }
+            logL = GaussianKernels.ornsteinUhlenbeckLogP(t, x, buffer, period, mu, sigsq, nu);
         }
-        System.out.println();
 
         if (x0Prior != null) logL += x0Prior.calcLogP(new Function() {
             @Override
@@ -120,9 +273,268 @@ public class OUPrior extends Distribution {
         });
 
         logP = logL;
+        calculateLogPTimer.stop(start);
         return logP;
     }
 
+
+    /**
+     * Kalman filter over all times, with the state collapsing onto x at observed times
+     *
+     * Between times the predictive distribution N(m, P) is propagated as
+     *    m' = mu + (m - mu) exp(-nu dt),  P' = P exp(-2 nu dt) + sigma^2/(2 nu) (1 - exp(-2 nu dt))
+     * which reduces to the OU transition density at every observed time following another observed time.
+     */
+    protected double calculateLatentLogP(double [] x, double [] t, double period, double mu, double sigsq, double nu) {
+
+        final double stationary = sigsq / (2.0*nu);
+
+        double logL = 0,
+               m = mu,
+               P = stationary;
+
+        int obs = 0;
+        if (observed[0] == 0) {
+            m = x[0];
+            P = 0;
+            obs = 1;
+        }
+
+        for (int i = 1; i < t.length && obs < observed.length; i++) {
+
+            double dt = (t[i]-t[i-1])/period;
+            double decay = Math.exp(-nu*dt),
+                   decaysq = decay*decay;
+
+            m = mu + (m - mu)*decay;
+            P = P*decaysq + stationary*(1.0-decaysq);
+
+            if (observed[obs] == i) {
+                double term = x[obs] - m;
+                logL -= Math.log(P)/2.0 + term*term/(2.0*P);
+
+                m = x[obs];
+                P = 0;
+                obs++;
+            }
+        }
+
+        return logL;
+    }
+
+
+    /**
+     * Draw a trajectory at all times from the process conditioned on the values of x at the observed times
+     *
+     * Latent times before the first observed time are drawn backwards from the stationary process (conditioned on the
+     * next time), times between observed times from the OU bridge (conditioned on the previous time and the next
+     * observed time) and times after the last observed time forwards from the transition density.
+     *
+     * @param trajectory array with the dimension of times to store the trajectory in (on the same scale as x)
+     */
+    public void sampleTrajectory(double [] trajectory) {
+
+        final double mu = meanInput.get().getValue(),
+                     sigma = sigmaInput.get().getValue(),
+                     nu = nuInput.get().getValue(),
+                     stationary = sigma*sigma / (2.0*nu);
+
+        final Function xFunction = xInput.get(),
+                       tFunction = timeInput.get();
+        final int times = tFunction.getDimension();
+        final boolean logspace = logSpace.get();
+
+        double period = 1;
+        if (normalize.get() == true) {
+            period = tFunction.getArrayValue(times-1)-tFunction.getArrayValue(0);
+        }
+
+        // Centred values at observed times
+        boolean [] known = new boolean[times];
+        for (int j = 0; j < xFunction.getDimension(); j++) {
+            int i = observed == null ? j : observed[j];
+            double value = xFunction.getArrayValue(j);
+            trajectory[i] = (logspace ? Math.log(value) : value) - mu;
+            known[i] = true;
+        }
+
+        int first = 0;
+        while (!known[first]) first++;
+
+        // Before the first observed time (the stationary process is reversible)
+        for (int i = first-1; i >= 0; i--) {
+            double phi = Math.exp(-nu*(tFunction.getArrayValue(i+1)-tFunction.getArrayValue(i))/period),
+                   v = stationary*(1.0-phi*phi),
+                   precision = 1.0/stationary + phi*phi/v,
+                   mean = phi*trajectory[i+1]/v/precision;
+            trajectory[i] = mean + Randomizer.nextGaussian()/Math.sqrt(precision);
+        }
+
+        // After the first observed time
+        int next = first;
+        for (int i = first+1; i < times; i++) {
+            if (known[i]) continue;
+
+            while (next < times && (next <= i || !known[next])) next++;
+
+            double phi1 = Math.exp(-nu*(tFunction.getArrayValue(i)-tFunction.getArrayValue(i-1))/period),
+                   v1 = stationary*(1.0-phi1*phi1);
+
+            if (next < times) {
+                // Bridge to the next observed time
+                double phi2 = Math.exp(-nu*(tFunction.getArrayValue(next)-tFunction.getArrayValue(i))/period),
+                       v2 = stationary*(1.0-phi2*phi2),
+                       precision = 1.0/v1 + phi2*phi2/v2,
+                       mean = (phi1*trajectory[i-1]/v1 + phi2*trajectory[next]/v2)/precision;
+                trajectory[i] = mean + Randomizer.nextGaussian()/Math.sqrt(precision);
+            } else {
+                trajectory[i] = phi1*trajectory[i-1] + Randomizer.nextGaussian()*Math.sqrt(v1);
+            }
+        }
+
+        for (int i = 0; i < times; i++) {
+            trajectory[i] = logspace ? Math.exp(trajectory[i] + mu) : trajectory[i] + mu;
+        }
+    }
+
+
+    /**
+     * Recalculate the cached transitions between consecutive elements of x if the times, sigma or nu changed (O(n))
+     */
+    protected void updateTransitions() {
+        final Function times = timeInput.get();
+        final int dim = xInput.get().getDimension(),
+                  timeDim = times.getDimension();
+
+        if (decays == null && checkpointer != null) {
+            // Only tried once (the caches are allocated below if they were not restored)
+            checkpointer.restore(this);
+            checkpointer = null;
+        }
+
+        if (decays == null) {
+            decays = new double[dim];
+            standardDeviations = new double[dim];
+            transitionTimes = new double[timeDim];
+        }
+
+        final double sigma = sigmaInput.get().getValue(),
+                     nu = nuInput.get().getValue();
+
+        boolean changed = sigma != transitionSigma || nu != transitionNu;
+        for (int i = 0; i < timeDim; i++) {
+            double t = times.getArrayValue(i);
+            if (t != transitionTimes[i]) {
+                transitionTimes[i] = t;
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            transitionSigma = sigma;
+            transitionNu = nu;
+
+            double period = 1;
+            if (normalize.get() == true) {
+                period = transitionTimes[timeDim-1]-transitionTimes[0];
+            }
+
+            final double stationary = sigma*sigma / (2.0*nu);
+            for (int i = 1; i < dim; i++) {
+                double dt = observed == null ? transitionTimes[i]-transitionTimes[i-1] :
+                                               transitionTimes[observed[i]]-transitionTimes[observed[i-1]];
+                decays[i] = Math.exp(-nu*dt/period);
+                standardDeviations[i] = Math.sqrt(stationary*(1.0-decays[i]*decays[i]));
+            }
+        }
+    }
+
+    @Override
+    public Function getX() {
+        return xInput.get();
+    }
+
+    @Override
+    public boolean isLogSpace() {
+        return logSpace.get();
+    }
+
+    @Override
+    public double getReversionMean() {
+        return meanInput.get().getValue();
+    }
+
+    @Override
+    public double[] getDecays() {
+        updateTransitions();
+        return decays;
+    }
+
+    @Override
+    public double[] getStandardDeviations() {
+        updateTransitions();
+        return standardDeviations;
+    }
+
+
+    @Override
+    public void setCheckpointer(CacheCheckpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    @Override
+    public long getCheckpointFingerprint() {
+        // Transitions are checked against the times and parameters in updateTransitions()
+        return 0;
+    }
+
+    @Override
+    public void writeCheckpoint(DataOutputStream out) throws IOException {
+        updateTransitions();
+
+        out.writeInt(decays.length);
+        out.writeInt(transitionTimes.length);
+        for (int i = 0; i < decays.length; i++) {
+            out.writeDouble(decays[i]);
+            out.writeDouble(standardDeviations[i]);
+        }
+        for (int i = 0; i < transitionTimes.length; i++) {
+            out.writeDouble(transitionTimes[i]);
+        }
+        out.writeDouble(transitionSigma);
+        out.writeDouble(transitionNu);
+    }
+
+    @Override
+    public void readCheckpoint(DataInputStream in) throws IOException {
+        final int dim = in.readInt(),
+                  timeDim = in.readInt();
+        if (dim != xInput.get().getDimension() || timeDim != timeInput.get().getDimension()) {
+            throw new IOException("dimensions are "+dim+" and "+timeDim+" instead of "+
+                                  xInput.get().getDimension()+" and "+timeInput.get().getDimension());
+        }
+
+        double [] newDecays = new double[dim],
+                  newStandardDeviations = new double[dim],
+                  newTimes = new double[timeDim];
+        for (int i = 0; i < dim; i++) {
+            newDecays[i] = in.readDouble();
+            newStandardDeviations[i] = in.readDouble();
+        }
+        for (int i = 0; i < timeDim; i++) {
+            newTimes[i] = in.readDouble();
+        }
+        final double sigma = in.readDouble(),
+                     nu = in.readDouble();
+
+        decays = newDecays;
+        standardDeviations = newStandardDeviations;
+        transitionTimes = newTimes;
+        transitionSigma = sigma;
+        transitionNu = nu;
+    }
+
+
     @Override
     public List<String> getArguments() {
         return null;
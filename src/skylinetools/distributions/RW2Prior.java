@@ -0,0 +1,383 @@
+package skylinetools.distributions;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.math.distributions.ParametricDistribution;
+import skylinetools.util.HotPathMetrics;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Second-order random walk (RW2) smoothing prior on a sequence of (x_i,t_i) pairs with irregular spacing between times
+ *
+ * With h_i = t_{i+1}-t_i, the scaled second differences
+ *
+ *    d_i = (x_{i+1}-x_i)/h_i - (x_i-x_{i-1})/h_{i-1},   i = 1..n-1
+ *
+ * are independent with d_i ~ N(0, (h_{i-1}+h_i)/(2 tau)) (the irregular-spacing formulation of the RW2 used for
+ * e.g. INLA and the Skygrid). The density is that of x_2..x_n given x_0 and x_1, so the log-determinant of the
+ * precision of x_2..x_n depends on the times and is included:
+ *
+ *    log p = (n-1)/2 log(tau) - 1/2 sum log((h_{i-1}+h_i)/2) - sum log(h_i) - tau/2 x'Qx
+ *
+ * where Q = B'W^{-1}B is the (pentadiagonal) precision matrix for tau = 1. As for the BMPrior a distribution can be
+ * placed on x_0 and the normalising constant is missing.
+ *
+ * Q is stored in banded form (3 diagonals) and only rebuilt when the times change (O(n)). The quadratic form is kept
+ * together with Qx, so when only a few elements of x change (e.g. after a single-element RealRandomWalkOperator or
+ * ScaleOperator move) it is updated in O(1) per changed element instead of O(n). Log-transforms (logspace) are also
+ * only recalculated for changed elements. The indices changed since the last store/restore are recorded, so storing
+ * and restoring also only copy those (everything is only copied after the grid or the quadratic form was rebuilt).
+ */
+@Description("Second-order random walk smoothing prior on irregularly spaced times")
+public class RW2Prior extends Distribution {
+
+    // the trajectory to compute the RW2 prior of
+    public Input<Function> xInput =
+            new Input<>("x", "The x_i values", (Function) null);
+
+    // the times associated with the x_i values
+    public Input<Function> timeInput =
+            new Input<>("times", "The times t_i specifying when x changes", (Function) null);
+
+    // tau
+    public Input<RealParameter> tauInput =
+            new Input<RealParameter>("precision", "The precision parameter of the distribution (reciprocal of variance)", (RealParameter) null);
+
+    // sigma
+    public Input<RealParameter> sigmaInput =
+            new Input<RealParameter>("sigma", "The standard deviation parameter of the distribution", (RealParameter) null, Input.Validate.XOR, tauInput);
+
+    public Input<ParametricDistribution> x0PriorInput =
+            new Input<>("x0Prior", "The prior to use on x0, or null if none.", (ParametricDistribution) null);
+
+    public Input<Boolean> logSpace = new Input<>("logspace", "true if prior should be applied to log(x).", false);
+
+
+    /* Recalculate the quadratic form from scratch after this many incremental updates (to avoid accumulating error) */
+    static final int MAX_INCREMENTAL = 100;
+
+    private static final HotPathMetrics.Timer calculateLogPTimer = HotPathMetrics.timer("RW2Prior.calculateLogP");
+
+    protected int dim;
+
+    /* Current state and cached terms (restored on rejection) */
+    protected double [] t, rawX, x, Qx;
+    protected double [] storedT, storedRawX, storedX, storedQx;
+    protected double quadratic, gridLogDet;
+    protected double storedQuadratic, storedGridLogDet;
+    protected int incremental, storedIncremental;
+    protected boolean cacheKnown, storedCacheKnown;
+
+    /* Banded precision (tau = 1): Q[j][j], Q[j][j+1] and Q[j][j+2] */
+    protected double [] diag0, diag1, diag2;
+    protected double [] storedDiag0, storedDiag1, storedDiag2;
+
+    /* Indices of rawX, x and Qx changed since the last store/restore (everything if allChanged) */
+    protected int [] changedIndices;
+    protected boolean [] indexChanged;
+    protected int changedCount;
+    protected boolean allChanged;
+
+
+    @Override
+    public void initAndValidate() {
+        dim = xInput.get().getDimension();
+
+        if (dim < 3) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": RW2Prior needs at least 3 values.");
+        }
+        if (timeInput.get().getDimension() != dim) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Dimension of times ("+
+                    timeInput.get().getDimension()+") must be equal to the dimension of x ("+dim+")");
+        }
+
+        t     = new double[dim];
+        rawX  = new double[dim];
+        x     = new double[dim];
+        Qx    = new double[dim];
+        diag0 = new double[dim];
+        diag1 = new double[dim];
+        diag2 = new double[dim];
+
+        storedT     = new double[dim];
+        storedRawX  = new double[dim];
+        storedX     = new double[dim];
+        storedQx    = new double[dim];
+        storedDiag0 = new double[dim];
+        storedDiag1 = new double[dim];
+        storedDiag2 = new double[dim];
+
+        changedIndices = new int[dim];
+        indexChanged   = new boolean[dim];
+        changedCount   = 0;
+        allChanged     = true;
+
+        cacheKnown = false;
+    }
+
+
+    /**
+     * Build the banded precision matrix (for tau = 1) and the log-determinant terms that only depend on the times
+     *
+     * Row i of B (i = 1..n-1) has 1/h_{i-1}, -(1/h_{i-1}+1/h_i) and 1/h_i in columns i-1, i and i+1 and W is diagonal
+     * with w_i = (h_{i-1}+h_i)/2.
+     *
+     * The precision of x_2..x_n (given x_0 and x_1) is B_2'W^{-1}B_2, where B_2 is lower triangular with 1/h_i on the
+     * diagonal, so its log-determinant is simply -sum log w_i - 2 sum log h_i.
+     */
+    protected void updateGrid() {
+
+        for (int j = 0; j < dim; j++) {
+            diag0[j] = 0;
+            diag1[j] = 0;
+            diag2[j] = 0;
+        }
+
+        gridLogDet = 0;
+        for (int i = 1; i < dim - 1; i++) {
+            double h0 = t[i] - t[i-1],
+                   h1 = t[i+1] - t[i],
+                   w  = (h0 + h1) / 2;
+
+            double a = 1/h0, c = 1/h1, b = -(a + c);
+
+            diag0[i-1] += a*a/w;
+            diag0[i]   += b*b/w;
+            diag0[i+1] += c*c/w;
+            diag1[i-1] += a*b/w;
+            diag1[i]   += b*c/w;
+            diag2[i-1] += a*c/w;
+
+            gridLogDet -= 0.5*Math.log(w) + Math.log(h1);
+        }
+        allChanged = true;
+    }
+
+
+    /**
+     * Calculate Qx and x'Qx from scratch (O(n))
+     */
+    protected void updateQuadratic() {
+
+        quadratic = 0;
+        for (int j = 0; j < dim; j++) {
+            double qx = diag0[j]*x[j];
+            if (j >= 1)       qx += diag1[j-1]*x[j-1];
+            if (j >= 2)       qx += diag2[j-2]*x[j-2];
+            if (j + 1 < dim)  qx += diag1[j]*x[j+1];
+            if (j + 2 < dim)  qx += diag2[j]*x[j+2];
+
+            Qx[j] = qx;
+            quadratic += x[j]*qx;
+        }
+        incremental = 0;
+        allChanged = true;
+    }
+
+
+    /**
+     * Update Qx and x'Qx after x_k changes by delta (O(1))
+     *
+     * x'Qx changes by 2 delta (Qx)_k + delta^2 Q_kk and only the elements of Qx within the band around k change.
+     */
+    protected void updateQuadratic(int k, double delta) {
+
+        quadratic += 2*delta*Qx[k] + delta*delta*diag0[k];
+
+        Qx[k] += diag0[k]*delta;
+        if (k >= 1)       Qx[k-1] += diag1[k-1]*delta;
+        if (k >= 2)       Qx[k-2] += diag2[k-2]*delta;
+        if (k + 1 < dim)  Qx[k+1] += diag1[k]*delta;
+        if (k + 2 < dim)  Qx[k+2] += diag2[k]*delta;
+
+        markChanged(k-2, k+2);
+        incremental++;
+    }
+
+
+    /**
+     * Record that elements from..to (inclusive, clipped to the dimension) of rawX, x and Qx changed
+     */
+    protected void markChanged(int from, int to) {
+        if (allChanged) {
+            return;
+        }
+        for (int j = Math.max(from, 0); j <= Math.min(to, dim - 1); j++) {
+            if (!indexChanged[j]) {
+                indexChanged[j] = true;
+                changedIndices[changedCount++] = j;
+            }
+        }
+    }
+
+    /* Forget the changed indices (after storing or restoring) */
+    private void clearChanged() {
+        for (int c = 0; c < changedCount; c++) {
+            indexChanged[changedIndices[c]] = false;
+        }
+        changedCount = 0;
+        allChanged = false;
+    }
+
+
+    public double calculateLogP() {
+
+        final long start = calculateLogPTimer.start();
+
+        double tau;
+        if (tauInput.get() == null) {
+            double sigma = sigmaInput.get().getValue();
+            tau = 1/(sigma * sigma);
+        } else {
+            tau = tauInput.get().getValue();
+        }
+
+        final Function xFunction = xInput.get(),
+                       tFunction = timeInput.get();
+        final boolean logspace = logSpace.get();
+
+        /* Check which times and values changed since the last evaluation */
+        boolean timesChanged = !cacheKnown;
+        for (int i = 0; i < dim; i++) {
+            double ti = tFunction.getArrayValue(i);
+            if (ti != t[i]) {
+                t[i] = ti;
+                timesChanged = true;
+            }
+        }
+        if (timesChanged) {
+            updateGrid();
+        }
+
+        boolean recalculate = timesChanged;
+        int changed = 0;
+        for (int i = 0; i < dim; i++) {
+            double xi = xFunction.getArrayValue(i);
+            if (xi != rawX[i] || !cacheKnown) {
+                rawX[i] = xi;
+                double transformed = logspace ? Math.log(xi) : xi;
+
+                // Only update incrementally if a few values changed (otherwise recalculated from scratch below)
+                if (!recalculate && 5*(changed + 1) < dim && incremental < MAX_INCREMENTAL) {
+                    updateQuadratic(i, transformed - x[i]);
+                } else {
+                    recalculate = true;
+                }
+                x[i] = transformed;
+                markChanged(i, i);
+                changed++;
+            }
+        }
+        if (recalculate) {
+            updateQuadratic();
+        }
+        cacheKnown = true;
+
+        int n = dim - 1;
+        double logL = (n-1)/2.0 * Math.log(tau) + gridLogDet - 0.5*tau*quadratic;
+
+        ParametricDistribution x0Prior = x0PriorInput.get();
+        if (x0Prior != null) {
+            final double x0 = x[0];
+            logL += x0Prior.calcLogP(new Function() {
+                @Override
+                public int getDimension() {
+                    return 1;
+                }
+
+                @Override
+                public double getArrayValue() {
+                    return x0;
+                }
+
+                @Override
+                public double getArrayValue(int iDim) {
+                    return x0;
+                }
+            });
+        }
+
+        logP = logL;
+        calculateLogPTimer.stop(start);
+        return logP;
+    }
+
+
+    /**
+     * Current and stored arrays are the same after every store and restore, so only the changed elements are copied
+     * (O(1) after an incremental update)
+     */
+    @Override
+    protected void store() {
+        if (allChanged) {
+            copyAll(t, rawX, x, Qx, diag0, diag1, diag2,
+                    storedT, storedRawX, storedX, storedQx, storedDiag0, storedDiag1, storedDiag2);
+        } else {
+            for (int c = 0; c < changedCount; c++) {
+                final int j = changedIndices[c];
+                storedRawX[j] = rawX[j];
+                storedX[j]    = x[j];
+                storedQx[j]   = Qx[j];
+            }
+        }
+        clearChanged();
+
+        storedQuadratic   = quadratic;
+        storedGridLogDet  = gridLogDet;
+        storedIncremental = incremental;
+        storedCacheKnown  = cacheKnown;
+        super.store();
+    }
+
+    @Override
+    protected void restore() {
+        if (allChanged) {
+            copyAll(storedT, storedRawX, storedX, storedQx, storedDiag0, storedDiag1, storedDiag2,
+                    t, rawX, x, Qx, diag0, diag1, diag2);
+        } else {
+            for (int c = 0; c < changedCount; c++) {
+                final int j = changedIndices[c];
+                rawX[j] = storedRawX[j];
+                x[j]    = storedX[j];
+                Qx[j]   = storedQx[j];
+            }
+        }
+        clearChanged();
+
+        quadratic   = storedQuadratic;
+        gridLogDet  = storedGridLogDet;
+        incremental = storedIncremental;
+        cacheKnown  = storedCacheKnown;
+        super.restore();
+    }
+
+    /* Copy the first 7 arrays to the last 7 (O(n), only after the grid or quadratic form was rebuilt anyway) */
+    private void copyAll(double [] ... arrays) {
+        for (int a = 0; a < 7; a++) {
+            System.arraycopy(arrays[a], 0, arrays[a + 7], 0, dim);
+        }
+    }
+
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+
+    }
+
+}
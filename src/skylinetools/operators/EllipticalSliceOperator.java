@@ -0,0 +1,200 @@
+package skylinetools.operators;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Evaluator;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.StateNode;
+import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
+import skylinetools.distributions.GaussianMarkovPrior;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Elliptical slice sampling (Murray, Adams and MacKay 2010) of a skyline under a Gaussian Markov smoothing prior
+ * (BMPrior or OUPrior).
+ *
+ * The values x_1..x_n are updated jointly, conditional on x_0. An auxiliary draw from the prior (conditional on x_0) is
+ * simulated forwards in O(n) from the transitions cached by the prior and new states are proposed on the ellipse
+ * through the current state and the auxiliary draw, shrinking the range of angles until the rest of the posterior (the
+ * "likelihood", i.e. the posterior minus the smoothing prior) is above a uniformly drawn slice level. The move is
+ * always accepted, so proposal() returns +infinity.
+ *
+ * If the prior is on log(x) the slice sampler works on log(x) and the Jacobian of the transformation is included in the
+ * likelihood.
+ *
+ * The posterior is returned by getEvaluatorDistribution(), so MCMC passes an Evaluator to proposal(Evaluator) that
+ * calculates it once for the current state and once for every point on the ellipse that is tried (the prior must be
+ * part of the posterior). The Evaluator restores the state after every evaluation, so the accepted point is set again
+ * before returning. Without an Evaluator (outside MCMC) the posterior is calculated directly.
+ */
+@Description("Elliptical slice sampler for skylines under a BMPrior or OUPrior (always accepted)")
+public class EllipticalSliceOperator extends Operator {
+
+    final public Input<GaussianMarkovPrior> priorInput =
+            new Input<>("prior", "Smoothing prior on the skyline to update (the skyline must be a RealParameter)", Input.Validate.REQUIRED);
+
+    final public Input<Distribution> posteriorInput =
+            new Input<>("posterior", "Posterior to evaluate for the slice level (must include the prior)", Input.Validate.REQUIRED);
+
+    /* Give up (and reject) after this many points on the ellipse */
+    static final int MAX_SHRINKS = 200;
+
+    protected GaussianMarkovPrior prior;
+    protected RealParameter parameter;
+
+    /* Buffers */
+    private double [] current, mean, auxiliary, proposed;
+
+
+    @Override
+    public void initAndValidate() {
+        prior = priorInput.get();
+
+        if (!(prior.getX() instanceof RealParameter)) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": The skyline (x) of the prior must be a RealParameter.");
+        }
+        parameter = (RealParameter) prior.getX();
+
+        int dim = parameter.getDimension();
+        current   = new double[dim];
+        mean      = new double[dim];
+        auxiliary = new double[dim];
+        proposed  = new double[dim];
+    }
+
+
+    @Override
+    public Distribution getEvaluatorDistribution() {
+        return posteriorInput.get();
+    }
+
+
+    @Override
+    public double proposal() {
+        return proposal(posteriorInput.get()::calculateLogP);
+    }
+
+
+    @Override
+    public double proposal(Evaluator evaluator) {
+
+        final int dim = parameter.getDimension();
+        final boolean logspace = prior.isLogSpace();
+        final double [] decays = prior.getDecays(),
+                        sds    = prior.getStandardDeviations();
+        final double c = prior.getReversionMean();
+
+        // Current state, conditional prior mean and auxiliary draw from the prior (all conditional on x_0)
+        for (int i = 0; i < dim; i++) {
+            double value = parameter.getValue(i);
+            current[i] = logspace ? Math.log(value) : value;
+        }
+        mean[0] = current[0];
+        auxiliary[0] = 0;
+        for (int i = 1; i < dim; i++) {
+            mean[i] = c + decays[i]*(mean[i-1] - c);
+            auxiliary[i] = decays[i]*auxiliary[i-1] + sds[i]*Randomizer.nextGaussian();
+        }
+
+        double threshold = logLikelihood(evaluator.evaluate(), current) + Math.log(Randomizer.nextDouble());
+
+        double theta = Randomizer.nextDouble() * 2 * Math.PI,
+               thetaMin = theta - 2 * Math.PI,
+               thetaMax = theta;
+
+        for (int shrinks = 0; shrinks < MAX_SHRINKS; shrinks++) {
+
+            final double cos = Math.cos(theta), sin = Math.sin(theta);
+            boolean inBounds = true;
+            proposed[0] = current[0];
+            for (int i = 1; i < dim; i++) {
+                proposed[i] = mean[i] + (current[i] - mean[i])*cos + auxiliary[i]*sin;
+
+                double value = logspace ? Math.exp(proposed[i]) : proposed[i];
+                if (value < parameter.getLower() || value > parameter.getUpper()) {
+                    inBounds = false;
+                }
+            }
+
+            if (inBounds) {
+                setValues(proposed);
+                if (logLikelihood(evaluator.evaluate(), proposed) > threshold) {
+                    // The Evaluator restores the state after evaluating the posterior
+                    setValues(proposed);
+                    return Double.POSITIVE_INFINITY;
+                }
+            }
+
+            // Shrink the bracket towards the current state (theta = 0)
+            if (theta < 0) {
+                thetaMin = theta;
+            } else {
+                thetaMax = theta;
+            }
+            theta = thetaMin + Randomizer.nextDouble() * (thetaMax - thetaMin);
+        }
+
+        setValues(current);
+        return Double.NEGATIVE_INFINITY;
+    }
+
+
+    /* Set x_1..x_n (on the scale of the prior) */
+    private void setValues(double [] y) {
+        final boolean logspace = prior.isLogSpace();
+        for (int i = 1; i < y.length; i++) {
+            parameter.setValue(i, logspace ? Math.exp(y[i]) : y[i]);
+        }
+    }
+
+
+    /**
+     * Log-likelihood for the slice sampler: the posterior without the smoothing prior, plus the Jacobian if the prior is
+     * on log(x)
+     *
+     * The prior is calculated at y here, since the Evaluator also restores the calculation nodes (so the prior's
+     * getCurrentLogP() is the value for the current state again).
+     *
+     * @param logPosterior posterior at y
+     * @param y            values on the scale of the prior (the parameter may already have been restored)
+     */
+    protected double logLikelihood(double logPosterior, double [] y) {
+        double logL = logPosterior - priorLogP(y);
+
+        if (prior.isLogSpace()) {
+            for (int i = 1; i < y.length; i++) {
+                logL += y[i];
+            }
+        }
+        return logL;
+    }
+
+
+    /**
+     * Log-density of the smoothing prior at y conditional on y_0, up to a constant that does not depend on y
+     * (O(n) from the cached transitions)
+     */
+    protected double priorLogP(double [] y) {
+        final double [] decays = prior.getDecays(),
+                        sds    = prior.getStandardDeviations();
+        final double c = prior.getReversionMean();
+
+        double logP = 0;
+        for (int i = 1; i < y.length; i++) {
+            final double e = (y[i] - c - decays[i]*(y[i-1] - c))/sds[i];
+            logP -= Math.log(sds[i]) + 0.5*e*e;
+        }
+        return logP;
+    }
+
+
+    @Override
+    public List<StateNode> listStateNodes() {
+        return Collections.singletonList(parameter);
+    }
+
+}
@@ -0,0 +1,103 @@
+package skylinetools.operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.StateNode;
+import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
+import skylinetools.parameter.NonCenteredSkyline;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scale sigma (or the precision) of a NonCenteredSkyline and rescale its standardised increments so the skyline itself
+ * does not change, i.e. a centered move in the non-centered parameterisation.
+ *
+ * A plain ScaleOperator on sigma moves the whole skyline with it (the non-centered move), while this operator moves
+ * sigma along the skyline's full conditional under the centered parameterisation. Using both lets the chain cross the
+ * funnel between the skyline and sigma regardless of how informative the data are.
+ *
+ * Scaling sigma by s divides each of the n increments by s, so the Hastings ratio is -log(s) - n log(s). Scaling the
+ * precision by s multiplies the increments by sqrt(s), giving -log(s) + n/2 log(s).
+ */
+@Description("Scale sigma/precision of a NonCenteredSkyline while keeping the skyline fixed")
+public class NonCenteredScaleOperator extends Operator {
+
+    final public Input<NonCenteredSkyline> skylineInput =
+            new Input<>("skyline", "Non-centered skyline to scale sigma/precision of", Input.Validate.REQUIRED);
+
+    final public Input<Double> scaleFactorInput =
+            new Input<>("scaleFactor", "Scaling factor: larger means more bold proposals", 0.75);
+
+    final public Input<Boolean> optimiseInput =
+            new Input<>("optimise", "Flag to indicate that the scale factor is automatically changed in order to achieve a good acceptance rate (default true)", true);
+
+    protected NonCenteredSkyline skyline;
+    protected RealParameter scaled, increments;
+    protected boolean precision;
+    protected double scaleFactor;
+
+    private static final double LOWER = 1e-8, UPPER = 1.0 - 1e-8;
+
+
+    @Override
+    public void initAndValidate() {
+        skyline    = skylineInput.get();
+        increments = skyline.incrementsInput.get();
+
+        precision = skyline.sigmaInput.get() == null;
+        scaled    = precision ? skyline.tauInput.get() : skyline.sigmaInput.get();
+
+        scaleFactor = scaleFactorInput.get();
+    }
+
+
+    @Override
+    public double proposal() {
+
+        final double scale = scaleFactor + Randomizer.nextDouble() * (1.0/scaleFactor - scaleFactor);
+        final double value = scaled.getValue() * scale;
+
+        if (value < scaled.getLower() || value > scaled.getUpper()) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        scaled.setValue(value);
+
+        final double factor = precision ? Math.sqrt(scale) : 1.0/scale;
+        final int n = increments.getDimension();
+        for (int i = 0; i < n; i++) {
+            increments.setValue(i, increments.getValue(i) * factor);
+        }
+
+        return -Math.log(scale) + n * Math.log(factor);
+    }
+
+
+    @Override
+    public List<StateNode> listStateNodes() {
+        return Arrays.asList(scaled, increments);
+    }
+
+
+    @Override
+    public double getCoercableParameterValue() {
+        return scaleFactor;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        scaleFactor = Math.max(Math.min(value, UPPER), LOWER);
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        if (optimiseInput.get()) {
+            double delta = calcDelta(logAlpha);
+            delta += Math.log(1.0 / scaleFactor - 1.0);
+            setCoercableParameterValue(1.0 / (Math.exp(delta) + 1.0));
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package skylinetools.parameter;
+
+import beast.core.BEASTInterface;
+import beast.core.CalculationNode;
+import beast.core.Description;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.parameter.RealParameter;
+
+import java.io.PrintStream;
+
+/**
+ * Non-centered (whitened-increment) parameterisation of a skyline under a Brownian-motion or Ornstein-Uhlenbeck
+ * smoothing prior.
+ *
+ * The sampled state is x_0 and the standardised increments z_1..z_n, and the skyline is rebuilt from them in O(n):
+ *
+ *    BM:  x_i = x_{i-1} + sqrt(dt_i/tau) z_i
+ *    OU:  x_i = mu + exp(-nu dt_i)(x_{i-1} - mu) + sqrt(sigma^2/(2 nu) (1 - exp(-2 nu dt_i))) z_i
+ *
+ * (if logspace the skyline is exp(x)). The OU process is used if nu is given, otherwise Brownian motion with either
+ * precision or sigma (tau = 1/sigma^2). These are the same transitions as in the BMPrior and OUPrior. When the skyline
+ * is the x of a BMPrior or OUPrior, the prior is the standard normal density of the increments (plus x0Prior on x_0),
+ * so the times, sigma/precision, mean and nu of the prior must be the same objects as the skyline's (or not given), the
+ * logspace of the prior must be the same and the OUPrior cannot normalize the times.
+ *
+ * Under the non-centered parameterisation the skyline and sigma/precision are a priori independent, which removes the
+ * funnel between them when the data are weakly informative. Use NonCenteredScaleOperator to also propose centered
+ * moves (changing sigma/precision while keeping the skyline fixed).
+ */
+@Description("Skyline built from standardised increments of a Brownian-motion or Ornstein-Uhlenbeck process")
+public class NonCenteredSkyline extends CalculationNode implements Function, Loggable {
+
+    public final Input<RealParameter> incrementsInput =
+            new Input<>("increments", "Standardised increments z_1..z_n", Input.Validate.REQUIRED);
+
+    public final Input<Function> x0Input =
+            new Input<>("x0", "First value of the skyline (on log scale if logspace)", Input.Validate.REQUIRED);
+
+    public final Input<Function> timeInput =
+            new Input<>("times", "The times t_0..t_n of the skyline values", Input.Validate.REQUIRED);
+
+    public final Input<RealParameter> tauInput =
+            new Input<>("precision", "The precision parameter of the Brownian motion (reciprocal of variance)", (RealParameter) null);
+
+    public final Input<RealParameter> sigmaInput =
+            new Input<>("sigma", "The standard deviation parameter of the Brownian motion or Ornstein-Uhlenbeck process", (RealParameter) null, Input.Validate.XOR, tauInput);
+
+    public final Input<RealParameter> meanInput =
+            new Input<>("mean", "The mean of the equilibrium distribution (Ornstein-Uhlenbeck process only)", (RealParameter) null);
+
+    public final Input<RealParameter> nuInput =
+            new Input<>("nu", "The reversion parameter of the Ornstein-Uhlenbeck process (Brownian motion if null)", (RealParameter) null);
+
+    public final Input<Boolean> logSpace = new Input<>("logspace", "true if the skyline is exp(x).", false);
+
+    protected int dim;
+    protected double [] x, storedX;
+    protected boolean xKnown;
+
+
+    @Override
+    public void initAndValidate() {
+        dim = incrementsInput.get().getDimension() + 1;
+
+        if (timeInput.get().getDimension() != dim) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Dimension of times ("+
+                    timeInput.get().getDimension()+") must be one more than the dimension of increments ("+(dim-1)+")");
+        }
+        if (nuInput.get() != null && (meanInput.get() == null || sigmaInput.get() == null)) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": The Ornstein-Uhlenbeck process needs a mean and sigma.");
+        }
+
+        x       = new double[dim];
+        storedX = new double[dim];
+        xKnown  = false;
+    }
+
+
+    /**
+     * Rebuild the skyline from x_0 and the increments (O(n))
+     */
+    protected void update() {
+        final RealParameter increments = incrementsInput.get();
+        final Function times = timeInput.get();
+
+        x[0] = x0Input.get().getArrayValue();
+
+        if (nuInput.get() == null) {
+            double tau;
+            if (tauInput.get() == null) {
+                double sigma = sigmaInput.get().getValue();
+                tau = 1/(sigma * sigma);
+            } else {
+                tau = tauInput.get().getValue();
+            }
+
+            for (int i = 1; i < dim; i++) {
+                double dt = times.getArrayValue(i)-times.getArrayValue(i-1);
+                x[i] = x[i-1] + Math.sqrt(dt/tau) * increments.getArrayValue(i-1);
+            }
+        } else {
+            final double mu = meanInput.get().getValue(),
+                         sigma = sigmaInput.get().getValue(),
+                         nu = nuInput.get().getValue(),
+                         stationary = sigma*sigma / (2.0*nu);
+
+            for (int i = 1; i < dim; i++) {
+                double decay = Math.exp(-nu*(times.getArrayValue(i)-times.getArrayValue(i-1)));
+                x[i] = mu + decay*(x[i-1] - mu) + Math.sqrt(stationary*(1.0-decay*decay)) * increments.getArrayValue(i-1);
+            }
+        }
+
+        if (logSpace.get()) {
+            for (int i = 0; i < dim; i++) {
+                x[i] = Math.exp(x[i]);
+            }
+        }
+
+        xKnown = true;
+    }
+
+
+    /**
+     * Log-density of the increments under the standard normal distribution (without the normalising constant, as for
+     * the priors)
+     */
+    public double getIncrementsLogP() {
+        final RealParameter increments = incrementsInput.get();
+
+        double logP = 0;
+        for (int i = 0; i < dim - 1; i++) {
+            double z = increments.getArrayValue(i);
+            logP -= 0.5*z*z;
+        }
+        return logP;
+    }
+
+    /**
+     * @return x_0 on the scale of the process (log scale if logspace)
+     */
+    public double getX0() {
+        return x0Input.get().getArrayValue();
+    }
+
+
+    /**
+     * Check that an input of a prior on this skyline is either not given or the same object as the input of the
+     * skyline, since the prior of a non-centered skyline only uses the skyline's inputs
+     */
+    public void checkPriorInput(BEASTInterface prior, Input<?> priorInput, Input<?> skylineInput) {
+        if (priorInput.get() != null && priorInput.get() != skylineInput.get()) {
+            throw new IllegalArgumentException("Error in "+prior.getID()+": The "+priorInput.getName()+" of the prior " +
+                    "must be the same as the "+skylineInput.getName()+" of the NonCenteredSkyline "+this.getID()+
+                    " (or not given).");
+        }
+    }
+
+
+    @Override
+    protected boolean requiresRecalculation() {
+        xKnown = false;
+        return true;
+    }
+
+    @Override
+    protected void store() {
+        if (!xKnown) update();
+        System.arraycopy(x, 0, storedX, 0, dim);
+        super.store();
+    }
+
+    @Override
+    protected void restore() {
+        double [] tmp = x;
+        x = storedX;
+        storedX = tmp;
+        xKnown = true;
+        super.restore();
+    }
+
+
+    @Override
+    public int getDimension() {
+        return dim;
+    }
+
+    @Override
+    public double getArrayValue() {
+        return getArrayValue(0);
+    }
+
+    @Override
+    public double getArrayValue(int i) {
+        if (!xKnown) update();
+        return x[i];
+    }
+
+
+    @Override
+    public void init(PrintStream out) {
+        for (int i = 0; i < dim; i++) {
+            out.print(getID() + "." + (i+1) + "\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (int i = 0; i < dim; i++) {
+            out.print(getArrayValue(i) + "\t");
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+
+}
@@ -12,11 +12,20 @@ import java.util.Arrays;
  * Can either use the "by" input to specify the step size or simply use the "dimension"
  * input to specify the length of the sequence (the step size will be calculated).
  *
+ * With spacing="geometric" consecutive values have a constant ratio instead (from and to are the first and last values
+ * and "by" is the ratio) and with spacing="log" the exponents of base^x are equally spaced (from and to are the first
+ * and last exponents, as numpy.logspace).
+ *
+ * With lazy="true" only from, the step size and the dimension are kept and values are calculated when they are
+ * accessed, so very fine grids take O(1) memory and are never boxed. Lazy sequences cannot be changed (or estimated).
+ *
+ * Linear sequences are a UniformGrid (if lazy or not part of the state, since otherwise the values may change).
+ *
  * @author Louis du Plessis
  *         Date: 2018/07/17
  */
-@Description("A real-valued sequence of numbers with a fixed step-size between them (at initialisation).")
-public class RealParameterSequence extends RealParameter {
+@Description("A real-valued sequence of numbers with a fixed step-size (or ratio) between them (at initialisation).")
+public class RealParameterSequence extends RealParameter implements UniformGrid {
 
 
     public final Input<Double> fromInput = new Input<>("from", "Starting value of the sequence",
@@ -26,7 +35,30 @@ public class RealParameterSequence extends RealParameter {
             Input.Validate.REQUIRED);
 
     // Specify either byInput or dimensionInput
-    public final Input<Double> byInput = new Input<>("by", "Increment of the sequence");
+    public final Input<Double> byInput = new Input<>("by", "Increment of the sequence (ratio for geometric spacing)");
+
+    public final Input<String> spacingInput = new Input<>("spacing", "Spacing of the sequence (linear/geometric/log)",
+            "linear");
+
+    public final Input<Double> baseInput = new Input<>("base", "Base of log spacing", 10.0);
+
+    public final Input<Boolean> lazyInput = new Input<>("lazy", "Calculate values when they are accessed instead " +
+            "of storing them (the sequence cannot be changed)", false);
+
+
+    /* Spacing of consecutive values */
+    protected enum Spacing {
+
+        LINEAR,       // from + i*step
+        GEOMETRIC,    // from * step^i
+        LOG;          // base^(from + i*step)
+
+    }
+
+    protected Spacing spacing;
+    protected double from, step, base;
+    protected int dim;
+    protected boolean lazy;
 
 
     // Override input rule of RealParameter (base class)
@@ -39,16 +71,42 @@ public class RealParameterSequence extends RealParameter {
     @Override
     public void initAndValidate() {
 
-        double from = fromInput.get().doubleValue(),
-               to   = toInput.get().doubleValue();
+        double to;
 
-        double step;
-        int dim;
+        from = fromInput.get().doubleValue();
+        to   = toInput.get().doubleValue();
 
         if (from == to) {
             throw new IllegalArgumentException("from cannot be equal to to");
         }
 
+        spacing = null;
+        for (Spacing s : Spacing.values()) {
+            if (s.name().equalsIgnoreCase(spacingInput.get().trim())) {
+                spacing = s;
+            }
+        }
+        if (spacing == null) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Unknown spacing ("+spacingInput.get()+").");
+        }
+
+        base = baseInput.get();
+        if (spacing == Spacing.LOG && (base <= 0 || base == 1)) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Base of log spacing must be positive and not 1.");
+        }
+
+        // Geometric sequences are linear on the log scale
+        double first = from,
+               last  = to;
+        if (spacing == Spacing.GEOMETRIC) {
+            if (from == 0 || to == 0 || (from > 0) != (to > 0)) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": from and to of a geometric sequence " +
+                        "must be nonzero and have the same sign.");
+            }
+            first = 0;
+            last  = Math.log(to/from);
+        }
+
         // Set limits (from RealParameter)
         if (lowerValueInput.get() != null) {
             m_fLower = lowerValueInput.get();
@@ -71,41 +129,192 @@ public class RealParameterSequence extends RealParameter {
                 throw new IllegalArgumentException("Length needs to be bigger than 0");
             }
 
-            step = (to-from)/(dim - 1);
+            step = (last-first)/(dim - 1);
+            if (spacing == Spacing.GEOMETRIC) {
+                step = Math.exp(step);
+            }
         } else {
             //System.out.println("By");
 
             step = byInput.get().doubleValue();
 
-            if (step == 0) {
-                throw new IllegalArgumentException("Step size cannot be 0");
-            }
+            if (spacing == Spacing.GEOMETRIC) {
+                if (step <= 0 || step == 1) {
+                    throw new IllegalArgumentException("Ratio of a geometric sequence must be positive and not 1");
+                }
+                if ((last > 0) != (step > 1)) {
+                    throw new IllegalArgumentException("No way to reach to from from with by input");
+                }
+
+                // Tolerance for rounding errors in the logarithms (e.g. log(1000)/log(10) < 3)
+                dim = (int) Math.floor(last/Math.log(step) + 1e-10) + 1;
+            } else {
+                if (step == 0) {
+                    throw new IllegalArgumentException("Step size cannot be 0");
+                }
 
-            dim =  (int) Math.floor((to-from)/step) + 1;
+                dim =  (int) Math.floor((to-from)/step) + 1;
 
-            if ((from > to && step > 0) || (to > from && step < 0)) {
-                throw new IllegalArgumentException("No way to reach to from from with by input");
+                if ((from > to && step > 0) || (to > from && step < 0)) {
+                    throw new IllegalArgumentException("No way to reach to from from with by input");
+                }
             }
 
         }
 
         // Set  values
         dimensionInput.setValue(dim, this);
+        lazy = lazyInput.get();
+        minorDimension = minorDimensionInput.get();
+        if (minorDimension > 0 && dim % minorDimension > 0) {
+            throw new IllegalArgumentException("Dimension must be divisible by stride");
+        }
+
+        if (lazy) {
+            // Nothing is stored (values never change, so are never dirty)
+            values = null;
+            storedValues = null;
+            m_bIsDirty = new boolean[0];
+            return;
+        }
+
         values = new Double[dim];
         for (int i = 0; i < dim; i++) {
-            values[i] = from + i*step;
+            values[i] = valueAt(i);
         }
         //System.out.println(Arrays.toString(values)+": "+dim);
 
         // Accounting (from Parameter.Base)
         storedValues = new Double[dim];
         m_bIsDirty = new boolean[dimensionInput.get()];
-        minorDimension = minorDimensionInput.get();
-        if (minorDimension > 0 && dimensionInput.get() % minorDimension > 0) {
-            throw new IllegalArgumentException("Dimension must be divisible by stride");
-        }
         this.storedValues = values.clone();
 
     }
 
+
+    /**
+     * Value i of the sequence (from the parameters of the sequence, not the stored values)
+     *
+     * @param i
+     * @return
+     */
+    protected double valueAt(int i) {
+        switch (spacing) {
+            case GEOMETRIC:
+                return from * Math.pow(step, i);
+            case LOG:
+                return Math.pow(base, from + i*step);
+            default:
+                return from + i*step;
+        }
+    }
+
+    public boolean isLazy() { return lazy; }
+
+
+    /* UniformGrid */
+
+    @Override
+    public boolean isUniformGrid() {
+        return spacing == Spacing.LINEAR && (lazy || getState() == null);
+    }
+
+    @Override
+    public double getGridStep() {
+        return step;
+    }
+
+
+    /* Values of lazy sequences (stored values are used otherwise) */
+
+    @Override
+    public int getDimension() {
+        return lazy ? dim : super.getDimension();
+    }
+
+    @Override
+    public Double getValue() {
+        return lazy ? valueAt(0) : super.getValue();
+    }
+
+    @Override
+    public Double getValue(final int index) {
+        return lazy ? valueAt(index) : super.getValue(index);
+    }
+
+    @Override
+    public double getArrayValue() {
+        return lazy ? valueAt(0) : super.getArrayValue();
+    }
+
+    @Override
+    public double getArrayValue(final int index) {
+        return lazy ? valueAt(index) : super.getArrayValue(index);
+    }
+
+    @Override
+    public double[] getDoubleValues() {
+        double [] doubleValues = new double[getDimension()];
+        for (int i = 0; i < doubleValues.length; i++) {
+            doubleValues[i] = getArrayValue(i);
+        }
+        return doubleValues;
+    }
+
+    @Override
+    public Double[] getValues() {
+        if (!lazy) {
+            return super.getValues();
+        }
+
+        Double [] boxedValues = new Double[dim];
+        for (int i = 0; i < dim; i++) {
+            boxedValues[i] = valueAt(i);
+        }
+        return boxedValues;
+    }
+
+    @Override
+    public void setValue(final Double value) {
+        if (lazy) {
+            throw new UnsupportedOperationException("Error in "+this.getID()+": Values of a lazy sequence cannot be changed.");
+        }
+        super.setValue(value);
+    }
+
+    @Override
+    public void setValue(final int index, final Double value) {
+        if (lazy) {
+            throw new UnsupportedOperationException("Error in "+this.getID()+": Values of a lazy sequence cannot be changed.");
+        }
+        super.setValue(index, value);
+    }
+
+    @Override
+    public boolean isDirty(final int index) {
+        return !lazy && super.isDirty(index);
+    }
+
+    @Override
+    protected void store() {
+        if (!lazy) {
+            super.store();
+        }
+    }
+
+    @Override
+    public void restore() {
+        if (!lazy) {
+            super.restore();
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (!lazy) {
+            return super.toString();
+        }
+        return getID() + "[" + dim + "] (" + m_fLower + "," + m_fUpper + "): " + Arrays.toString(getDoubleValues()) + " ";
+    }
+
 }
@@ -0,0 +1,233 @@
+package skylinetools.parameter;
+
+import beast.core.CalculationNode;
+import beast.core.Description;
+import beast.core.Function;
+import beast.core.Input;
+import skylinetools.util.EpochIndex;
+
+
+/**
+ * A skyline combining the values of the skyline with the times where it changes (e.g. a RealParameter with a TreeSlicer
+ * or RealParameterSequence), so consumers can tell cheaply what changed since the last state.
+ *
+ * Value i applies to epoch i = [t_i, t_{i+1}), with the last epoch open ended, so times need to be in increasing order
+ * and have the same dimension as the values (as for TreeSlicer times).
+ *
+ * After every state change the values and times are compared to the previous state (O(d)) and each epoch is marked as
+ * dirty if its value changed or if one of the times bounding it moved. Consumers can check whether only the values or
+ * only the times changed and restrict recalculation to the range of dirty epochs (getFirstDirtyEpoch() to
+ * getLastDirtyEpoch()).
+ *
+ * The skyline can be evaluated at any time in O(log d).
+ */
+@Description("Skyline parameter combining values and change times with per-epoch dirty tracking")
+public class SkylineParameter extends CalculationNode implements Function {
+
+    public final Input<Function> valuesInput =
+            new Input<>("values", "Values of the skyline in each epoch", Input.Validate.REQUIRED);
+
+    public final Input<Function> timesInput =
+            new Input<>("times", "Times at which the skyline changes, in increasing order (e.g. a TreeSlicer)",
+                        Input.Validate.REQUIRED);
+
+    protected int dim;
+    protected double [] values, times,
+                        storedValues, storedTimes;
+
+    protected boolean [] epochDirty;
+    protected int firstDirty, lastDirty;
+    protected boolean valuesChanged, timesChanged;
+    protected boolean updated;
+
+
+    @Override
+    public void initAndValidate() {
+
+        dim = valuesInput.get().getDimension();
+        if (timesInput.get().getDimension() != dim) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Dimension of times ("+
+                                               timesInput.get().getDimension()+") must be equal to the dimension of values ("+dim+")");
+        }
+
+        values       = new double[dim];
+        times        = new double[dim];
+        storedValues = new double[dim];
+        storedTimes  = new double[dim];
+        epochDirty   = new boolean[dim];
+
+        Function v = valuesInput.get(),
+                 t = timesInput.get();
+        for (int i = 0; i < dim; i++) {
+            values[i] = v.getArrayValue(i);
+            times[i]  = t.getArrayValue(i);
+
+            if (i > 0 && times[i] < times[i-1]) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": Times need to be in increasing order");
+            }
+        }
+
+        // Everything is dirty in the first state
+        for (int i = 0; i < dim; i++) {
+            epochDirty[i] = true;
+        }
+        firstDirty    = 0;
+        lastDirty     = dim - 1;
+        valuesChanged = true;
+        timesChanged  = true;
+        updated       = true;
+    }
+
+
+    /**
+     * Compare values and times to the previous state and mark dirty epochs
+     */
+    protected void update() {
+
+        final Function v = valuesInput.get(),
+                       t = timesInput.get();
+
+        valuesChanged = false;
+        timesChanged  = false;
+        firstDirty    = -1;
+        lastDirty     = -1;
+
+        for (int i = 0; i < dim; i++) {
+            epochDirty[i] = false;
+        }
+
+        for (int i = 0; i < dim; i++) {
+            double value = v.getArrayValue(i),
+                   time  = t.getArrayValue(i);
+
+            if (value != values[i]) {
+                values[i] = value;
+                valuesChanged = true;
+                markDirty(i);
+            }
+
+            if (time != times[i]) {
+                times[i] = time;
+                timesChanged = true;
+                // t_i is the end of epoch i-1 and the start of epoch i
+                if (i > 0) markDirty(i - 1);
+                markDirty(i);
+            }
+        }
+
+        updated = true;
+    }
+
+    private void markDirty(int epoch) {
+        epochDirty[epoch] = true;
+        if (firstDirty < 0 || epoch < firstDirty) firstDirty = epoch;
+        if (epoch > lastDirty) lastDirty = epoch;
+    }
+
+
+    /* Dirty tracking (relative to the previous state) */
+
+    public boolean valuesChanged() {
+        if (!updated) update();
+        return valuesChanged;
+    }
+
+    public boolean timesChanged() {
+        if (!updated) update();
+        return timesChanged;
+    }
+
+    public boolean isEpochDirty(int epoch) {
+        if (!updated) update();
+        return epochDirty[epoch];
+    }
+
+    /* First dirty epoch, or -1 if nothing changed */
+    public int getFirstDirtyEpoch() {
+        if (!updated) update();
+        return firstDirty;
+    }
+
+    /* Last dirty epoch, or -1 if nothing changed */
+    public int getLastDirtyEpoch() {
+        if (!updated) update();
+        return lastDirty;
+    }
+
+
+    /* Evaluation */
+
+    public int getEpochCount() {
+        return dim;
+    }
+
+    public double getTime(int epoch) {
+        if (!updated) update();
+        return times[epoch];
+    }
+
+    public double getValue(int epoch) {
+        if (!updated) update();
+        return values[epoch];
+    }
+
+    /**
+     * Value of the piecewise-constant skyline at a time (the value of the first epoch for times before t_0)
+     *
+     * @param time
+     * @return
+     */
+    public double getValueAt(double time) {
+        if (!updated) update();
+        return values[EpochIndex.epochOf(times, dim, time)];
+    }
+
+
+    @Override
+    protected boolean requiresRecalculation() {
+        updated = false;
+        return true;
+    }
+
+    @Override
+    protected void store() {
+        if (!updated) update();
+        System.arraycopy(values, 0, storedValues, 0, dim);
+        System.arraycopy(times, 0, storedTimes, 0, dim);
+        super.store();
+    }
+
+    @Override
+    protected void restore() {
+        double [] tmp;
+
+        tmp = values;
+        values = storedValues;
+        storedValues = tmp;
+
+        tmp = times;
+        times = storedTimes;
+        storedTimes = tmp;
+
+        // Dirty flags are relative to the restored state on the next update
+        updated = false;
+        super.restore();
+    }
+
+
+    @Override
+    public int getDimension() {
+        return dim;
+    }
+
+    @Override
+    public double getArrayValue() {
+        return getValue(0);
+    }
+
+    @Override
+    public double getArrayValue(int i) {
+        return getValue(i);
+    }
+
+}
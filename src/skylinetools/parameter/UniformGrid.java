@@ -0,0 +1,18 @@
+package skylinetools.parameter;
+
+import beast.core.Function;
+
+/**
+ * Function whose values can be equally spaced (e.g. a linear RealParameterSequence or an equidistant TreeSlicer), so
+ * consumers such as smoothing priors can calculate anything that only depends on the spacing once instead of for every
+ * pair of consecutive values.
+ */
+public interface UniformGrid extends Function {
+
+    /* True if consecutive values currently differ by exactly getGridStep() (can change, e.g. for TreeSlicer subclasses) */
+    boolean isUniformGrid();
+
+    /* Difference between consecutive values (only meaningful if isUniformGrid() is true) */
+    double getGridStep();
+
+}
@@ -0,0 +1,479 @@
+package skylinetools.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.Logger;
+import beast.evolution.tree.Tree;
+import beast.util.Randomizer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Logger that hands rows to a background thread for writing, so the MCMC thread does not wait on slow (e.g. network)
+ * file systems. Use instead of a normal logger for TreeDateLogger, TreeSliceDateLogger or any other loggables:
+ *
+ *    <logger spec="skylinetools.util.AsyncLogger" fileName="dates.log.gz" logEvery="1000">
+ *        <log idref="TreeDateLogger"/>
+ *    </logger>
+ *
+ * Every row is formatted into a reusable buffer and copied into a preallocated ring buffer, which a writer thread
+ * drains to the file (optionally gzip-compressed, on the writer thread). The MCMC thread only waits if the ring buffer
+ * is full, i.e. if the file system cannot keep up on average (bounded backpressure, memory use is bounded by the
+ * buffer size). close() writes the last rows and waits for the writer to finish, and a shutdown hook does the same if
+ * BEAST exits without closing the logger.
+ *
+ * The output is the same as for a normal logger with the same loggables (tab-separated with a Sample column, or a tree
+ * log if the first loggable is a tree). Resuming works as for a normal logger: the sample number of the last row in the
+ * existing file is added to the sample numbers of the resumed chain (whose first row, the same state as the last row,
+ * is skipped) and the closing End; of a tree log is removed before appending (for compressed tree logs the file is
+ * rewritten once). Rows are appended as a new gzip member for compressed files. $(seed) in the file name is replaced
+ * by the seed.
+ */
+@Description("Logger that writes rows to file on a background thread")
+public class AsyncLogger extends Logger {
+
+    final public Input<Integer> bufferSizeInput =
+            new Input<>("bufferSize", "Size of the ring buffer in bytes (the MCMC only waits for the writer if it is full)", 1 << 20);
+
+    final public Input<String> compressInput =
+            new Input<>("compress", "Compression of the log file: none or gzip (default gzip if the file name ends with .gz)", (String) null);
+
+    private static final HotPathMetrics.Timer logTimer = HotPathMetrics.timer("AsyncLogger.log");
+
+    protected List<Loggable> loggables;
+    protected boolean treeMode, gzip;
+    protected int every;
+
+    /* Sample number of the last row of the log that is resumed (-1 if not resuming) */
+    protected long sampleOffset = -1;
+
+    private RowBuffer rowBuffer;
+    private PrintStream row;
+    private RingBuffer ring;
+    private Thread writer, shutdownHook;
+    private volatile IOException writerError;
+
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        if (fileNameInput.get() == null || fileNameInput.get().isEmpty()) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": AsyncLogger needs a fileName (use a normal logger for the screen log).");
+        }
+        if (bufferSizeInput.get() < 1) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": bufferSize must be positive.");
+        }
+
+        String compress = compressInput.get();
+        if (compress == null) {
+            gzip = fileNameInput.get().endsWith(".gz");
+        } else if (compress.equals("gzip") || compress.equals("none")) {
+            gzip = compress.equals("gzip");
+        } else {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Unknown compression "+compress+" (use none or gzip).");
+        }
+
+        loggables = new ArrayList<>();
+        for (BEASTObject object : loggersInput.get()) {
+            if (!(object instanceof Loggable)) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": "+object.getID()+" is not Loggable.");
+            }
+            loggables.add((Loggable) object);
+        }
+        if (loggables.isEmpty()) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Nothing to log.");
+        }
+
+        treeMode = loggables.get(0) instanceof Tree;
+        every    = everyInput.get();
+    }
+
+
+    @Override
+    public void init() throws IOException {
+        File file = new File(fileNameInput.get().replace("$(seed)", Long.toString(Randomizer.getSeed())));
+
+        boolean append = false;
+        sampleOffset = -1;
+        switch (Logger.FILE_MODE) {
+            case resume:
+                append = file.exists();
+                if (append) {
+                    prepareResume(file);
+                }
+                break;
+            case overwrite:
+                break;
+            default:
+                if (file.exists()) {
+                    throw new IOException("Error in "+this.getID()+": Log file "+file+" already exists (use -overwrite or -resume).");
+                }
+        }
+
+        OutputStream out = new FileOutputStream(file, append);
+        if (gzip) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        }
+
+        rowBuffer = new RowBuffer();
+        row       = new PrintStream(rowBuffer, false);
+        ring      = new RingBuffer(bufferSizeInput.get());
+
+        final OutputStream stream = out;
+        writer = new Thread(() -> write(stream), "AsyncLogger-" + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+
+        shutdownHook = new Thread(this::finish);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        if (!append) {
+            rowBuffer.reset();
+            if (!treeMode) {
+                row.print("Sample\t");
+            }
+            for (Loggable loggable : loggables) {
+                loggable.init(row);
+            }
+            if (!treeMode) {
+                row.println();
+            }
+            flushRow();
+        }
+    }
+
+
+    /**
+     * Find the sample number of the last row of a log that is resumed and remove the closing End; of a tree log (as
+     * Logger.init() does for normal loggers)
+     *
+     * @param file
+     */
+    protected void prepareResume(File file) throws IOException {
+        long last = -1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(openInput(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long sample = parseSample(line);
+                if (sample >= 0) {
+                    last = sample;
+                }
+            }
+        }
+        if (last < 0) {
+            throw new IOException("Error in "+this.getID()+": Could not find the last sample in "+file+" to resume from.");
+        }
+        sampleOffset = last;
+
+        if (treeMode) {
+            if (gzip) {
+                rewriteWithoutEnd(file);
+            } else {
+                truncateEnd(file);
+            }
+        }
+    }
+
+    private InputStream openInput(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        return gzip ? new GZIPInputStream(in, 1 << 16) : in;
+    }
+
+    /* Sample number of a row ("tree STATE_n = ..." for tree logs), or -1 for headers, comments and other lines */
+    private long parseSample(String line) {
+        line = line.trim();
+
+        int from = 0;
+        if (treeMode) {
+            if (!line.startsWith("tree STATE_")) {
+                return -1;
+            }
+            from = "tree STATE_".length();
+        }
+
+        int to = from;
+        while (to < line.length() && Character.isDigit(line.charAt(to))) {
+            to++;
+        }
+        if (to == from || (!treeMode && to < line.length() && !Character.isWhitespace(line.charAt(to)))) {
+            return -1;
+        }
+        return Long.parseLong(line.substring(from, to));
+    }
+
+    /* Cut a plain tree log off before its final End; (if it has one, it may be missing if BEAST was killed) */
+    private void truncateEnd(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final int tailLength = (int) Math.min(raf.length(), 1024);
+            final byte [] tail = new byte[tailLength];
+            raf.seek(raf.length() - tailLength);
+            raf.readFully(tail);
+
+            String text = new String(tail, StandardCharsets.ISO_8859_1);
+            int index = text.lastIndexOf("End;");
+            if (index >= 0 && text.substring(index + 4).trim().isEmpty()) {
+                raf.setLength(raf.length() - tailLength + index);
+            }
+        }
+    }
+
+    /* Rewrite a compressed tree log without its final End; (End; lines are held back until another line follows) */
+    private void rewriteWithoutEnd(File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final String newline = System.getProperty("line.separator");
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(openInput(file), StandardCharsets.UTF_8));
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 1 << 16)) {
+            StringBuilder heldBack = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().equals("End;") || (heldBack.length() > 0 && line.trim().isEmpty())) {
+                    heldBack.append(line).append(newline);
+                } else {
+                    heldBack.append(line).append(newline);
+                    out.write(heldBack.toString().getBytes(StandardCharsets.UTF_8));
+                    heldBack.setLength(0);
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    @Override
+    public void log(long sampleNr) {
+        if (sampleNr < 0 || sampleNr % every > 0) {
+            return;
+        }
+        if (sampleOffset >= 0) {
+            // The first state of a resumed chain is the last state in the log
+            if (sampleNr == 0) {
+                return;
+            }
+            sampleNr += sampleOffset;
+        }
+        final long start = logTimer.start();
+
+        rowBuffer.reset();
+        if (!treeMode) {
+            row.print(sampleNr);
+            row.print('\t');
+        }
+        for (Loggable loggable : loggables) {
+            loggable.log(sampleNr, row);
+        }
+        if (!treeMode) {
+            row.println();
+        }
+        flushRow();
+
+        logTimer.stop(start);
+    }
+
+
+    @Override
+    public void close() {
+        rowBuffer.reset();
+        for (Loggable loggable : loggables) {
+            loggable.close(row);
+        }
+        flushRow();
+
+        finish();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down
+        }
+
+        if (writerError != null) {
+            throw new RuntimeException("Error in "+this.getID()+": Could not write log file: "+writerError.getMessage(), writerError);
+        }
+    }
+
+
+    /* Copy the formatted row into the ring buffer */
+    private void flushRow() {
+        if (writerError != null) {
+            throw new RuntimeException("Error in "+this.getID()+": Could not write log file: "+writerError.getMessage(), writerError);
+        }
+        row.flush();
+        try {
+            ring.put(rowBuffer.getBuffer(), 0, rowBuffer.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error in "+this.getID()+": Interrupted while waiting for the log writer.", e);
+        }
+    }
+
+    /* Signal the writer that there are no more rows and wait until everything is written */
+    private void finish() {
+        ring.finish();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Writer thread: drain the ring buffer to the file, flushing whenever it is empty */
+    private void write(OutputStream out) {
+        final byte [] chunk = new byte[Math.min(1 << 16, ring.capacity())];
+        try {
+            int n;
+            while ((n = ring.take(chunk)) >= 0) {
+                out.write(chunk, 0, n);
+                if (ring.isEmpty()) {
+                    out.flush();
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            writerError = e;
+            ring.fail();
+        } catch (InterruptedException e) {
+            writerError = new IOException("Log writer interrupted", e);
+            ring.fail();
+        }
+    }
+
+
+    /**
+     * Reusable row buffer (exposes the internal array to avoid copying it)
+     */
+    private static class RowBuffer extends ByteArrayOutputStream {
+
+        RowBuffer() {
+            super(1024);
+        }
+
+        byte [] getBuffer() {
+            return buf;
+        }
+    }
+
+
+    /**
+     * Bounded single-producer/single-consumer byte ring buffer
+     */
+    static class RingBuffer {
+
+        private final byte [] data;
+        private long head = 0, tail = 0;      // Total bytes written and read
+        private boolean finished = false, failed = false;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition(),
+                                notFull  = lock.newCondition();
+
+        RingBuffer(int capacity) {
+            data = new byte[capacity];
+        }
+
+        int capacity() {
+            return data.length;
+        }
+
+        /* Copy bytes into the buffer, waiting for the consumer if it is full (rows larger than the buffer are split) */
+        void put(byte [] bytes, int offset, int length) throws InterruptedException {
+            while (length > 0) {
+                lock.lock();
+                try {
+                    while (head - tail == data.length && !failed) {
+                        notFull.await();
+                    }
+                    if (failed) return;
+
+                    final int n     = (int) Math.min(length, data.length - (head - tail)),
+                              p     = (int) (head % data.length),
+                              first = Math.min(n, data.length - p);
+                    System.arraycopy(bytes, offset, data, p, first);
+                    System.arraycopy(bytes, offset + first, data, 0, n - first);
+
+                    head   += n;
+                    offset += n;
+                    length -= n;
+                    notEmpty.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /* Copy up to out.length bytes out of the buffer, waiting if it is empty (-1 if finished and empty) */
+        int take(byte [] out) throws InterruptedException {
+            lock.lock();
+            try {
+                while (head == tail && !finished) {
+                    notEmpty.await();
+                }
+                if (head == tail) return -1;
+
+                final int n     = (int) Math.min(out.length, head - tail),
+                          p     = (int) (tail % data.length),
+                          first = Math.min(n, data.length - p);
+                System.arraycopy(data, p, out, 0, first);
+                System.arraycopy(data, 0, out, first, n - first);
+
+                tail += n;
+                notFull.signal();
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isEmpty() {
+            lock.lock();
+            try {
+                return head == tail;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void finish() {
+            lock.lock();
+            try {
+                finished = true;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* The consumer failed, so stop waiting for it */
+        void fail() {
+            lock.lock();
+            try {
+                failed = true;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
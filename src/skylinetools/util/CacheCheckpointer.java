@@ -0,0 +1,296 @@
+package skylinetools.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Function;
+import beast.core.Logger;
+import beast.core.util.Log;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Write the derived caches of TreeSlicers and smoothing priors to a binary sidecar file next to the state file, and
+ * read them back when BEAST is resumed, so they do not have to be rebuilt from scratch (e.g. sorting the nodes of a very
+ * large tree):
+ *
+ *    <logger spec="skylinetools.util.CacheCheckpointer" fileName="analysis.xml.state.cache" logEvery="10000">
+ *        <log idref="TreeSlicer"/>
+ *        <log idref="OUPrior"/>
+ *    </logger>
+ *
+ * Use the same logEvery as storeEvery of the MCMC, so the sidecar is written for the same states as the state file.
+ * The sidecar is written to a temporary file that replaces the old sidecar when it is complete, and ends with a CRC32
+ * checksum of its contents.
+ *
+ * When resuming, the sidecar is read the first time one of the objects needs its caches. The caches of every object are
+ * only used once, and only if the checksum is correct and the fingerprint of everything the caches are derived from
+ * (e.g. node heights and topology of the tree, which is O(n) to calculate) matches the restored state. Otherwise the
+ * object recalculates its caches as usual, so a missing, outdated or damaged sidecar never changes the results.
+ */
+@Description("Checkpoint the caches of TreeSlicers and smoothing priors to a sidecar file and restore them when resuming")
+public class CacheCheckpointer extends Logger {
+
+    static final int MAGIC   = 0x534b5943,     // "SKYC"
+                     VERSION = 1;
+
+    private static final HotPathMetrics.Timer writeTimer   = HotPathMetrics.timer("CacheCheckpointer.write"),
+                                              restoreTimer = HotPathMetrics.timer("CacheCheckpointer.restore");
+
+    protected List<Checkpointable> objects;
+    protected File file;
+    protected int every;
+
+    /* Caches read from the sidecar and not used yet (null until the sidecar is read) */
+    private Map<String,Entry> entries;
+    private long checkpointSample = -1;
+    private int restored = 0;
+
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        if (fileNameInput.get() == null || fileNameInput.get().isEmpty()) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": CacheCheckpointer needs a fileName.");
+        }
+        file  = new File(fileNameInput.get());
+        every = everyInput.get();
+
+        objects = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        for (BEASTObject object : loggersInput.get()) {
+            if (!(object instanceof Checkpointable)) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": "+object.getID()+" does not have caches to checkpoint.");
+            }
+            if (object.getID() == null || !ids.add(object.getID())) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": Objects to checkpoint need unique IDs.");
+            }
+            Checkpointable checkpointable = (Checkpointable) object;
+            checkpointable.setCheckpointer(this);
+            objects.add(checkpointable);
+        }
+        entries = null;
+    }
+
+
+    @Override
+    public void init() {
+        // nothing to do (the sidecar is written as a whole every time)
+    }
+
+    @Override
+    public void log(long sampleNr) {
+        if (sampleNr < 0 || sampleNr % every > 0) {
+            return;
+        }
+        try {
+            write(sampleNr);
+        } catch (IOException e) {
+            // A missing sidecar only means the caches are recalculated when resuming
+            Log.warning.println("Warning in "+this.getID()+": Could not write "+file+": "+e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing to do
+    }
+
+
+    /**
+     * Write the caches of all objects to the sidecar (replacing the old sidecar once complete)
+     *
+     * @param sample state number
+     */
+    public void write(long sample) throws IOException {
+        final long start = writeTimer.start();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(sample);
+        out.writeInt(objects.size());
+
+        ByteArrayOutputStream objectBytes = new ByteArrayOutputStream();
+        DataOutputStream objectOut = new DataOutputStream(objectBytes);
+        for (Checkpointable object : objects) {
+            objectBytes.reset();
+            object.writeCheckpoint(objectOut);
+            objectOut.flush();
+
+            out.writeUTF(object.getID());
+            out.writeLong(object.getCheckpointFingerprint());
+            out.writeInt(objectBytes.size());
+            objectBytes.writeTo(out);
+        }
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            bytes.writeTo(stream);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        writeTimer.stop(start);
+    }
+
+
+    /**
+     * Read the caches of an object from the sidecar if BEAST is resuming and they belong to the restored state
+     *
+     * @param object
+     * @return true if the caches were read (false if the object has to recalculate them)
+     */
+    public synchronized boolean restore(Checkpointable object) {
+        if (entries == null) {
+            entries = new HashMap<>();
+            if (Logger.FILE_MODE == Logger.LogFileMode.resume && file.exists()) {
+                read();
+            }
+        }
+
+        final Entry entry = entries.remove(object.getID());
+        if (entry == null) {
+            return false;
+        }
+
+        final long start = restoreTimer.start();
+        boolean success = false;
+        if (entry.fingerprint == object.getCheckpointFingerprint()) {
+            try {
+                object.readCheckpoint(new DataInputStream(new ByteArrayInputStream(entry.data)));
+                restored++;
+                success = true;
+            } catch (IOException e) {
+                Log.warning.println("Warning in "+this.getID()+": Caches of "+object.getID()+" in "+file+
+                                    " do not match ("+e.getMessage()+"), recalculating.");
+            }
+        } else {
+            Log.info.println(this.getID()+": Caches of "+object.getID()+" in "+file+" (sample "+checkpointSample+
+                             ") do not belong to the restored state, recalculating.");
+        }
+        restoreTimer.stop(start);
+        return success;
+    }
+
+    /* Read all entries from the sidecar (none if it is damaged) */
+    private void read() {
+        try {
+            final byte [] bytes = Files.readAllBytes(file.toPath());
+            if (bytes.length < 8) {
+                throw new IOException("file is too short");
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            in.skipBytes(bytes.length - 8);
+            if (in.readLong() != crc.getValue()) {
+                throw new IOException("checksum does not match");
+            }
+
+            in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a cache checkpoint of this version");
+            }
+            checkpointSample = in.readLong();
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String id = in.readUTF();
+                final long fingerprint = in.readLong();
+                final byte [] data = new byte[in.readInt()];
+                in.readFully(data);
+                entries.put(id, new Entry(fingerprint, data));
+            }
+        } catch (IOException e) {
+            entries.clear();
+            Log.warning.println("Warning in "+this.getID()+": Could not read "+file+" ("+e.getMessage()+"), recalculating all caches.");
+        }
+    }
+
+
+    /* Number of objects whose caches were read from the sidecar */
+    public int getRestoredCount() { return restored; }
+
+
+    private static class Entry {
+        final long fingerprint;
+        final byte [] data;
+
+        Entry(long fingerprint, byte [] data) {
+            this.fingerprint = fingerprint;
+            this.data = data;
+        }
+    }
+
+
+    /**
+     * CRC32 fingerprint of trees (topology and node heights) and functions (values), O(n) to calculate
+     */
+    public static class Fingerprint {
+
+        private final CRC32 crc = new CRC32();
+        private final byte [] buffer = new byte[8 * 1024];
+        private int position = 0;
+
+        public Fingerprint add(Tree tree) {
+            final Node [] nodes = tree.getNodesAsArray();
+            addLong(nodes.length);
+            for (Node node : nodes) {
+                addLong(node.isRoot() ? -1 : node.getParent().getNr());
+                addLong(Double.doubleToLongBits(node.getHeight()));
+            }
+            return this;
+        }
+
+        public Fingerprint add(Function function) {
+            final int dim = function.getDimension();
+            addLong(dim);
+            for (int i = 0; i < dim; i++) {
+                addLong(Double.doubleToLongBits(function.getArrayValue(i)));
+            }
+            return this;
+        }
+
+        private void addLong(long value) {
+            if (position == buffer.length) {
+                crc.update(buffer, 0, position);
+                position = 0;
+            }
+            for (int i = 0; i < 8; i++) {
+                buffer[position++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        public long get() {
+            crc.update(buffer, 0, position);
+            position = 0;
+            return crc.getValue();
+        }
+    }
+
+}
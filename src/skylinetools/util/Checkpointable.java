@@ -0,0 +1,30 @@
+package skylinetools.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Object with derived caches (sorted node heights, slice times, transitions) that can be written to a CacheCheckpointer
+ * sidecar file and read back when resuming, instead of being recalculated.
+ */
+public interface Checkpointable {
+
+    String getID();
+
+    /* Called by the CacheCheckpointer the object is added to */
+    void setCheckpointer(CacheCheckpointer checkpointer);
+
+    /**
+     * Fingerprint of everything the caches are derived from (e.g. the tree), so caches are only read back if they
+     * belong to the restored state (0 if the caches are checked against their inputs every time they are used)
+     */
+    long getCheckpointFingerprint();
+
+    /* Write the caches (calculating them first if they are not known) */
+    void writeCheckpoint(DataOutputStream out) throws IOException;
+
+    /* Read the caches, throwing an IOException without changing anything if they do not match the object */
+    void readCheckpoint(DataInputStream in) throws IOException;
+
+}
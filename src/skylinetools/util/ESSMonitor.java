@@ -0,0 +1,254 @@
+package skylinetools.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Online effective sample size (ESS) of every value of one or more Functions (e.g. TreeSlicer, TreeSliceDateLogger,
+ * TreeDateLogger or a skyline parameter), so convergence can be followed while the chain is running.
+ *
+ * Every time the monitor is logged the current values are added to the estimate and the ESS of every value is logged.
+ * So ESS is in logged samples (the same as calculating it from a log file with the same logEvery in Tracer), but no
+ * burnin is removed except the first burnin states of the chain.
+ *
+ * ESS is estimated by batch means with a fixed number of batches: when all batches are full adjacent batches are
+ * merged and the batch size doubles. This needs O(batches) memory and O(1) time per value and sample, however long the
+ * chain. ESS = n var(x) / (b var(batch means)) (at most n), with b the batch size. Values that have not changed at all
+ * have ESS n.
+ *
+ * When the ESS of all values is above the threshold the monitor reports this once and, if a stopFile is given, writes
+ * the sample number and lowest ESS to it, so scripts can stop the run early. With reportEvery the lowest ESS is also
+ * reported to the screen regularly.
+ */
+@Description("Online ESS of Functions (e.g. slice times or dates), with optional signal when all values converged")
+public class ESSMonitor extends BEASTObject implements Loggable, Function {
+
+    final public Input<List<Function>> functionInput =
+            new Input<>("function", "Functions to monitor the ESS of (all dimensions)", new ArrayList<>(), Input.Validate.REQUIRED);
+
+    final public Input<Double> thresholdInput =
+            new Input<>("threshold", "ESS that all values must reach", 200.0);
+
+    final public Input<Long> burninInput =
+            new Input<>("burnin", "Number of states at the start of the chain to ignore", 0L);
+
+    final public Input<Integer> batchesInput =
+            new Input<>("batches", "Number of batches for the batch means (even, at least 4)", 64);
+
+    final public Input<Long> reportEveryInput =
+            new Input<>("reportEvery", "Report the lowest ESS to the screen every this many states (0 to not report)", 0L);
+
+    final public Input<String> stopFileInput =
+            new Input<>("stopFile", "File to write when all values reached the threshold (e.g. to stop the run from a script)", (String) null);
+
+    protected List<Function> functions;
+    protected BatchMeans [] columns;
+    protected boolean converged;
+
+
+    @Override
+    public void initAndValidate() {
+        functions = functionInput.get();
+
+        final int batches = batchesInput.get();
+        if (batches < 4 || batches % 2 != 0) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Number of batches must be even and at least 4.");
+        }
+
+        int dim = 0;
+        for (Function function : functions) {
+            dim += function.getDimension();
+        }
+        columns = new BatchMeans[dim];
+        for (int i = 0; i < dim; i++) {
+            columns[i] = new BatchMeans(batches);
+        }
+        converged = false;
+    }
+
+
+    /**
+     * Add the current values of all functions
+     *
+     * @param sample state number
+     */
+    public void update(long sample) {
+        if (sample < burninInput.get()) return;
+
+        int column = 0;
+        for (Function function : functions) {
+            final int dim = function.getDimension();
+            for (int i = 0; i < dim; i++) {
+                columns[column++].add(function.getArrayValue(i));
+            }
+        }
+
+        final long reportEvery = reportEveryInput.get();
+        if (reportEvery > 0 && sample % reportEvery == 0) {
+            int lowest = getLowest();
+            Log.info.println(getID() + ": lowest ESS " + String.format("%.1f", columns[lowest].getESS()) +
+                             " (value " + (lowest + 1) + ") at sample " + sample);
+        }
+
+        if (!converged && isConverged()) {
+            converged = true;
+            signalConvergence(sample);
+        }
+    }
+
+    /* Column with the lowest ESS (or the first one without an estimate yet) */
+    protected int getLowest() {
+        int lowest = 0;
+        for (int i = 0; i < columns.length; i++) {
+            if (Double.isNaN(columns[i].getESS())) return i;
+            if (columns[i].getESS() < columns[lowest].getESS()) lowest = i;
+        }
+        return lowest;
+    }
+
+    /**
+     * @return true if the ESS of all values is above the threshold
+     */
+    public boolean isConverged() {
+        for (BatchMeans column : columns) {
+            if (!(column.getESS() >= thresholdInput.get())) return false;
+        }
+        return true;
+    }
+
+    protected void signalConvergence(long sample) {
+        final double lowest = columns[getLowest()].getESS();
+        Log.info.println(getID() + ": ESS of all values above " + thresholdInput.get() + " at sample " + sample);
+
+        if (stopFileInput.get() != null) {
+            try (PrintStream out = new PrintStream(new File(stopFileInput.get()))) {
+                out.println(sample + "\t" + lowest);
+            } catch (FileNotFoundException e) {
+                Log.warning.println(getID() + ": Could not write stop file " + stopFileInput.get() + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    @Override
+    public void init(PrintStream out) {
+        for (Function function : functions) {
+            final String id = function instanceof BEASTObject ? ((BEASTObject) function).getID() : "function";
+            final int dim = function.getDimension();
+            for (int i = 0; i < dim; i++) {
+                out.print(id + (dim == 1 ? "" : "." + (i+1)) + ".ess\t");
+            }
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        update(sample);
+        for (BatchMeans column : columns) {
+            out.print(column.getESS() + "\t");
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+
+
+    @Override
+    public int getDimension() {
+        return columns.length;
+    }
+
+    @Override
+    public double getArrayValue() {
+        return columns[getLowest()].getESS();
+    }
+
+    /* ESS of a value */
+    @Override
+    public double getArrayValue(int dim) {
+        return columns[dim].getESS();
+    }
+
+
+    /**
+     * Batch means estimate of the ESS of one value with a fixed number of batches
+     */
+    static class BatchMeans {
+
+        private final double [] batchSums;
+        private int batches = 0;
+        private long batchSize = 1, partialCount = 0, n = 0;
+        private double partialSum = 0, mean = 0, sumOfSquares = 0;
+
+        BatchMeans(int maxBatches) {
+            batchSums = new double[maxBatches];
+        }
+
+        void add(double x) {
+            // Welford update of the overall variance
+            n++;
+            final double delta = x - mean;
+            mean += delta / n;
+            sumOfSquares += delta * (x - mean);
+
+            partialSum += x;
+            if (++partialCount == batchSize) {
+                batchSums[batches++] = partialSum;
+                partialSum = 0;
+                partialCount = 0;
+
+                if (batches == batchSums.length) {
+                    for (int i = 0; i < batches / 2; i++) {
+                        batchSums[i] = batchSums[2*i] + batchSums[2*i+1];
+                    }
+                    batches /= 2;
+                    batchSize *= 2;
+                }
+            }
+        }
+
+        long getCount() {
+            return n;
+        }
+
+        /**
+         * @return ESS of the values added so far (NaN if there are fewer than 2 complete batches)
+         */
+        double getESS() {
+            if (n > 1 && sumOfSquares == 0) return n;
+            if (batches < 2) return Double.NaN;
+
+            double batchMean = 0;
+            for (int i = 0; i < batches; i++) {
+                batchMean += batchSums[i] / batchSize;
+            }
+            batchMean /= batches;
+
+            double batchVariance = 0;
+            for (int i = 0; i < batches; i++) {
+                final double d = batchSums[i] / batchSize - batchMean;
+                batchVariance += d * d;
+            }
+            batchVariance /= batches - 1;
+
+            final double variance = sumOfSquares / (n - 1),
+                         asymptoticVariance = batchSize * batchVariance;
+            if (asymptoticVariance == 0) return n;
+
+            return Math.min(n, n * variance / asymptoticVariance);
+        }
+    }
+
+}
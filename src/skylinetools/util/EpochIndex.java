@@ -0,0 +1,146 @@
+package skylinetools.util;
+
+import beast.core.CalculationNode;
+import beast.core.Function;
+import beast.core.Input;
+import beast.evolution.tree.Node;
+
+/**
+ * Index of the TreeSlicer interval (epoch) that every node in the tree falls into
+ *
+ * Epoch i is [t_i, t_{i+1}) for the slice times t_0 < t_1 < ... < t_{d-1}, with the last epoch open ended, so the
+ * epoch of a node is the largest i for which t_i <= height (heights below t_0 are in epoch 0).
+ *
+ * The index is updated incrementally: after a state change only nodes whose height changed are looked up again
+ * (binary search over the slice times, O(log d)), unless the slice times themselves moved, in which case all nodes are.
+ * Checking which nodes and times changed is O(n + d). Reading the epoch of a node is O(1).
+ *
+ * Can be used as a Function (the epoch of every node, indexed by node number).
+ */
+public class EpochIndex extends CalculationNode implements Function {
+
+    final public Input<TreeSlicer> treeSliceInput =
+            new Input<>("treeSlice", "TreeSlicer with the slice times defining the epochs", Input.Validate.REQUIRED);
+
+    protected TreeSlicer treeSlice;
+
+    protected double [] times       = new double[0];   // Slice times at the last update
+    protected double [] nodeHeights = new double[0];   // Node heights at the last update (by node number)
+    protected int    [] epochs      = new int[0];      // Epoch of each node (by node number)
+    protected int lookups;                             // Number of nodes looked up in the last update
+    protected boolean indexKnown;
+
+    @Override
+    public void initAndValidate() {
+        treeSlice  = treeSliceInput.get();
+        indexKnown = false;
+    }
+
+
+    /**
+     * Epoch of a height given slice times in increasing order
+     *
+     * @param times slice times (only the first d are used)
+     * @param d     number of slice times
+     * @param height
+     * @return largest i for which times[i] <= height, or 0 if height is below all slice times
+     */
+    public static int epochOf(double [] times, int d, double height) {
+        int lower = 0, upper = d - 1;
+
+        while (lower < upper) {
+            int mid = (lower + upper + 1) >>> 1;
+            if (times[mid] <= height)
+                lower = mid;
+            else
+                upper = mid - 1;
+        }
+        return lower;
+    }
+
+
+    protected void updateIndex() {
+
+        final Node [] nodes = treeSlice.tree.getNodesAsArray();
+        final int d = treeSlice.getDimension(),
+                  n = nodes.length;
+
+        boolean timesChanged = false;
+        if (times.length != d) {
+            times = new double[d];
+            timesChanged = true;
+        }
+        for (int i = 0; i < d; i++) {
+            double t = treeSlice.getArrayValue(i);
+            if (t != times[i]) {
+                times[i] = t;
+                timesChanged = true;
+            }
+        }
+
+        if (epochs.length != n) {
+            nodeHeights = new double[n];
+            epochs      = new int[n];
+            timesChanged = true;
+        }
+
+        lookups = 0;
+        for (int i = 0; i < n; i++) {
+            double height = nodes[i].getHeight();
+            if (timesChanged || height != nodeHeights[i]) {
+                nodeHeights[i] = height;
+                epochs[i] = epochOf(times, d, height);
+                lookups++;
+            }
+        }
+
+        indexKnown = true;
+    }
+
+
+    public int getEpoch(int nodeNr) {
+        if (!indexKnown) updateIndex();
+        return epochs[nodeNr];
+    }
+
+    public int getEpoch(Node node) {
+        return getEpoch(node.getNr());
+    }
+
+    /* Epoch of any height (not necessarily a node) */
+    public int getEpochOfHeight(double height) {
+        if (!indexKnown) updateIndex();
+        return epochOf(times, times.length, height);
+    }
+
+
+    @Override
+    protected boolean requiresRecalculation() {
+        indexKnown = false;
+        return true;
+    }
+
+    @Override
+    protected void restore() {
+        // The cached heights and times are compared again on the next update, so nothing needs to be restored
+        indexKnown = false;
+        super.restore();
+    }
+
+
+    @Override
+    public int getDimension() {
+        return treeSlice.tree.getNodeCount();
+    }
+
+    @Override
+    public double getArrayValue() {
+        return getEpoch(0);
+    }
+
+    @Override
+    public double getArrayValue(int dim) {
+        return getEpoch(dim);
+    }
+
+}
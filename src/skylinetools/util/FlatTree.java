@@ -0,0 +1,135 @@
+package skylinetools.util;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+
+/**
+ * Tree stored in primitive arrays, indexed by node number: the parent of every node (-1 for the root) and its height,
+ * with optional labels for the leaves. If the date at height 0 is set, node dates are calculated from their heights.
+ *
+ * Nodes are numbered as in BEAST: leaves are 0..leafCount-1 and internal nodes are leafCount..nodeCount-1. Arrays are
+ * only reallocated if they are too small, so a single FlatTree can be reused for a whole file or simulation of trees.
+ *
+ * Use toTree() to create a BEAST Tree from it (the only step that allocates Node objects).
+ */
+public class FlatTree {
+
+    protected int [] parent = new int[0];
+    protected double [] height = new double[0];
+    protected String [] labels = null;             // Leaf labels (null if the leaves are not labelled)
+    protected int nodeCount = 0, leafCount = 0;
+    protected double presentDate = Double.NaN;     // Date at height 0 (NaN if unknown)
+
+
+    /**
+     * Set the number of nodes and leaves, reallocating arrays only if they are too small (existing labels are dropped)
+     *
+     * @param nodeCount
+     * @param leafCount
+     */
+    public void reset(int nodeCount, int leafCount) {
+        if (parent.length < nodeCount) {
+            parent = new int[nodeCount];
+            height = new double[nodeCount];
+        }
+        this.nodeCount = nodeCount;
+        this.leafCount = leafCount;
+        labels = null;
+    }
+
+
+    public int getNodeCount() { return nodeCount; }
+
+    public int getLeafCount() { return leafCount; }
+
+    public int getParent(int nr) { return parent[nr]; }
+
+    public double getHeight(int nr) { return height[nr]; }
+
+    public boolean isLeaf(int nr) { return nr < leafCount; }
+
+    /* Label of a leaf (null if the leaves are not labelled) */
+    public String getLabel(int nr) { return labels == null ? null : labels[nr]; }
+
+    public void setParent(int nr, int parentNr) { parent[nr] = parentNr; }
+
+    public void setHeight(int nr, double value) { height[nr] = value; }
+
+    public void setLabel(int nr, String label) {
+        if (labels == null || labels.length < leafCount) {
+            String [] tmp = new String[Math.max(leafCount, 1)];
+            if (labels != null) System.arraycopy(labels, 0, tmp, 0, labels.length);
+            labels = tmp;
+        }
+        labels[nr] = label;
+    }
+
+    public boolean hasLabels() { return labels != null; }
+
+    public void setPresentDate(double date) { presentDate = date; }
+
+    public double getPresentDate() { return presentDate; }
+
+    /* Date of a node (NaN if the present date is not set) */
+    public double getDate(int nr) { return presentDate - height[nr]; }
+
+    /**
+     * @return number of the root (the node without a parent, -1 if there is none)
+     */
+    public int getRoot() {
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            if (parent[i] < 0) return i;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Copy the nodes of a BEAST tree
+     *
+     * @param tree
+     */
+    public void fromTree(Tree tree) {
+        Node [] nodes = tree.getNodesAsArray();
+        reset(nodes.length, tree.getLeafNodeCount());
+
+        for (Node node : nodes) {
+            final int nr = node.getNr();
+            parent[nr] = node.isRoot() ? -1 : node.getParent().getNr();
+            height[nr] = node.getHeight();
+            if (nr < leafCount && node.getID() != null) {
+                setLabel(nr, node.getID());
+            }
+        }
+    }
+
+
+    /**
+     * Create a BEAST tree with the same topology and node heights. Leaves without labels get the IDs t1..tn.
+     *
+     * @return
+     */
+    public Tree toTree() {
+        Node [] nodes = new Node[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNr(i);
+            nodes[i].setHeight(height[i]);
+            if (i < leafCount) {
+                nodes[i].setID(labels != null && labels[i] != null ? labels[i] : "t" + (i + 1));
+            }
+        }
+
+        int root = -1;
+        for (int i = 0; i < nodeCount; i++) {
+            if (parent[i] < 0) {
+                root = i;
+            } else {
+                nodes[parent[i]].addChild(nodes[i]);
+            }
+        }
+
+        return new Tree(nodes[root]);
+    }
+
+}
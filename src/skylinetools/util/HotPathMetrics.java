@@ -0,0 +1,429 @@
+package skylinetools.util;
+
+import beast.core.util.Log;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call counters and latency histograms for the hot paths in the package (calculating slice times, updating anchor
+ * times, calculating smoothing prior densities and logging).
+ *
+ * Metrics are only collected if the JVM is started with -Dskylinetools.metrics=true. The flag is a static final
+ * constant, so when metrics are disabled the JIT compiler removes the timing calls altogether.
+ *
+ * Latencies are recorded in a log-linear histogram (in the style of HdrHistogram) with 8 sub-buckets for every power
+ * of 2, so percentiles are accurate to within 12.5%. Every thread records into its own histogram, which only that
+ * thread writes to (plain increments published with lazySet, so no atomic read-modify-write or cache lines shared
+ * between threads), and the histograms of all threads are merged when they are read. Use snapshot() to read the
+ * count, mean and several quantiles of a timer from a single merge.
+ *
+ * Timers can be nested (e.g. TreeSlicer.calculateTimes around TreeSlicer.updateAnchors, or a TreeSlicer used as times
+ * inside OUPrior.calculateLogP), so the totals of different timers overlap. The total time of the outermost timed
+ * calls on every thread is kept separately (getOutermostNanos()), which is the time spent in the package by that thread.
+ *
+ * When metrics are enabled every timer is registered as an MXBean (skylinetools:type=HotPathMetrics,name=...), so it
+ * can be inspected with JConsole/VisualVM while BEAST is running. Use HotPathMetricsLogger to add them to a trace log.
+ */
+public class HotPathMetrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("skylinetools.metrics");
+
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    /* Nesting depth of running timers and total time of outermost calls for every thread (indexed by thread id) */
+    private static final Map<Long, ThreadTotals> threadTotals = new ConcurrentHashMap<>();
+    private static final ThreadLocal<ThreadTotals> currentThreadTotals = ThreadLocal.withInitial(() -> {
+        ThreadTotals totals = new ThreadTotals();
+        threadTotals.put(Thread.currentThread().getId(), totals);
+        return totals;
+    });
+
+    private HotPathMetrics() { }
+
+
+    /**
+     * Get the timer with the given name (created the first time it is requested)
+     *
+     * @param name
+     * @return
+     */
+    public static Timer timer(String name) {
+        return timers.computeIfAbsent(name, HotPathMetrics::createTimer);
+    }
+
+    /**
+     * All timers created so far, sorted by name
+     *
+     * @return
+     */
+    public static List<Timer> getTimers() {
+        List<Timer> result = new ArrayList<>(timers.values());
+        Collections.sort(result, (a, b) -> a.getName().compareTo(b.getName()));
+        return result;
+    }
+
+    /**
+     * Total time of the outermost timed calls on a thread (not counting timers running inside other timers)
+     *
+     * @param threadId
+     * @return
+     */
+    public static long getOutermostNanos(long threadId) {
+        ThreadTotals totals = threadTotals.get(threadId);
+        return totals == null ? 0 : totals.outermost.sum();
+    }
+
+    /**
+     * Total time of the outermost timed calls on all other threads (e.g. TreeSlicerPool workers)
+     *
+     * @param threadId
+     * @return
+     */
+    public static long getOutermostNanosOfOtherThreads(long threadId) {
+        long nanos = 0;
+        for (Map.Entry<Long, ThreadTotals> entry : threadTotals.entrySet()) {
+            if (entry.getKey() != threadId) {
+                nanos += entry.getValue().outermost.sum();
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * Reset all timers and the totals of outermost calls
+     */
+    public static void reset() {
+        for (Timer timer : timers.values()) {
+            timer.reset();
+        }
+        for (ThreadTotals totals : threadTotals.values()) {
+            totals.outermost.reset();
+        }
+    }
+
+
+    private static class ThreadTotals {
+        int depth = 0;                                      // Only changed by the thread itself
+        final LongAdder outermost = new LongAdder();
+    }
+
+
+    private static Timer createTimer(String name) {
+        Timer timer = new Timer(name);
+
+        if (ENABLED) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(timer, new ObjectName("skylinetools:type=HotPathMetrics,name=" + ObjectName.quote(name)));
+            } catch (Exception e) {
+                Log.warning.println("Could not register metrics for " + name + " with JMX: " + e.getMessage());
+            }
+        }
+
+        return timer;
+    }
+
+
+    /**
+     * Attributes of a timer as seen through JMX (times in nanoseconds)
+     */
+    public interface TimerMXBean {
+
+        String getName();
+
+        long getCount();
+
+        long getTotalNanos();
+
+        double getMeanNanos();
+
+        long getMaxNanos();
+
+        long getMedianNanos();
+
+        long getP99Nanos();
+
+        void reset();
+    }
+
+
+    /**
+     * Counts and histogram of a timer merged over all threads at one point in time (calls still being recorded by
+     * other threads may be missing from some of the values)
+     */
+    public static class Snapshot {
+
+        long count, total, max;
+        final long [] buckets = new long[Timer.BUCKETS];
+
+        public long getCount() { return count; }
+
+        public long getTotalNanos() { return total; }
+
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        public long getMaxNanos() { return max; }
+
+        /**
+         * Upper bound of the bucket containing the given quantile of recorded latencies
+         *
+         * @param quantile between 0 and 1
+         * @return
+         */
+        public long getQuantileNanos(double quantile) {
+            long n = 0;
+            for (int i = 0; i < Timer.BUCKETS; i++) {
+                n += buckets[i];
+            }
+            if (n == 0) return 0;
+
+            long target = (long) Math.ceil(quantile * n), cumulative = 0;
+            for (int i = 0; i < Timer.BUCKETS; i++) {
+                cumulative += buckets[i];
+                if (cumulative >= target && cumulative > 0) {
+                    return Math.min(Timer.bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+
+    /* Latencies recorded by one thread. Only the thread itself writes to it, so every update is a plain read and an
+       ordered write (lazySet), which other threads see eventually when they merge the histograms. */
+    private static class Recorder {
+
+        static final int COUNT = Timer.BUCKETS, TOTAL = COUNT + 1, MAX = COUNT + 2;
+
+        /* Buckets followed by the count, total and maximum */
+        final AtomicLongArray values = new AtomicLongArray(Timer.BUCKETS + 3);
+
+        /* Reset of the timer the values belong to (values of an earlier reset are cleared on the next record) */
+        volatile long generation;
+
+        void record(long nanos, int bucket, long currentGeneration) {
+            if (generation != currentGeneration) {
+                for (int i = 0; i < values.length(); i++) {
+                    values.lazySet(i, 0);
+                }
+                generation = currentGeneration;
+            }
+            values.lazySet(bucket, values.get(bucket) + 1);
+            values.lazySet(COUNT, values.get(COUNT) + 1);
+            values.lazySet(TOTAL, values.get(TOTAL) + nanos);
+            if (nanos > values.get(MAX)) {
+                values.lazySet(MAX, nanos);
+            }
+        }
+    }
+
+
+    public static class Timer implements TimerMXBean {
+
+        /* Log-linear buckets: 8 sub-buckets (3 bits) for each of the 64 powers of 2 */
+        static final int SUB_BITS = 3,
+                         SUB_BUCKETS = 1 << SUB_BITS,
+                         BUCKETS = 64 * SUB_BUCKETS;
+
+        private final String name;
+
+        /* Histograms of all threads that used this timer (a thread is only added the first time it records) */
+        private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(() -> {
+            Recorder recorder = new Recorder();
+            recorders.add(recorder);
+            return recorder;
+        });
+
+        /* Number of resets (histograms recorded before the last reset are ignored) */
+        private volatile long generation = 0;
+
+        Timer(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Start timing a call
+         *
+         * @return start time to pass to stop() (0 if metrics are disabled)
+         */
+        public long start() {
+            if (!ENABLED) {
+                return 0L;
+            }
+            enter();
+            return System.nanoTime();
+        }
+
+        /**
+         * Stop timing a call and record it
+         *
+         * @param start value returned by start()
+         */
+        public void stop(long start) {
+            if (ENABLED) {
+                exit(System.nanoTime() - start);
+            }
+        }
+
+        /* Start of a call on this thread */
+        void enter() {
+            currentThreadTotals.get().depth++;
+        }
+
+        /* End of a call on this thread (added to the outermost total if no other timer is running around it) */
+        void exit(long nanos) {
+            record(nanos);
+
+            ThreadTotals totals = currentThreadTotals.get();
+            if (--totals.depth <= 0) {
+                totals.depth = 0;
+                totals.outermost.add(Math.max(nanos, 0));
+            }
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            recorder.get().record(nanos, bucket(nanos), generation);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /* Largest value that falls in a bucket */
+        static long bucketUpperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1,
+                sub      = bucket % SUB_BUCKETS;
+            long lower = (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+
+        /**
+         * Merge the histograms of all threads
+         *
+         * @return
+         */
+        public Snapshot snapshot() {
+            return snapshot(new Snapshot());
+        }
+
+        /**
+         * Merge the histograms of all threads into an existing snapshot (to avoid allocating one every time)
+         *
+         * @param snapshot
+         * @return snapshot
+         */
+        public Snapshot snapshot(Snapshot snapshot) {
+            snapshot.count = snapshot.total = snapshot.max = 0;
+            Arrays.fill(snapshot.buckets, 0);
+
+            final long current = generation;
+            for (Recorder recorder : recorders) {
+                if (recorder.generation != current) {
+                    continue;
+                }
+                final AtomicLongArray values = recorder.values;
+                for (int i = 0; i < BUCKETS; i++) {
+                    snapshot.buckets[i] += values.get(i);
+                }
+                snapshot.count += values.get(Recorder.COUNT);
+                snapshot.total += values.get(Recorder.TOTAL);
+                snapshot.max = Math.max(snapshot.max, values.get(Recorder.MAX));
+            }
+            return snapshot;
+        }
+
+        /**
+         * Upper bound of the bucket containing the given quantile of recorded latencies (use snapshot() to get several
+         * quantiles)
+         *
+         * @param quantile between 0 and 1
+         * @return
+         */
+        public long getQuantileNanos(double quantile) {
+            return snapshot().getQuantileNanos(quantile);
+        }
+
+        @Override
+        public String getName() { return name; }
+
+        @Override
+        public long getCount() {
+            long count = 0;
+            final long current = generation;
+            for (Recorder recorder : recorders) {
+                if (recorder.generation == current) {
+                    count += recorder.values.get(Recorder.COUNT);
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public long getTotalNanos() {
+            long total = 0;
+            final long current = generation;
+            for (Recorder recorder : recorders) {
+                if (recorder.generation == current) {
+                    total += recorder.values.get(Recorder.TOTAL);
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public double getMeanNanos() {
+            long n = getCount();
+            return n == 0 ? 0 : (double) getTotalNanos() / n;
+        }
+
+        @Override
+        public long getMaxNanos() {
+            long max = 0;
+            final long current = generation;
+            for (Recorder recorder : recorders) {
+                if (recorder.generation == current) {
+                    max = Math.max(max, recorder.values.get(Recorder.MAX));
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public long getMedianNanos() { return getQuantileNanos(0.5); }
+
+        @Override
+        public long getP99Nanos() { return getQuantileNanos(0.99); }
+
+        /**
+         * Discard everything recorded so far (every thread clears its own histogram the next time it records)
+         */
+        @Override
+        public synchronized void reset() {
+            generation++;
+        }
+    }
+
+}
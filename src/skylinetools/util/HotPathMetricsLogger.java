@@ -0,0 +1,63 @@
+package skylinetools.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Loggable;
+import beast.core.util.Log;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Log the call counts and latencies collected by HotPathMetrics, for each timer the number of calls and the mean,
+ * median and 99th percentile latency in microseconds (cumulative from the start of the run). The histograms of every
+ * timer are merged once per log line (into a snapshot that is reused).
+ *
+ * How often the metrics are written is set by the logEvery of the logger this is added to.
+ *
+ * Metrics are only collected when the JVM is started with -Dskylinetools.metrics=true, otherwise all values are 0.
+ */
+@Description("Log call counts and latencies of TreeSlicers, smoothing priors and loggers in the package")
+public class HotPathMetricsLogger extends BEASTObject implements Loggable {
+
+    protected List<HotPathMetrics.Timer> timers;
+    protected HotPathMetrics.Snapshot snapshot = new HotPathMetrics.Snapshot();
+
+    @Override
+    public void initAndValidate() {
+        if (!HotPathMetrics.ENABLED) {
+            Log.warning.println("Metrics are disabled. Start BEAST with -Dskylinetools.metrics=true to collect " +
+                                "metrics for HotPathMetricsLogger " + getID());
+        }
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        // Timers are created when the objects using them are, so all of them exist by the time logging starts
+        timers = HotPathMetrics.getTimers();
+
+        for (HotPathMetrics.Timer timer : timers) {
+            out.print(timer.getName() + ".count\t" +
+                      timer.getName() + ".mean\t" +
+                      timer.getName() + ".median\t" +
+                      timer.getName() + ".p99\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (HotPathMetrics.Timer timer : timers) {
+            timer.snapshot(snapshot);
+            out.print(snapshot.getCount() + "\t" +
+                      snapshot.getMeanNanos() / 1000.0 + "\t" +
+                      snapshot.getQuantileNanos(0.5) / 1000.0 + "\t" +
+                      snapshot.getQuantileNanos(0.99) / 1000.0 + "\t");
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+
+}
@@ -0,0 +1,135 @@
+package skylinetools.util;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.HeapSort;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Index of the nodes of a tree sorted by increasing height, stored in primitive arrays.
+ *
+ * The index is owned by a TreeSlicer (see TreeSlicer.getNodeHeightIndex()) so that everything that needs the node
+ * heights in sorted order (statistics, loggers, other slicing criteria) can share a single sort per state instead of
+ * each sorting the tree again.
+ *
+ * Updating the index is O(n log n) for n nodes, reading it is O(1) per rank.
+ */
+public class NodeHeightIndex {
+
+    protected double [] nodeHeights = new double[0];   // Heights indexed by node number
+    protected double [] heights     = new double[0];   // Heights sorted in increasing order
+    protected int    [] order       = new int[0];      // Node numbers sorted by increasing height
+    protected int    [] childCounts = new int[0];      // Number of children of the node at each rank (0 for leaves)
+    protected int nodeCount = 0;
+
+
+    /**
+     * Rebuild the index from the current node heights in the tree
+     *
+     * Arrays are only reallocated if the number of nodes in the tree changes.
+     *
+     * @param tree
+     */
+    public void update(Tree tree) {
+
+        Node [] nodes = tree.getNodesAsArray();
+
+        if (nodes.length != nodeCount) {
+            nodeCount   = nodes.length;
+            nodeHeights = new double[nodeCount];
+            heights     = new double[nodeCount];
+            order       = new int[nodeCount];
+            childCounts = new int[nodeCount];
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            nodeHeights[i] = nodes[i].getHeight();
+        }
+        HeapSort.sort(nodeHeights, order);
+
+        for (int i = 0; i < nodeCount; i++) {
+            heights[i]     = nodeHeights[order[i]];
+            childCounts[i] = nodes[order[i]].getChildCount();
+        }
+    }
+
+
+    /**
+     * Check that the index is still the index of the tree, i.e. every node still has the height and number of children
+     * it had when the index was updated (O(n), for objects that are not told when the tree changes, e.g. loggers)
+     *
+     * @param tree
+     * @return true if the index does not need to be updated
+     */
+    public boolean isCurrent(Tree tree) {
+
+        Node [] nodes = tree.getNodesAsArray();
+        if (nodes.length != nodeCount) {
+            return false;
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            final Node node = nodes[order[i]];
+            if (node.getHeight() != heights[i] || node.getChildCount() != childCounts[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Write the index (for CacheCheckpointer)
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            out.writeDouble(nodeHeights[i]);
+            out.writeInt(order[i]);
+            out.writeInt(childCounts[i]);
+        }
+    }
+
+    /**
+     * Read an index written by write()
+     */
+    public void read(DataInputStream in) throws IOException {
+        nodeCount   = in.readInt();
+        nodeHeights = new double[nodeCount];
+        heights     = new double[nodeCount];
+        order       = new int[nodeCount];
+        childCounts = new int[nodeCount];
+
+        for (int i = 0; i < nodeCount; i++) {
+            nodeHeights[i] = in.readDouble();
+            order[i]       = in.readInt();
+            childCounts[i] = in.readInt();
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            if (order[i] < 0 || order[i] >= nodeCount) {
+                throw new IOException("node index is out of range");
+            }
+            heights[i] = nodeHeights[order[i]];
+        }
+    }
+
+
+    public int getNodeCount() { return nodeCount; }
+
+    /* Height of the node with the given rank (0 is the lowest node in the tree) */
+    public double getHeight(int rank) { return heights[rank]; }
+
+    /* Number of the node with the given rank */
+    public int getNodeNr(int rank) { return order[rank]; }
+
+    public int getChildCount(int rank) { return childCounts[rank]; }
+
+    public boolean isLeaf(int rank) { return childCounts[rank] == 0; }
+
+    /* Only nodes with more than one child are branching events (single-child nodes are not) */
+    public boolean isBranching(int rank) { return childCounts[rank] > 1; }
+
+}
@@ -0,0 +1,57 @@
+package skylinetools.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+import skylinetools.distributions.OUPrior;
+
+import java.io.PrintStream;
+
+/**
+ * Log a trajectory at every time of an OUPrior, drawing the values at latent times (times that are not in the observed
+ * input of the prior) from the OU process conditioned on the current values at the observed times.
+ *
+ * Every log call draws a new trajectory, so the logged values are exact draws from the posterior of the latent values.
+ */
+@Description("Log OUPrior trajectories with the values at latent times drawn conditional on the observed values")
+public class OUTrajectoryLogger extends BEASTObject implements Loggable {
+
+    final public Input<OUPrior> priorInput =
+            new Input<>("prior", "OUPrior to draw trajectories from", Input.Validate.REQUIRED);
+
+    protected double [] trajectory;
+
+    private static final HotPathMetrics.Timer logTimer = HotPathMetrics.timer("OUTrajectoryLogger.log");
+
+    @Override
+    public void initAndValidate() {
+        trajectory = new double[priorInput.get().timeInput.get().getDimension()];
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        final String id = getID() == null ? priorInput.get().getID() : getID();
+
+        for (int i = 0; i < trajectory.length; i++) {
+            out.print(id + ".x" + (i+1) + "\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        final long start = logTimer.start();
+
+        priorInput.get().sampleTrajectory(trajectory);
+        for (int i = 0; i < trajectory.length; i++) {
+            out.print(trajectory[i] + "\t");
+        }
+        logTimer.stop(start);
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+
+}
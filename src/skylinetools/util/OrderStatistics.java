@@ -0,0 +1,125 @@
+package skylinetools.util;
+
+import java.util.Arrays;
+
+/**
+ * Selection of several order statistics from an unsorted array of doubles without sorting the whole array.
+ *
+ * Uses a multi-rank introselect: the array is partitioned around a median-of-three pivot (three-way, so ties in node
+ * heights do not degrade the partitioning) and only the partitions that contain requested ranks are visited. If the
+ * recursion gets too deep the remaining range is simply sorted, which bounds the worst case at O(n log n).
+ *
+ * Selecting d ranks from n values takes O(n log d) expected time.
+ *
+ * The array is partially reordered in place, so it should be a buffer that can be overwritten.
+ */
+public class OrderStatistics {
+
+    /* Ranges smaller than this are insertion sorted */
+    static final int SMALL = 16;
+
+    private OrderStatistics() { }
+
+
+    /**
+     * Rearrange the first n values of the array so that for each requested rank r, array[r] is the value that would
+     * be at position r if array[0..n) was sorted in increasing order.
+     *
+     * @param array  values (only the first n are used)
+     * @param n      number of values
+     * @param ranks  requested ranks, in non-decreasing order and between 0 and n-1
+     * @param k      number of requested ranks (only the first k elements of ranks are used)
+     */
+    public static void select(double [] array, int n, int [] ranks, int k) {
+        if (n <= 1 || k == 0) return;
+
+        if (ranks[0] < 0 || ranks[k-1] >= n) {
+            throw new IllegalArgumentException("Requested ranks need to be between 0 and " + (n - 1));
+        }
+
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(n));
+        select(array, 0, n, ranks, 0, k, depthLimit);
+    }
+
+
+    /**
+     * Resolve ranks[rFrom..rTo) within array[from..to)
+     */
+    private static void select(double [] array, int from, int to, int [] ranks, int rFrom, int rTo, int depth) {
+
+        while (rFrom < rTo) {
+
+            if (to - from <= SMALL) {
+                insertionSort(array, from, to);
+                return;
+            }
+
+            if (depth-- == 0) {
+                Arrays.sort(array, from, to);
+                return;
+            }
+
+            /* Three-way partition around the median of three */
+            double pivot = medianOfThree(array[from], array[(from + to) >>> 1], array[to - 1]);
+            int lt = from, i = from, gt = to - 1;
+            while (i <= gt) {
+                double value = array[i];
+                if (value < pivot) {
+                    swap(array, lt++, i++);
+                } else
+                if (value > pivot) {
+                    swap(array, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            // Now array[from..lt) < pivot, array[lt..gt] == pivot, array(gt..to) > pivot
+
+            int left = rFrom;
+            while (left < rTo && ranks[left] < lt) left++;
+            int right = left;
+            while (right < rTo && ranks[right] <= gt) right++;
+
+            // Recurse on the smaller side of requested ranks and loop on the other
+            if (left - rFrom < rTo - right) {
+                select(array, from, lt, ranks, rFrom, left, depth);
+                from  = gt + 1;
+                rFrom = right;
+            } else {
+                select(array, gt + 1, to, ranks, right, rTo, depth);
+                to  = lt;
+                rTo = left;
+            }
+        }
+    }
+
+
+    private static double medianOfThree(double a, double b, double c) {
+        if (a < b) {
+            if (b < c) return b;
+            return (a < c) ? c : a;
+        } else {
+            if (a < c) return a;
+            return (b < c) ? c : b;
+        }
+    }
+
+    private static void insertionSort(double [] array, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            double value = array[i];
+            int j = i - 1;
+            while (j >= from && array[j] > value) {
+                array[j + 1] = array[j];
+                j--;
+            }
+            array[j + 1] = value;
+        }
+    }
+
+    private static void swap(double [] array, int i, int j) {
+        double tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+
+}
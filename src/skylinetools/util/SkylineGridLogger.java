@@ -0,0 +1,203 @@
+package skylinetools.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Log a piecewise-constant skyline at a fixed grid of calendar dates, so skylines from different samples (with
+ * different slice times) can be summarised directly without resampling the log afterwards.
+ *
+ * Value i of the skyline applies to interval [t_i, t_{i+1}) of the TreeSlicer (heights, with the last interval open
+ * ended). Grid dates are converted to heights from the most recent sample in the tree and matched to the intervals in
+ * a single merge-style sweep over the two sorted arrays (O(d + g) for d slice times and g grid dates). Grid dates more
+ * recent than the most recent sample get the value of the first interval.
+ *
+ * Optionally keeps a streaming summary (mean and quantiles, O(1) memory per grid date, see StreamingQuantile) of the
+ * skyline at every grid date that is written when logging is finished. With logGrid="false" the per-sample values are
+ * not written to the log at all.
+ */
+@Description("Log a piecewise-constant skyline at a fixed grid of dates")
+public class SkylineGridLogger extends BEASTObject implements Loggable {
+
+    final public Input<TreeSlicer> treeSliceInput =
+            new Input<>("treeSlice", "TreeSlicer with the times where the skyline changes", Input.Validate.REQUIRED);
+
+    final public Input<Function> skylineInput =
+            new Input<>("skyline", "Skyline values (one for each TreeSlicer interval)", Input.Validate.REQUIRED);
+
+    final public Input<Function> datesInput =
+            new Input<>("dates", "Grid of dates to log the skyline at (e.g. a RealParameterSequence)", Input.Validate.REQUIRED);
+
+    final public Input<Boolean> logGridInput =
+            new Input<>("logGrid", "Write the skyline at the grid dates for every sample", true);
+
+    final public Input<String> quantilesInput =
+            new Input<>("quantiles", "Quantiles to keep a streaming summary of at every grid date (e.g. \"0.025 0.5 0.975\")");
+
+    final public Input<String> summaryFileInput =
+            new Input<>("summaryFile", "File to write the summary to at the end of the run (to the screen if not given)");
+
+    final public Input<Integer> burninInput =
+            new Input<>("burnin", "Samples before this sample number are not included in the summary", 0);
+
+
+    protected TreeSlicer treeSlice;
+    protected Function skyline;
+
+    protected double [] gridDates;     // In increasing order
+    protected double [] gridValues;    // Skyline at each grid date (reused)
+
+    /* Streaming summary */
+    protected double [] quantiles;
+    protected StreamingQuantile [][] summaries;
+    protected double [] sums;
+    protected long summarySamples;
+
+
+    @Override
+    public void initAndValidate() {
+
+        treeSlice = treeSliceInput.get();
+        skyline   = skylineInput.get();
+
+        if (skyline.getDimension() != treeSlice.getDimension()) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Dimension of skyline ("+skyline.getDimension()+
+                                               ") must be equal to the dimension of the TreeSlicer ("+treeSlice.getDimension()+")");
+        }
+
+        gridDates = datesInput.get().getDoubleValues();
+        Arrays.sort(gridDates);
+        gridValues = new double[gridDates.length];
+
+        if (quantilesInput.get() != null) {
+            String [] strs = quantilesInput.get().trim().split("\\s+");
+            quantiles = new double[strs.length];
+            for (int i = 0; i < strs.length; i++) {
+                quantiles[i] = Double.parseDouble(strs[i]);
+            }
+
+            summaries = new StreamingQuantile[gridDates.length][quantiles.length];
+            for (int g = 0; g < gridDates.length; g++) {
+                for (int q = 0; q < quantiles.length; q++) {
+                    summaries[g][q] = new StreamingQuantile(quantiles[q]);
+                }
+            }
+            sums = new double[gridDates.length];
+        } else
+        if (!logGridInput.get()) {
+            Log.warning.println("SkylineGridLogger "+getID()+" does not log the grid and has no quantiles to summarise.");
+        }
+    }
+
+
+    /**
+     * Calculate the skyline at all grid dates
+     *
+     * Grid dates in increasing order are heights in decreasing order, so the grid is swept from the most recent date
+     * while moving up through the slice times.
+     */
+    protected void calculateGrid() {
+
+        final int d = treeSlice.getDimension();
+        final double presentDate = treeSlice.heightToDate(0.0);
+
+        int epoch = 0;
+        for (int g = gridDates.length - 1; g >= 0; g--) {
+            double height = presentDate - gridDates[g];
+
+            while (epoch + 1 < d && treeSlice.getArrayValue(epoch + 1) <= height) {
+                epoch++;
+            }
+            gridValues[g] = skyline.getArrayValue(epoch);
+        }
+    }
+
+
+    @Override
+    public void init(PrintStream out) {
+        if (logGridInput.get()) {
+            for (int g = 0; g < gridDates.length; g++) {
+                out.print(getLabel() + ".grid" + (g + 1) + "\t");
+            }
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+
+        calculateGrid();
+
+        if (logGridInput.get()) {
+            for (int g = 0; g < gridDates.length; g++) {
+                out.print(gridValues[g] + "\t");
+            }
+        }
+
+        if (summaries != null && sample >= burninInput.get()) {
+            for (int g = 0; g < gridDates.length; g++) {
+                sums[g] += gridValues[g];
+                for (StreamingQuantile summary : summaries[g]) {
+                    summary.add(gridValues[g]);
+                }
+            }
+            summarySamples++;
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        if (summaries == null) return;
+
+        if (summaryFileInput.get() != null) {
+            try (PrintStream summaryOut = new PrintStream(summaryFileInput.get())) {
+                writeSummary(summaryOut);
+            } catch (FileNotFoundException e) {
+                Log.warning.println("Could not write summary of SkylineGridLogger "+getID()+" to "+
+                                    summaryFileInput.get()+": "+e.getMessage());
+                writeSummary(Log.info);
+            }
+        } else {
+            writeSummary(Log.info);
+        }
+    }
+
+    /**
+     * Write one row per grid date with the mean and quantiles of the skyline at that date
+     *
+     * @param out
+     */
+    protected void writeSummary(PrintStream out) {
+        out.print("date\tmean");
+        for (double q : quantiles) {
+            out.print("\t" + q);
+        }
+        out.println();
+
+        for (int g = 0; g < gridDates.length; g++) {
+            out.print(gridDates[g] + "\t" + (summarySamples > 0 ? sums[g] / summarySamples : Double.NaN));
+            for (StreamingQuantile summary : summaries[g]) {
+                out.print("\t" + summary.getQuantile());
+            }
+            out.println();
+        }
+    }
+
+    private String getLabel() {
+        if (skyline instanceof BEASTObject && ((BEASTObject) skyline).getID() != null)
+            return ((BEASTObject) skyline).getID();
+        return getID();
+    }
+
+    public double [] getGridDates() { return gridDates; }
+
+    public double getGridValue(int g) { return gridValues[g]; }
+
+}
@@ -0,0 +1,619 @@
+package skylinetools.util;
+
+import beast.util.HeapSort;
+import skylinetools.distributions.GaussianKernels;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Importance-sampling re-weighting of the samples in a finished trace log under alternative OUPrior/BMPrior settings,
+ * to see how the skyline changes with different sigma, nu, mean, logspace or normalize settings without rerunning the
+ * MCMC.
+ *
+ * The weight of every sample is the ratio of the smoothing prior density under the alternative settings to the density
+ * under the settings the chain was run with (calculated as in OUPrior/BMPrior, with GaussianKernels). The effective
+ * sample size (ESS = (sum w)^2 / sum w^2) shows whether the samples are still good enough, otherwise the chain needs to
+ * be rerun under the alternative settings. Re-weighted summaries (mean, median and 95% interval) are calculated for
+ * every value of x.
+ *
+ * Settings are given as ou:mean=..,sigma=..,nu=..[,logspace=true][,normalize=true] or
+ * bm:sigma=..[,logspace=true] (or precision instead of sigma), where every parameter is either a number or the name of
+ * a column in the trace (e.g. if sigma was estimated). x and times are the IDs of the logged parameters (columns id or
+ * id.1, id.2, ...), or times can be fixed. x0Prior and latent times are not supported (x0Prior cancels if it is the
+ * same under both settings).
+ *
+ * The trace is read one line at a time and only the columns that are needed are kept. Samples are evaluated in
+ * parallel in blocks, with one pass over all settings per sample.
+ *
+ *    java skylinetools.util.SmoothingPriorReweighter -log trace.log -x id (-times id | -fixedTimes t0,t1,...)
+ *         -prior settings -alt settings [-alt settings ...] [-burnin percentage] [-threads n] [-minESS ess]
+ *         [-out prefix]
+ */
+public class SmoothingPriorReweighter {
+
+    /* Samples evaluated together by one task */
+    static final int BLOCK = 1024;
+
+    static final double [] QUANTILES = {0.025, 0.5, 0.975};
+
+    protected final String xName, timesName;
+    protected final double [] fixedTimes;
+    protected final PriorSettings prior;
+    protected final PriorSettings [] alternatives;
+
+    /* Slots of x and times in data, and the names of the x columns */
+    protected int [] xSlots, timeSlots;
+    protected String [] xColumns;
+
+    /* Trace after burnin (row-major, one row of slots per sample) */
+    protected long [] sampleNumbers;
+    protected double [] data;
+    protected int sampleCount, width;
+
+    /* Log weights of every sample under every alternative (not normalised) */
+    protected double [][] logWeights;
+
+
+    /**
+     * @param xName       ID of the skyline in the trace
+     * @param timesName   ID of the times in the trace (null if fixedTimes are given)
+     * @param fixedTimes  times (null if times are in the trace)
+     * @param prior       settings the chain was run with
+     * @param alternatives settings to re-weight to
+     */
+    public SmoothingPriorReweighter(String xName, String timesName, double [] fixedTimes, String prior, List<String> alternatives) {
+        if ((timesName == null) == (fixedTimes == null)) {
+            throw new IllegalArgumentException("Either times in the trace or fixed times must be given");
+        }
+        if (alternatives.isEmpty()) {
+            throw new IllegalArgumentException("No alternative prior settings given");
+        }
+
+        this.xName      = xName;
+        this.timesName  = timesName;
+        this.fixedTimes = fixedTimes;
+        this.prior      = new PriorSettings(prior);
+        this.alternatives = new PriorSettings[alternatives.size()];
+        for (int i = 0; i < alternatives.size(); i++) {
+            this.alternatives[i] = new PriorSettings(alternatives.get(i));
+        }
+    }
+
+
+    /**
+     * Read the columns that are needed from a tab-separated trace log (lines starting with # are skipped)
+     *
+     * @param file
+     * @param burnin percentage of samples to discard
+     */
+    public void read(File file, double burnin) throws IOException {
+        if (burnin < 0 || burnin >= 100) {
+            throw new IllegalArgumentException("Burnin must be a percentage between 0 and 100");
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null && (line.startsWith("#") || line.trim().isEmpty())) {
+                // skip comments
+            }
+            if (line == null) {
+                throw new IOException("No header in " + file);
+            }
+            int [] traceColumns = setHeader(line.split("\t"));
+            int columnCount = 1;
+            for (int column : traceColumns) {
+                columnCount = Math.max(columnCount, column + 1);
+            }
+
+            int lineNumber = 0;
+            sampleCount = 0;
+            sampleNumbers = new long[1024];
+            data = new double[1024 * width];
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.startsWith("#") || line.trim().isEmpty()) continue;
+
+                String [] fields = line.split("\t");
+                if (fields.length < columnCount) {
+                    throw new IOException("Line " + lineNumber + " after the header of " + file + " has too few columns");
+                }
+
+                if (sampleCount == sampleNumbers.length) {
+                    sampleNumbers = Arrays.copyOf(sampleNumbers, 2 * sampleCount);
+                    data = Arrays.copyOf(data, 2 * sampleCount * width);
+                }
+                try {
+                    sampleNumbers[sampleCount] = Long.parseLong(fields[0].trim());
+                    for (int slot = 0; slot < width; slot++) {
+                        data[sampleCount * width + slot] = Double.parseDouble(fields[traceColumns[slot]]);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Line " + lineNumber + " after the header of " + file + " is not a number: " + e.getMessage());
+                }
+                sampleCount++;
+            }
+        }
+
+        // Discard burnin
+        final int discard = (int) (sampleCount * burnin / 100);
+        sampleCount -= discard;
+        sampleNumbers = Arrays.copyOfRange(sampleNumbers, discard, discard + sampleCount);
+        data = Arrays.copyOfRange(data, discard * width, (discard + sampleCount) * width);
+        if (sampleCount == 0) {
+            throw new IOException("No samples after burnin in " + file);
+        }
+    }
+
+
+    /**
+     * Find the columns that are needed (x, times and parameters of all settings)
+     *
+     * @param header
+     * @return column in the trace of every slot
+     */
+    protected int [] setHeader(String [] header) {
+        Map<String,Integer> index = new HashMap<>();
+        for (int i = 0; i < header.length; i++) {
+            index.put(header[i].trim(), i);
+        }
+
+        List<Integer> traceColumns = new ArrayList<>();
+
+        xSlots = addColumns(header, xName, traceColumns);
+        xColumns = new String[xSlots.length];
+        for (int i = 0; i < xSlots.length; i++) {
+            xColumns[i] = header[traceColumns.get(xSlots[i])].trim();
+        }
+        if (timesName != null) {
+            timeSlots = addColumns(header, timesName, traceColumns);
+            if (timeSlots.length != xSlots.length) {
+                throw new IllegalArgumentException("Dimension of times (" + timeSlots.length + ") must be equal to the " +
+                                                   "dimension of x (" + xSlots.length + ")");
+            }
+        } else if (fixedTimes.length != xSlots.length) {
+            throw new IllegalArgumentException("Number of fixed times (" + fixedTimes.length + ") must be equal to " +
+                                               "the dimension of x (" + xSlots.length + ")");
+        }
+        if (xSlots.length < 2) {
+            throw new IllegalArgumentException("x must have at least 2 values");
+        }
+
+        prior.resolve(index, traceColumns);
+        for (PriorSettings settings : alternatives) {
+            settings.resolve(index, traceColumns);
+        }
+
+        width = traceColumns.size();
+        int [] result = new int[width];
+        for (int slot = 0; slot < width; slot++) {
+            result[slot] = traceColumns.get(slot);
+        }
+        return result;
+    }
+
+    /* Add the columns id or id.1, id.2, ... and return their slots */
+    private int [] addColumns(String [] header, String id, List<Integer> traceColumns) {
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < header.length; i++) {
+            final String column = header[i].trim();
+            if (column.equals(id) || (column.startsWith(id + ".") && column.substring(id.length() + 1).matches("[0-9]+"))) {
+                slots.add(traceColumns.size());
+                traceColumns.add(i);
+            }
+        }
+        if (slots.isEmpty()) {
+            throw new IllegalArgumentException("No columns for " + id + " in the trace");
+        }
+
+        int [] result = new int[slots.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = slots.get(i);
+        }
+        return result;
+    }
+
+
+    /**
+     * Calculate the log weight of every sample under every alternative (in parallel)
+     *
+     * @param threads number of threads (0 for one per available processor)
+     */
+    public void reweight(int threads) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        logWeights = new double[alternatives.length][sampleCount];
+        final ReweightTask task = new ReweightTask(0, sampleCount);
+        if (threads == 1 || sampleCount <= BLOCK) {
+            task.compute();
+        } else {
+            ForkJoinPool executor = new ForkJoinPool(threads);
+            try {
+                executor.invoke(task);
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /* Log weights of samples [from, to) */
+    protected void reweight(int from, int to) {
+        final int dim = xSlots.length;
+        final double [] raw    = new double[dim],
+                        x      = new double[dim],
+                        t      = new double[dim],
+                        buffer = new double[dim];
+
+        for (int s = from; s < to; s++) {
+            final int row = s * width;
+            for (int i = 0; i < dim; i++) {
+                raw[i] = data[row + xSlots[i]];
+                t[i]   = timeSlots == null ? fixedTimes[i] : data[row + timeSlots[i]];
+            }
+
+            final double logP = prior.logP(raw, x, t, buffer, data, row);
+            for (int a = 0; a < alternatives.length; a++) {
+                logWeights[a][s] = alternatives[a].logP(raw, x, t, buffer, data, row) - logP;
+            }
+        }
+    }
+
+
+    /**
+     * @return normalised weights of the samples under an alternative
+     */
+    public double [] getWeights(int alternative) {
+        final double [] logW = logWeights[alternative];
+
+        double max = Double.NEGATIVE_INFINITY;
+        for (double w : logW) {
+            if (w > max) max = w;
+        }
+        if (Double.isNaN(max) || max == Double.NEGATIVE_INFINITY) {
+            throw new IllegalArgumentException("Alternative " + alternatives[alternative].spec + " has zero or " +
+                                               "undefined density for every sample");
+        }
+
+        double [] weights = new double[sampleCount];
+        double sum = 0;
+        for (int s = 0; s < sampleCount; s++) {
+            weights[s] = Math.exp(logW[s] - max);
+            sum += weights[s];
+        }
+        for (int s = 0; s < sampleCount; s++) {
+            weights[s] /= sum;
+        }
+        return weights;
+    }
+
+    /**
+     * @return effective sample size of the samples under an alternative
+     */
+    public double getESS(int alternative) {
+        return ess(getWeights(alternative));
+    }
+
+    static double ess(double [] weights) {
+        double sum = 0, sumOfSquares = 0;
+        for (double w : weights) {
+            sum += w;
+            sumOfSquares += w * w;
+        }
+        return sum * sum / sumOfSquares;
+    }
+
+
+    /**
+     * Mean and QUANTILES of every value of x under an alternative (-1 for the prior the chain was run with)
+     *
+     * @return [value][mean, quantiles...]
+     */
+    public double [][] getSummary(int alternative) {
+        final double [] weights;
+        if (alternative < 0) {
+            weights = new double[sampleCount];
+            Arrays.fill(weights, 1.0 / sampleCount);
+        } else {
+            weights = getWeights(alternative);
+        }
+
+        final int dim = xSlots.length;
+        double [][] summary = new double[dim][1 + QUANTILES.length];
+        double [] values = new double[sampleCount];
+        int [] order = new int[sampleCount];
+        for (int i = 0; i < dim; i++) {
+            double mean = 0;
+            for (int s = 0; s < sampleCount; s++) {
+                values[s] = data[s * width + xSlots[i]];
+                mean += weights[s] * values[s];
+            }
+            summary[i][0] = mean;
+
+            // Smallest value where the cumulative weight reaches the quantile
+            HeapSort.sort(values, order);
+            double cumulative = 0;
+            int q = 0;
+            for (int r = 0; r < sampleCount && q < QUANTILES.length; r++) {
+                cumulative += weights[order[r]];
+                while (q < QUANTILES.length && cumulative >= QUANTILES[q] * (1 - 1e-12)) {
+                    summary[i][1 + q++] = values[order[r]];
+                }
+            }
+            while (q < QUANTILES.length) {
+                summary[i][1 + q++] = values[order[sampleCount - 1]];
+            }
+        }
+        return summary;
+    }
+
+
+    public int getSampleCount() { return sampleCount; }
+
+    public int getAlternativeCount() { return alternatives.length; }
+
+    public String getAlternative(int alternative) { return alternatives[alternative].spec; }
+
+
+    /**
+     * Write the normalised weights of every sample under every alternative
+     */
+    public void writeWeights(PrintStream out) {
+        double [][] weights = new double[alternatives.length][];
+        out.print("Sample");
+        for (int a = 0; a < alternatives.length; a++) {
+            weights[a] = getWeights(a);
+            out.print("\tweight" + (a + 1));
+        }
+        out.println();
+
+        for (int s = 0; s < sampleCount; s++) {
+            out.print(sampleNumbers[s]);
+            for (int a = 0; a < alternatives.length; a++) {
+                out.print("\t" + weights[a][s]);
+            }
+            out.println();
+        }
+    }
+
+    /**
+     * Write the ESS and re-weighted summaries of every alternative (and the unweighted summary)
+     */
+    public void writeSummary(PrintStream out) {
+        out.println("settings\tESS\tvalue\tmean\tlower\tmedian\tupper");
+        for (int a = -1; a < alternatives.length; a++) {
+            final String spec = a < 0 ? prior.spec : alternatives[a].spec;
+            final double ess  = a < 0 ? sampleCount : getESS(a);
+            final double [][] summary = getSummary(a);
+            for (int i = 0; i < summary.length; i++) {
+                out.print(spec + "\t" + ess + "\t" + xColumns[i]);
+                for (double value : summary[i]) {
+                    out.print("\t" + value);
+                }
+                out.println();
+            }
+        }
+    }
+
+
+    private class ReweightTask extends RecursiveAction {
+
+        private final int from, to;
+
+        ReweightTask(int from, int to) {
+            this.from = from;
+            this.to   = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BLOCK) {
+                reweight(from, to);
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new ReweightTask(from, middle), new ReweightTask(middle, to));
+            }
+        }
+    }
+
+
+    /**
+     * Settings of an OUPrior or BMPrior, with parameters that are either constants or columns of the trace
+     */
+    static class PriorSettings {
+
+        final String spec;
+        final boolean ou, logspace, normalize;
+
+        /* Parameter names (mean, sigma, nu or precision) and their constant values or slots in the trace */
+        private final String [] names;
+        private final String [] values;
+        private final double [] constants;
+        private final int [] slots;
+
+        PriorSettings(String spec) {
+            this.spec = spec;
+
+            final int colon = spec.indexOf(':');
+            final String model = (colon < 0 ? spec : spec.substring(0, colon)).trim().toLowerCase();
+            if (model.equals("ou")) {
+                ou = true;
+                names = new String[]{"mean", "sigma", "nu"};
+            } else if (model.equals("bm")) {
+                ou = false;
+                names = new String[]{"sigma", "precision"};
+            } else {
+                throw new IllegalArgumentException("Unknown prior " + model + " in " + spec + " (ou or bm)");
+            }
+            values = new String[names.length];
+
+            boolean logspace = false, normalize = false;
+            if (colon >= 0) {
+                for (String setting : spec.substring(colon + 1).split(",")) {
+                    String [] keyValue = setting.split("=");
+                    if (keyValue.length != 2) {
+                        throw new IllegalArgumentException("Setting " + setting + " in " + spec + " is not key=value");
+                    }
+                    final String key = keyValue[0].trim(), value = keyValue[1].trim();
+
+                    if (key.equals("logspace")) {
+                        logspace = Boolean.parseBoolean(value);
+                    } else if (key.equals("normalize") && ou) {
+                        normalize = Boolean.parseBoolean(value);
+                    } else {
+                        final int i = Arrays.asList(names).indexOf(key);
+                        if (i < 0) {
+                            throw new IllegalArgumentException("Unknown setting " + key + " in " + spec);
+                        }
+                        values[i] = value;
+                    }
+                }
+            }
+            this.logspace  = logspace;
+            this.normalize = normalize;
+
+            if (ou && (values[0] == null || values[1] == null || values[2] == null)) {
+                throw new IllegalArgumentException("mean, sigma and nu must be given for an OU prior (" + spec + ")");
+            }
+            if (!ou && (values[0] == null) == (values[1] == null)) {
+                throw new IllegalArgumentException("Either sigma or precision must be given for a BM prior (" + spec + ")");
+            }
+
+            constants = new double[names.length];
+            slots = new int[names.length];
+            Arrays.fill(slots, -1);
+        }
+
+        /* Find the columns of parameters that are not constants */
+        void resolve(Map<String,Integer> index, List<Integer> traceColumns) {
+            for (int i = 0; i < names.length; i++) {
+                if (values[i] == null) continue;
+                try {
+                    constants[i] = Double.parseDouble(values[i]);
+                    slots[i] = -1;
+                } catch (NumberFormatException e) {
+                    final Integer column = index.get(values[i]);
+                    if (column == null) {
+                        throw new IllegalArgumentException(names[i] + " in " + spec + " is not a number or a column in the trace");
+                    }
+                    slots[i] = traceColumns.indexOf(column);
+                    if (slots[i] < 0) {
+                        slots[i] = traceColumns.size();
+                        traceColumns.add(column);
+                    }
+                }
+            }
+        }
+
+        private double get(int i, double [] data, int row) {
+            return slots[i] < 0 ? constants[i] : data[row + slots[i]];
+        }
+
+        /**
+         * Log density as calculated by OUPrior/BMPrior (without x0Prior)
+         *
+         * @param raw    x as logged
+         * @param x      buffer for x on the scale of the prior
+         * @param t      times
+         * @param buffer buffer for the kernels
+         * @param data   trace
+         * @param row    offset of the sample in the trace
+         */
+        double logP(double [] raw, double [] x, double [] t, double [] buffer, double [] data, int row) {
+            for (int i = 0; i < raw.length; i++) {
+                x[i] = logspace ? Math.log(raw[i]) : raw[i];
+            }
+
+            if (ou) {
+                final double mu    = get(0, data, row),
+                             sigma = get(1, data, row),
+                             nu    = get(2, data, row),
+                             period = normalize ? t[t.length-1] - t[0] : 1;
+                return GaussianKernels.ornsteinUhlenbeckLogP(t, x, buffer, period, mu, sigma * sigma, nu);
+            } else {
+                final double tau;
+                if (values[0] != null) {
+                    final double sigma = get(0, data, row);
+                    tau = 1/(sigma * sigma);
+                } else {
+                    tau = get(1, data, row);
+                }
+                return GaussianKernels.brownianMotionLogP(t, x, buffer, tau);
+            }
+        }
+    }
+
+
+    public static void main(String [] args) throws IOException {
+
+        String log = null, x = null, times = null, prior = null, out = null;
+        double [] fixedTimes = null;
+        List<String> alternatives = new ArrayList<>();
+        double burnin = 10, minESS = 100;
+        int threads = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-log":        log = args[++i]; break;
+                case "-x":          x = args[++i]; break;
+                case "-times":      times = args[++i]; break;
+                case "-fixedTimes":
+                    String [] values = args[++i].split(",");
+                    fixedTimes = new double[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        fixedTimes[j] = Double.parseDouble(values[j].trim());
+                    }
+                    break;
+                case "-prior":      prior = args[++i]; break;
+                case "-alt":        alternatives.add(args[++i]); break;
+                case "-burnin":     burnin = Double.parseDouble(args[++i]); break;
+                case "-threads":    threads = Integer.parseInt(args[++i]); break;
+                case "-minESS":     minESS = Double.parseDouble(args[++i]); break;
+                case "-out":        out = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        if (log == null || x == null || prior == null) {
+            throw new IllegalArgumentException("A trace (-log), skyline (-x) and prior settings (-prior) must be given");
+        }
+
+        SmoothingPriorReweighter reweighter = new SmoothingPriorReweighter(x, times, fixedTimes, prior, alternatives);
+
+        long start = System.nanoTime();
+        reweighter.read(new File(log), burnin);
+        reweighter.reweight(threads);
+        System.out.println("Re-weighted " + reweighter.getSampleCount() + " samples under " +
+                           reweighter.getAlternativeCount() + " alternative settings in " +
+                           ((System.nanoTime() - start) / 1e6) + " ms");
+
+        for (int a = 0; a < reweighter.getAlternativeCount(); a++) {
+            final double ess = reweighter.getESS(a);
+            System.out.println(reweighter.getAlternative(a) + "\tESS = " + String.format("%.1f", ess) +
+                               (ess < minESS ? "\t(weights degenerate, rerun the chain under these settings)" : ""));
+        }
+
+        if (out == null) {
+            reweighter.writeSummary(System.out);
+        } else {
+            try (PrintStream weights = new PrintStream(out + ".weights.log")) {
+                reweighter.writeWeights(weights);
+            }
+            try (PrintStream summary = new PrintStream(out + ".summary.txt")) {
+                reweighter.writeSummary(summary);
+            }
+            System.out.println("Wrote " + out + ".weights.log and " + out + ".summary.txt");
+        }
+    }
+
+}
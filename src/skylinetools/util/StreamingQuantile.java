@@ -0,0 +1,116 @@
+package skylinetools.util;
+
+import java.util.Arrays;
+
+/**
+ * Estimate a quantile of a stream of values in O(1) memory with the P-squared algorithm
+ *
+ * Jain, R. and Chlamtac, I. (1985) The P2 algorithm for dynamic calculation of quantiles and histograms without
+ * storing observations. Communications of the ACM 28(10):1076-1085.
+ *
+ * Five markers (minimum, p/2, p, (1+p)/2 and maximum) are kept and adjusted with piecewise-parabolic interpolation
+ * as values are added. The estimate is the exact order statistic for the first 5 values.
+ */
+public class StreamingQuantile {
+
+    protected final double p;
+    protected final double [] heights  = new double[5],   // Marker heights
+                              desired  = new double[5],   // Desired marker positions
+                              increment;                  // Increments of desired marker positions
+    protected final int    [] position = new int[5];      // Actual marker positions
+    protected long count = 0;
+
+    public StreamingQuantile(double p) {
+        if (p < 0 || p > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1 ("+p+")");
+        }
+        this.p = p;
+        increment = new double[] {0, p/2, p, (1+p)/2, 1};
+    }
+
+
+    public void add(double x) {
+
+        if (count < 5) {
+            heights[(int) count++] = x;
+            if (count == 5) {
+                Arrays.sort(heights);
+                for (int i = 0; i < 5; i++) {
+                    position[i] = i;
+                    desired[i]  = 4 * increment[i];
+                }
+            }
+            return;
+        }
+
+        /* Find the cell the value falls into (and update the extremes) */
+        int k;
+        if (x < heights[0]) {
+            heights[0] = x;
+            k = 0;
+        } else
+        if (x >= heights[4]) {
+            heights[4] = x;
+            k = 3;
+        } else {
+            k = 0;
+            while (x >= heights[k + 1]) k++;
+        }
+
+        for (int i = k + 1; i < 5; i++) {
+            position[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            desired[i] += increment[i];
+        }
+        count++;
+
+        /* Adjust the middle markers if they are too far from their desired positions */
+        for (int i = 1; i <= 3; i++) {
+            double d = desired[i] - position[i];
+
+            if ((d >= 1 && position[i + 1] - position[i] > 1) || (d <= -1 && position[i - 1] - position[i] < -1)) {
+                int s = d >= 0 ? 1 : -1;
+
+                double h = parabolic(i, s);
+                if (heights[i - 1] < h && h < heights[i + 1])
+                    heights[i] = h;
+                else
+                    heights[i] = heights[i] + s * (heights[i + s] - heights[i]) / (position[i + s] - position[i]);
+
+                position[i] += s;
+            }
+        }
+    }
+
+    private double parabolic(int i, int s) {
+        double n0 = position[i - 1], n1 = position[i], n2 = position[i + 1];
+
+        return heights[i] + s / (n2 - n0) * ((n1 - n0 + s) * (heights[i + 1] - heights[i]) / (n2 - n1) +
+                                             (n2 - n1 - s) * (heights[i] - heights[i - 1]) / (n1 - n0));
+    }
+
+
+    /**
+     * Current estimate of the quantile (NaN if no values were added)
+     *
+     * @return
+     */
+    public double getQuantile() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (count <= 5) {
+            // Exact order statistic (the markers are only adjusted from the 6th value on)
+            double [] sorted = Arrays.copyOf(heights, (int) count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.round(p * (count - 1))];
+        }
+        return heights[2];
+    }
+
+    public double getP() { return p; }
+
+    public long getCount() { return count; }
+
+}
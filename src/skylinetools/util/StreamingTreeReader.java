@@ -0,0 +1,648 @@
+package skylinetools.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming reader for Newick and NEXUS tree files (e.g. BEAST tree logs) for post-processing tools.
+ *
+ * Trees are read one at a time into a FlatTree (parent index, height, leaf flag and date, see FlatTree), reusing the
+ * same arrays for every tree, instead of building Node objects and strings for every tree as TreeParser does. The file
+ * is memory-mapped in windows of 256 MB (so files larger than 2 GB can be read) and parsed byte by byte:
+ *
+ *    - NEXUS: taxlabels and translate tables (leaves are numbered in the order of the taxa, as in BEAST), tree names
+ *      and [&...] comments on nodes; all other blocks and commands are skipped.
+ *    - Newick: one or more trees separated by semicolons, leaves numbered in the order they appear in the first tree.
+ *
+ * Translated (numeric) leaf labels and branch lengths with up to 15 significant digits are parsed without creating any
+ * objects (longer numbers are parsed by Double.parseDouble, so the values are always the same). Node heights are
+ * calculated from the branch lengths, with the most recent leaf at height 0, and internal nodes are numbered in
+ * post-order after the leaves (the root is the last node). Any node can have more than two children.
+ *
+ * Numeric node metadata (e.g. [&rate=0.5]) is only read for the keys given to setMetaDataKeys(), and is NaN for nodes
+ * without a (numeric) value.
+ *
+ * All trees in a file must have the same taxa.
+ */
+public class StreamingTreeReader implements Closeable {
+
+    static final long WINDOW = 1L << 28;
+
+    private static final double [] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize, window;
+    private ByteBuffer buffer;
+    private long base;                                  // Position of the mapped window in the file
+
+    // Taxa (numbered in order of taxlabels, translate or first appearance)
+    private final Map<String, Integer> taxa = new HashMap<>(),
+                                       translateLabels = new HashMap<>();
+    private String [] taxonNames = new String[16];
+    private int taxonCount = 0;
+    private int [] translateNumbers = new int[0];      // Numeric translate key -> taxon
+
+    // Node metadata to read
+    private String [] metaDataKeys = new String[0];
+    private double [][] metaData = new double[0][];    // [key][node nr]
+    private double [][] nodeMetaData = new double[0][];
+
+    // Nodes of the tree being parsed, in pre-order (parents before children)
+    private int [] nodeParent = new int[16],
+                   nodeTaxon  = new int[16],            // Taxon of a leaf, -1 for internal nodes
+                   nodeNr     = new int[16],            // Post-order number of an internal node
+                   seen       = new int[16];
+    private double [] nodeLength = new double[16],
+                      nodeDepth  = new double[16];
+    private int nodeCount, treeCount = 0;
+
+    private String treeName;
+    private double presentDate = Double.NaN;
+
+    private final StringBuilder text = new StringBuilder();
+    private char [] number = new char[32];
+
+
+    public StreamingTreeReader(File file) throws IOException {
+        this(file, WINDOW);
+    }
+
+    StreamingTreeReader(File file, long window) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.window = window;
+        channel  = this.file.getChannel();
+        fileSize = channel.size();
+        base     = 0;
+        buffer   = fileSize == 0 ? ByteBuffer.allocate(0) : channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(window, fileSize));
+    }
+
+
+    /**
+     * Read node metadata with these keys (numeric values only)
+     *
+     * @param keys
+     */
+    public void setMetaDataKeys(String... keys) {
+        metaDataKeys = keys.clone();
+        metaData     = new double[keys.length][0];
+        nodeMetaData = new double[keys.length][nodeLength.length];
+    }
+
+    /**
+     * Set the date of height 0 (the most recent leaf) for all trees that are read
+     *
+     * @param date
+     */
+    public void setPresentDate(double date) {
+        presentDate = date;
+    }
+
+    /* Name of the last tree read (null for Newick files) */
+    public String getTreeName() { return treeName; }
+
+    /* Number of trees read so far */
+    public int getTreeCount() { return treeCount; }
+
+    public int getTaxonCount() { return taxonCount; }
+
+    public String getTaxonName(int nr) { return taxonNames[nr]; }
+
+    /**
+     * @param key index of the key in setMetaDataKeys()
+     * @param nr  node number in the last tree read
+     * @return value of the metadata (NaN if the node does not have it)
+     */
+    public double getMetaData(int key, int nr) { return metaData[key][nr]; }
+
+
+    /**
+     * Read the next tree
+     *
+     * @param tree tree to read into (arrays are reused)
+     * @return false if there are no more trees
+     * @throws IOException if the file is not valid Newick/NEXUS
+     */
+    public boolean next(FlatTree tree) throws IOException {
+
+        while (true) {
+            int c = skipWhitespaceAndComments();
+            if (c < 0) return false;
+
+            if (c == '(') {
+                treeName = null;
+                parseNewick(tree);
+                return true;
+            }
+            if (c == ';') {
+                read();
+                continue;
+            }
+
+            String command = readWord().toLowerCase();
+            switch (command) {
+                case "tree":
+                case "utree":
+                    skipWhitespaceAndComments();
+                    if (peek() == '*') read();
+                    skipWhitespaceAndComments();
+                    treeName = peek() == '\'' || peek() == '"' ? readLabel() : readWord();
+                    if (skipWhitespaceAndComments() != '=') {
+                        throw error("Expected '=' after tree " + treeName);
+                    }
+                    read();
+                    if (skipWhitespaceAndComments() != '(') {
+                        throw error("Expected '(' at the start of tree " + treeName);
+                    }
+                    parseNewick(tree);
+                    return true;
+
+                case "taxlabels":
+                    while (skipWhitespaceAndComments() != ';') {
+                        if (peek() < 0) throw error("Unexpected end of file in taxlabels");
+                        taxon(readLabel());
+                    }
+                    break;
+
+                case "translate":
+                    parseTranslate();
+                    break;
+
+                case "#nexus":
+                case "end":
+                case "endblock":
+                    break;
+
+                case "begin":
+                    skipCommand();
+                    break;
+
+                default:
+                    if (command.isEmpty()) {
+                        throw error("Unexpected character '" + (char) c + "'");
+                    }
+                    skipCommand();
+            }
+        }
+    }
+
+
+    /**
+     * Parse a Newick tree (starting at the opening parenthesis) into tree
+     */
+    private void parseNewick(FlatTree tree) throws IOException {
+
+        nodeCount = 0;
+        int current = newNode(-1), internalCount = 0;
+
+        while (true) {
+            int c = skipWhitespace();
+            switch (c) {
+                case '(':
+                    read();
+                    nodeTaxon[current] = -1;
+                    current = newNode(current);
+                    break;
+                case ',':
+                    read();
+                    if (nodeParent[current] < 0) throw error("Unexpected ',' at the root");
+                    current = newNode(nodeParent[current]);
+                    break;
+                case ')':
+                    read();
+                    current = nodeParent[current];
+                    if (current < 0) throw error("Unbalanced parentheses");
+                    nodeNr[current] = internalCount++;
+                    break;
+                case ':':
+                    read();
+                    skipWhitespace();
+                    nodeLength[current] = readNumber();
+                    break;
+                case '[':
+                    readComment(current);
+                    break;
+                case ';':
+                    read();
+                    if (current != 0) throw error("Unbalanced parentheses");
+                    finishTree(tree, internalCount);
+                    return;
+                case -1:
+                    throw error("Unexpected end of file in tree");
+                default:
+                    if (nodeTaxon[current] == -1) {
+                        // Label of an internal node (ignored)
+                        readLabel();
+                    } else {
+                        nodeTaxon[current] = readLeaf();
+                    }
+            }
+        }
+    }
+
+
+    /**
+     * Number the nodes and calculate heights
+     */
+    private void finishTree(FlatTree tree, int internalCount) throws IOException {
+
+        final int leafCount = nodeCount - internalCount;
+        tree.reset(nodeCount, leafCount);
+
+        if (seen.length < leafCount) seen = new int[Math.max(leafCount, 2 * seen.length)];
+        treeCount++;
+
+        // Pre-order, so parents come before their children
+        double maxDepth = 0;
+        nodeDepth[0] = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (i > 0) {
+                nodeDepth[i] = nodeDepth[nodeParent[i]] + nodeLength[i];
+            }
+            if (nodeTaxon[i] == -2) {
+                throw error("Leaf without a label in tree " + treeCount);
+            }
+            if (nodeTaxon[i] >= 0) {
+                final int taxon = nodeTaxon[i];
+                if (taxon >= leafCount) {
+                    throw error("Tree " + treeCount + " does not have the same taxa as earlier trees (" + taxonNames[taxon] + ")");
+                }
+                if (seen[taxon] == treeCount) {
+                    throw error("Taxon " + taxonNames[taxon] + " appears twice in tree " + treeCount);
+                }
+                seen[taxon] = treeCount;
+                nodeNr[i] = taxon;
+            } else {
+                nodeNr[i] += leafCount;
+            }
+            maxDepth = Math.max(maxDepth, nodeDepth[i]);
+        }
+
+        for (int k = 0; k < metaDataKeys.length; k++) {
+            if (metaData[k].length < nodeCount) metaData[k] = new double[nodeNr.length];
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            final int nr = nodeNr[i];
+            tree.parent[nr] = i == 0 ? -1 : nodeNr[nodeParent[i]];
+            tree.height[nr] = maxDepth - nodeDepth[i];
+            for (int k = 0; k < metaDataKeys.length; k++) {
+                metaData[k][nr] = nodeMetaData[k][i];
+            }
+        }
+
+        tree.labels = taxonNames;
+        tree.presentDate = presentDate;
+    }
+
+
+    private int newNode(int parent) {
+        if (nodeCount == nodeParent.length) {
+            final int capacity = 2 * nodeCount;
+            nodeParent = Arrays.copyOf(nodeParent, capacity);
+            nodeTaxon  = Arrays.copyOf(nodeTaxon, capacity);
+            nodeNr     = Arrays.copyOf(nodeNr, capacity);
+            nodeLength = Arrays.copyOf(nodeLength, capacity);
+            nodeDepth  = Arrays.copyOf(nodeDepth, capacity);
+            for (int k = 0; k < nodeMetaData.length; k++) {
+                nodeMetaData[k] = Arrays.copyOf(nodeMetaData[k], capacity);
+            }
+        }
+
+        nodeParent[nodeCount] = parent;
+        nodeTaxon[nodeCount]  = -2;          // Leaf without a label (yet)
+        nodeNr[nodeCount]     = 0;
+        nodeLength[nodeCount] = 0;
+        for (int k = 0; k < nodeMetaData.length; k++) {
+            nodeMetaData[k][nodeCount] = Double.NaN;
+        }
+        return nodeCount++;
+    }
+
+
+    /**
+     * Read a leaf label and return its taxon (numeric translate keys are parsed without creating a string)
+     */
+    private int readLeaf() throws IOException {
+        int c = peek();
+        if (c >= '0' && c <= '9' && translateNumbers.length > 0) {
+            int key = 0;
+            while ((c = peek()) >= '0' && c <= '9') {
+                key = 10 * key + (c - '0');
+                read();
+                if (key >= translateNumbers.length) break;
+            }
+            if (isDelimiter(peek()) && key < translateNumbers.length && translateNumbers[key] >= 0) {
+                return translateNumbers[key];
+            }
+            // Not a translated number after all (e.g. 12a), continue reading the label as a string
+            text.setLength(0);
+            text.append(key);
+            return labelTaxon(readLabel(text));
+        }
+        text.setLength(0);
+        return labelTaxon(readLabel(text));
+    }
+
+    private int labelTaxon(String label) {
+        Integer taxon = translateLabels.get(label);
+        return taxon != null ? taxon : taxon(label);
+    }
+
+    /* Number of the taxon with this name (added if it is new) */
+    private int taxon(String name) {
+        Integer taxon = taxa.get(name);
+        if (taxon != null) return taxon;
+
+        if (taxonCount == taxonNames.length) {
+            taxonNames = Arrays.copyOf(taxonNames, 2 * taxonCount);
+        }
+        taxonNames[taxonCount] = name;
+        taxa.put(name, taxonCount);
+        return taxonCount++;
+    }
+
+
+    private void parseTranslate() throws IOException {
+        while (true) {
+            if (skipWhitespaceAndComments() == ';') return;
+            String key = readLabel();
+            skipWhitespaceAndComments();
+            int taxon = taxon(readLabel());
+
+            translateLabels.put(key, taxon);
+            if (isInteger(key)) {
+                int k = Integer.parseInt(key);
+                if (k >= translateNumbers.length) {
+                    int oldLength = translateNumbers.length;
+                    translateNumbers = Arrays.copyOf(translateNumbers, Math.max(k + 1, 2 * oldLength));
+                    Arrays.fill(translateNumbers, oldLength, translateNumbers.length, -1);
+                }
+                translateNumbers[k] = taxon;
+            }
+
+            int c = skipWhitespaceAndComments();
+            if (c == ',') {
+                read();
+            } else if (c != ';') {
+                throw error("Expected ',' or ';' in translate table");
+            }
+        }
+    }
+
+    private static boolean isInteger(String s) {
+        if (s.isEmpty() || s.length() > 9) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Read a comment, storing numeric values of metadata keys for the node
+     */
+    private void readComment(int node) throws IOException {
+        read();  // [
+        if (peek() != '&' || metaDataKeys.length == 0) {
+            skipTo(']');
+            return;
+        }
+        read();
+
+        while (true) {
+            int c = skipWhitespace();
+            if (c == ']') {
+                read();
+                return;
+            }
+            if (c == ',') {
+                read();
+                continue;
+            }
+            if (c < 0) throw error("Unexpected end of file in comment");
+
+            text.setLength(0);
+            while ((c = peek()) >= 0 && c != '=' && c != ',' && c != ']') {
+                text.append((char) read());
+            }
+            int key = -1;
+            for (int k = 0; k < metaDataKeys.length; k++) {
+                if (metaDataKeys[k].contentEquals(text)) key = k;
+            }
+
+            if (peek() != '=') continue;
+            read();
+            c = skipWhitespace();
+            if (c == '{') {
+                skipTo('}');
+            } else if (c == '"') {
+                read();
+                skipTo('"');
+            } else if (key >= 0 && (c == '-' || c == '+' || c == '.' || (c >= '0' && c <= '9'))) {
+                nodeMetaData[key][node] = readNumber();
+            } else {
+                while ((c = peek()) >= 0 && c != ',' && c != ']') read();
+            }
+        }
+    }
+
+
+    /**
+     * Parse a decimal number. Numbers with at most 2^53 as significand and a decimal exponent of at most 22 are
+     * calculated with a single correctly rounded multiplication or division (so exactly as Double.parseDouble),
+     * others with Double.parseDouble.
+     */
+    private double readNumber() throws IOException {
+        int length = 0, digits = 0, exponent = 0, c = peek();
+        long significand = 0;
+        boolean negative = false, exact = true, point = false, any = false;
+
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            number[length++] = (char) read();
+            c = peek();
+        }
+
+        while (true) {
+            if (c >= '0' && c <= '9') {
+                any = true;
+                if (significand == 0 && c == '0') {
+                    if (point) exponent--;
+                } else if (digits < 18) {
+                    significand = 10 * significand + (c - '0');
+                    digits++;
+                    if (point) exponent--;
+                } else {
+                    exact = false;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+            if (length == number.length) number = Arrays.copyOf(number, 2 * length);
+            number[length++] = (char) read();
+            c = peek();
+        }
+
+        if (any && (c == 'e' || c == 'E')) {
+            if (length + 2 >= number.length) number = Arrays.copyOf(number, 2 * number.length);
+            number[length++] = (char) read();
+            c = peek();
+            boolean negativeExponent = false;
+            if (c == '-' || c == '+') {
+                negativeExponent = c == '-';
+                number[length++] = (char) read();
+                c = peek();
+            }
+            int e = 0;
+            while (c >= '0' && c <= '9') {
+                if (e < 100000) e = 10 * e + (c - '0');
+                if (length == number.length) number = Arrays.copyOf(number, 2 * length);
+                number[length++] = (char) read();
+                c = peek();
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        if (!any) {
+            throw error("Expected a number");
+        }
+
+        if (exact && significand <= (1L << 53) && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? significand / POWERS_OF_TEN[-exponent] : significand * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(new String(number, 0, length));
+    }
+
+
+    /* Read a (possibly quoted) label */
+    private String readLabel() throws IOException {
+        text.setLength(0);
+        return readLabel(text);
+    }
+
+    private String readLabel(StringBuilder label) throws IOException {
+        int c = peek();
+        if (c == '\'' || c == '"') {
+            final int quote = read();
+            while (true) {
+                c = read();
+                if (c < 0) throw error("Unexpected end of file in quoted label");
+                if (c == quote) {
+                    if (peek() != quote) break;
+                    read();      // Doubled quote
+                }
+                label.append((char) c);
+            }
+        } else {
+            while (!isDelimiter(c = peek())) {
+                label.append((char) read());
+            }
+            if (label.length() == 0) {
+                throw error(c < 0 ? "Unexpected end of file" : "Unexpected character '" + (char) c + "'");
+            }
+        }
+        return label.toString();
+    }
+
+    /* Read a NEXUS command word */
+    private String readWord() throws IOException {
+        text.setLength(0);
+        int c;
+        while (!isDelimiter(c = peek()) && c != '=') {
+            text.append((char) read());
+        }
+        return text.toString();
+    }
+
+    private static boolean isDelimiter(int c) {
+        return c < 0 || c <= ' ' || c == ':' || c == ',' || c == '(' || c == ')' || c == ';' || c == '[' || c == ']';
+    }
+
+
+    /* Skip a NEXUS command (up to and including the semicolon) */
+    private void skipCommand() throws IOException {
+        int c;
+        while ((c = skipWhitespaceAndComments()) >= 0) {
+            if (c == ';') {
+                read();
+                return;
+            }
+            if (c == '\'' || c == '"') {
+                readLabel();
+            } else {
+                read();
+            }
+        }
+    }
+
+    private void skipTo(int end) throws IOException {
+        int c;
+        while ((c = read()) != end) {
+            if (c < 0) throw error("Unexpected end of file (expected '" + (char) end + "')");
+        }
+    }
+
+    /* Skip whitespace and return the next character (without reading it) */
+    private int skipWhitespace() throws IOException {
+        int c;
+        while ((c = peek()) >= 0 && c <= ' ') read();
+        return c;
+    }
+
+    private int skipWhitespaceAndComments() throws IOException {
+        int c;
+        while (true) {
+            c = skipWhitespace();
+            if (c != '[') return c;
+            read();
+            skipTo(']');
+        }
+    }
+
+
+    private int peek() throws IOException {
+        if (!buffer.hasRemaining() && !nextWindow()) return -1;
+        return buffer.get(buffer.position()) & 0xff;
+    }
+
+    private int read() throws IOException {
+        if (!buffer.hasRemaining() && !nextWindow()) return -1;
+        return buffer.get() & 0xff;
+    }
+
+    private boolean nextWindow() throws IOException {
+        final long next = base + buffer.limit();
+        if (next >= fileSize) return false;
+        base = next;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(window, fileSize - base));
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " (at byte " + (base + buffer.position()) + ")");
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+}
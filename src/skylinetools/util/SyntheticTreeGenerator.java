@@ -0,0 +1,330 @@
+package skylinetools.util;
+
+import beast.evolution.tree.Tree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Seeded generator of serially sampled trees for scaling tests and benchmarks (10^3 to 10^6 tips).
+ *
+ * Trees are simulated into a FlatTree (primitive arrays only, reused between trees), so simulating a tree does not
+ * allocate anything once the buffers are large enough. A BEAST Tree is only built (directly from Node objects, not
+ * through a Newick string) when requested.
+ *
+ *    - Coalescent: constant population size, with tip heights uniformly distributed over a sampling window. Simulated
+ *      backwards in time in O(n) with a swap-remove array of active lineages.
+ *
+ *    - Birth-death: constant birth, death and sampling rates (sampled lineages are removed, as in BDSKY with r = 1),
+ *      simulated forwards from a single lineage until n lineages have been sampled, and then pruned to the sampled
+ *      tree in one pass over the lineage segments (in reverse order, children are always created after their parent).
+ *      Simulations that go extinct are restarted.
+ *
+ * Leaves are numbered by increasing height (leaf 0 is the most recent sample, at height 0). Use main() to write trees
+ * to a BinaryTreeFile.
+ */
+public class SyntheticTreeGenerator {
+
+    /* Birth-death simulations that go extinct are restarted at most this often */
+    public static final int MAX_ATTEMPTS = 10000;
+
+    private static final byte ALIVE = 0, BIRTH = 1, DEATH = 2, SAMPLED = 3;
+
+    private final SplittableRandom random;
+
+    // Coalescent buffers
+    private int [] active = new int[0];
+    private double [] sampleHeights = new double[0];
+
+    // Birth-death buffers (indexed by lineage segment)
+    private double [] segmentEnd = new double[0];
+    private byte [] segmentType = new byte[0];
+    private int [] segmentChild = new int[0],   // First of the two children of a segment ending in a birth
+                   representative = new int[0]; // Node in the sampled tree representing a segment (-1 if none)
+    private int segmentCount;
+
+
+    public SyntheticTreeGenerator(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+
+    /**
+     * Simulate a tree under the coalescent with constant population size
+     *
+     * @param tips           number of tips
+     * @param popSize        effective population size (times generation time)
+     * @param samplingWindow tip heights are uniform between 0 and samplingWindow
+     * @param out            tree to simulate into (null for a new one)
+     * @return out
+     */
+    public FlatTree coalescent(int tips, double popSize, double samplingWindow, FlatTree out) {
+
+        if (tips < 2) {
+            throw new IllegalArgumentException("Need at least 2 tips (was " + tips + ")");
+        }
+        if (popSize <= 0 || samplingWindow < 0) {
+            throw new IllegalArgumentException("Population size must be positive and the sampling window non-negative");
+        }
+
+        if (out == null) out = new FlatTree();
+        out.reset(2 * tips - 1, tips);
+
+        if (active.length < tips) {
+            active = new int[tips];
+            sampleHeights = new double[tips];
+        }
+
+        sampleHeights[0] = 0;
+        for (int i = 1; i < tips; i++) {
+            sampleHeights[i] = samplingWindow * random.nextDouble();
+        }
+        Arrays.sort(sampleHeights, 0, tips);
+
+        int next = 0, k = 0, internal = tips;
+        double t = 0;
+
+        while (next < tips || k > 1) {
+
+            if (k < 2) {
+                t = sampleHeights[next];
+                out.height[next] = t;
+                active[k++] = next++;
+                continue;
+            }
+
+            // Waiting time is memoryless, so it can be redrawn after every sample
+            final double coalescence = t - Math.log(1.0 - random.nextDouble()) * 2.0 * popSize / (k * (k - 1.0));
+            if (next < tips && sampleHeights[next] < coalescence) {
+                t = sampleHeights[next];
+                out.height[next] = t;
+                active[k++] = next++;
+                continue;
+            }
+
+            t = coalescence;
+            final int i = random.nextInt(k);
+            int j = random.nextInt(k - 1);
+            if (j >= i) j++;
+
+            final int node = internal++;
+            out.height[node] = t;
+            out.parent[active[i]] = node;
+            out.parent[active[j]] = node;
+
+            active[i] = node;
+            active[j] = active[--k];
+        }
+        out.parent[internal - 1] = -1;
+
+        return out;
+    }
+
+
+    /**
+     * Simulate a sampled tree under a constant rate birth-death process with serial sampling
+     *
+     * @param tips         number of sampled tips
+     * @param birthRate
+     * @param deathRate
+     * @param samplingRate rate at which lineages are sampled (and removed)
+     * @param out          tree to simulate into (null for a new one)
+     * @return out
+     */
+    public FlatTree birthDeath(int tips, double birthRate, double deathRate, double samplingRate, FlatTree out) {
+
+        if (tips < 2) {
+            throw new IllegalArgumentException("Need at least 2 tips (was " + tips + ")");
+        }
+        if (birthRate <= 0 || deathRate < 0 || samplingRate <= 0) {
+            throw new IllegalArgumentException("Birth and sampling rates must be positive and the death rate non-negative");
+        }
+
+        if (out == null) out = new FlatTree();
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            double tmax = simulateForwards(tips, birthRate, deathRate, samplingRate);
+            if (tmax >= 0 && prune(tips, tmax, out)) {
+                return out;
+            }
+        }
+
+        throw new IllegalArgumentException("Birth-death process went extinct before sampling " + tips + " tips in " +
+                                           MAX_ATTEMPTS + " attempts (birth rate too low?)");
+    }
+
+
+    /**
+     * Gillespie simulation forwards in time from one lineage until the given number of lineages is sampled
+     *
+     * @return time of the last sample (-1 if the process went extinct)
+     */
+    private double simulateForwards(int tips, double birthRate, double deathRate, double samplingRate) {
+
+        final double totalRate = birthRate + deathRate + samplingRate;
+
+        // alive[] is kept in the representative buffer (not used until pruning)
+        segmentCount = 0;
+        int k = 0, sampled = 0;
+        double t = 0;
+
+        ensureSegments(2);
+        int [] alive = representative;
+        segmentType[0] = ALIVE;
+        alive[k++] = segmentCount++;
+
+        while (k > 0) {
+            t -= Math.log(1.0 - random.nextDouble()) / (k * totalRate);
+
+            final int index = random.nextInt(k),
+                      segment = alive[index];
+            final double u = random.nextDouble() * totalRate;
+
+            segmentEnd[segment] = t;
+            if (u < birthRate) {
+                if (ensureSegments(segmentCount + 2)) {
+                    alive = representative;
+                }
+                segmentType[segment] = BIRTH;
+                segmentChild[segment] = segmentCount;
+                segmentType[segmentCount] = ALIVE;
+                segmentType[segmentCount + 1] = ALIVE;
+                alive[index] = segmentCount++;
+                alive[k++] = segmentCount++;
+            } else {
+                segmentType[segment] = u < birthRate + deathRate ? DEATH : SAMPLED;
+                if (segmentType[segment] == SAMPLED) {
+                    // Number of the leaf (the last sample is leaf 0)
+                    segmentChild[segment] = tips - 1 - sampled;
+                    if (++sampled == tips) return t;
+                }
+                alive[index] = alive[--k];
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Prune the simulated segments to the sampled tree (lineages still alive at the end are unsampled)
+     *
+     * @return false if the sampled tree has fewer than 2 tips
+     */
+    private boolean prune(int tips, double tmax, FlatTree out) {
+
+        out.reset(2 * tips - 1, tips);
+        int leaf = 0, internal = tips;
+
+        for (int s = segmentCount - 1; s >= 0; s--) {
+            switch (segmentType[s]) {
+                case SAMPLED:
+                    out.height[segmentChild[s]] = tmax - segmentEnd[s];
+                    representative[s] = segmentChild[s];
+                    leaf++;
+                    break;
+                case BIRTH:
+                    final int left  = representative[segmentChild[s]],
+                              right = representative[segmentChild[s] + 1];
+                    if (left >= 0 && right >= 0) {
+                        out.height[internal] = tmax - segmentEnd[s];
+                        out.parent[left] = internal;
+                        out.parent[right] = internal;
+                        representative[s] = internal++;
+                    } else {
+                        representative[s] = left >= 0 ? left : right;
+                    }
+                    break;
+                default:
+                    representative[s] = -1;
+            }
+        }
+
+        if (leaf != tips || internal != 2 * tips - 1) return false;
+        out.parent[representative[0]] = -1;
+
+        return true;
+    }
+
+
+    /**
+     * Grow the segment buffers to hold at least the given number of segments
+     *
+     * @return true if the buffers were reallocated
+     */
+    private boolean ensureSegments(int size) {
+        if (segmentEnd.length >= size) return false;
+
+        final int capacity = Math.max(size, 2 * segmentEnd.length);
+        segmentEnd     = Arrays.copyOf(segmentEnd, capacity);
+        segmentType    = Arrays.copyOf(segmentType, capacity);
+        segmentChild   = Arrays.copyOf(segmentChild, capacity);
+        representative = Arrays.copyOf(representative, capacity);
+        return true;
+    }
+
+
+    public Tree coalescentTree(int tips, double popSize, double samplingWindow) {
+        return coalescent(tips, popSize, samplingWindow, null).toTree();
+    }
+
+    public Tree birthDeathTree(int tips, double birthRate, double deathRate, double samplingRate) {
+        return birthDeath(tips, birthRate, deathRate, samplingRate, null).toTree();
+    }
+
+
+    /**
+     * Write simulated trees to a BinaryTreeFile:
+     *
+     *    java skylinetools.util.SyntheticTreeGenerator -out file [-model coalescent|birthdeath] [-tips n] [-trees m]
+     *         [-seed s] [-popSize N] [-window w] [-birth b] [-death d] [-sampling s]
+     */
+    public static void main(String [] args) throws IOException {
+
+        String model = "coalescent", out = null;
+        int tips = 1000, trees = 1;
+        long seed = 127;
+        double popSize = 1, window = 1, birth = 2, death = 0.5, sampling = 0.5;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-out":      out = args[++i]; break;
+                case "-model":    model = args[++i]; break;
+                case "-tips":     tips = Integer.parseInt(args[++i]); break;
+                case "-trees":    trees = Integer.parseInt(args[++i]); break;
+                case "-seed":     seed = Long.parseLong(args[++i]); break;
+                case "-popSize":  popSize = Double.parseDouble(args[++i]); break;
+                case "-window":   window = Double.parseDouble(args[++i]); break;
+                case "-birth":    birth = Double.parseDouble(args[++i]); break;
+                case "-death":    death = Double.parseDouble(args[++i]); break;
+                case "-sampling": sampling = Double.parseDouble(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        if (out == null) {
+            throw new IllegalArgumentException("No output file given (-out)");
+        }
+
+        SyntheticTreeGenerator generator = new SyntheticTreeGenerator(seed);
+        FlatTree tree = new FlatTree();
+
+        long start = System.nanoTime();
+        try (BinaryTreeFile.Writer writer = new BinaryTreeFile.Writer(new File(out))) {
+            for (int i = 0; i < trees; i++) {
+                if (model.equals("coalescent")) {
+                    generator.coalescent(tips, popSize, window, tree);
+                } else if (model.equals("birthdeath")) {
+                    generator.birthDeath(tips, birth, death, sampling, tree);
+                } else {
+                    throw new IllegalArgumentException("Unknown model " + model + " (coalescent or birthdeath)");
+                }
+                writer.write(tree);
+            }
+        }
+        System.out.println("Wrote " + trees + " " + model + " trees with " + tips + " tips to " + out + " in " +
+                           ((System.nanoTime() - start) / 1e6) + " ms");
+    }
+
+}
@@ -1,19 +1,30 @@
 package skylinetools.util;
 
+import beast.core.BEASTObject;
 import beast.core.CalculationNode;
 import beast.core.Function;
 import beast.core.Input;
 import beast.core.Loggable;
+import beast.core.StateNode;
 import beast.core.parameter.RealParameter;
 import beast.core.util.Log;
 import beast.evolution.tree.Tree;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Log date of tMRCA or if parameter is supplied, logs dates of those parameters subtracted from most recent date in tree
  * E.g. log the date of the origin in a birth-death model.
  *
+ * Any number of parameters or functions (e.g. several origins, or the times of a TreeSlicer) can be given with function,
+ * after the parameter. Dates are linear in height, so the mapping from height to date is only looked up once on the
+ * tree and all dates are calculated in one pass. When used as a Function (e.g. as input of a distribution) dates are
+ * cached until the tree or one of the inputs changes (inputs that are neither StateNodes nor CalculationNodes are always
+ * assumed to have changed). requiresRecalculation() is only called for CalculationNodes on the path from the State to
+ * the posterior, so log() always recalculates the dates (as a log entry only the logger is never told about changes).
+ *
  * @author Louis du Plessis
  *         Date: 2018/08/05
  *
@@ -24,35 +35,95 @@ public class TreeDateLogger extends CalculationNode implements Loggable, Functio
 
     final public Input<RealParameter> parameterInput = new Input<>("parameter", "Parameter to report dates for on tree.", Input.Validate.OPTIONAL);
 
+    final public Input<List<Function>> functionInput = new Input<>("function", "Parameters or functions (e.g. TreeSlicers) to report dates for on tree.", new ArrayList<>());
+
     int dim;
 
+    /* Parameter followed by the functions (empty for the tMRCA) */
+    protected List<Function> functions;
+
+    protected double [] dates, storedDates;
+    protected boolean datesKnown, storedDatesKnown;
+
+    private static final HotPathMetrics.Timer logTimer = HotPathMetrics.timer("TreeDateLogger.log");
+
     @Override
     public void initAndValidate() {
         if (!treeInput.get().hasDateTrait()) {
             Log.warning.println("Tree "+treeInput.get().getID()+ " does not have a date trait. TreeDateLogger "+ getID() + " will log heights instead");
         }
 
+        functions = new ArrayList<>();
         if (parameterInput.get() != null) {
-            dim = parameterInput.get().getDimension();
+            functions.add(parameterInput.get());
+        }
+        functions.addAll(functionInput.get());
+
+        if (functions.size() > 0) {
+            dim = 0;
+            for (Function function : functions) {
+                dim += function.getDimension();
+            }
         } else {
             dim = 1;
         }
 
+        dates       = new double[dim];
+        storedDates = new double[dim];
+        datesKnown  = false;
+    }
+
+
+    /**
+     * Calculate all dates if they are not known
+     */
+    protected void updateDates() {
+        if (!datesKnown) {
+            calculateDates();
+        }
+    }
+
+
+    /**
+     * Calculate all dates
+     */
+    protected void calculateDates() {
+        final Tree tree = treeInput.get();
+        final double offset = tree.getDate(0),
+                     slope  = tree.getDate(1) - offset;
+
+        if (functions.size() > 0) {
+            int i = 0;
+            for (Function function : functions) {
+                final int functionDim = function.getDimension();
+                for (int j = 0; j < functionDim; j++) {
+                    dates[i++] = offset + slope * function.getArrayValue(j);
+                }
+            }
+        } else {
+            dates[0] = offset + slope * tree.getRoot().getHeight();
+        }
+        datesKnown = true;
     }
 
+
     @Override
     public void init(PrintStream out) {
         final Tree tree = treeInput.get();
 
-        if (parameterInput.get() != null) {
-            if (dim == 1) {
-                out.print(tree.getID() + "." + parameterInput.get().getID() + ".date\t");
-            } else {
+        if (functions.size() > 0) {
+            for (Function function : functions) {
+                final String id = function instanceof BEASTObject ? ((BEASTObject) function).getID() : "function";
+                final int functionDim = function.getDimension();
+                if (functionDim == 1) {
+                    out.print(tree.getID() + "." + id + ".date\t");
+                } else {
 
-                for (int i = 0; i < dim; i++) {
-                    out.print(tree.getID() + "." + parameterInput.get().getID() + ".dates" + (i+1) + "\t");
-                }
+                    for (int i = 0; i < functionDim; i++) {
+                        out.print(tree.getID() + "." + id + ".dates" + (i+1) + "\t");
+                    }
 
+                }
             }
         } else {
             out.print(tree.getID() + ".height.date\t");
@@ -61,15 +132,13 @@ public class TreeDateLogger extends CalculationNode implements Loggable, Functio
 
     @Override
     public void log(long sample, PrintStream out) {
-        final Tree tree = treeInput.get();
+        final long start = logTimer.start();
 
-        if (parameterInput.get() != null) {
-            for (int i = 0; i < dim; i++) {
-                out.print(tree.getDate(parameterInput.get().getValue(i)) + "\t");
-            }
-        } else {
-            out.print(tree.getDate(tree.getRoot().getHeight()) + "\t");
+        calculateDates();
+        for (int i = 0; i < dim; i++) {
+            out.print(dates[i] + "\t");
         }
+        logTimer.stop(start);
     }
 
     @Override
@@ -84,24 +153,54 @@ public class TreeDateLogger extends CalculationNode implements Loggable, Functio
 
     @Override
     public double getArrayValue() {
-        final Tree tree = treeInput.get();
+        updateDates();
+        return dates[0];
+    }
 
-        if (parameterInput.get() != null) {
-            return tree.getDate(parameterInput.get().getValue(0));
-        } else {
-            return tree.getDate(tree.getRoot().getHeight());
+    @Override
+    public double getArrayValue(int dim) {
+        updateDates();
+        return dates[dim];
+    }
+
+
+    /* Tree is a StateNode so should always use somethingIsDirty() */
+    private static boolean isDirty(Function function) {
+        if (function instanceof StateNode) {
+            return ((StateNode) function).somethingIsDirty();
+        } else if (function instanceof CalculationNode) {
+            return ((CalculationNode) function).isDirtyCalculation();
         }
+        return true;
     }
 
     @Override
-    public double getArrayValue(int dim) {
-        final Tree tree = treeInput.get();
+    protected boolean requiresRecalculation() {
+        boolean dirty = treeInput.get().somethingIsDirty();
+        for (int i = 0; i < functions.size() && !dirty; i++) {
+            dirty = isDirty(functions.get(i));
+        }
 
-        if (parameterInput.get() != null) {
-            return tree.getDate(parameterInput.get().getValue(dim));
-        } else {
-            return tree.getDate(tree.getRoot().getHeight());
+        if (dirty) {
+            datesKnown = false;
         }
+        return dirty;
+    }
+
+    @Override
+    protected void store() {
+        System.arraycopy(dates, 0, storedDates, 0, dim);
+        storedDatesKnown = datesKnown;
+        super.store();
+    }
+
+    @Override
+    protected void restore() {
+        double [] tmp = dates;
+        dates       = storedDates;
+        storedDates = tmp;
+        datesKnown  = storedDatesKnown;
+        super.restore();
     }
 
 }
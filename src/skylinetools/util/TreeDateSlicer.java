@@ -31,12 +31,12 @@ public class TreeDateSlicer extends TreeSlicer {
         /* Read tree */
         tree      = treeInput.get();
         //updateAnchorTimes(tree);
-        Anchor.update(tree);
+        updateAnchors(tree);
 
         /* Read dates and set dimension accordingly (depends on whether present date is included or not) */
         updateDates();
 
-        if (dates[dates.length-1] == Anchor.PRESENT.getDate()) {
+        if (dates[dates.length-1] == getAnchorDate(Anchor.PRESENT)) {
             dimension = dates.length;
         } else
             dimension = dates.length+1;
@@ -63,6 +63,7 @@ public class TreeDateSlicer extends TreeSlicer {
         this.storedValues = values.clone();
 
         timesKnown = false;
+        registerPool();
     }
 
 
@@ -81,7 +82,7 @@ public class TreeDateSlicer extends TreeSlicer {
 
         /* Update newest, oldest, tmrca */
         //updateAnchorTimes(tree);
-        Anchor.update(tree);
+        updateAnchors(tree);
         //System.out.println(tmrca+"\t"+oldest+"\t"+heightToDate(oldest)+"\t"+newest+"\t"+presentDate);
 
         updateDates();
@@ -92,4 +93,18 @@ public class TreeDateSlicer extends TreeSlicer {
         timesKnown = true;
     }
 
+
+    @Override
+    public boolean isUniformGrid() {
+        // Slices are at fixed dates
+        return false;
+    }
+
+
+    @Override
+    public long getCheckpointFingerprint() {
+        // The times also depend on the dates
+        return new CacheCheckpointer.Fingerprint().add(tree).add(datesInput.get()).get();
+    }
+
 }
\ No newline at end of file
@@ -4,12 +4,22 @@ import beast.core.*;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.*;
 import beast.util.*;
-import java.util.*;
-import java.util.stream.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * TreeEventSlicer class
  *
+ * If further trees are given (e.g. for joint analyses with skyline parameters shared between trees), the breakpoints
+ * are placed using the pooled events of all trees. Heights on the other trees are shifted to the time scale of tree
+ * using the date traits. The sorted events of each tree are cached and only updated for trees that changed, and the
+ * breakpoints are found by a k-way merge of the sorted events in a single pass, without building a list of all events.
+ *
  * @author Julija Pecerska
  *         Date: 2019/15/04
  *
@@ -19,14 +29,41 @@ public class TreeEventSlicer extends TreeSlicer {
     public Input<String> breakAtInput =
             new Input<>("breakAt", "Where to break the intervals (branches/samples/branchsamples)");
 
+    public Input<Boolean> exactInput =
+            new Input<>("exact", "Place breakpoints at exact (weighted) quantiles of the events instead of using a " +
+                                 "fixed group size with the remainder in the last group", false);
+
+    public Input<Double> sampleWeightInput =
+            new Input<>("sampleWeight", "Weight of a sampling event when breaking at exact quantiles", 1.0);
+
+    public Input<Double> branchWeightInput =
+            new Input<>("branchWeight", "Weight of a branching event when breaking at exact quantiles", 1.0);
+
+    public Input<List<Tree>> treesInput =
+            new Input<>("trees", "Further trees whose events are pooled with the events on tree when breaking the " +
+                                 "intervals (heights are shifted to the time scale of tree using the date traits)", new ArrayList<>());
+
     /* Break events on the tree */
     final static int BRANCHES      = 0,
                      SAMPLES       = 1,
                      BRANCHSAMPLES = 2;
 
-    private List<Node> nodes = null;
     private int breakCriterion;
 
+    /* Buffers reused between calls (event heights are partially reordered in place by the selection) */
+    private double [] eventHeights = new double[0],
+                      eventWeights = new double[0];
+    private int [] ranks = new int[0];
+
+    /* Exact quantiles */
+    private boolean exact;
+    private double sampleWeight, branchWeight;
+
+    /* Events on all trees when pooling events over several trees (null for a single tree) */
+    private List<Tree> pooledTrees;
+    private TreeEvents [] pooledEvents;
+    private int [] positions;
+
     @Override
     public void initAndValidate() {
 
@@ -36,7 +73,7 @@ public class TreeEventSlicer extends TreeSlicer {
 
         /* Read tree */
         tree = treeInput.get();
-        Anchor.update(tree);
+        updateAnchors(tree);
 
         /* Read dimension of the slice */
         dimension = dimensionInput.get();
@@ -75,9 +112,33 @@ public class TreeEventSlicer extends TreeSlicer {
                 throw new IllegalArgumentException("Unknown break criterion!");
         }
 
+        /* Exact (weighted) quantiles */
+        exact        = exactInput.get();
+        sampleWeight = sampleWeightInput.get();
+        branchWeight = branchWeightInput.get();
+        if (sampleWeight < 0 || branchWeight < 0) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Event weights cannot be negative.");
+        }
+
         /* Include the final anchor point as a breakpoint */
         inclusive = inclusiveInput.get();
 
+        /* Pool events over several trees */
+        if (treesInput.get().size() > 0) {
+            pooledTrees = new ArrayList<>();
+            pooledTrees.add(tree);
+            pooledTrees.addAll(treesInput.get());
+
+            pooledEvents = new TreeEvents[pooledTrees.size()];
+            for (int i = 0; i < pooledEvents.length; i++) {
+                pooledEvents[i] = new TreeEvents();
+            }
+            positions = new int[2 * pooledEvents.length];
+        } else {
+            pooledTrees  = null;
+            pooledEvents = null;
+        }
+
         /* Initialise arrays */
         values = new Double[dimension];
         storedValues = new Double[dimension];
@@ -97,6 +158,7 @@ public class TreeEventSlicer extends TreeSlicer {
         this.storedValues = values.clone();
 
         timesKnown = false;
+        registerPool();
     }
 
 
@@ -112,35 +174,66 @@ public class TreeEventSlicer extends TreeSlicer {
     protected void calculateTimes(Tree tree) {
 
         /* Update newest, oldest, tmrca */
-        Anchor.update(tree);
-        double endTime = stop.getHeight();
+        updateAnchors(tree);
+        double endTime = getAnchorHeight(stop);
 
-        if (breakCriterion == SAMPLES) {
+        if (pooledEvents != null) {
+            values = calculateTimesByMerging();
+        } else if (exact) {
+            values = calculateTimesByQuantiles(endTime);
+        } else {
             // Ideally we don't need to recalculate these values, but the root time may change, so we either need to
             // update it here, which doesn't go with the flow of code, or just recalculate...
-            nodes = tree.getExternalNodes();
-            values = calculateTimesByNodes(endTime);
-        } else
-        if (breakCriterion == BRANCHES) {
-            // Only add non-singletons
-            nodes = tree.getInternalNodes().stream().filter(n -> n.getChildCount() > 1)
-                    .collect(Collectors.<Node> toList());
-            values = calculateTimesByNodes(endTime);
-        } else
-        if (breakCriterion == BRANCHSAMPLES) {
-            nodes = tree.getInternalNodes().stream().filter(n -> n.getChildCount() > 1)
-                    .collect(Collectors.<Node> toList());
-            nodes.addAll(tree.getExternalNodes());
-            values = calculateTimesByNodes(endTime);
+            values = calculateTimesByNodes(collectEventHeights(tree), endTime);
         }
 
         timesKnown = true;
     }
 
-    protected Double[] calculateTimesByNodes(double endtime) {
-        int nodeNumber = nodes.size();
+    /**
+     * Copy the heights of all events matching the break criterion into the event buffer
+     * (only non-singleton internal nodes are branching events)
+     *
+     * @param tree
+     * @return the number of events
+     */
+    protected int collectEventHeights(Tree tree) {
+        Node [] treeNodes = tree.getNodesAsArray();
+
+        if (eventHeights.length < treeNodes.length) {
+            eventHeights = new double[treeNodes.length];
+            eventWeights = new double[treeNodes.length];
+        }
+
+        int eventNumber = 0;
+        for (Node node : treeNodes) {
+            boolean event;
+            if (node.isLeaf())
+                event = breakCriterion != BRANCHES;
+            else
+                event = breakCriterion != SAMPLES && node.getChildCount() > 1;
+
+            if (event) {
+                eventHeights[eventNumber++] = node.getHeight();
+            }
+        }
+        return eventNumber;
+    }
+
+    /**
+     * Break the first nodeNumber heights in the event buffer into groups of equal size (rounded), with the remainder
+     * in the last group
+     *
+     * Only the order statistics on either side of each breakpoint are needed, so instead of sorting all event heights
+     * these ranks are selected (O(n log d) instead of O(n log n)). The breakpoints are exactly the same as when
+     * sorting all the heights.
+     *
+     * @param nodeNumber
+     * @param endtime
+     * @return
+     */
+    protected Double[] calculateTimesByNodes(int nodeNumber, double endtime) {
         int dimensions = getDimension();
-        double [] nodeTimes = new double[nodeNumber];
         Double [] changeTimes = new Double[dimensions];
 
         int intervalNumber;
@@ -149,22 +242,231 @@ public class TreeEventSlicer extends TreeSlicer {
         else
             intervalNumber = dimensions;
 
-        for (int j = 0; j < nodeNumber; j++) {
-            nodeTimes[j] = this.nodes.get(j).getHeight();
-        }
-        HeapSort.sort(nodeTimes);
-
         int groupSize = (int) Math.round((double) nodeNumber / (intervalNumber - 1));
         int lastGroupSize = nodeNumber - groupSize * (intervalNumber - 2);
+
+        /* Ranks on either side of the breakpoints (same steps as the loop below) */
+        if (ranks.length < 2 * intervalNumber) {
+            ranks = new int[2 * intervalNumber];
+        }
+        int rankNumber = 0;
         int i = 0;
+        for (int j = 1; j < intervalNumber; j++) {
+            if (i + lastGroupSize >= nodeNumber) break;
+            i += groupSize;
+            ranks[rankNumber++] = i - 1;
+            ranks[rankNumber++] = i;
+        }
+        OrderStatistics.select(eventHeights, nodeNumber, ranks, rankNumber);
+
+        double maxTime = eventHeights[0];
+        for (int j = 1; j < nodeNumber; j++) {
+            if (eventHeights[j] > maxTime) maxTime = eventHeights[j];
+        }
+
+        i = 0;
         changeTimes[0] = 0.0;
         for (int j = 1; j < intervalNumber; j++) {
             if (i + lastGroupSize >= nodeNumber) {
-                changeTimes[j] = nodeTimes[nodeNumber - 1] + EPS;
+                changeTimes[j] = maxTime + EPS;
                 break;
             } else {
                 i += groupSize;
-                changeTimes[j] = (nodeTimes[i - 1] + nodeTimes[i]) / 2;
+                changeTimes[j] = (eventHeights[i - 1] + eventHeights[i]) / 2;
+            }
+        }
+
+        if (inclusive) changeTimes[intervalNumber] = endtime;
+        return changeTimes;
+    }
+
+    /**
+     * Place breakpoints at exact quantiles of the (weighted) events
+     *
+     * Events are read in order from the node height index shared with other objects using this TreeSlicer, so the
+     * breakpoints are found in a single O(n + d) pass once the index is known. Each breakpoint is placed between the
+     * two events where the cumulative weight is closest to the quantile. As for calculateTimesByNodes() the last
+     * breakpoint is just above the oldest event.
+     *
+     * @param endtime
+     * @return
+     */
+    protected Double[] calculateTimesByQuantiles(double endtime) {
+        NodeHeightIndex index = getNodeHeightIndex();
+        int nodeNumber = index.getNodeCount();
+        int dimensions = getDimension();
+        Double [] changeTimes = new Double[dimensions];
+
+        int intervalNumber;
+        if (inclusive)
+            intervalNumber = dimensions - 1;
+        else
+            intervalNumber = dimensions;
+        int groups = intervalNumber - 1;
+
+        if (eventHeights.length < nodeNumber) {
+            eventHeights = new double[nodeNumber];
+            eventWeights = new double[nodeNumber];
+        }
+
+        /* Collect events in increasing order of height */
+        int eventNumber = 0;
+        double totalWeight = 0;
+        for (int rank = 0; rank < nodeNumber; rank++) {
+            double weight;
+            if (index.isLeaf(rank) && breakCriterion != BRANCHES)
+                weight = sampleWeight;
+            else
+            if (index.isBranching(rank) && breakCriterion != SAMPLES)
+                weight = branchWeight;
+            else
+                continue;
+
+            eventHeights[eventNumber] = index.getHeight(rank);
+            eventWeights[eventNumber] = weight;
+            totalWeight += weight;
+            eventNumber++;
+        }
+        if (eventNumber < 2) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Not enough events on the tree to break at quantiles.");
+        }
+
+        changeTimes[0] = 0.0;
+        int k = 0;
+        double cumulative = eventWeights[0];
+        for (int j = 1; j < groups; j++) {
+            double target = j * totalWeight / groups;
+
+            // First event where the cumulative weight reaches the quantile
+            while (k < eventNumber - 2 && cumulative < target) {
+                k++;
+                cumulative += eventWeights[k];
+            }
+
+            // Break before that event instead if it is closer to the quantile
+            int b = k;
+            if (k > 0 && target - (cumulative - eventWeights[k]) < cumulative - target) {
+                b = k - 1;
+            }
+            changeTimes[j] = (eventHeights[b] + eventHeights[b + 1]) / 2;
+        }
+        changeTimes[groups] = eventHeights[eventNumber - 1] + EPS;
+
+        if (inclusive) changeTimes[intervalNumber] = endtime;
+        return changeTimes;
+    }
+
+    /**
+     * Place breakpoints using the pooled events of all trees
+     *
+     * The sorted events of trees that changed are updated first (O(n log n) for n nodes on each changed tree). The
+     * breakpoints are then found with the same rules as calculateTimesByNodes() (or calculateTimesByQuantiles() for
+     * exact quantiles) in a single pass over the merged events, which is O(N) for N events on all trees (for a fixed
+     * number of trees). The final anchor point is the oldest anchor over all trees (most recent for the present).
+     *
+     * @return
+     */
+    protected Double[] calculateTimesByMerging() {
+
+        /* Update events on trees that changed */
+        final double presentDate = tree.getDate(0);
+        double endtime = stop == Anchor.PRESENT ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+        for (int t = 0; t < pooledEvents.length; t++) {
+            final TreeEvents events = pooledEvents[t];
+            if (!events.known) {
+                final Tree pooledTree = pooledTrees.get(t);
+                events.update(pooledTree, presentDate - pooledTree.getDate(0));
+                events.known = true;
+                events.updatedSinceStore = true;
+            }
+
+            if (stop == Anchor.PRESENT)
+                endtime = Math.min(endtime, events.getAnchorHeight(stop));
+            else
+                endtime = Math.max(endtime, events.getAnchorHeight(stop));
+        }
+
+        /* Count events and total weight */
+        int eventNumber = 0;
+        double totalWeight = 0, maxTime = Double.NEGATIVE_INFINITY;
+        for (int stream = 0; stream < positions.length; stream++) {
+            final int count = getStreamLength(stream);
+            if (count > 0) {
+                eventNumber += count;
+                totalWeight += count * getStreamWeight(stream);
+                maxTime = Math.max(maxTime, getStreamHeights(stream)[count - 1]);
+            }
+            positions[stream] = 0;
+        }
+
+        int dimensions = getDimension();
+        Double [] changeTimes = new Double[dimensions];
+
+        int intervalNumber;
+        if (inclusive)
+            intervalNumber = dimensions - 1;
+        else
+            intervalNumber = dimensions;
+
+        changeTimes[0] = 0.0;
+        if (exact) {
+            int groups = intervalNumber - 1;
+            if (eventNumber < 2) {
+                throw new IllegalArgumentException("Error in "+this.getID()+": Not enough events on the trees to break at quantiles.");
+            }
+
+            /* Window of events k-1, k (and k+1 from peeking at the merge) */
+            int k = 0;
+            int stream = nextStream();
+            double previous = Double.NaN,
+                   current  = getStreamHeights(stream)[positions[stream]++],
+                   currentWeight = getStreamWeight(stream);
+            double cumulative = currentWeight;
+            for (int j = 1; j < groups; j++) {
+                double target = j * totalWeight / groups;
+
+                // First event where the cumulative weight reaches the quantile
+                while (k < eventNumber - 2 && cumulative < target) {
+                    previous = current;
+                    stream = nextStream();
+                    current = getStreamHeights(stream)[positions[stream]++];
+                    currentWeight = getStreamWeight(stream);
+                    k++;
+                    cumulative += currentWeight;
+                }
+
+                // Break before that event instead if it is closer to the quantile
+                if (k > 0 && target - (cumulative - currentWeight) < cumulative - target) {
+                    changeTimes[j] = (previous + current) / 2;
+                } else {
+                    stream = nextStream();
+                    changeTimes[j] = (current + getStreamHeights(stream)[positions[stream]]) / 2;
+                }
+            }
+            changeTimes[groups] = maxTime + EPS;
+        } else {
+            int groupSize = (int) Math.round((double) eventNumber / (intervalNumber - 1));
+            int lastGroupSize = eventNumber - groupSize * (intervalNumber - 2);
+
+            /* Events rank-1 and rank */
+            int rank = -1;
+            double previous = Double.NaN, current = Double.NaN;
+
+            int i = 0;
+            for (int j = 1; j < intervalNumber; j++) {
+                if (i + lastGroupSize >= eventNumber) {
+                    changeTimes[j] = maxTime + EPS;
+                    break;
+                } else {
+                    i += groupSize;
+                    while (rank < i) {
+                        int stream = nextStream();
+                        previous = current;
+                        current  = getStreamHeights(stream)[positions[stream]++];
+                        rank++;
+                    }
+                    changeTimes[j] = (previous + current) / 2;
+                }
             }
         }
 
@@ -172,14 +474,224 @@ public class TreeEventSlicer extends TreeSlicer {
         return changeTimes;
     }
 
+
+    /* Merged event streams: sampling (even) and branching (odd) events on each tree */
+
+    private double [] getStreamHeights(int stream) {
+        final TreeEvents events = pooledEvents[stream / 2];
+        return stream % 2 == 0 ? events.samples : events.branches;
+    }
+
+    private int getStreamLength(int stream) {
+        final TreeEvents events = pooledEvents[stream / 2];
+        if (stream % 2 == 0)
+            return breakCriterion != BRANCHES ? events.sampleCount : 0;
+        else
+            return breakCriterion != SAMPLES ? events.branchCount : 0;
+    }
+
+    private double getStreamWeight(int stream) {
+        return stream % 2 == 0 ? sampleWeight : branchWeight;
+    }
+
+    /* Stream with the lowest next event (-1 if all events have been merged) */
+    private int nextStream() {
+        int next = -1;
+        double nextHeight = 0;
+        for (int stream = 0; stream < positions.length; stream++) {
+            if (positions[stream] < getStreamLength(stream)) {
+                final double height = getStreamHeights(stream)[positions[stream]];
+                if (next < 0 || height < nextHeight) {
+                    next = stream;
+                    nextHeight = height;
+                }
+            }
+        }
+        return next;
+    }
+
+
     @Override
     protected boolean requiresRecalculation() {
         // Tree is a stateNode so should always use somethingIsDirty() and NOT isDirtyCalculation!
         //System.out.println("Checking recalculation "+this.ID+" "+tree.isDirtyCalculation()+" "+tree.somethingIsDirty());
         timesKnown = false;
+        nodeIndexKnown = false;
+
+        // Only update the events of trees that changed (outside of an MCMC the trees cannot tell, so update all)
+        if (pooledEvents != null) {
+            for (int t = 0; t < pooledEvents.length; t++) {
+                final Tree pooledTree = pooledTrees.get(t);
+                if (pooledTree.getState() == null || pooledTree.somethingIsDirty()) {
+                    pooledEvents[t].known = false;
+                }
+            }
+        }
         return true;
         //return tree.somethingIsDirty();
     }
 
+    @Override
+    protected void store() {
+        if (pooledEvents != null) {
+            for (TreeEvents events : pooledEvents) {
+                events.updatedSinceStore = false;
+            }
+        }
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        // Events updated for a rejected state are out of date
+        if (pooledEvents != null) {
+            for (TreeEvents events : pooledEvents) {
+                if (events.updatedSinceStore) {
+                    events.known = false;
+                }
+            }
+        }
+        super.restore();
+    }
+
+
+    @Override
+    public boolean isUniformGrid() {
+        // Slices are at quantiles of the events
+        return false;
+    }
+
+
+    /* Checkpointing of the pooled events (see CacheCheckpointer) */
+
+    @Override
+    public long getCheckpointFingerprint() {
+        if (pooledEvents == null) {
+            return super.getCheckpointFingerprint();
+        }
+        CacheCheckpointer.Fingerprint fingerprint = new CacheCheckpointer.Fingerprint();
+        for (Tree pooledTree : pooledTrees) {
+            fingerprint.add(pooledTree);
+        }
+        return fingerprint.get();
+    }
+
+    @Override
+    public void writeCheckpoint(DataOutputStream out) throws IOException {
+        updateTimes();
+
+        // Events before the times, so they can be read first in readCheckpoint()
+        out.writeInt(pooledEvents == null ? 0 : pooledEvents.length);
+        if (pooledEvents != null) {
+            for (TreeEvents events : pooledEvents) {
+                events.write(out);
+            }
+        }
+        super.writeCheckpoint(out);
+    }
+
+    @Override
+    public void readCheckpoint(DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        if (count != (pooledEvents == null ? 0 : pooledEvents.length)) {
+            throw new IOException("number of trees is "+count+" instead of "+(pooledEvents == null ? 0 : pooledEvents.length));
+        }
+        TreeEvents [] events = new TreeEvents[count];
+        for (int t = 0; t < count; t++) {
+            events[t] = new TreeEvents();
+            events[t].read(in);
+        }
+
+        // Only changes anything if the times match as well
+        super.readCheckpoint(in);
+        if (pooledEvents != null) {
+            System.arraycopy(events, 0, pooledEvents, 0, count);
+        }
+    }
+
+
+    /**
+     * Sorted sampling and branching event heights on one tree, shifted to the time scale of the first tree
+     * (only non-singleton internal nodes are branching events)
+     */
+    static class TreeEvents {
+
+        double [] samples  = new double[0],
+                  branches = new double[0];
+        int sampleCount, branchCount;
+        double rootHeight, oldestSample, newestSample;
+        boolean known = false, updatedSinceStore = false;
+
+        void update(Tree tree, double offset) {
+            Node [] treeNodes = tree.getNodesAsArray();
+
+            if (samples.length < treeNodes.length) {
+                samples  = new double[treeNodes.length];
+                branches = new double[treeNodes.length];
+            }
+
+            sampleCount = 0;
+            branchCount = 0;
+            for (Node node : treeNodes) {
+                if (node.isLeaf())
+                    samples[sampleCount++] = node.getHeight() + offset;
+                else
+                if (node.getChildCount() > 1)
+                    branches[branchCount++] = node.getHeight() + offset;
+            }
+            Arrays.sort(samples, 0, sampleCount);
+            Arrays.sort(branches, 0, branchCount);
+
+            // Anchors as in updateAnchors()
+            rootHeight   = tree.getRoot().getHeight() + offset;
+            newestSample = samples[0];
+            oldestSample = samples[sampleCount - 1] > offset ? samples[sampleCount - 1] + EPS : offset;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(sampleCount);
+            out.writeInt(branchCount);
+            for (int i = 0; i < sampleCount; i++) {
+                out.writeDouble(samples[i]);
+            }
+            for (int i = 0; i < branchCount; i++) {
+                out.writeDouble(branches[i]);
+            }
+            out.writeDouble(rootHeight);
+            out.writeDouble(oldestSample);
+            out.writeDouble(newestSample);
+        }
+
+        void read(DataInputStream in) throws IOException {
+            sampleCount = in.readInt();
+            branchCount = in.readInt();
+            samples  = new double[sampleCount + branchCount];
+            branches = new double[sampleCount + branchCount];
+            for (int i = 0; i < sampleCount; i++) {
+                samples[i] = in.readDouble();
+            }
+            for (int i = 0; i < branchCount; i++) {
+                branches[i] = in.readDouble();
+            }
+            rootHeight   = in.readDouble();
+            oldestSample = in.readDouble();
+            newestSample = in.readDouble();
+            known = true;
+        }
+
+        /* Same as the anchors of a TreeSlicer on the tree */
+        double getAnchorHeight(Anchor anchor) {
+            switch (anchor) {
+                case PRESENT:
+                    return newestSample;
+                case OLDESTSAMPLE:
+                    return oldestSample;
+                default:
+                    return rootHeight;
+            }
+        }
+    }
+
+
 
 }
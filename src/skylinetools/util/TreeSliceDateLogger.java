@@ -20,6 +20,8 @@ public class TreeSliceDateLogger extends CalculationNode implements Loggable, Fu
     final public Input<TreeSlicer> treeSliceInput =
             new Input<>("treeSlice", "TreeSlicer to log dates for", Input.Validate.REQUIRED);
 
+    private static final HotPathMetrics.Timer logTimer = HotPathMetrics.timer("TreeSliceDateLogger.log");
+
     @Override
     public void initAndValidate() {
         // nothing to do
@@ -42,12 +44,14 @@ public class TreeSliceDateLogger extends CalculationNode implements Loggable, Fu
 
     @Override
     public void log(long sample, PrintStream out) {
+        final long start = logTimer.start();
         final TreeSlicer treeslice = treeSliceInput.get();
 
         final int values = treeslice.getDimension();
         for (int value = 0; value < values; value++) {
             out.print(treeslice.heightToDate(treeslice.getValue(value)) + "\t");
         }
+        logTimer.stop(start);
     }
 
     @Override
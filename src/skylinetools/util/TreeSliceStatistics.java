@@ -0,0 +1,186 @@
+package skylinetools.util;
+
+import beast.core.CalculationNode;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Loggable;
+
+import java.io.PrintStream;
+
+/**
+ * Lineages-through-time and event counts for each interval of a TreeSlicer
+ *
+ * For d slice times t_0 < t_1 < ... < t_{d-1} the intervals are [t_i, t_{i+1}), with the last interval open ended.
+ * For each interval the number of branching events and sampling events (leaves) are counted and for each slice time
+ * the number of lineages in the tree at that height (counting events at exactly that height).
+ *
+ * Values are ordered as (branchings_1..d, samples_1..d, lineages_1..d).
+ *
+ * All statistics are calculated in a single O(n + d) sweep over the node heights sorted by the TreeSlicer itself, so
+ * the sort is shared with any other object using the same TreeSlicer.
+ *
+ * As a log entry the statistics are not on the path from the State to the posterior, so requiresRecalculation() is
+ * never called. log() therefore always recalculates them, after checking the TreeSlicer's node index against the tree.
+ */
+public class TreeSliceStatistics extends CalculationNode implements Loggable, Function {
+
+    final public Input<TreeSlicer> treeSliceInput =
+            new Input<>("treeSlice", "TreeSlicer to calculate interval statistics for", Input.Validate.REQUIRED);
+
+    protected TreeSlicer treeSlice;
+    protected int [] branchings, samples, lineages;
+    protected boolean statsKnown;
+
+    private static final HotPathMetrics.Timer logTimer = HotPathMetrics.timer("TreeSliceStatistics.log");
+
+    @Override
+    public void initAndValidate() {
+        treeSlice = treeSliceInput.get();
+
+        int dim = treeSlice.getDimension();
+        branchings = new int[dim];
+        samples    = new int[dim];
+        lineages   = new int[dim];
+
+        statsKnown = false;
+    }
+
+
+    /**
+     * Sweep once over the sorted node heights and the slice times at the same time
+     */
+    protected void calculateStatistics() {
+        calculateStatistics(treeSlice.getNodeHeightIndex());
+    }
+
+    protected void calculateStatistics(final NodeHeightIndex index) {
+        final int d = treeSlice.getDimension(),
+                  n = index.getNodeCount();
+
+        int interval = 0,   // Interval the current node falls into
+            boundary = 0,   // Next slice time that the lineages have not been recorded for
+            current  = 0;   // Lineages below the current node
+
+        for (int i = 0; i < d; i++) {
+            branchings[i] = 0;
+            samples[i]    = 0;
+        }
+
+        for (int rank = 0; rank < n; rank++) {
+            double height = index.getHeight(rank);
+
+            // All nodes processed so far are at or below slice times that are lower than this node
+            while (boundary < d && treeSlice.getArrayValue(boundary) < height) {
+                lineages[boundary++] = current;
+            }
+
+            while (interval + 1 < d && treeSlice.getArrayValue(interval + 1) <= height) {
+                interval++;
+            }
+
+            if (index.isLeaf(rank)) {
+                samples[interval]++;
+                current++;
+            } else {
+                if (index.isBranching(rank)) {
+                    branchings[interval]++;
+                }
+                current -= index.getChildCount(rank) - 1;
+            }
+        }
+
+        // Slice times above the root
+        while (boundary < d) {
+            lineages[boundary++] = current;
+        }
+
+        statsKnown = true;
+    }
+
+
+    public int getBranchings(int interval) {
+        if (!statsKnown) calculateStatistics();
+        return branchings[interval];
+    }
+
+    public int getSamples(int interval) {
+        if (!statsKnown) calculateStatistics();
+        return samples[interval];
+    }
+
+    public int getLineages(int interval) {
+        if (!statsKnown) calculateStatistics();
+        return lineages[interval];
+    }
+
+
+    @Override
+    protected boolean requiresRecalculation() {
+        statsKnown = false;
+        return true;
+    }
+
+    @Override
+    protected void restore() {
+        statsKnown = false;
+        super.restore();
+    }
+
+
+    @Override
+    public void init(PrintStream out) {
+        final String id = treeSlice.getID();
+        final int d = treeSlice.getDimension();
+
+        for (String stat : new String[] {".branchings", ".samples", ".lineages"}) {
+            for (int i = 0; i < d; i++) {
+                out.print(id + stat + (i + 1) + "\t");
+            }
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        final long start = logTimer.start();
+        final int dim = getDimension();
+
+        calculateStatistics(treeSlice.getCurrentNodeHeightIndex());
+
+        for (int i = 0; i < dim; i++) {
+            out.print((int) getArrayValue(i) + "\t");
+        }
+        logTimer.stop(start);
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+
+
+    @Override
+    public int getDimension() {
+        return 3 * treeSlice.getDimension();
+    }
+
+    @Override
+    public double getArrayValue() {
+        return getArrayValue(0);
+    }
+
+    @Override
+    public double getArrayValue(int dim) {
+        final int d = treeSlice.getDimension();
+
+        if (!statsKnown) calculateStatistics();
+
+        if (dim < d)
+            return branchings[dim];
+        else
+        if (dim < 2 * d)
+            return samples[dim - d];
+        else
+            return lineages[dim - 2 * d];
+    }
+
+}
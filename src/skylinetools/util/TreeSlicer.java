@@ -3,13 +3,18 @@ package skylinetools.util;
 import beast.core.*;
 import beast.core.parameter.*;
 import beast.evolution.tree.*;
+import skylinetools.parameter.UniformGrid;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
 
 
 /**
  * Base TreeSlicer class
  *
- * Equidistant slices between present and an anchor point on the tree.
+ * Equidistant slices between present and an anchor point on the tree (a UniformGrid, subclasses are not).
  *
  * Input dates always have dimension one less than the treeslicer itself (unless the last date is equal to the most recent tip).
  * (Since the last value in the slice has to be 0 (i.e. the most recent tip in the tree).
@@ -19,7 +24,7 @@ import java.util.*;
  *         Date: 2018/02/12
  *
  */
-public class TreeSlicer extends RealParameter {
+public class TreeSlicer extends RealParameter implements Checkpointable, UniformGrid {
     static final double EPS = 1e-7;
 
     public Input<Tree> treeInput =
@@ -31,6 +36,9 @@ public class TreeSlicer extends RealParameter {
     public Input<Boolean> inclusiveInput =
             new Input<>("inclusive", "Include the final anchor point (to criterion) in the vector",true);
 
+    public Input<TreeSlicerPool> poolInput =
+            new Input<>("pool", "Pool to calculate this TreeSlicer on concurrently with other TreeSlicers in the same pool");
+
 
 
     /* Anchor times on the tree */
@@ -40,57 +48,6 @@ public class TreeSlicer extends RealParameter {
         OLDESTSAMPLE,  // The height of the oldest sample in the tree, 0 <= OLDESTSAMPLE <= TMRCA
         TMRCA;         // The height of the tree (tMRCA)
 
-
-        private double height, date;
-
-        public double getHeight() { return this.height; }
-
-        public double getDate() { return this.date; }
-
-
-        /**
-         * Update anchor times in the tree
-         *
-         * O(n) for n nodes
-         *
-         * Use getNodesAsArray() instead of getExternalNodes() because it only passes a pointer whereas getExterNodes()
-         * requires constructing an ArrayList (so it is O(n) plus a lot of extra memory operations).
-         *
-         * Unfortunately tree.somethingIsDirty() does NOT appear to work to indicate if anchor times would have changed or
-         * not, so this MUST be recalculated every time the times are updated.
-         *
-         * @param tree
-         */
-        public static void update(Tree tree) {
-
-            double height;
-
-            TMRCA.height = tree.getRoot().getHeight();
-            TMRCA.date   = tree.getRoot().getDate();
-
-            // This next part should only be necessary when tipdates are sampled (How can this be checked?)
-            // May be optimised by skipping the first n-1 nodes, but this way is very secure, though slightly slower
-            OLDESTSAMPLE.height = 0;
-            PRESENT.height = TMRCA.height;
-            for (Node N : tree.getNodesAsArray()) {
-                if (N.isLeaf()) {
-                    height = N.getHeight();
-
-                    if (height > OLDESTSAMPLE.height) {
-                        // Need to adjust so BDSKY likelihood nonzero
-                        OLDESTSAMPLE.height = height + EPS;
-                        OLDESTSAMPLE.date   = N.getDate();
-                    }
-
-                    if (height  < PRESENT.height) {
-                        PRESENT.height  = height;
-                        PRESENT.date    = N.getDate();
-                    }
-                }
-            }
-
-        }
-
     }
     /* End Anchor times */
 
@@ -99,6 +56,23 @@ public class TreeSlicer extends RealParameter {
     protected Anchor stop;
     protected boolean inclusive;
     protected boolean timesKnown;
+    protected TreeSlicerPool pool;
+
+    /* Heights and dates of the anchor times on this tree (indexed by Anchor) */
+    protected final double [] anchorHeights = new double[Anchor.values().length],
+                              anchorDates   = new double[Anchor.values().length];
+
+    /* Metrics (see HotPathMetrics), separate for each subclass */
+    protected final HotPathMetrics.Timer calculateTimesTimer = HotPathMetrics.timer(getClass().getSimpleName() + ".calculateTimes"),
+                                         updateAnchorsTimer  = HotPathMetrics.timer(getClass().getSimpleName() + ".updateAnchors");
+
+    /* Node heights sorted once per state and shared with anything that needs them in order (the stored index is
+       swapped back in when a proposal is rejected, instead of sorting again) */
+    protected NodeHeightIndex nodeIndex, storedNodeIndex;
+    protected boolean nodeIndexKnown, storedNodeIndexKnown, nodeIndexUpdatedSinceStore = true;
+
+    /* Sidecar to restore the times and node index from when resuming (see CacheCheckpointer, null once tried) */
+    protected CacheCheckpointer checkpointer;
 
 
     // Override input rule of RealParameter (base class)
@@ -114,7 +88,7 @@ public class TreeSlicer extends RealParameter {
 
         /* Read tree */
         tree      = treeInput.get();
-        Anchor.update(tree);
+        updateAnchors(tree);
 
 
         /* Read dimension of the slice */
@@ -162,20 +136,138 @@ public class TreeSlicer extends RealParameter {
         this.storedValues = values.clone();
 
         timesKnown = false;
+        registerPool();
     }
 
 
+    /**
+     * Add this TreeSlicer to the pool (if there is one)
+     */
+    protected void registerPool() {
+        pool = poolInput.get();
+        if (pool != null) {
+            pool.register(this);
+        }
+    }
+
+
+    /**
+     * Update anchor times in the tree
+     *
+     * O(n) for n nodes
+     *
+     * Use getNodesAsArray() instead of getExternalNodes() because it only passes a pointer whereas getExterNodes()
+     * requires constructing an ArrayList (so it is O(n) plus a lot of extra memory operations).
+     *
+     * Unfortunately tree.somethingIsDirty() does NOT appear to work to indicate if anchor times would have changed or
+     * not, so this MUST be recalculated every time the times are updated.
+     *
+     * Anchor times are stored in the TreeSlicer and not in the Anchor enum, so TreeSlicers on different trees do not
+     * overwrite each other's anchor times and can be updated concurrently.
+     *
+     * @param tree
+     */
+    protected void updateAnchors(Tree tree) {
+
+        final long start = updateAnchorsTimer.start();
+
+        double height, rootHeight, oldestHeight, presentHeight;
+        double oldestDate  = getAnchorDate(Anchor.OLDESTSAMPLE),
+               presentDate = getAnchorDate(Anchor.PRESENT);
+
+        rootHeight = tree.getRoot().getHeight();
+        anchorHeights[Anchor.TMRCA.ordinal()] = rootHeight;
+        anchorDates[Anchor.TMRCA.ordinal()]   = tree.getRoot().getDate();
+
+        // This next part should only be necessary when tipdates are sampled (How can this be checked?)
+        // May be optimised by skipping the first n-1 nodes, but this way is very secure, though slightly slower
+        oldestHeight  = 0;
+        presentHeight = rootHeight;
+        for (Node N : tree.getNodesAsArray()) {
+            if (N.isLeaf()) {
+                height = N.getHeight();
+
+                if (height > oldestHeight) {
+                    // Need to adjust so BDSKY likelihood nonzero
+                    oldestHeight = height + EPS;
+                    oldestDate   = N.getDate();
+                }
+
+                if (height  < presentHeight) {
+                    presentHeight = height;
+                    presentDate   = N.getDate();
+                }
+            }
+        }
+
+        anchorHeights[Anchor.OLDESTSAMPLE.ordinal()] = oldestHeight;
+        anchorDates[Anchor.OLDESTSAMPLE.ordinal()]   = oldestDate;
+        anchorHeights[Anchor.PRESENT.ordinal()]      = presentHeight;
+        anchorDates[Anchor.PRESENT.ordinal()]        = presentDate;
+
+        updateAnchorsTimer.stop(start);
+    }
+
+    protected double getAnchorHeight(Anchor anchor) { return anchorHeights[anchor.ordinal()]; }
+
+    protected double getAnchorDate(Anchor anchor) { return anchorDates[anchor.ordinal()]; }
+
+
 
     /* Methods should only be called after anchor times have been updated */
 
     protected double dateToHeight(double date) {
-        Anchor.update(tree);
-        return (Anchor.PRESENT.getDate() - date);
+        updateAnchors(tree);
+        return (getAnchorDate(Anchor.PRESENT) - date);
     }
 
     protected double heightToDate(double height) {
-        Anchor.update(tree);
-        return (Anchor.PRESENT.getDate() - height);
+        updateAnchors(tree);
+        return (getAnchorDate(Anchor.PRESENT) - height);
+    }
+
+
+    /**
+     * Get the nodes of the tree sorted by height
+     *
+     * The index is only rebuilt once after every change to the state, no matter how many objects request it.
+     *
+     * @return
+     */
+    public NodeHeightIndex getNodeHeightIndex() {
+        if (!nodeIndexKnown) {
+            // Keep the index of the stored state
+            if (!nodeIndexUpdatedSinceStore) {
+                NodeHeightIndex tmp = nodeIndex;
+                nodeIndex = storedNodeIndex;
+                storedNodeIndex = tmp;
+                nodeIndexUpdatedSinceStore = true;
+            }
+            if (nodeIndex == null) {
+                nodeIndex = new NodeHeightIndex();
+            }
+            nodeIndex.update(tree);
+            nodeIndexKnown = true;
+        }
+        return nodeIndex;
+    }
+
+
+    /**
+     * Get the nodes of the tree sorted by height, checking the index against the tree first
+     *
+     * For loggers: objects that are only logged are not on the path from the State to the posterior, so if this
+     * TreeSlicer is not on that path either it is never told that the tree changed. If the index is out of date the
+     * times are recalculated as well.
+     *
+     * @return
+     */
+    public NodeHeightIndex getCurrentNodeHeightIndex() {
+        if (nodeIndexKnown && !nodeIndex.isCurrent(tree)) {
+            nodeIndexKnown = false;
+            timesKnown = false;
+        }
+        return getNodeHeightIndex();
     }
 
 
@@ -192,12 +284,12 @@ public class TreeSlicer extends RealParameter {
         double endTime, stepSize;
 
         /* Update anchor times */
-        Anchor.update(tree);
+        updateAnchors(tree);
         //for (Anchor a : Anchor.values()) {
-        //    System.out.println(a.toString()+"\t"+a.getHeight()+"\t"+a.getDate());
+        //    System.out.println(a.toString()+"\t"+getAnchorHeight(a)+"\t"+getAnchorDate(a));
         //}
 
-        endTime = stop.getHeight();
+        endTime = getAnchorHeight(stop);
         if (inclusive)
             stepSize = endTime / (getDimension() - 1);
         else
@@ -217,51 +309,186 @@ public class TreeSlicer extends RealParameter {
         // Tree is a stateNode so should always use somethingIsDirty() and NOT isDirtyCalculation!
         //System.out.println("Checking recalculation "+this.ID+" "+tree.isDirtyCalculation()+" "+tree.somethingIsDirty());
         timesKnown = false;
+        nodeIndexKnown = false;
         return true;
         //return tree.somethingIsDirty();
     }
 
+    @Override
+    protected void store() {
+        storedNodeIndexKnown = nodeIndexKnown;
+        nodeIndexUpdatedSinceStore = false;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        // The node index may have been updated for the rejected tree
+        if (nodeIndexUpdatedSinceStore) {
+            NodeHeightIndex tmp = nodeIndex;
+            nodeIndex = storedNodeIndex;
+            storedNodeIndex = tmp;
+        }
+        nodeIndexKnown = storedNodeIndexKnown && nodeIndex != null;
+        nodeIndexUpdatedSinceStore = false;
+        super.restore();
+    }
+
+
+    /**
+     * Recalculate the times if they are not known
+     *
+     * If the TreeSlicer is in a pool, all TreeSlicers in the pool that need to be recalculated are recalculated
+     * concurrently and this only returns once all of them are done.
+     */
+    protected void updateTimes() {
+        if (!timesKnown && !restoreCheckpoint()) {
+            if (pool != null)
+                pool.calculateTimes();
+            else
+                timedCalculateTimes();
+        }
+    }
+
+    /**
+     * Read the times from the checkpoint instead of calculating them (only the first time after resuming)
+     *
+     * The checkpointer is dropped after the first attempt, so later recalculations do not lock it or look up the
+     * (already used) entry again.
+     *
+     * @return true if the times were read
+     */
+    protected boolean restoreCheckpoint() {
+        if (checkpointer == null) {
+            return false;
+        }
+        final CacheCheckpointer sidecar = checkpointer;
+        checkpointer = null;
+        return sidecar.restore(this);
+    }
+
+    /**
+     * Calculate the times and record how long it took
+     */
+    protected void timedCalculateTimes() {
+        final long start = calculateTimesTimer.start();
+        calculateTimes(tree);
+        calculateTimesTimer.stop(start);
+    }
+
 
     /* Override methods to make sure times get recalculated whenever times are accessed */
 
     @Override
     public Double getValue() {
-        if (!timesKnown) {
-            calculateTimes(tree);
-        }
+        updateTimes();
         return values[0];
     }
 
     @Override
     public Double getValue(final int index) {
-        if (!timesKnown) {
-            calculateTimes(tree);
-        }
+        updateTimes();
         return values[index];
     }
 
     @Override
     public double getArrayValue() {
-        if (!timesKnown) {
-            calculateTimes(tree);
-        }
+        updateTimes();
         return values[0];
     }
 
     @Override
     public double getArrayValue(final int index) {
-        if (!timesKnown) {
-            calculateTimes(tree);
-        }
+        updateTimes();
         return values[index];
     }
 
     @Override
     public Double [] getValues() {
-        if (!timesKnown) {
-            calculateTimes(tree);
-        }
+        updateTimes();
         return Arrays.copyOf(values, values.length);
     }
 
+
+    /* UniformGrid (the step changes with the tree) */
+
+    @Override
+    public boolean isUniformGrid() {
+        return true;
+    }
+
+    @Override
+    public double getGridStep() {
+        updateTimes();
+        return values.length > 1 ? values[1] - values[0] : 0.0;
+    }
+
+
+    /* Checkpointing of the times, anchors and node index (see CacheCheckpointer) */
+
+    @Override
+    public void setCheckpointer(CacheCheckpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    @Override
+    public long getCheckpointFingerprint() {
+        return new CacheCheckpointer.Fingerprint().add(tree).get();
+    }
+
+    @Override
+    public void writeCheckpoint(DataOutputStream out) throws IOException {
+        updateTimes();
+
+        // Times that were never set (e.g. too few events) are written as NaN
+        out.writeInt(values.length);
+        for (Double value : values) {
+            out.writeDouble(value == null ? Double.NaN : value);
+        }
+        for (int i = 0; i < anchorHeights.length; i++) {
+            out.writeDouble(anchorHeights[i]);
+            out.writeDouble(anchorDates[i]);
+        }
+
+        out.writeBoolean(nodeIndex != null && nodeIndexKnown);
+        if (nodeIndex != null && nodeIndexKnown) {
+            nodeIndex.write(out);
+        }
+    }
+
+    @Override
+    public void readCheckpoint(DataInputStream in) throws IOException {
+        final int dim = in.readInt();
+        if (dim != values.length) {
+            throw new IOException("dimension is "+dim+" instead of "+values.length);
+        }
+        Double [] times = new Double[dim];
+        for (int i = 0; i < dim; i++) {
+            final double value = in.readDouble();
+            times[i] = Double.isNaN(value) ? null : value;
+        }
+        double [] heights = new double[anchorHeights.length],
+                  dates   = new double[anchorDates.length];
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = in.readDouble();
+            dates[i]   = in.readDouble();
+        }
+
+        NodeHeightIndex index = null;
+        if (in.readBoolean()) {
+            index = new NodeHeightIndex();
+            index.read(in);
+        }
+
+        System.arraycopy(times, 0, values, 0, dim);
+        System.arraycopy(heights, 0, anchorHeights, 0, heights.length);
+        System.arraycopy(dates, 0, anchorDates, 0, dates.length);
+        if (index != null) {
+            nodeIndex = index;
+            nodeIndexKnown = true;
+            nodeIndexUpdatedSinceStore = true;
+        }
+        timesKnown = true;
+    }
+
 }
@@ -0,0 +1,129 @@
+package skylinetools.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculate the times of several TreeSlicers (e.g. on the different trees in a multi-tree BDMM/BDSKY analysis)
+ * concurrently.
+ *
+ * TreeSlicers are added to the pool with their "pool" input. The first time any TreeSlicer in the pool is read after
+ * the state changed, all TreeSlicers in the pool that need to be recalculated are recalculated on a ForkJoinPool and
+ * the read only returns once all of them are done, so the likelihood never sees partially updated times.
+ *
+ * Every TreeSlicer only reads its own tree and only writes its own times and anchor times, so the results are exactly
+ * the same as when calculating the TreeSlicers one after the other, no matter how many threads are used.
+ */
+@Description("Calculate the times of several TreeSlicers concurrently")
+public class TreeSlicerPool extends BEASTObject {
+
+    public Input<Integer> threadsInput =
+            new Input<>("threads", "Number of threads to use (0 to use one thread per available processor)", 0);
+
+    protected final List<TreeSlicer> slicers = new ArrayList<>();
+    protected ForkJoinPool executor;
+    protected int threads;
+
+    /* Wall-clock time of concurrent calculations on the calling thread (the slicers are timed on the workers) */
+    private static final HotPathMetrics.Timer concurrentTimer = HotPathMetrics.timer("TreeSlicerPool.calculateTimes");
+
+    /* Reused between calls */
+    private SliceTask [] pending = new SliceTask[0];
+
+
+    @Override
+    public void initAndValidate() {
+        threads = threadsInput.get();
+        if (threads < 0) {
+            throw new IllegalArgumentException("Error in "+this.getID()+": Number of threads cannot be negative.");
+        }
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+
+    /**
+     * Called by TreeSlicers in their initAndValidate()
+     *
+     * @param slicer
+     */
+    protected void register(TreeSlicer slicer) {
+        if (!slicers.contains(slicer)) {
+            slicers.add(slicer);
+        }
+    }
+
+
+    /**
+     * Recalculate all TreeSlicers in the pool with unknown times and wait for all of them to finish
+     */
+    protected synchronized void calculateTimes() {
+
+        if (pending.length < slicers.size()) {
+            pending = new SliceTask[slicers.size()];
+        }
+
+        int taskNumber = 0;
+        for (TreeSlicer slicer : slicers) {
+            if (!slicer.timesKnown && !slicer.restoreCheckpoint()) {
+                pending[taskNumber++] = new SliceTask(slicer);
+            }
+        }
+
+        if (taskNumber == 0) {
+            return;
+        }
+
+        if (taskNumber == 1 || threads == 1) {
+            // Not worth handing over to another thread
+            for (int i = 0; i < taskNumber; i++) {
+                pending[i].compute();
+            }
+        } else {
+            final long start = concurrentTimer.start();
+            if (executor == null) {
+                executor = new ForkJoinPool(threads);
+            }
+
+            for (int i = 0; i < taskNumber; i++) {
+                executor.execute(pending[i]);
+            }
+
+            // join() rethrows any exception thrown while calculating the times
+            for (int i = 0; i < taskNumber; i++) {
+                pending[i].join();
+            }
+            concurrentTimer.stop(start);
+        }
+
+        for (int i = 0; i < taskNumber; i++) {
+            pending[i] = null;
+        }
+    }
+
+
+    public int getThreads() { return threads; }
+
+
+    private static class SliceTask extends RecursiveAction {
+
+        private final TreeSlicer slicer;
+
+        SliceTask(TreeSlicer slicer) {
+            this.slicer = slicer;
+        }
+
+        @Override
+        protected void compute() {
+            slicer.timedCalculateTimes();
+        }
+    }
+
+}
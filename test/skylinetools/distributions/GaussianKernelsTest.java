@@ -0,0 +1,211 @@
+package skylinetools.distributions;
+
+import beast.core.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.junit.Test;
+import skylinetools.parameter.RealParameterSequence;
+
+import java.util.Random;
+
+public class GaussianKernelsTest extends TestCase {
+
+
+    /**
+     * Test the batched sum of logarithms, including products that would over- or underflow and special values
+     */
+    @Test
+    public void testSumLog() {
+
+        System.out.println("GaussianKernels: Sum of logarithms");
+
+        Random random = new Random(11);
+        for (int rep = 0; rep < 100; rep++) {
+            int n = 1 + random.nextInt(2000);
+            double [] a = new double[n];
+            double expected = 0;
+            for (int i = 0; i < n; i++) {
+                // Spread over many orders of magnitude (the product over/underflows)
+                a[i] = Math.exp(random.nextGaussian()*50);
+                expected += Math.log(a[i]);
+            }
+            assertEquals(expected, GaussianKernels.sumLog(a, 0, n), 1e-12*(n + Math.abs(expected)));
+        }
+
+        double [] special = {1.0, Double.MIN_VALUE, Double.MAX_VALUE, 0.5};
+        assertEquals(Math.log(Double.MIN_VALUE) + Math.log(Double.MAX_VALUE) + Math.log(0.5),
+                     GaussianKernels.sumLog(special, 0, 4), 1e-12);
+
+        assertEquals(Double.NEGATIVE_INFINITY, GaussianKernels.sumLog(new double[] {2.0, 0.0, 3.0}, 0, 3), 0);
+        assertEquals(Double.POSITIVE_INFINITY, GaussianKernels.sumLog(new double[] {2.0, Double.POSITIVE_INFINITY}, 0, 2), 0);
+        assertTrue(Double.isNaN(GaussianKernels.sumLog(new double[] {2.0, -1.0, 3.0}, 0, 3)));
+        assertTrue(Double.isNaN(GaussianKernels.sumLog(new double[] {-2.0, 1.0, -3.0}, 0, 3)));
+        assertTrue(Double.isNaN(GaussianKernels.sumLog(new double[] {2.0, Double.NaN}, 0, 2)));
+        assertEquals(0.0, GaussianKernels.sumLog(new double[] {2.0}, 1, 1), 0);
+    }
+
+
+    /**
+     * Test batched kernels against the scalar kernels on random irregular grids
+     */
+    @Test
+    public void testKernelsAgainstScalar() {
+
+        System.out.println("GaussianKernels: Batched against scalar kernels");
+
+        Random random = new Random(5);
+        for (int rep = 0; rep < 200; rep++) {
+            int dim = 2 + random.nextInt(1000);
+
+            double [] t = new double[dim],
+                      x = new double[dim],
+                      buffer = new double[dim];
+            for (int i = 1; i < dim; i++) {
+                t[i] = t[i-1] + 0.01 + random.nextDouble();
+            }
+            for (int i = 0; i < dim; i++) {
+                x[i] = random.nextGaussian();
+            }
+
+            double tau = 0.1 + 10*random.nextDouble(),
+                   mu = random.nextGaussian(),
+                   sigsq = 0.1 + random.nextDouble(),
+                   nu = 0.01 + random.nextDouble(),
+                   period = random.nextBoolean() ? 1 : t[dim-1];
+            int n = dim - 1;
+
+            double expected = GaussianKernels.scalarBrownianMotionLogP(t, x, tau),
+                   result   = GaussianKernels.brownianMotionLogP(t, x, buffer, tau);
+            assertEquals(expected, result, 1e-12*(n + Math.abs(expected)));
+
+            // Keep nu dt > 1e-4 (see tolerance in GaussianKernels)
+            if (nu * 0.01 / period > 1e-4) {
+                expected = GaussianKernels.scalarOrnsteinUhlenbeckLogP(t, x, period, mu, sigsq, nu);
+                result   = GaussianKernels.ornsteinUhlenbeckLogP(t, x, buffer, period, mu, sigsq, nu);
+                assertEquals(expected, result, 1e-12*(n + Math.abs(expected)));
+            }
+        }
+    }
+
+
+    /**
+     * Test that the batched kernels give NaN (as the scalar kernels) for times that decrease in two intervals (the signs
+     * of the negative intervals would cancel in the product of the batched sum of logarithms)
+     */
+    @Test
+    public void testDecreasingTimes() {
+
+        System.out.println("GaussianKernels: Decreasing times");
+
+        double [] t = {0.0, 1.0, 0.5, 2.0, 1.5, 3.0},
+                  x = {0.1, -0.2, 0.3, 0.0, 0.5, -0.1},
+                  buffer = new double[t.length];
+
+        assertTrue(Double.isNaN(GaussianKernels.scalarBrownianMotionLogP(t, x, 2.0)));
+        assertTrue(Double.isNaN(GaussianKernels.brownianMotionLogP(t, x, buffer, 2.0)));
+
+        assertTrue(Double.isNaN(GaussianKernels.scalarOrnsteinUhlenbeckLogP(t, x, 1.0, 0.0, 1.0, 0.5)));
+        assertTrue(Double.isNaN(GaussianKernels.ornsteinUhlenbeckLogP(t, x, buffer, 1.0, 0.0, 1.0, 0.5)));
+    }
+
+
+    /**
+     * Test detection of equally spaced times and the uniform kernels against the batched kernels
+     */
+    @Test
+    public void testUniformKernels() {
+
+        System.out.println("GaussianKernels: Uniform against batched kernels");
+
+        Random random = new Random(17);
+        for (int rep = 0; rep < 200; rep++) {
+            int dim = 2 + random.nextInt(1000);
+
+            double start = random.nextGaussian(),
+                   dt = 0.001 + random.nextDouble();
+            double [] t = new double[dim],
+                      x = new double[dim],
+                      buffer = new double[dim];
+            for (int i = 0; i < dim; i++) {
+                t[i] = start + i*dt;
+                x[i] = random.nextGaussian();
+            }
+
+            double step = GaussianKernels.uniformStep(t);
+            assertEquals(dt, step, 1e-12*dt);
+
+            double tau = 0.1 + 10*random.nextDouble(),
+                   mu = random.nextGaussian(),
+                   sigsq = 0.1 + random.nextDouble(),
+                   nu = 0.01 + random.nextDouble(),
+                   period = random.nextBoolean() ? 1 : t[dim-1]-t[0];
+            int n = dim - 1;
+
+            double expected = GaussianKernels.brownianMotionLogP(t, x, buffer, tau),
+                   result   = GaussianKernels.uniformBrownianMotionLogP(x, step, tau);
+            assertEquals(expected, result, 1e-12*(n + Math.abs(expected)));
+
+            expected = GaussianKernels.ornsteinUhlenbeckLogP(t, x, buffer, period, mu, sigsq, nu);
+            result   = GaussianKernels.uniformOrnsteinUhlenbeckLogP(x, step, period, mu, sigsq, nu);
+            assertEquals(expected, result, 1e-12*(n + Math.abs(expected)));
+
+            // Not equally spaced
+            t[1 + random.nextInt(n)] += 1e-6*dt;
+            assertTrue(Double.isNaN(GaussianKernels.uniformStep(t)));
+        }
+
+        assertTrue(Double.isNaN(GaussianKernels.uniformStep(new double[] {1.0})));
+        assertTrue(Double.isNaN(GaussianKernels.uniformStep(new double[] {2.0, 1.0, 0.0})));
+    }
+
+
+    /**
+     * Test that OUPrior and BMPrior give the same density on a lazy sequence (UniformGrid) as on the same times in a
+     * RealParameter, and on irregular times
+     */
+    @Test
+    public void testPriorsOnUniformGrid() {
+
+        System.out.println("GaussianKernels: Priors on uniform grids");
+
+        RealParameterSequence grid = new RealParameterSequence();
+        grid.initByName("from", "0", "to", "10", "dimension", "101", "lazy", true);
+        assertFalse(Double.isNaN(GaussianKernels.uniformStep(grid)));
+
+        StringBuilder xValues = new StringBuilder(),
+                      tValues = new StringBuilder(),
+                      irregular = new StringBuilder();
+        Random random = new Random(23);
+        for (int i = 0; i < grid.getDimension(); i++) {
+            xValues.append(1.0 + random.nextDouble()).append(" ");
+            tValues.append(grid.getArrayValue(i)).append(" ");
+            irregular.append(grid.getArrayValue(i) + (i > 0 && i < 100 ? 0.01*random.nextDouble() : 0)).append(" ");
+        }
+        RealParameter x = new RealParameter(xValues.toString()),
+                      times = new RealParameter(tValues.toString()),
+                      irregularTimes = new RealParameter(irregular.toString());
+
+        for (boolean normalize : new boolean [] {false, true}) {
+            double [] logP = new double[3];
+            RealParameter [] parameters = {null, times, irregularTimes};
+            for (int j = 0; j < 3; j++) {
+                OUPrior prior = new OUPrior();
+                prior.initByName("x", x, "times", j == 0 ? grid : parameters[j], "mean", new RealParameter("0.5"),
+                                 "sigma", new RealParameter("1.5"), "nu", new RealParameter("0.3"),
+                                 "logspace", true, "normalize", normalize);
+                logP[j] = prior.calculateLogP();
+            }
+            assertEquals(logP[1], logP[0], 1e-12*(100 + Math.abs(logP[1])));
+            assertTrue(Math.abs(logP[2] - logP[1]) > 1e-6);
+        }
+
+        double [] logP = new double[2];
+        RealParameter [] parameters = {null, times};
+        for (int j = 0; j < 2; j++) {
+            BMPrior prior = new BMPrior();
+            prior.initByName("x", x, "times", j == 0 ? grid : parameters[j], "sigma", new RealParameter("0.7"));
+            logP[j] = prior.calculateLogP();
+        }
+        assertEquals(logP[1], logP[0], 1e-12*(100 + Math.abs(logP[1])));
+    }
+
+}
@@ -0,0 +1,219 @@
+package skylinetools.distributions;
+
+import beast.core.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.junit.Test;
+import test.beast.BEASTTestCase;
+
+public class MultivariateOUPriorTest extends TestCase {
+
+    private static final double TOLERANCE = 1e-9;
+
+
+    /**
+     * Test that a single skyline gives the same log-likelihood as the OUPrior
+     */
+    @Test
+    public void testSingleSkyline() {
+
+        System.out.println("MultivariateOUPrior: Single skyline equal to OUPrior");
+
+        RealParameter x     = new RealParameter(),
+                      t     = new RealParameter(),
+                      mu    = new RealParameter(),
+                      sigma = new RealParameter(),
+                      nu    = new RealParameter();
+
+        x.initByName("value","3.0 1.0 2.5 1.7 0.2 4.0");
+        t.initByName("value","0.0 1.0 1.5 3.0 3.2 5.0");
+        mu.initByName("value","1");
+        sigma.initByName("value","1.3");
+        nu.initByName("value","0.7");
+
+        OUPrior ou = new OUPrior();
+        ou.initByName("x",x,"times",t,"mean",mu,"sigma",sigma,"nu",nu);
+
+        MultivariateOUPrior mvou = new MultivariateOUPrior();
+        mvou.initByName("x",x,"times",t,"mean",mu,"sigma",sigma,"drift",nu);
+
+        double expected = ou.calculateLogP(),
+               result   = mvou.calculateLogP();
+
+        System.out.println(expected+"\t"+result);
+        assertEquals(expected, result, TOLERANCE);
+
+        // Value calculated in R (see OUPriorLkTest)
+        RealParameter x2     = new RealParameter(),
+                      t2     = new RealParameter(),
+                      sigma2 = new RealParameter(),
+                      nu2    = new RealParameter();
+        x2.initByName("value","3.0 1.0");
+        t2.initByName("value","0.0 1.0");
+        sigma2.initByName("value","1");
+        nu2.initByName("value","5");
+
+        mvou = new MultivariateOUPrior();
+        mvou.initByName("x",x2,"times",t2,"mean",mu,"sigma",sigma2,"drift",nu2);
+        assertEquals(1.150407, mvou.calculateLogP(), BEASTTestCase.PRECISION);
+    }
+
+
+    /**
+     * Test that a diagonal drift matrix gives the sum of independent OUPriors on each skyline
+     */
+    @Test
+    public void testDiagonalDrift() {
+
+        System.out.println("MultivariateOUPrior: Diagonal drift equal to independent OUPriors");
+
+        String [] skylines = {"3.0 1.0 2.5 1.7 0.2", "0.5 0.8 1.9 2.2 2.0", "1.0 -1.0 0.0 0.3 0.1"};
+        double [] means  = {1.0, 1.5, 0.0},
+                  sigmas = {1.3, 0.4, 2.0},
+                  nus    = {0.7, 2.0, 0.1};
+
+        RealParameter t = new RealParameter();
+        t.initByName("value","0.0 1.0 2.0 3.0 3.5");
+
+        double expected = 0;
+        StringBuilder all = new StringBuilder();
+        for (int j = 0; j < 3; j++) {
+            RealParameter x     = new RealParameter(),
+                          mu    = new RealParameter(),
+                          sigma = new RealParameter(),
+                          nu    = new RealParameter();
+            x.initByName("value",skylines[j]);
+            mu.initByName("value",""+means[j]);
+            sigma.initByName("value",""+sigmas[j]);
+            nu.initByName("value",""+nus[j]);
+
+            OUPrior ou = new OUPrior();
+            ou.initByName("x",x,"times",t,"mean",mu,"sigma",sigma,"nu",nu);
+            expected += ou.calculateLogP();
+        }
+
+        // Interleave the skylines (stride 3)
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 3; j++) {
+                all.append(skylines[j].split(" ")[i]).append(" ");
+            }
+        }
+
+        RealParameter x     = new RealParameter(),
+                      mu    = new RealParameter(),
+                      sigma = new RealParameter(),
+                      drift = new RealParameter();
+        x.initByName("value",all.toString(),"minordimension",3);
+        mu.initByName("value","1.0 1.5 0.0");
+        sigma.initByName("value","1.3 0.4 2.0");
+        drift.initByName("value","0.7 0 0 0 2.0 0 0 0 0.1");
+
+        MultivariateOUPrior mvou = new MultivariateOUPrior();
+        mvou.initByName("x",x,"times",t,"mean",mu,"sigma",sigma,"drift",drift);
+
+        double result = mvou.calculateLogP();
+        System.out.println(expected+"\t"+result);
+        assertEquals(expected, result, TOLERANCE);
+
+        // Cached transitions are reused, but recalculated when the drift changes
+        assertEquals(expected, mvou.calculateLogP(), TOLERANCE);
+        drift.setValue(0, 5.0);
+        assertTrue(Math.abs(mvou.calculateLogP() - expected) > 1e-3);
+        drift.setValue(0, 0.7);
+        assertEquals(expected, mvou.calculateLogP(), TOLERANCE);
+    }
+
+
+    /**
+     * Test correlated skylines against the transition density with the matrix exponential calculated as a power
+     * series and the covariance by numerical integration
+     */
+    @Test
+    public void testCorrelatedDrift() {
+
+        System.out.println("MultivariateOUPrior: Correlated drift");
+
+        double [] a = {1.0, 0.4, 0.4, 0.6},
+                  s = {0.8, 1.5},
+                  m = {0.5, -0.5},
+                  y = {1.0, 0.0, 0.3, 0.4, -0.2, 1.1, 0.9, 0.2},
+                  times = {0.0, 0.7, 1.2, 2.9};
+
+        double expected = 0;
+        for (int i = 1; i < times.length; i++) {
+            double dt = times[i] - times[i-1];
+            double [] phi = expm(a, -dt),
+                      v   = new double[4];
+
+            // Simpson's rule for int_0^dt exp(-As) S^2 exp(-As) ds
+            int steps = 2000;
+            for (int step = 0; step <= steps; step++) {
+                double weight = step == 0 || step == steps ? 1 : (step % 2 == 1 ? 4 : 2);
+                double [] e = expm(a, -dt*step/steps);
+                for (int p = 0; p < 2; p++) {
+                    for (int q = 0; q < 2; q++) {
+                        double sum = 0;
+                        for (int j = 0; j < 2; j++) {
+                            sum += e[p*2 + j] * s[j] * s[j] * e[q*2 + j];
+                        }
+                        v[p*2 + q] += weight * sum * dt / (3*steps);
+                    }
+                }
+            }
+
+            double [] r = new double[2];
+            for (int p = 0; p < 2; p++) {
+                r[p] = y[i*2 + p] - m[p];
+                for (int q = 0; q < 2; q++) {
+                    r[p] -= phi[p*2 + q] * (y[(i-1)*2 + q] - m[q]);
+                }
+            }
+            double det = v[0]*v[3] - v[1]*v[2],
+                   quadratic = (r[0]*r[0]*v[3] - 2*r[0]*r[1]*v[1] + r[1]*r[1]*v[0]) / det;
+
+            expected -= 0.5*Math.log(det) + 0.5*quadratic;
+        }
+
+        RealParameter x     = new RealParameter(),
+                      t     = new RealParameter(),
+                      mu    = new RealParameter(),
+                      sigma = new RealParameter(),
+                      drift = new RealParameter();
+        x.initByName("value","1.0 0.0 0.3 0.4 -0.2 1.1 0.9 0.2","minordimension",2);
+        t.initByName("value","0.0 0.7 1.2 2.9");
+        mu.initByName("value","0.5 -0.5");
+        sigma.initByName("value","0.8 1.5");
+        drift.initByName("value","1.0 0.4 0.4 0.6");
+
+        MultivariateOUPrior mvou = new MultivariateOUPrior();
+        mvou.initByName("x",x,"times",t,"mean",mu,"sigma",sigma,"drift",drift);
+
+        double result = mvou.calculateLogP();
+        System.out.println(expected+"\t"+result);
+        assertEquals(expected, result, 1e-7);
+    }
+
+
+    /**
+     * exp(scale*A) for a 2 x 2 matrix as a power series
+     */
+    private static double [] expm(double [] a, double scale) {
+        double [] result = {1, 0, 0, 1},
+                  term   = {1, 0, 0, 1};
+        for (int n = 1; n < 60; n++) {
+            double [] next = new double[4];
+            for (int p = 0; p < 2; p++) {
+                for (int q = 0; q < 2; q++) {
+                    for (int j = 0; j < 2; j++) {
+                        next[p*2 + q] += term[p*2 + j] * a[j*2 + q] * scale / n;
+                    }
+                }
+            }
+            term = next;
+            for (int i = 0; i < 4; i++) {
+                result[i] += term[i];
+            }
+        }
+        return result;
+    }
+
+}
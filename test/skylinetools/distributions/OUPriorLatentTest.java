@@ -0,0 +1,144 @@
+package skylinetools.distributions;
+
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class OUPriorLatentTest extends TestCase {
+
+    private static final double TOLERANCE = 1e-10;
+
+
+    private static OUPrior createPrior(String x, String t, String observed, boolean logspace) {
+        RealParameter xParameter = new RealParameter(),
+                      tParameter = new RealParameter(),
+                      mu         = new RealParameter(),
+                      sigma      = new RealParameter(),
+                      nu         = new RealParameter();
+
+        xParameter.initByName("value",x);
+        tParameter.initByName("value",t);
+        mu.initByName("value","1");
+        sigma.initByName("value","1.3");
+        nu.initByName("value","0.7");
+
+        OUPrior prior = new OUPrior();
+        if (observed == null) {
+            prior.initByName("x",xParameter,"times",tParameter,"mean",mu,"sigma",sigma,"nu",nu,"logspace",logspace);
+        } else {
+            IntegerParameter observedParameter = new IntegerParameter();
+            observedParameter.initByName("value",observed);
+            prior.initByName("x",xParameter,"times",tParameter,"mean",mu,"sigma",sigma,"nu",nu,"logspace",logspace,
+                             "observed",observedParameter);
+        }
+        return prior;
+    }
+
+
+    /**
+     * Test that the density is unchanged when every time is observed
+     */
+    @Test
+    public void testAllObserved() {
+
+        System.out.println("OUPrior latent: All times observed");
+
+        String x = "3.0 1.0 2.5 1.7 0.2 4.0",
+               t = "0.0 1.0 1.5 3.0 3.2 5.0";
+
+        double expected = createPrior(x, t, null, true).calculateLogP(),
+               result   = createPrior(x, t, "0 1 2 3 4 5", true).calculateLogP();
+
+        System.out.println(expected+"\t"+result);
+        assertEquals(expected, result, TOLERANCE);
+    }
+
+
+    /**
+     * Test that integrating out latent times between observed times gives the density on the observed times only
+     */
+    @Test
+    public void testLatentBetweenObserved() {
+
+        System.out.println("OUPrior latent: Latent times between observed times");
+
+        double expected = createPrior("3.0 1.7 4.0", "0.0 3.0 5.0", null, false).calculateLogP(),
+               result   = createPrior("3.0 1.7 4.0", "0.0 1.0 1.5 3.0 3.2 5.0", "0 3 5", false).calculateLogP();
+
+        System.out.println(expected+"\t"+result);
+        assertEquals(expected, result, TOLERANCE);
+
+        // Latent times after the last observed time integrate to 1
+        result = createPrior("3.0 1.7", "0.0 1.0 1.5 3.0 3.2 5.0", "0 3", false).calculateLogP();
+        expected = createPrior("3.0 1.7", "0.0 3.0", null, false).calculateLogP();
+        assertEquals(expected, result, TOLERANCE);
+    }
+
+
+    /**
+     * Test that the first observed value is drawn from the stationary distribution if x0 is latent
+     */
+    @Test
+    public void testLatentStart() {
+
+        System.out.println("OUPrior latent: Latent x0");
+
+        double stationary = 1.3*1.3/(2*0.7),
+               term = 1.7 - 1.0;
+
+        double expected = -Math.log(stationary)/2 - term*term/(2*stationary) +
+                          createPrior("1.7 4.0", "3.0 5.0", null, false).calculateLogP(),
+               result   = createPrior("1.7 4.0", "0.0 1.0 1.5 3.0 3.2 5.0", "3 5", false).calculateLogP();
+
+        System.out.println(expected+"\t"+result);
+        assertEquals(expected, result, TOLERANCE);
+    }
+
+
+    /**
+     * Test sampled latent values against the conditional distribution of the stationary Gaussian process
+     * (Cov(x_s, x_t) = sigma^2/(2 nu) exp(-nu |t-s|))
+     */
+    @Test
+    public void testSampleTrajectory() {
+
+        System.out.println("OUPrior latent: Sample latent values");
+
+        Randomizer.setSeed(127);
+        OUPrior prior = createPrior("3.0 0.5", "0.0 1.0 1.6", "0 2", false);
+
+        double stationary = 1.3*1.3/(2*0.7);
+        double [] t = {0.0, 1.0, 1.6},
+                  y = {3.0 - 1.0, 0.5 - 1.0};
+
+        // Condition x_1 on x_0 and x_2
+        double c10 = stationary*Math.exp(-0.7*(t[1]-t[0])),
+               c12 = stationary*Math.exp(-0.7*(t[2]-t[1])),
+               c02 = stationary*Math.exp(-0.7*(t[2]-t[0])),
+               det = stationary*stationary - c02*c02,
+               w0  = (c10*stationary - c12*c02)/det,
+               w2  = (c12*stationary - c10*c02)/det,
+               expectedMean = 1.0 + w0*y[0] + w2*y[1],
+               expectedVar  = stationary - w0*c10 - w2*c12;
+
+        int samples = 100000;
+        double sum = 0, sumsq = 0;
+        double [] trajectory = new double[3];
+        for (int i = 0; i < samples; i++) {
+            prior.sampleTrajectory(trajectory);
+            assertEquals(3.0, trajectory[0], 0);
+            assertEquals(0.5, trajectory[2], 0);
+            sum += trajectory[1];
+            sumsq += trajectory[1]*trajectory[1];
+        }
+        double mean = sum/samples,
+               var  = sumsq/samples - mean*mean;
+
+        System.out.println(expectedMean+"\t"+mean+"\t"+expectedVar+"\t"+var);
+        assertEquals(expectedMean, mean, 0.01);
+        assertEquals(expectedVar, var, 0.01);
+    }
+
+}
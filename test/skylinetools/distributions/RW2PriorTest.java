@@ -0,0 +1,222 @@
+package skylinetools.distributions;
+
+import beast.core.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class RW2PriorTest extends TestCase {
+
+    private static final double TOLERANCE = 1e-9;
+
+
+    /**
+     * Reference log-density using dense matrices: the quadratic form is (Bx)'W^{-1}(Bx) and the log-determinant of
+     * the precision of x_2..x_n is calculated with a Cholesky decomposition of the dense matrix
+     */
+    private static double denseLogP(double [] x, double [] t, double tau) {
+        int dim = x.length, rows = dim - 2;
+
+        double [][] B = new double[rows][dim];
+        double [] w = new double[rows];
+        for (int r = 0; r < rows; r++) {
+            int i = r + 1;
+            double h0 = t[i] - t[i-1], h1 = t[i+1] - t[i];
+            B[r][i-1] = 1/h0;
+            B[r][i]   = -(1/h0 + 1/h1);
+            B[r][i+1] = 1/h1;
+            w[r] = (h0 + h1)/2;
+        }
+
+        double quadratic = 0;
+        for (int r = 0; r < rows; r++) {
+            double d = 0;
+            for (int j = 0; j < dim; j++) {
+                d += B[r][j]*x[j];
+            }
+            quadratic += d*d/w[r];
+        }
+
+        // Precision of x_2..x_n for tau = 1
+        double [][] Q = new double[rows][rows];
+        for (int a = 0; a < rows; a++) {
+            for (int b = 0; b < rows; b++) {
+                for (int r = 0; r < rows; r++) {
+                    Q[a][b] += B[r][a+2]*B[r][b+2]/w[r];
+                }
+            }
+        }
+
+        double [][] L = new double[rows][rows];
+        double logDet = 0;
+        for (int a = 0; a < rows; a++) {
+            for (int b = 0; b <= a; b++) {
+                double sum = Q[a][b];
+                for (int k = 0; k < b; k++) {
+                    sum -= L[a][k]*L[b][k];
+                }
+                if (a == b) {
+                    L[a][a] = Math.sqrt(sum);
+                    logDet += 2*Math.log(L[a][a]);
+                } else {
+                    L[a][b] = sum/L[b][b];
+                }
+            }
+        }
+
+        return rows/2.0*Math.log(tau) + 0.5*logDet - 0.5*tau*quadratic;
+    }
+
+
+    private static double [] randomTimes(Random random, int dim) {
+        double [] t = new double[dim];
+        for (int i = 1; i < dim; i++) {
+            t[i] = t[i-1] + 0.1 + random.nextDouble();
+        }
+        return t;
+    }
+
+    private static String toString(double [] values) {
+        StringBuilder builder = new StringBuilder();
+        for (double value : values) {
+            builder.append(value).append(" ");
+        }
+        return builder.toString();
+    }
+
+
+    /**
+     * Test log-density against the dense reference on random irregular grids
+     */
+    @Test
+    public void testDenseReference() {
+
+        System.out.println("RW2Prior: Compare to dense reference on irregular grids");
+
+        Random random = new Random(42);
+        for (int rep = 0; rep < 20; rep++) {
+            int dim = 3 + random.nextInt(30);
+
+            double [] t = randomTimes(random, dim),
+                      y = new double[dim];
+            for (int i = 0; i < dim; i++) {
+                y[i] = random.nextGaussian();
+            }
+            double tau = 0.5 + 2*random.nextDouble();
+
+            RealParameter x         = new RealParameter(),
+                          times     = new RealParameter(),
+                          precision = new RealParameter();
+            x.initByName("value", toString(y));
+            times.initByName("value", toString(t));
+            precision.initByName("value", ""+tau);
+
+            RW2Prior prior = new RW2Prior();
+            prior.initByName("x", x, "times", times, "precision", precision);
+
+            double expected = denseLogP(y, t, tau),
+                   result   = prior.calculateLogP();
+
+            assertEquals(expected, result, TOLERANCE);
+        }
+    }
+
+
+    /**
+     * Test that the prior is applied to log(x) and that sigma is equivalent to precision 1/sigma^2
+     */
+    @Test
+    public void testLogSpaceSigma() {
+
+        System.out.println("RW2Prior: logspace and sigma");
+
+        double [] t = {0, 0.5, 2, 2.5, 4, 7},
+                  y = {1.5, 2.0, 0.7, 3.1, 2.2, 0.4},
+                  logY = new double[y.length];
+        for (int i = 0; i < y.length; i++) {
+            logY[i] = Math.log(y[i]);
+        }
+
+        RealParameter x     = new RealParameter(),
+                      times = new RealParameter(),
+                      sigma = new RealParameter();
+        x.initByName("value", toString(y));
+        times.initByName("value", toString(t));
+        sigma.initByName("value", "0.8");
+
+        RW2Prior prior = new RW2Prior();
+        prior.initByName("x", x, "times", times, "sigma", sigma, "logspace", true);
+
+        assertEquals(denseLogP(logY, t, 1/(0.8*0.8)), prior.calculateLogP(), TOLERANCE);
+    }
+
+
+    /**
+     * Test that single-element updates (done incrementally), changes to the times and restoring give the same
+     * log-density as a new prior
+     */
+    @Test
+    public void testIncrementalUpdates() {
+
+        System.out.println("RW2Prior: Incremental updates, store and restore");
+
+        Random random = new Random(7);
+        int dim = 50;
+
+        double [] t = randomTimes(random, dim),
+                  y = new double[dim];
+        for (int i = 0; i < dim; i++) {
+            y[i] = random.nextGaussian();
+        }
+
+        RealParameter x         = new RealParameter(),
+                      times     = new RealParameter(),
+                      precision = new RealParameter();
+        x.initByName("value", toString(y));
+        times.initByName("value", toString(t));
+        precision.initByName("value", "1.5");
+
+        RW2Prior prior = new RW2Prior();
+        prior.initByName("x", x, "times", times, "precision", precision);
+        prior.calculateLogP();
+
+        for (int step = 0; step < 500; step++) {
+            prior.store();
+
+            double before = prior.calculateLogP(),
+                   tBefore = t[dim-1];
+            double [] yBefore = y.clone();
+
+            int changes = 1 + random.nextInt(3);
+            for (int c = 0; c < changes; c++) {
+                int i = random.nextInt(dim);
+                y[i] += random.nextGaussian();
+                x.setValue(i, y[i]);
+            }
+            if (step % 50 == 0) {
+                t[dim-1] += random.nextDouble();
+                times.setValue(dim-1, t[dim-1]);
+            }
+
+            assertEquals(denseLogP(y, t, 1.5), prior.calculateLogP(), TOLERANCE);
+
+            // Only the band around changed elements is copied by store/restore (unless the cache was rebuilt)
+            assertTrue(prior.allChanged || prior.changedCount <= 5*changes);
+
+            // Reject every other proposal
+            if (step % 2 == 1) {
+                for (int i = 0; i < dim; i++) {
+                    y[i] = yBefore[i];
+                    x.setValue(i, y[i]);
+                }
+                t[dim-1] = tBefore;
+                times.setValue(dim-1, tBefore);
+                prior.restore();
+
+                assertEquals(before, prior.calculateLogP(), TOLERANCE);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+package skylinetools.operators;
+
+import beast.core.BEASTObject;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.Logger;
+import beast.core.MCMC;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.core.util.CompoundDistribution;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+import skylinetools.distributions.BMPrior;
+import skylinetools.distributions.GaussianMarkovPrior;
+import skylinetools.distributions.OUPrior;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+
+public class EllipticalSliceOperatorTest extends TestCase {
+
+
+    /* Gaussian likelihood of observing one element of x */
+    public static class GaussianObservation extends Distribution {
+
+        final public Input<RealParameter> xInput = new Input<>("x", "Observed parameter", Input.Validate.REQUIRED);
+        final public Input<Integer> indexInput = new Input<>("index", "Observed element", 0);
+        final public Input<Double> valueInput = new Input<>("value", "Observation", 0.0);
+        final public Input<Double> varianceInput = new Input<>("variance", "Variance of the observation", 1.0);
+
+        @Override
+        public void initAndValidate() { }
+
+        @Override
+        public double calculateLogP() {
+            double residual = xInput.get().getValue(indexInput.get()) - valueInput.get();
+            logP = -residual*residual/(2*varianceInput.get());
+            return logP;
+        }
+
+        @Override
+        public List<String> getArguments() {
+            return null;
+        }
+
+        @Override
+        public List<String> getConditions() {
+            return null;
+        }
+
+        @Override
+        public void sample(State state, Random random) { }
+    }
+
+
+    /* Sums and sums of squares of x (or log(x)) at every logged sample */
+    public static class MomentLoggable extends BEASTObject implements Loggable {
+
+        final public Input<RealParameter> xInput = new Input<>("x", "Parameter to summarise", Input.Validate.REQUIRED);
+        final public Input<Boolean> logInput = new Input<>("log", "Summarise log(x)", false);
+
+        double [] sum, sumsq;
+        long count;
+
+        @Override
+        public void initAndValidate() {
+            sum   = new double[xInput.get().getDimension()];
+            sumsq = new double[sum.length];
+        }
+
+        @Override
+        public void init(PrintStream out) { }
+
+        @Override
+        public void log(long sample, PrintStream out) {
+            for (int i = 0; i < sum.length; i++) {
+                double value = xInput.get().getValue(i);
+                if (logInput.get()) {
+                    value = Math.log(value);
+                }
+                sum[i] += value;
+                sumsq[i] += value*value;
+            }
+            count++;
+        }
+
+        @Override
+        public void close(PrintStream out) { }
+
+        double getMean(int i) {
+            return sum[i]/count;
+        }
+
+        double getVariance(int i) {
+            return sumsq[i]/count - getMean(i)*getMean(i);
+        }
+    }
+
+
+    private static File tempFile(String suffix) throws IOException {
+        File file = File.createTempFile("ellipticalslice", suffix);
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+
+    /* Run an MCMC chain on x with only the EllipticalSliceOperator and return the moments of every sample */
+    private static MomentLoggable run(RealParameter x, GaussianMarkovPrior prior, Distribution likelihood, boolean log,
+                                      long chainLength) throws Exception {
+
+        State state = new State();
+        state.initByName("stateNode", x);
+
+        CompoundDistribution posterior = new CompoundDistribution();
+        if (likelihood == null) {
+            posterior.initByName("distribution", prior);
+        } else {
+            posterior.initByName("distribution", prior, "distribution", likelihood);
+        }
+
+        EllipticalSliceOperator operator = new EllipticalSliceOperator();
+        operator.initByName("prior", prior, "posterior", posterior, "weight", 1.0);
+
+        MomentLoggable moments = new MomentLoggable();
+        moments.initByName("x", x, "log", log);
+
+        Logger logger = new Logger();
+        logger.initByName("fileName", tempFile(".log").getPath(), "logEvery", 1, "log", moments);
+
+        MCMC mcmc = new MCMC();
+        mcmc.initByName("chainLength", chainLength, "state", state, "distribution", posterior, "operator", operator,
+                        "logger", logger);
+        mcmc.setStateFile(tempFile(".state").getPath(), false);
+        mcmc.run();
+
+        return moments;
+    }
+
+
+    /**
+     * Test posterior moments under a BMPrior with a Gaussian likelihood on the last value (conjugate, so the posterior
+     * is known exactly)
+     *
+     * With x_0 = 0, times 0, 1, 2 and precision 2 the prior on (x_1, x_2) has variances 0.5 and 1 and covariance 0.5.
+     * Observing 1.5 with variance 0.5 on x_2 gives posterior means 0.5 and 1 and variances 1/3 and 1/3.
+     */
+    @Test
+    public void testBMPriorConjugate() throws Exception {
+
+        System.out.println("EllipticalSliceOperator: BMPrior with Gaussian likelihood");
+
+        Randomizer.setSeed(42);
+
+        RealParameter x         = new RealParameter(),
+                      t         = new RealParameter(),
+                      precision = new RealParameter();
+        x.initByName("value","0.0 0.0 0.0");
+        x.setID("x");
+        t.initByName("value","0.0 1.0 2.0");
+        precision.initByName("value","2.0");
+
+        BMPrior prior = new BMPrior();
+        prior.initByName("x",x,"times",t,"precision",precision);
+
+        GaussianObservation likelihood = new GaussianObservation();
+        likelihood.initByName("x",x,"index",2,"value",1.5,"variance",0.5);
+
+        MomentLoggable moments = run(x, prior, likelihood, false, 100000);
+
+        double [] expectedMean = {0, 0.5, 1.0},
+                  expectedVar  = {0, 1.0/3, 1.0/3};
+        for (int i = 0; i < 3; i++) {
+            System.out.println(expectedMean[i]+"\t"+moments.getMean(i)+"\t"+expectedVar[i]+"\t"+moments.getVariance(i));
+            assertEquals(expectedMean[i], moments.getMean(i), 0.02);
+            assertEquals(expectedVar[i], moments.getVariance(i), 0.02);
+        }
+    }
+
+
+    /**
+     * Test that the Jacobian is included for an OUPrior on log(x)
+     *
+     * Without a likelihood the posterior on x is proportional to the Gaussian density of log(x), so on y = log(x_1) it is
+     * N(m, v) exp(y), i.e. N(m + v, v), where m and v are the OU transition mean and variance.
+     */
+    @Test
+    public void testOUPriorLogSpace() throws Exception {
+
+        System.out.println("EllipticalSliceOperator: OUPrior in logspace");
+
+        Randomizer.setSeed(7);
+
+        RealParameter x     = new RealParameter(),
+                      t     = new RealParameter(),
+                      mu    = new RealParameter(),
+                      sigma = new RealParameter(),
+                      nu    = new RealParameter();
+        x.initByName("value","2.0 1.0");
+        x.setID("x");
+        t.initByName("value","0.0 0.8");
+        mu.initByName("value","0.5");
+        sigma.initByName("value","1.2");
+        nu.initByName("value","0.9");
+
+        OUPrior prior = new OUPrior();
+        prior.initByName("x",x,"times",t,"mean",mu,"sigma",sigma,"nu",nu,"logspace",true);
+
+        MomentLoggable moments = run(x, prior, null, true, 100000);
+
+        double decay = Math.exp(-0.9*0.8),
+               m = 0.5 + (Math.log(2.0) - 0.5)*decay,
+               v = 1.2*1.2/(2*0.9)*(1 - decay*decay);
+
+        System.out.println((m+v)+"\t"+moments.getMean(1)+"\t"+v+"\t"+moments.getVariance(1));
+        assertEquals(Math.log(2.0), moments.getMean(0), 1e-9);
+        assertEquals(m + v, moments.getMean(1), 0.02);
+        assertEquals(v, moments.getVariance(1), 0.02);
+    }
+
+}
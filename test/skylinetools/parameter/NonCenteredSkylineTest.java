@@ -0,0 +1,237 @@
+package skylinetools.parameter;
+
+import beast.core.Distribution;
+import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+import skylinetools.distributions.BMPrior;
+import skylinetools.distributions.OUPrior;
+import skylinetools.operators.NonCenteredScaleOperator;
+
+import java.util.Arrays;
+
+public class NonCenteredSkylineTest extends TestCase {
+
+    private static final double TOLERANCE = 1e-10;
+
+    private static final String INCREMENTS = "0.5 -1.2 0.3 2.0 -0.7",
+                                TIMES      = "0.0 1.0 1.5 3.0 3.2 5.0";
+
+
+    private static String toString(NonCenteredSkyline skyline) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < skyline.getDimension(); i++) {
+            builder.append(skyline.getArrayValue(i)).append(" ");
+        }
+        return builder.toString();
+    }
+
+
+    /**
+     * Test that a Brownian-motion skyline is built from the increments and that the BMPrior of the non-centered skyline
+     * differs from the BMPrior of the same (centered) values by the Jacobian of the transformation
+     */
+    @Test
+    public void testBrownianMotion() {
+
+        System.out.println("NonCenteredSkyline: Brownian motion");
+
+        RealParameter z         = new RealParameter(),
+                      x0        = new RealParameter(),
+                      t         = new RealParameter(),
+                      precision = new RealParameter();
+        z.initByName("value",INCREMENTS);
+        x0.initByName("value","0.4");
+        t.initByName("value",TIMES);
+        precision.initByName("value","2.5");
+
+        NonCenteredSkyline skyline = new NonCenteredSkyline();
+        skyline.initByName("increments",z,"x0",x0,"times",t,"precision",precision,"logspace",true);
+
+        double [] times = {0.0, 1.0, 1.5, 3.0, 3.2, 5.0},
+                  increments = {0.5, -1.2, 0.3, 2.0, -0.7};
+        double y = 0.4, jacobian = 0;
+        assertEquals(Math.exp(y), skyline.getArrayValue(0), TOLERANCE);
+        for (int i = 1; i < 6; i++) {
+            double sd = Math.sqrt((times[i]-times[i-1])/2.5);
+            y += sd*increments[i-1];
+            jacobian += Math.log(sd);
+            assertEquals(Math.exp(y), skyline.getArrayValue(i), TOLERANCE);
+        }
+
+        BMPrior nonCentered = new BMPrior();
+        nonCentered.initByName("x",skyline,"times",t,"precision",precision,"logspace",true);
+
+        RealParameter x = new RealParameter();
+        x.initByName("value",toString(skyline));
+        BMPrior centered = new BMPrior();
+        centered.initByName("x",x,"times",t,"precision",precision,"logspace",true);
+
+        System.out.println(centered.calculateLogP()+"\t"+nonCentered.calculateLogP());
+        assertEquals(centered.calculateLogP() + jacobian, nonCentered.calculateLogP(), TOLERANCE);
+    }
+
+
+    /**
+     * Test that an Ornstein-Uhlenbeck skyline is built from the increments and that the OUPrior of the non-centered
+     * skyline differs from the OUPrior of the same (centered) values by the Jacobian of the transformation
+     */
+    @Test
+    public void testOrnsteinUhlenbeck() {
+
+        System.out.println("NonCenteredSkyline: Ornstein-Uhlenbeck");
+
+        RealParameter z     = new RealParameter(),
+                      x0    = new RealParameter(),
+                      t     = new RealParameter(),
+                      mu    = new RealParameter(),
+                      sigma = new RealParameter(),
+                      nu    = new RealParameter();
+        z.initByName("value",INCREMENTS);
+        x0.initByName("value","3.0");
+        t.initByName("value",TIMES);
+        mu.initByName("value","1");
+        sigma.initByName("value","1.3");
+        nu.initByName("value","0.7");
+
+        NonCenteredSkyline skyline = new NonCenteredSkyline();
+        skyline.initByName("increments",z,"x0",x0,"times",t,"mean",mu,"sigma",sigma,"nu",nu);
+
+        double [] times = {0.0, 1.0, 1.5, 3.0, 3.2, 5.0};
+        double jacobian = 0;
+        for (int i = 1; i < 6; i++) {
+            double decay = Math.exp(-0.7*(times[i]-times[i-1]));
+            jacobian += 0.5*Math.log(1.3*1.3/(2*0.7)*(1-decay*decay));
+        }
+
+        OUPrior nonCentered = new OUPrior();
+        nonCentered.initByName("x",skyline,"times",t,"mean",mu,"sigma",sigma,"nu",nu);
+
+        RealParameter x = new RealParameter();
+        x.initByName("value",toString(skyline));
+        OUPrior centered = new OUPrior();
+        centered.initByName("x",x,"times",t,"mean",mu,"sigma",sigma,"nu",nu);
+
+        System.out.println(centered.calculateLogP()+"\t"+nonCentered.calculateLogP());
+        assertEquals(centered.calculateLogP() + jacobian, nonCentered.calculateLogP(), TOLERANCE);
+    }
+
+
+    /**
+     * Test that NonCenteredScaleOperator changes sigma/precision without changing the skyline and returns the right
+     * Hastings ratio
+     */
+    @Test
+    public void testNonCenteredScaleOperator() {
+
+        System.out.println("NonCenteredSkyline: NonCenteredScaleOperator");
+
+        Randomizer.setSeed(3);
+
+        for (String scaledName : new String[] {"sigma", "precision"}) {
+            RealParameter z      = new RealParameter(),
+                          x0     = new RealParameter(),
+                          t      = new RealParameter(),
+                          scaled = new RealParameter();
+            z.initByName("value",INCREMENTS);
+            x0.initByName("value","0.4");
+            t.initByName("value",TIMES);
+            scaled.initByName("value","2.5");
+
+            NonCenteredSkyline skyline = new NonCenteredSkyline();
+            skyline.initByName("increments",z,"x0",x0,"times",t,scaledName,scaled);
+
+            NonCenteredScaleOperator operator = new NonCenteredScaleOperator();
+            operator.initByName("skyline",skyline,"weight",1.0);
+
+            for (int step = 0; step < 10; step++) {
+                double [] before = new double[6];
+                for (int i = 0; i < 6; i++) {
+                    before[i] = skyline.getArrayValue(i);
+                }
+                double oldValue = scaled.getValue();
+
+                double logHR = operator.proposal();
+                skyline.requiresRecalculation();
+
+                double scale = scaled.getValue() / oldValue,
+                       expected = scaledName.equals("sigma") ? -6*Math.log(scale) : -Math.log(scale) + 2.5*Math.log(scale);
+                assertEquals(expected, logHR, TOLERANCE);
+
+                for (int i = 0; i < 6; i++) {
+                    assertEquals(before[i], skyline.getArrayValue(i), TOLERANCE);
+                }
+            }
+        }
+    }
+
+
+    /* Check that initialising the prior with the inputs fails with an IllegalArgumentException */
+    private static void assertRejected(Distribution prior, Object... inputs) {
+        try {
+            prior.initByName(inputs);
+        } catch (RuntimeException e) {
+            Throwable cause = e;
+            while (!(cause instanceof IllegalArgumentException) && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            assertTrue(cause instanceof IllegalArgumentException);
+            System.out.println(cause.getMessage());
+            return;
+        }
+        fail("Prior with inputs "+Arrays.toString(inputs)+" should be rejected");
+    }
+
+
+    /**
+     * Test that priors on a non-centered skyline reject inputs that would be ignored (parameters that are not the
+     * skyline's, a different logspace, normalized times or the wrong process)
+     */
+    @Test
+    public void testPriorValidation() {
+
+        System.out.println("NonCenteredSkyline: Prior validation");
+
+        RealParameter z         = new RealParameter(),
+                      x0        = new RealParameter(),
+                      t         = new RealParameter(),
+                      t2        = new RealParameter(),
+                      mu        = new RealParameter(),
+                      sigma     = new RealParameter(),
+                      sigma2    = new RealParameter(),
+                      nu        = new RealParameter(),
+                      precision = new RealParameter();
+        z.initByName("value",INCREMENTS);
+        x0.initByName("value","3.0");
+        t.initByName("value",TIMES);
+        t2.initByName("value",TIMES);
+        mu.initByName("value","1");
+        sigma.initByName("value","1.3");
+        sigma2.initByName("value","1.3");
+        nu.initByName("value","0.7");
+        precision.initByName("value","2.5");
+
+        NonCenteredSkyline ou = new NonCenteredSkyline();
+        ou.initByName("increments",z,"x0",x0,"times",t,"mean",mu,"sigma",sigma,"nu",nu);
+
+        // Same parameters as the skyline, or not given
+        new OUPrior().initByName("x",ou,"times",t,"mean",mu,"sigma",sigma,"nu",nu);
+        new OUPrior().initByName("x",ou,"times",t);
+
+        assertRejected(new OUPrior(), "x",ou,"times",t,"mean",mu,"sigma",sigma2,"nu",nu);
+        assertRejected(new OUPrior(), "x",ou,"times",t2,"mean",mu,"sigma",sigma,"nu",nu);
+        assertRejected(new OUPrior(), "x",ou,"times",t,"mean",mu,"sigma",sigma,"nu",nu,"normalize",true);
+        assertRejected(new OUPrior(), "x",ou,"times",t,"mean",mu,"sigma",sigma,"nu",nu,"logspace",true);
+        assertRejected(new BMPrior(), "x",ou,"times",t,"sigma",sigma);
+
+        NonCenteredSkyline bm = new NonCenteredSkyline();
+        bm.initByName("increments",z,"x0",x0,"times",t,"precision",precision);
+
+        new BMPrior().initByName("x",bm,"times",t,"precision",precision);
+
+        assertRejected(new BMPrior(), "x",bm,"times",t,"sigma",sigma);
+        assertRejected(new OUPrior(), "x",bm,"times",t,"mean",mu,"sigma",sigma,"nu",nu);
+    }
+
+}
@@ -159,4 +159,91 @@ public class RealParameterSequenceTest extends TestCase {
         }
     }
 
+    @Test
+    public void testSeqGeometric() {
+
+        System.out.println("Test geometric sequence from 1 to 1000 with ratio 10 and length 4");
+
+        double [] expected = {1, 10, 100, 1000};
+
+        RealParameterSequence seq = new RealParameterSequence();
+        seq.initByName("from","1","to","1000","by","10","spacing","geometric");
+        assertEquals(expected.length, seq.getDimension());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], seq.getArrayValue(i), 1e-10*expected[i]);
+        }
+
+        seq = new RealParameterSequence();
+        seq.initByName("from","1","to","1000","dimension","4","spacing","geometric");
+        assertEquals(expected.length, seq.getDimension());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], seq.getArrayValue(i), 1e-10*expected[i]);
+        }
+
+        seq = new RealParameterSequence();
+        seq.initByName("from","-8","to","-1","by","0.5","spacing","geometric");
+        assertEquals(4, seq.getDimension());
+        assertEquals(-1.0, seq.getArrayValue(3), BEASTTestCase.PRECISION);
+        assertFalse(seq.isUniformGrid());
+    }
+
+    @Test
+    public void testSeqLog() {
+
+        System.out.println("Test log-spaced sequence from 10^-1 to 10^2 with length 4");
+
+        RealParameterSequence seq = new RealParameterSequence();
+        seq.initByName("from","-1","to","2","dimension","4","spacing","log");
+
+        double [] vals = seq.getDoubleValues(),
+                expected = {0.1, 1, 10, 100};
+
+        assertEquals(expected.length, seq.getDimension());
+        for (int i = 0; i < vals.length; i++) {
+            assertEquals(expected[i], vals[i], 1e-10*expected[i]);
+        }
+    }
+
+    @Test
+    public void testSeqLazy() {
+
+        System.out.println("Test lazy sequences are the same as stored sequences");
+
+        String [][] settings = {{"from","1","to","0","by","-0.1"},
+                                {"from","5.5","to","14.3","dimension","3"},
+                                {"from","0.5","to","40","by","2","spacing","geometric"},
+                                {"from","0","to","3","dimension","7","spacing","log","base","2"}};
+
+        for (String [] setting : settings) {
+            RealParameterSequence seq = new RealParameterSequence(),
+                                  lazy = new RealParameterSequence();
+            seq.initByName((Object []) setting);
+
+            Object [] lazySetting = java.util.Arrays.copyOf(setting, setting.length + 2, Object[].class);
+            lazySetting[setting.length] = "lazy";
+            lazySetting[setting.length + 1] = true;
+            lazy.initByName(lazySetting);
+
+            assertTrue(lazy.isLazy());
+            assertEquals(seq.getDimension(), lazy.getDimension());
+            for (int i = 0; i < seq.getDimension(); i++) {
+                assertEquals(seq.getArrayValue(i), lazy.getArrayValue(i));
+                assertEquals(seq.getValue(i), lazy.getValue(i));
+            }
+            assertTrue(java.util.Arrays.equals(seq.getDoubleValues(), lazy.getDoubleValues()));
+            assertTrue(java.util.Arrays.equals(seq.getValues(), lazy.getValues()));
+        }
+
+        RealParameterSequence lazy = new RealParameterSequence();
+        lazy.initByName("from","0","to","10","by","0.5","lazy",true);
+        assertTrue(lazy.isUniformGrid());
+        assertEquals(0.5, lazy.getGridStep());
+        try {
+            lazy.setValue(0, 1.0);
+            fail("Values of a lazy sequence cannot be changed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
 }
@@ -0,0 +1,82 @@
+package skylinetools.parameter;
+
+import beast.core.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class SkylineParameterTest extends TestCase {
+
+    /**
+     * Test piecewise-constant evaluation
+     */
+    @Test
+    public void testValueAt() {
+
+        System.out.println("SkylineParameter: Piecewise-constant evaluation");
+
+        RealParameter values = new RealParameter("1 2 3 4"),
+                      times  = new RealParameter("0 1 2 3");
+
+        SkylineParameter skyline = new SkylineParameter();
+        skyline.initByName("values", values, "times", times);
+
+        assertEquals(4, skyline.getDimension());
+        assertEquals(1.0, skyline.getValueAt(-1.0));
+        assertEquals(1.0, skyline.getValueAt(0.5));
+        assertEquals(2.0, skyline.getValueAt(1.0));
+        assertEquals(3.0, skyline.getValueAt(2.9));
+        assertEquals(4.0, skyline.getValueAt(10.0));
+    }
+
+
+    /**
+     * Test that dirty epochs are tracked correctly when values or times change
+     */
+    @Test
+    public void testDirtyEpochs() {
+
+        System.out.println("SkylineParameter: Dirty epochs");
+
+        RealParameter values = new RealParameter("1 2 3 4"),
+                      times  = new RealParameter("0 1 2 3");
+
+        SkylineParameter skyline = new SkylineParameter();
+        skyline.initByName("values", values, "times", times);
+
+        /* Nothing changed */
+        skyline.store();
+        skyline.requiresRecalculation();
+        assertFalse(skyline.valuesChanged());
+        assertFalse(skyline.timesChanged());
+        assertEquals(-1, skyline.getFirstDirtyEpoch());
+
+        /* Only one value changed */
+        skyline.store();
+        values.setValue(2, 5.0);
+        skyline.requiresRecalculation();
+        assertTrue(skyline.valuesChanged());
+        assertFalse(skyline.timesChanged());
+        assertEquals(2, skyline.getFirstDirtyEpoch());
+        assertEquals(2, skyline.getLastDirtyEpoch());
+        assertEquals(5.0, skyline.getValueAt(2.5));
+
+        /* Reject: back to the previous values, so the changed value is dirty again */
+        skyline.restore();
+        values.setValue(2, 3.0);
+        assertEquals(3.0, skyline.getValueAt(2.5));
+
+        /* Only one time changed, so both epochs next to it are dirty */
+        skyline.store();
+        times.setValue(1, 1.5);
+        skyline.requiresRecalculation();
+        assertFalse(skyline.valuesChanged());
+        assertTrue(skyline.timesChanged());
+        assertTrue(skyline.isEpochDirty(0));
+        assertTrue(skyline.isEpochDirty(1));
+        assertFalse(skyline.isEpochDirty(2));
+        assertEquals(0, skyline.getFirstDirtyEpoch());
+        assertEquals(1, skyline.getLastDirtyEpoch());
+        assertEquals(1.0, skyline.getValueAt(1.2));
+    }
+
+}
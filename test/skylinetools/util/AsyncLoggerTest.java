@@ -0,0 +1,207 @@
+package skylinetools.util;
+
+import beast.core.BEASTObject;
+import beast.core.Loggable;
+import beast.core.Logger;
+import beast.evolution.tree.Tree;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.zip.GZIPInputStream;
+
+public class AsyncLoggerTest extends TestCase {
+
+
+    /* Loggable with two columns depending on the sample number */
+    public static class SampleLoggable extends BEASTObject implements Loggable {
+
+        @Override
+        public void initAndValidate() { }
+
+        @Override
+        public void init(PrintStream out) {
+            out.print("half\tsquare\t");
+        }
+
+        @Override
+        public void log(long sample, PrintStream out) {
+            out.print(sample * 0.5 + "\t" + sample * sample + "\t");
+        }
+
+        @Override
+        public void close(PrintStream out) { }
+    }
+
+
+    /* Tree that logs its sample number in a NEXUS tree block */
+    public static class SampleTree extends Tree {
+
+        @Override
+        public void init(PrintStream out) {
+            out.println("#NEXUS");
+            out.println();
+            out.println("Begin taxa;");
+            out.println("\tDimensions ntax=2;");
+            out.println("End;");
+            out.println("Begin trees;");
+        }
+
+        @Override
+        public void log(long sample, PrintStream out) {
+            out.println("tree STATE_" + sample + " = (A:" + sample + ",B:1.0);");
+        }
+
+        @Override
+        public void close(PrintStream out) {
+            out.println("End;");
+        }
+    }
+
+
+    private static String expectedTrees(long from, long to, int every) {
+        StringBuilder builder = new StringBuilder();
+        String newline = System.getProperty("line.separator");
+        builder.append("#NEXUS").append(newline).append(newline).append("Begin taxa;").append(newline)
+               .append("\tDimensions ntax=2;").append(newline).append("End;").append(newline)
+               .append("Begin trees;").append(newline);
+        for (long sample = from; sample <= to; sample++) {
+            if (sample % every == 0) {
+                builder.append("tree STATE_").append(sample).append(" = (A:").append(sample).append(",B:1.0);").append(newline);
+            }
+        }
+        builder.append("End;").append(newline);
+        return builder.toString();
+    }
+
+
+    private static String expected(long from, long to, int every, boolean header) {
+        StringBuilder builder = new StringBuilder();
+        String newline = System.getProperty("line.separator");
+        if (header) {
+            builder.append("Sample\thalf\tsquare\t").append(newline);
+        }
+        for (long sample = from; sample <= to; sample++) {
+            if (sample % every == 0) {
+                builder.append(sample).append("\t").append(sample * 0.5).append("\t").append(sample * sample).append("\t").append(newline);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String read(File file, boolean gzip) throws IOException {
+        try (InputStream in = gzip ? new GZIPInputStream(new FileInputStream(file)) : new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte [] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString();
+        }
+    }
+
+    private static void run(File file, long from, long to, int every, int bufferSize) throws IOException {
+        run(file, from, to, every, bufferSize, new SampleLoggable());
+    }
+
+    private static void run(File file, long from, long to, int every, int bufferSize, Loggable loggable) throws IOException {
+        AsyncLogger logger = new AsyncLogger();
+        logger.initByName("fileName", file.getPath(), "logEvery", every, "bufferSize", bufferSize, "log", loggable);
+        logger.init();
+        for (long sample = from; sample <= to; sample++) {
+            logger.log(sample);
+        }
+        logger.close();
+    }
+
+
+    /**
+     * Test that the log is the same as written directly, with a buffer much smaller than the log (so the MCMC thread
+     * has to wait for the writer and rows are split)
+     */
+    @Test
+    public void testLog() throws IOException {
+
+        System.out.println("AsyncLogger: Plain text");
+
+        Logger.LogFileMode mode = Logger.FILE_MODE;
+        Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+        try {
+            File file = File.createTempFile("async", ".log");
+            file.deleteOnExit();
+
+            run(file, 0, 20000, 10, 16);
+            assertEquals(expected(0, 20000, 10, true), read(file, false));
+
+            run(file, 0, 100, 1, 1 << 20);
+            assertEquals(expected(0, 100, 1, true), read(file, false));
+        } finally {
+            Logger.FILE_MODE = mode;
+        }
+    }
+
+
+    /**
+     * Test gzip compression, and appending to an existing log when resuming (the resumed chain starts at sample 0 again,
+     * so sample numbers continue from the last sample in the log and the first row is not repeated)
+     */
+    @Test
+    public void testGzipResume() throws IOException {
+
+        System.out.println("AsyncLogger: gzip and resume");
+
+        Logger.LogFileMode mode = Logger.FILE_MODE;
+        try {
+            File file = File.createTempFile("async", ".log.gz");
+            file.deleteOnExit();
+
+            Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+            run(file, 0, 5000, 5, 256);
+            assertEquals(expected(0, 5000, 5, true), read(file, true));
+
+            Logger.FILE_MODE = Logger.LogFileMode.resume;
+            run(file, 0, 3000, 5, 256);
+            assertEquals(expected(0, 8000, 5, true), read(file, true));
+        } finally {
+            Logger.FILE_MODE = mode;
+        }
+    }
+
+
+    /**
+     * Test resuming plain and compressed tree logs (new trees are written inside the trees block)
+     */
+    @Test
+    public void testTreeResume() throws IOException {
+
+        System.out.println("AsyncLogger: Resume tree logs");
+
+        Logger.LogFileMode mode = Logger.FILE_MODE;
+        try {
+            for (boolean gzip : new boolean [] {false, true}) {
+                File file = File.createTempFile("async", gzip ? ".trees.gz" : ".trees");
+                file.deleteOnExit();
+
+                Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+                run(file, 0, 100, 10, 64, new SampleTree());
+                assertEquals(expectedTrees(0, 100, 10), read(file, gzip));
+
+                Logger.FILE_MODE = Logger.LogFileMode.resume;
+                run(file, 0, 50, 10, 64, new SampleTree());
+                assertEquals(expectedTrees(0, 150, 10), read(file, gzip));
+
+                run(file, 0, 20, 10, 64, new SampleTree());
+                assertEquals(expectedTrees(0, 170, 10), read(file, gzip));
+            }
+        } finally {
+            Logger.FILE_MODE = mode;
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package skylinetools.util;
+
+import beast.core.Logger;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+import skylinetools.distributions.OUPrior;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class CacheCheckpointerTest extends TestCase {
+
+    private static final String NEWICK  = "((((((G:1,F:2):1,E:4):1,D:6):1,C:8):1,B:10):1);",
+                                CHANGED = "((((((G:1,F:2):1,E:4):1,D:6):1,C:8):2,B:10):1);";
+
+    private TreeSlicer slicer;
+    private TreeEventSlicer eventSlicer;
+    private OUPrior prior;
+    private CacheCheckpointer checkpointer;
+
+
+    /* Create the objects on a new tree and add them to a new checkpointer */
+    private void create(String newick, File file) {
+        Tree tree = new TreeParser(newick, false);
+
+        slicer = new TreeSlicer();
+        slicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false", "dimension", "4");
+        slicer.setID("slicer");
+
+        eventSlicer = new TreeEventSlicer();
+        eventSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false", "dimension", "4", "breakAt", "samples");
+        eventSlicer.setID("events");
+
+        prior = new OUPrior();
+        prior.initByName("x", new RealParameter("1.0 2.0 1.5 0.5"), "times", slicer, "mean", new RealParameter("1.0"),
+                         "sigma", new RealParameter("0.5"), "nu", new RealParameter("0.2"));
+        prior.setID("prior");
+
+        checkpointer = new CacheCheckpointer();
+        checkpointer.initByName("fileName", file.getPath(), "logEvery", 10, "log", slicer, "log", eventSlicer, "log", prior);
+    }
+
+    /* Write the caches for NEWICK at sample 10 and return the values of the objects */
+    private Object [] write(File file) {
+        create(NEWICK, file);
+        checkpointer.log(5);
+        assertFalse(file.exists());
+        checkpointer.log(10);
+        assertTrue(file.exists());
+
+        return new Object[] {slicer.getValues(), eventSlicer.getValues(), prior.getDecays().clone(),
+                             prior.getStandardDeviations().clone()};
+    }
+
+    /* Resume from the sidecar with new objects and check their values */
+    private void resume(String newick, File file, Object [] expected, int restored) {
+        Logger.LogFileMode mode = Logger.FILE_MODE;
+        try {
+            Logger.FILE_MODE = Logger.LogFileMode.resume;
+            create(newick, file);
+
+            if (expected != null) {
+                assertTrue(Arrays.equals((Double []) expected[0], slicer.getValues()));
+                assertTrue(Arrays.equals((Double []) expected[1], eventSlicer.getValues()));
+                assertTrue(Arrays.equals((double []) expected[2], prior.getDecays()));
+                assertTrue(Arrays.equals((double []) expected[3], prior.getStandardDeviations()));
+            } else {
+                slicer.getValues();
+                eventSlicer.getValues();
+                prior.getDecays();
+            }
+            assertEquals(restored, checkpointer.getRestoredCount());
+        } finally {
+            Logger.FILE_MODE = mode;
+        }
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("checkpoint", ".cache");
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+
+    /**
+     * Test that the caches are restored for the same tree and give the same values
+     */
+    @Test
+    public void testRestore() throws IOException {
+
+        System.out.println("CacheCheckpointer: Restore caches");
+
+        File file = tempFile();
+        Object [] expected = write(file);
+        resume(NEWICK, file, expected, 3);
+
+        // The sidecar is only tried once
+        assertNull(slicer.checkpointer);
+        assertNull(eventSlicer.checkpointer);
+    }
+
+
+    /**
+     * Test that the caches of the slicers are not used if the tree changed (the prior checks its own caches)
+     */
+    @Test
+    public void testChangedTree() throws IOException {
+
+        System.out.println("CacheCheckpointer: Changed tree");
+
+        File file = tempFile();
+        write(file);
+
+        create(CHANGED, tempFile());
+        Object [] expected = {slicer.getValues(), eventSlicer.getValues(), prior.getDecays().clone(),
+                              prior.getStandardDeviations().clone()};
+        resume(CHANGED, file, expected, 1);
+    }
+
+
+    /**
+     * Test that nothing is restored from a damaged sidecar, or when not resuming
+     */
+    @Test
+    public void testDamaged() throws IOException {
+
+        System.out.println("CacheCheckpointer: Damaged sidecar");
+
+        File file = tempFile();
+        Object [] expected = write(file);
+
+        create(NEWICK, file);
+        slicer.getValues();
+        eventSlicer.getValues();
+        prior.getDecays();
+        assertEquals(0, checkpointer.getRestoredCount());
+
+        try (RandomAccessFile damaged = new RandomAccessFile(file, "rw")) {
+            damaged.seek(damaged.length() / 2);
+            int b = damaged.read();
+            damaged.seek(damaged.length() / 2);
+            damaged.write(b ^ 0xff);
+        }
+        resume(NEWICK, file, expected, 0);
+    }
+
+}
@@ -0,0 +1,87 @@
+package skylinetools.util;
+
+import beast.core.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+public class ESSMonitorTest extends TestCase {
+
+
+    /**
+     * Test batch means ESS on independent samples (ESS = n) and an AR(1) process (ESS = n (1-rho)/(1+rho))
+     */
+    @Test
+    public void testBatchMeans() {
+
+        System.out.println("ESSMonitor: Batch means");
+
+        Random random = new Random(17);
+        int n = 200000;
+        double rho = 0.9;
+
+        ESSMonitor.BatchMeans independent = new ESSMonitor.BatchMeans(64),
+                              correlated  = new ESSMonitor.BatchMeans(64);
+        double x = 0;
+        for (int i = 0; i < n; i++) {
+            independent.add(random.nextGaussian());
+            x = rho * x + Math.sqrt(1 - rho*rho) * random.nextGaussian();
+            correlated.add(x);
+        }
+
+        double expected = n * (1 - rho) / (1 + rho);
+        System.out.println(independent.getESS() + "\t" + n);
+        System.out.println(correlated.getESS() + "\t" + expected);
+
+        assertEquals(n, independent.getCount());
+        assertTrue(independent.getESS() > 0.6 * n);
+        assertTrue(independent.getESS() <= n);
+        assertEquals(expected, correlated.getESS(), 0.35 * expected);
+    }
+
+
+    /**
+     * Test the monitor on a parameter with a changing and a constant value, including burnin and the stop file
+     */
+    @Test
+    public void testMonitor() throws IOException {
+
+        System.out.println("ESSMonitor: Monitor");
+
+        File stopFile = File.createTempFile("ess", ".stop");
+        stopFile.delete();
+        stopFile.deleteOnExit();
+
+        RealParameter parameter = new RealParameter();
+        parameter.initByName("value", "0 1");
+        parameter.setID("x");
+
+        ESSMonitor monitor = new ESSMonitor();
+        monitor.initByName("function", parameter, "threshold", 500.0, "burnin", 1000L, "stopFile", stopFile.getPath());
+        assertEquals(2, monitor.getDimension());
+
+        Random random = new Random(3);
+        long sample = 0;
+        for (; sample < 1000; sample++) {
+            parameter.setValue(0, 100.0);
+            monitor.update(sample);
+        }
+        assertTrue(Double.isNaN(monitor.getArrayValue(0)));
+
+        while (!monitor.isConverged()) {
+            parameter.setValue(0, random.nextGaussian());
+            monitor.update(sample++);
+            assertEquals(stopFile.exists(), monitor.isConverged());
+        }
+
+        // Burnin is not included and the constant value has ESS n
+        assertTrue(sample - 1000 >= 500);
+        assertTrue(sample - 1000 < 2000);
+        assertEquals((double) (sample - 1000), monitor.getArrayValue(1), 0);
+        assertTrue(monitor.getArrayValue() >= 500);
+    }
+
+}
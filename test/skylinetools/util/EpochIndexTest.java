@@ -0,0 +1,85 @@
+package skylinetools.util;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class EpochIndexTest extends TestCase {
+
+    /**
+     * Test binary search for the epoch of a height
+     */
+    @Test
+    public void testEpochOf() {
+
+        System.out.println("EpochIndex: Epoch of heights");
+
+        double [] times = {0.0, 1.0, 2.5, 2.5, 7.0};
+
+        assertEquals(0, EpochIndex.epochOf(times, 5, -1.0));
+        assertEquals(0, EpochIndex.epochOf(times, 5, 0.0));
+        assertEquals(0, EpochIndex.epochOf(times, 5, 0.99));
+        assertEquals(1, EpochIndex.epochOf(times, 5, 1.0));
+        assertEquals(3, EpochIndex.epochOf(times, 5, 2.5));
+        assertEquals(3, EpochIndex.epochOf(times, 5, 6.0));
+        assertEquals(4, EpochIndex.epochOf(times, 5, 7.0));
+        assertEquals(4, EpochIndex.epochOf(times, 5, 100.0));
+        assertEquals(0, EpochIndex.epochOf(times, 1, 100.0));
+    }
+
+
+    /**
+     * Test epochs of nodes in a tree, before and after the tree changes
+     */
+    @Test
+    public void testNodeEpochs() {
+
+        System.out.println("EpochIndex: Epochs of nodes (equidistant slices)");
+
+        /*   Heights: C = 0, B = 1, A = 2, (A,B) = 3, root = 4
+
+             4 intervals: (0, 1, 2, 3)
+         */
+        Tree tree = new TreeParser("((A:1.0,B:2.0):1.0,C:4.0);", false);
+
+        TreeSlicer treeSlicer = new TreeSlicer();
+        treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false", "dimension", "4");
+
+        EpochIndex index = new EpochIndex();
+        index.initByName("treeSlice", treeSlicer);
+
+        assertEquals(5, index.getDimension());
+        for (Node node : tree.getNodesAsArray()) {
+            assertEquals(Math.min(3, (int) node.getHeight()), index.getEpoch(node));
+        }
+        assertEquals(5, index.lookups);
+
+        /* Nothing changed, so no nodes are looked up again */
+        treeSlicer.requiresRecalculation();
+        index.requiresRecalculation();
+        index.getEpoch(0);
+        assertEquals(0, index.lookups);
+
+        /* Heights: C = 0, B = 1, A = 2, (A,B) = 6, root = 8 (tip heights are not scaled) and slices at (0, 2, 4, 6) */
+        tree.scale(2.0);
+        treeSlicer.requiresRecalculation();
+        index.requiresRecalculation();
+
+        for (Node node : tree.getNodesAsArray()) {
+            int expected;
+            if (node.getHeight() < 2.0)
+                expected = 0;
+            else
+            if (node.getHeight() < 6.0)
+                expected = 1;
+            else
+                expected = 3;
+            assertEquals(expected, index.getEpoch(node));
+        }
+        assertEquals(5, index.lookups);
+        assertEquals(3, index.getEpochOfHeight(tree.getRoot().getHeight()));
+    }
+
+}
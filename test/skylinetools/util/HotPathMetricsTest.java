@@ -0,0 +1,151 @@
+package skylinetools.util;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class HotPathMetricsTest extends TestCase {
+
+    /**
+     * Test that every value falls in a bucket with an upper bound no more than 12.5% above it
+     */
+    @Test
+    public void testBuckets() {
+
+        System.out.println("HotPathMetrics: Histogram bucket bounds");
+
+        for (long value = 0; value < 100000; value++) {
+            int bucket = HotPathMetrics.Timer.bucket(value);
+            long upper = HotPathMetrics.Timer.bucketUpperBound(bucket);
+
+            assertTrue(upper >= value);
+            assertTrue(upper <= value + value / 8);
+            if (bucket > 0) {
+                assertTrue(HotPathMetrics.Timer.bucketUpperBound(bucket - 1) < value);
+            }
+        }
+
+        int bucket = HotPathMetrics.Timer.bucket(Long.MAX_VALUE);
+        assertTrue(bucket < HotPathMetrics.Timer.BUCKETS);
+        assertEquals(Long.MAX_VALUE, HotPathMetrics.Timer.bucketUpperBound(bucket));
+    }
+
+    /**
+     * Test counts and quantiles of recorded latencies
+     */
+    @Test
+    public void testRecord() {
+
+        System.out.println("HotPathMetrics: Counts and quantiles");
+
+        HotPathMetrics.Timer timer = HotPathMetrics.timer("HotPathMetricsTest.testRecord");
+        timer.reset();
+
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            timer.record(nanos);
+        }
+
+        assertEquals(1000, timer.getCount());
+        assertEquals(500.5, timer.getMeanNanos(), 1e-10);
+        assertEquals(1000, timer.getMaxNanos());
+
+        long median = timer.getMedianNanos(),
+             p99    = timer.getP99Nanos();
+        assertTrue(median >= 500 && median <= 500 + 500 / 8);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+
+        assertSame(timer, HotPathMetrics.timer("HotPathMetricsTest.testRecord"));
+    }
+
+
+    /**
+     * Test that only the outermost of nested calls is added to the total of a thread
+     */
+    @Test
+    public void testNesting() throws InterruptedException {
+
+        System.out.println("HotPathMetrics: Nested timers");
+
+        HotPathMetrics.Timer outer = HotPathMetrics.timer("HotPathMetricsTest.outer"),
+                             inner = HotPathMetrics.timer("HotPathMetricsTest.inner");
+        HotPathMetrics.reset();
+        final long thread = Thread.currentThread().getId();
+
+        outer.enter();
+        inner.enter();
+        inner.exit(100);
+        inner.enter();
+        inner.exit(50);
+        outer.exit(300);
+        inner.enter();
+        inner.exit(20);
+
+        assertEquals(300, outer.getTotalNanos());
+        assertEquals(170, inner.getTotalNanos());
+        assertEquals(320, HotPathMetrics.getOutermostNanos(thread));
+
+        // Calls on other threads are kept separately
+        Thread other = new Thread(() -> {
+            inner.enter();
+            inner.exit(1000);
+        });
+        other.start();
+        other.join();
+        assertEquals(320, HotPathMetrics.getOutermostNanos(thread));
+        assertEquals(1000, HotPathMetrics.getOutermostNanosOfOtherThreads(thread));
+
+        HotPathMetrics.reset();
+        assertEquals(0, HotPathMetrics.getOutermostNanos(thread));
+        assertEquals(0, inner.getTotalNanos());
+    }
+
+
+    /**
+     * Test that the histograms recorded on different threads are merged when they are read, and cleared by a reset
+     */
+    @Test
+    public void testThreads() throws InterruptedException {
+
+        System.out.println("HotPathMetrics: Histograms of several threads");
+
+        final HotPathMetrics.Timer timer = HotPathMetrics.timer("HotPathMetricsTest.testThreads");
+        timer.reset();
+        timer.record(5000);
+
+        Thread [] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long offset = t * 1000;
+            threads[t] = new Thread(() -> {
+                for (long nanos = 1; nanos <= 1000; nanos++) {
+                    timer.record(offset + nanos);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        HotPathMetrics.Snapshot snapshot = timer.snapshot();
+        assertEquals(4001, snapshot.getCount());
+        assertEquals(4001, timer.getCount());
+        assertEquals(4000 * 4001 / 2 + 5000, snapshot.getTotalNanos());
+        assertEquals(5000, snapshot.getMaxNanos());
+
+        long median = snapshot.getQuantileNanos(0.5);
+        assertTrue(median >= 2000 && median <= 2000 + 2000 / 8);
+        assertEquals(median, timer.getMedianNanos());
+
+        // Reset clears the histograms of all threads, and a snapshot can be reused
+        timer.reset();
+        assertSame(snapshot, timer.snapshot(snapshot));
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getQuantileNanos(0.5));
+        assertEquals(0, timer.getMaxNanos());
+
+        timer.record(10);
+        timer.snapshot(snapshot);
+        assertEquals(1, snapshot.getCount());
+        assertEquals(10, snapshot.getMaxNanos());
+    }
+
+}
@@ -0,0 +1,247 @@
+package skylinetools.util;
+
+import beast.core.MCMC;
+import beast.core.Runnable;
+import beast.core.State;
+import beast.core.util.Log;
+import beast.util.Randomizer;
+import beast.util.XMLParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * End-to-end throughput benchmark: run the example XML files for a fixed number of steps with a fixed seed and no
+ * logging, and report for every file
+ *
+ *    - MCMC steps per second (wall-clock time of MCMC.run(), including the burnin of the operator schedule)
+ *    - time spent in skylinetools classes by the MCMC thread (outermost HotPathMetrics timers only, since timers are
+ *      nested, so only with -Dskylinetools.metrics=true), including time waiting for TreeSlicerPool workers
+ *    - time spent by TreeSlicerPool workers (on other threads, so it overlaps with the wall-clock time of the MCMC)
+ *    - bytes allocated per step by the MCMC thread (if the JVM supports thread allocation counters)
+ *    - whether the final posterior and state match a stored baseline
+ *
+ * The baseline file has one line per XML file, seed and number of steps with the final posterior and a CRC32 of the
+ * final state. Runs without a baseline entry are added to the file, so the first run with an old package version
+ * records the baseline to compare a new version against (use -update to overwrite existing entries). With the same
+ * seed the chain is deterministic, so any difference means the new version changes the results (possibly only through
+ * rounding, which changes an accept/reject decision somewhere along the chain).
+ *
+ * Not a unit test, run with "ant benchmark" or:
+ *
+ *    java -Dskylinetools.metrics=true skylinetools.util.MCMCBenchmark [-steps n] [-seed s] [-repeats r]
+ *         [-baseline file] [-update] [xml files or directories]
+ *
+ * (default: 100000 steps, seed 127, 1 repeat, baseline benchmark-baseline.txt and examples/treeslicer and
+ * examples/smoothingpriors). With several repeats the first run of every file is used as warmup.
+ */
+public class MCMCBenchmark {
+
+    /* Relative tolerance on the final posterior */
+    private static final double TOLERANCE = 1e-10;
+
+    private static final String [] DEFAULT_DIRECTORIES = {"examples/treeslicer", "examples/smoothingpriors"};
+
+
+    public static void main(String [] args) throws IOException {
+
+        long steps = 100000, seed = 127;
+        int repeats = 1;
+        File baselineFile = new File("benchmark-baseline.txt");
+        boolean update = false;
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-steps":    steps = Long.parseLong(args[++i]); break;
+                case "-seed":     seed = Long.parseLong(args[++i]); break;
+                case "-repeats":  repeats = Integer.parseInt(args[++i]); break;
+                case "-baseline": baselineFile = new File(args[++i]); break;
+                case "-update":   update = true; break;
+                default:          addXMLFiles(new File(args[i]), files);
+            }
+        }
+        if (files.isEmpty()) {
+            for (String directory : DEFAULT_DIRECTORIES) {
+                addXMLFiles(new File(directory), files);
+            }
+        }
+
+        Map<String, String> baseline = readBaseline(baselineFile);
+        boolean baselineChanged = false, failed = false;
+
+        if (!HotPathMetrics.ENABLED) {
+            System.out.println("Metrics disabled, start with -Dskylinetools.metrics=true to time skylinetools classes");
+        }
+        System.out.println("steps = " + steps + ", seed = " + seed + ", repeats = " + repeats + ", baseline = " + baselineFile);
+        System.out.println();
+        System.out.println("file\tsteps/s\tskylinetools(ms)\tskylinetools(%)\tpool workers(ms)\tbytes/step\tposterior\tbaseline");
+
+        Log.Level level = Log.getLevel();
+        for (File file : files) {
+            String key = file.getPath() + "\t" + seed + "\t" + steps;
+
+            Result result = null;
+            try {
+                Log.setLevel(Log.Level.error);
+                for (int rep = 0; rep < Math.max(repeats, 1); rep++) {
+                    result = run(file, steps, seed);
+                }
+            } catch (Exception e) {
+                System.out.println(file.getPath() + "\tfailed: " + e);
+                failed = true;
+                continue;
+            } finally {
+                Log.setLevel(level);
+            }
+
+            String status;
+            if (!baseline.containsKey(key) || update) {
+                status = baseline.containsKey(key) ? "updated" : "recorded";
+                baseline.put(key, result.posterior + "\t" + result.stateCRC);
+                baselineChanged = true;
+            } else {
+                String [] expected = baseline.get(key).split("\t");
+                double posterior = Double.parseDouble(expected[0]);
+                boolean posteriorMatches = Math.abs(result.posterior - posterior) <= TOLERANCE * Math.max(1, Math.abs(posterior)) ||
+                                           Double.compare(result.posterior, posterior) == 0;
+                if (posteriorMatches && Long.parseLong(expected[1]) == result.stateCRC) {
+                    status = "match";
+                } else {
+                    status = "DIFFERS (posterior " + expected[0] + ")";
+                    failed = true;
+                }
+            }
+
+            System.out.println(file.getPath() + "\t" +
+                               String.format("%.1f", steps / (result.nanos * 1e-9)) + "\t" +
+                               String.format("%.1f", result.metricsNanos * 1e-6) + "\t" +
+                               String.format("%.1f", 100.0 * result.metricsNanos / result.nanos) + "\t" +
+                               String.format("%.1f", result.poolNanos * 1e-6) + "\t" +
+                               (result.allocatedBytes < 0 ? "NA" : String.format("%.1f", (double) result.allocatedBytes / steps)) + "\t" +
+                               result.posterior + "\t" + status);
+        }
+
+        if (baselineChanged) {
+            writeBaseline(baselineFile, baseline);
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+
+    private static class Result {
+        long nanos, metricsNanos, poolNanos, allocatedBytes, stateCRC;
+        double posterior;
+    }
+
+
+    /**
+     * Run one XML file without loggers
+     */
+    private static Result run(File file, long steps, long seed) throws Exception {
+
+        // Seed before parsing, since initialisers (e.g. random trees) also draw random numbers
+        Randomizer.setSeed(seed);
+        Runnable runnable = new XMLParser().parseFile(file);
+        if (!(runnable instanceof MCMC)) {
+            throw new IllegalArgumentException("Expected an MCMC run in " + file + ", found " + runnable.getClass().getName());
+        }
+        MCMC mcmc = (MCMC) runnable;
+
+        mcmc.chainLengthInput.setValue(steps, mcmc);
+        mcmc.loggersInput.get().clear();
+
+        File stateFile = File.createTempFile("benchmark", ".state");
+        stateFile.deleteOnExit();
+        mcmc.setStateFile(stateFile.getPath(), false);
+
+        HotPathMetrics.reset();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocation = threads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported() ?
+                (com.sun.management.ThreadMXBean) threads : null;
+        long threadId = Thread.currentThread().getId();
+
+        Result result = new Result();
+        long allocatedBefore = allocation != null ? allocation.getThreadAllocatedBytes(threadId) : 0,
+             start = System.nanoTime();
+        mcmc.run();
+        result.nanos = System.nanoTime() - start;
+        result.allocatedBytes = allocation != null ? allocation.getThreadAllocatedBytes(threadId) - allocatedBefore : -1;
+
+        // Timers are nested (e.g. updateAnchors inside calculateTimes, slicers inside smoothing priors), so only the
+        // outermost calls on the MCMC thread add up to wall-clock time; pool workers run on other threads
+        result.metricsNanos = HotPathMetrics.getOutermostNanos(threadId);
+        result.poolNanos    = HotPathMetrics.getOutermostNanosOfOtherThreads(threadId);
+
+        State state = mcmc.startStateInput.get();
+        result.posterior = state.robustlyCalcPosterior(mcmc.posteriorInput.get());
+
+        CRC32 crc = new CRC32();
+        crc.update(state.toString().getBytes("UTF-8"));
+        result.stateCRC = crc.getValue();
+
+        stateFile.delete();
+        return result;
+    }
+
+
+    private static void addXMLFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File [] contents = file.listFiles((dir, name) -> name.endsWith(".xml"));
+            if (contents != null) {
+                Arrays.sort(contents);
+                files.addAll(Arrays.asList(contents));
+            }
+        } else {
+            files.add(file);
+        }
+    }
+
+
+    private static Map<String, String> readBaseline(File file) throws IOException {
+        Map<String, String> baseline = new TreeMap<>();
+        if (!file.exists()) return baseline;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.trim().isEmpty()) continue;
+
+                // file, seed, steps, posterior, state CRC
+                String [] fields = line.split("\t");
+                if (fields.length != 5) {
+                    throw new IOException("Malformed line in baseline file " + file + ": " + line);
+                }
+                baseline.put(fields[0] + "\t" + fields[1] + "\t" + fields[2], fields[3] + "\t" + fields[4]);
+            }
+        }
+        return baseline;
+    }
+
+
+    private static void writeBaseline(File file, Map<String, String> baseline) throws IOException {
+        try (PrintStream out = new PrintStream(file)) {
+            out.println("# file\tseed\tsteps\tposterior\tstateCRC");
+            for (Map.Entry<String, String> entry : baseline.entrySet()) {
+                out.println(entry.getKey() + "\t" + entry.getValue());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+package skylinetools.util;
+
+import beast.core.BEASTObject;
+import beast.core.Distribution;
+import beast.core.Function;
+import beast.core.Logger;
+import beast.core.MCMC;
+import beast.core.Runnable;
+import beast.core.util.Log;
+import beast.util.Randomizer;
+import beast.util.XMLParser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ESS per second of centered and non-centered smoothing priors: run every non-centered example XML file
+ * (name_noncentered.xml) and the centered version (name.xml) for a fixed number of steps with a fixed seed, and report
+ * for every parameter logged in the XML file (e.g. the skyline x, sigma, mu and nu)
+ *
+ *    - the lowest ESS of its values (batch means, as ESSMonitor, after discarding the burnin)
+ *    - the lowest ESS per second (wall-clock time of MCMC.run())
+ *    - the ratio of ESS per second of the non-centered to the centered run (above 1 if non-centering helps)
+ *
+ * The loggers of the XML files are replaced by an ESSMonitor on the same parameters (distributions are not monitored),
+ * logged every logEvery steps.
+ *
+ * Not a unit test, run with "ant benchmark-noncentered" or:
+ *
+ *    java skylinetools.util.NonCenteredBenchmark [-steps n] [-seed s] [-logEvery n] [-burnin fraction]
+ *         [xml files or directories]
+ *
+ * (default: 1000000 steps, seed 127, logEvery 100, burnin 0.1 and examples/smoothingpriors).
+ */
+public class NonCenteredBenchmark {
+
+    private static final String NONCENTERED = "_noncentered.xml";
+
+    private static final String DEFAULT_DIRECTORY = "examples/smoothingpriors";
+
+
+    public static void main(String [] args) throws Exception {
+
+        long steps = 1000000, seed = 127, logEvery = 100;
+        double burnin = 0.1;
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-steps":    steps = Long.parseLong(args[++i]); break;
+                case "-seed":     seed = Long.parseLong(args[++i]); break;
+                case "-logEvery": logEvery = Long.parseLong(args[++i]); break;
+                case "-burnin":   burnin = Double.parseDouble(args[++i]); break;
+                default:          addNonCenteredFiles(new File(args[i]), files);
+            }
+        }
+        if (files.isEmpty()) {
+            addNonCenteredFiles(new File(DEFAULT_DIRECTORY), files);
+        }
+
+        System.out.println("steps = " + steps + ", seed = " + seed + ", logEvery = " + logEvery + ", burnin = " + burnin);
+        System.out.println();
+        System.out.println("file\tparameter\tESS\tESS/s\tratio");
+
+        boolean failed = false;
+        Log.Level level = Log.getLevel();
+        for (File nonCentered : files) {
+            String name = nonCentered.getName();
+            File centered = new File(nonCentered.getParentFile(), name.substring(0, name.length() - NONCENTERED.length()) + ".xml");
+
+            Result centeredResult, nonCenteredResult;
+            try {
+                Log.setLevel(Log.Level.error);
+                centeredResult    = run(centered, steps, seed, logEvery, burnin);
+                nonCenteredResult = run(nonCentered, steps, seed, logEvery, burnin);
+            } catch (Exception e) {
+                System.out.println(nonCentered.getPath() + "\tfailed: " + e);
+                failed = true;
+                continue;
+            } finally {
+                Log.setLevel(level);
+            }
+
+            print(centered, centeredResult, null);
+            print(nonCentered, nonCenteredResult, centeredResult);
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+
+    private static class Result {
+        double seconds;
+        Map<String, Double> ess = new LinkedHashMap<>();   // lowest ESS of every parameter by ID
+
+        double getESSPerSecond(String id) {
+            return ess.get(id) / seconds;
+        }
+    }
+
+
+    /* ESS and ESS/s of every parameter, and the ratio of ESS/s to the centered run if given */
+    private static void print(File file, Result result, Result centered) {
+        for (String id : result.ess.keySet()) {
+            String ratio = "";
+            if (centered != null && centered.ess.containsKey(id)) {
+                ratio = String.format("%.2f", result.getESSPerSecond(id) / centered.getESSPerSecond(id));
+            }
+            System.out.println(file.getPath() + "\t" + id + "\t" +
+                               String.format("%.1f", result.ess.get(id)) + "\t" +
+                               String.format("%.1f", result.getESSPerSecond(id)) + "\t" + ratio);
+        }
+    }
+
+
+    /**
+     * Run one XML file with an ESSMonitor on the logged parameters instead of its loggers
+     *
+     * @return wall-clock time of the run and lowest ESS of every parameter
+     */
+    private static Result run(File file, long steps, long seed, long logEvery, double burnin) throws Exception {
+
+        // Seed before parsing, since initialisers (e.g. random trees) also draw random numbers
+        Randomizer.setSeed(seed);
+        Runnable runnable = new XMLParser().parseFile(file);
+        if (!(runnable instanceof MCMC)) {
+            throw new IllegalArgumentException("Expected an MCMC run in " + file + ", found " + runnable.getClass().getName());
+        }
+        MCMC mcmc = (MCMC) runnable;
+
+        // Monitor every parameter that is logged (once, even if several loggers log it)
+        ESSMonitor monitor = new ESSMonitor();
+        List<Function> functions = new ArrayList<>();
+        for (Logger logger : mcmc.loggersInput.get()) {
+            for (BEASTObject loggable : logger.loggersInput.get()) {
+                if (loggable instanceof Function && !(loggable instanceof Distribution) && !functions.contains(loggable)) {
+                    functions.add((Function) loggable);
+                    monitor.functionInput.setValue(loggable, monitor);
+                }
+            }
+        }
+        if (functions.isEmpty()) {
+            throw new IllegalArgumentException("No parameters are logged in " + file);
+        }
+        monitor.burninInput.setValue((long) (burnin * steps), monitor);
+        monitor.initAndValidate();
+
+        File logFile  = File.createTempFile("noncentered", ".log"),
+             stateFile = File.createTempFile("noncentered", ".state");
+        logFile.delete();
+        logFile.deleteOnExit();
+        stateFile.deleteOnExit();
+
+        Logger logger = new Logger();
+        logger.initByName("fileName", logFile.getPath(), "logEvery", (int) logEvery, "log", monitor);
+
+        mcmc.chainLengthInput.setValue(steps, mcmc);
+        mcmc.loggersInput.get().clear();
+        mcmc.loggersInput.get().add(logger);
+        mcmc.setStateFile(stateFile.getPath(), false);
+
+        Result result = new Result();
+        long start = System.nanoTime();
+        mcmc.run();
+        result.seconds = (System.nanoTime() - start) * 1e-9;
+
+        int column = 0;
+        for (Function function : functions) {
+            double lowest = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < function.getDimension(); i++) {
+                lowest = Math.min(lowest, monitor.getArrayValue(column++));
+            }
+            result.ess.put(((BEASTObject) function).getID(), lowest);
+        }
+
+        logFile.delete();
+        stateFile.delete();
+        return result;
+    }
+
+
+    /* Non-centered XML files with a centered version next to them */
+    private static void addNonCenteredFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File [] contents = file.listFiles((dir, name) -> name.endsWith(NONCENTERED));
+            if (contents != null) {
+                Arrays.sort(contents);
+                for (File content : contents) {
+                    addNonCenteredFiles(content, files);
+                }
+            }
+        } else if (file.getName().endsWith(NONCENTERED)) {
+            String name = file.getName();
+            if (new File(file.getParentFile(), name.substring(0, name.length() - NONCENTERED.length()) + ".xml").exists()) {
+                files.add(file);
+            } else {
+                System.out.println("Skipping " + file.getPath() + " (no centered version)");
+            }
+        } else {
+            System.out.println("Skipping " + file.getPath() + " (not a non-centered XML file)");
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package skylinetools.util;
+
+import beast.util.HeapSort;
+
+import java.util.Random;
+
+/**
+ * Compare selecting the breakpoint ranks of TreeEventSlicer to sorting all event heights with HeapSort
+ * (the previous implementation).
+ *
+ * Not a unit test, run with: java skylinetools.util.OrderStatisticsBenchmark [events] [intervals] [repetitions]
+ */
+public class OrderStatisticsBenchmark {
+
+    public static void main(String [] args) {
+
+        int n           = args.length > 0 ? Integer.parseInt(args[0]) : 100000,
+            intervals   = args.length > 1 ? Integer.parseInt(args[1]) : 5,
+            repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Random random = new Random(127);
+        double [] heights = new double[n],
+                  buffer  = new double[n];
+        for (int i = 0; i < n; i++) {
+            heights[i] = 50 * random.nextDouble();
+        }
+
+        // Same ranks as TreeEventSlicer.calculateTimesByNodes()
+        int groupSize = (int) Math.round((double) n / (intervals - 1));
+        int [] ranks = new int[2 * intervals];
+        int k = 0;
+        for (int j = 1; j < intervals - 1; j++) {
+            ranks[k++] = j * groupSize - 1;
+            ranks[k++] = j * groupSize;
+        }
+
+        double check = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // First pass is warmup
+            long sortTime = 0, selectTime = 0;
+
+            for (int rep = 0; rep < repetitions; rep++) {
+                System.arraycopy(heights, 0, buffer, 0, n);
+                long start = System.nanoTime();
+                HeapSort.sort(buffer);
+                sortTime += System.nanoTime() - start;
+                check += buffer[ranks[0]];
+
+                System.arraycopy(heights, 0, buffer, 0, n);
+                start = System.nanoTime();
+                OrderStatistics.select(buffer, n, ranks, k);
+                selectTime += System.nanoTime() - start;
+                check -= buffer[ranks[0]];
+            }
+
+            if (pass == 1) {
+                System.out.println("events = " + n + ", intervals = " + intervals + ", repetitions = " + repetitions);
+                System.out.println("HeapSort.sort:          " + (sortTime / 1000.0 / repetitions) + " us/call");
+                System.out.println("OrderStatistics.select: " + (selectTime / 1000.0 / repetitions) + " us/call");
+            }
+        }
+
+        if (check != 0) {
+            throw new IllegalStateException("Selected ranks differ from sorted array");
+        }
+    }
+
+}
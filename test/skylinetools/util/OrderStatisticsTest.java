@@ -0,0 +1,65 @@
+package skylinetools.util;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class OrderStatisticsTest extends TestCase {
+
+    /**
+     * Test that selected ranks are identical to the values at those positions in the sorted array
+     */
+    @Test
+    public void testSelect() {
+
+        System.out.println("OrderStatistics: Selected ranks equal to sorted array (random values with ties)");
+
+        Random random = new Random(127);
+
+        for (int rep = 0; rep < 1000; rep++) {
+            int n = 2 + random.nextInt(500);
+
+            double [] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                // Integer values give lots of ties, as for node heights on trees with contemporaneous samples
+                values[i] = random.nextBoolean() ? random.nextInt(10) : 100 * random.nextDouble();
+            }
+
+            double [] sorted = values.clone();
+            Arrays.sort(sorted);
+
+            int k = 1 + random.nextInt(Math.min(n, 20));
+            int [] ranks = new int[k];
+            for (int i = 0; i < k; i++) {
+                ranks[i] = random.nextInt(n);
+            }
+            Arrays.sort(ranks);
+
+            OrderStatistics.select(values, n, ranks, k);
+            for (int i = 0; i < k; i++) {
+                assertEquals(sorted[ranks[i]], values[ranks[i]]);
+            }
+        }
+    }
+
+    /**
+     * Test that only the first n values are used
+     */
+    @Test
+    public void testSelectPartialBuffer() {
+
+        System.out.println("OrderStatistics: Selected ranks only use the start of the buffer");
+
+        double [] values = {5, 3, 9, 1, 7, -100, -100, -100};
+        int [] ranks = {0, 2, 4};
+
+        OrderStatistics.select(values, 5, ranks, 3);
+        assertEquals(1.0, values[0]);
+        assertEquals(5.0, values[2]);
+        assertEquals(9.0, values[4]);
+        assertEquals(-100.0, values[5]);
+    }
+
+}
@@ -0,0 +1,90 @@
+package skylinetools.util;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+public class SkylineGridLoggerTest extends TestCase {
+
+    /**
+     * Test that the skyline is evaluated correctly at grid dates
+     * (without a date trait dates are minus the height above the most recent sample)
+     */
+    @Test
+    public void testGrid() {
+
+        System.out.println("SkylineGridLogger: Skyline at grid dates");
+
+        /* Heights: C = 0, B = 1, A = 2, (A,B) = 3, root = 4 and 4 intervals: (0, 1, 2, 3) */
+        Tree tree = new TreeParser("((A:1.0,B:2.0):1.0,C:4.0);", false);
+
+        TreeSlicer treeSlicer = new TreeSlicer();
+        treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false", "dimension", "4");
+
+        RealParameter skyline = new RealParameter("10 20 30 40"),
+                      dates   = new RealParameter("0.5 -0.5 -1.5 -2.5 -3.5 -1.0");
+
+        SkylineGridLogger logger = new SkylineGridLogger();
+        logger.initByName("treeSlice", treeSlicer, "skyline", skyline, "dates", dates);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(baos);
+        logger.log(0, out);
+        out.flush();
+
+        /* Dates in increasing order: -3.5, -2.5, -1.5, -1.0, -0.5, 0.5 */
+        double [] expected = {40, 30, 20, 20, 10, 10};
+        for (int g = 0; g < expected.length; g++) {
+            assertEquals(expected[g], logger.getGridValue(g));
+        }
+        assertEquals("40.0\t30.0\t20.0\t20.0\t10.0\t10.0\t", baos.toString());
+    }
+
+
+    /**
+     * Test streaming quantiles against the exact quantiles of a large sample
+     */
+    @Test
+    public void testStreamingQuantile() {
+
+        System.out.println("SkylineGridLogger: Streaming quantiles");
+
+        Random random = new Random(127);
+
+        StreamingQuantile median = new StreamingQuantile(0.5),
+                          lower  = new StreamingQuantile(0.025),
+                          upper  = new StreamingQuantile(0.975);
+
+        for (int i = 0; i < 100000; i++) {
+            double x = random.nextDouble();
+            median.add(x);
+            lower.add(x);
+            upper.add(x);
+        }
+
+        assertEquals(0.5, median.getQuantile(), 0.01);
+        assertEquals(0.025, lower.getQuantile(), 0.01);
+        assertEquals(0.975, upper.getQuantile(), 0.01);
+
+        /* Exact for fewer than 5 values */
+        StreamingQuantile small = new StreamingQuantile(0.5);
+        small.add(3.0);
+        small.add(1.0);
+        small.add(2.0);
+        assertEquals(2.0, small.getQuantile());
+
+        /* Exact for 5 values, also for quantiles other than the median */
+        StreamingQuantile five = new StreamingQuantile(0.025);
+        for (double x : new double [] {5.0, 3.0, 1.0, 4.0, 2.0}) {
+            five.add(x);
+        }
+        assertEquals(1.0, five.getQuantile());
+    }
+
+}
@@ -0,0 +1,141 @@
+package skylinetools.util;
+
+import beast.core.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.junit.Test;
+import skylinetools.distributions.BMPrior;
+import skylinetools.distributions.OUPrior;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+public class SmoothingPriorReweighterTest extends TestCase {
+
+    private static final double [] TIMES = {0, 1, 2, 3, 4};
+
+
+    /**
+     * Write a trace with samples from an OU process (mean 0, sigma 1, nu 1) started from the stationary distribution,
+     * with x logged as x.1, ..., x.5 and sigma logged as a column
+     */
+    private static File writeTrace(int samples, long seed) throws IOException {
+        File file = File.createTempFile("trace", ".log");
+        file.deleteOnExit();
+
+        Random random = new Random(seed);
+        try (PrintStream out = new PrintStream(file)) {
+            out.println("# Simulated trace");
+            out.println("Sample\tposterior\tx.1\tx.2\tx.3\tx.4\tx.5\tsigma");
+            for (int s = 0; s < samples; s++) {
+                out.print(s * 1000 + "\t-1.0");
+                double x = random.nextGaussian() * Math.sqrt(0.5);
+                for (int i = 0; i < TIMES.length; i++) {
+                    if (i > 0) {
+                        double decay = Math.exp(-(TIMES[i] - TIMES[i-1]));
+                        x = x * decay + random.nextGaussian() * Math.sqrt(0.5 * (1 - decay * decay));
+                    }
+                    out.print("\t" + x);
+                }
+                out.println("\t1.0");
+            }
+        }
+        return file;
+    }
+
+
+    /**
+     * Test that the log densities are the same as calculated by OUPrior and BMPrior
+     */
+    @Test
+    public void testLogP() {
+
+        System.out.println("SmoothingPriorReweighter: Log densities");
+
+        double [] raw = {2.0, 1.5, 3.0, 2.5, 0.5},
+                  t   = {0.0, 0.5, 2.0, 2.25, 4.0},
+                  x   = new double[5],
+                  buffer = new double[5];
+
+        RealParameter xParameter = new RealParameter("2.0 1.5 3.0 2.5 0.5"),
+                      times      = new RealParameter("0.0 0.5 2.0 2.25 4.0");
+
+        OUPrior ouPrior = new OUPrior();
+        ouPrior.initByName("x", xParameter, "times", times, "mean", new RealParameter("0.5"),
+                           "sigma", new RealParameter("1.5"), "nu", new RealParameter("0.3"), "logspace", true, "normalize", true);
+        SmoothingPriorReweighter.PriorSettings ou =
+                new SmoothingPriorReweighter.PriorSettings("ou:mean=0.5,sigma=1.5,nu=0.3,logspace=true,normalize=true");
+        ou.resolve(Collections.emptyMap(), new java.util.ArrayList<>());
+        assertEquals(ouPrior.calculateLogP(), ou.logP(raw, x, t, buffer, null, 0), 1e-12);
+
+        BMPrior bmPrior = new BMPrior();
+        bmPrior.initByName("x", xParameter, "times", times, "sigma", new RealParameter("0.7"));
+        SmoothingPriorReweighter.PriorSettings bm = new SmoothingPriorReweighter.PriorSettings("bm:sigma=0.7");
+        bm.resolve(Collections.emptyMap(), new java.util.ArrayList<>());
+        assertEquals(bmPrior.calculateLogP(), bm.logP(raw, x, t, buffer, null, 0), 1e-12);
+    }
+
+
+    /**
+     * Test that re-weighting to the same settings gives equal weights and the unweighted summary
+     */
+    @Test
+    public void testSameSettings() throws IOException {
+
+        System.out.println("SmoothingPriorReweighter: Same settings");
+
+        File trace = writeTrace(5000, 3);
+
+        SmoothingPriorReweighter reweighter = new SmoothingPriorReweighter("x", null, TIMES,
+                "ou:mean=0,sigma=sigma,nu=1", Collections.singletonList("ou:mean=0.0,sigma=1,nu=1.0"));
+        reweighter.read(trace, 10);
+        reweighter.reweight(4);
+
+        assertEquals(4500, reweighter.getSampleCount());
+        assertEquals(4500, reweighter.getESS(0), 1e-6);
+        for (double w : reweighter.getWeights(0)) {
+            assertEquals(1.0 / 4500, w, 1e-15);
+        }
+        for (int i = 0; i < TIMES.length; i++) {
+            assertTrue(Arrays.equals(reweighter.getSummary(-1)[i], reweighter.getSummary(0)[i]));
+        }
+    }
+
+
+    /**
+     * Test re-weighting to a smaller sigma against the known distribution under the alternative
+     * (x_1 ~ N(0, exp(-2)/2 + sigma^2/2 (1 - exp(-2)))), and that the weights degenerate for very different settings
+     */
+    @Test
+    public void testReweighting() throws IOException {
+
+        System.out.println("SmoothingPriorReweighter: Re-weighting to different sigma");
+
+        File trace = writeTrace(40000, 7);
+
+        SmoothingPriorReweighter reweighter = new SmoothingPriorReweighter("x", null, TIMES,
+                "ou:mean=0,sigma=1,nu=1", Arrays.asList("ou:mean=0,sigma=0.8,nu=1", "ou:mean=0,sigma=0.1,nu=1"));
+        reweighter.read(trace, 0);
+        reweighter.reweight(0);
+
+        double ess = reweighter.getESS(0);
+        System.out.println("ESS = " + ess + " (sigma = 0.8), " + reweighter.getESS(1) + " (sigma = 0.1)");
+        assertTrue(ess > 10000 && ess < 40000);
+        assertTrue(reweighter.getESS(1) < 100);
+
+        double sd = Math.sqrt(Math.exp(-2) / 2 + 0.32 * (1 - Math.exp(-2)));
+        double [] summary = reweighter.getSummary(0)[1];
+        assertEquals(0, summary[0], 0.03);
+        assertEquals(-1.959964 * sd, summary[1], 0.05);
+        assertEquals(0, summary[2], 0.03);
+        assertEquals(1.959964 * sd, summary[3], 0.05);
+
+        // x_0 is not affected
+        double [] summary0 = reweighter.getSummary(0)[0];
+        assertEquals(1.959964 * Math.sqrt(0.5), summary0[3], 0.05);
+    }
+
+}
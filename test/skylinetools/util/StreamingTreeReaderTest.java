@@ -0,0 +1,218 @@
+package skylinetools.util;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StreamingTreeReaderTest extends TestCase {
+
+    private static final double TOLERANCE = 1e-10;
+
+
+    private static File write(String content) throws IOException {
+        File file = File.createTempFile("trees", ".tree");
+        file.deleteOnExit();
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+        return file;
+    }
+
+
+    /* Check the tree ((A:1,B:2):1,C:4) with leaves A, B, C numbered 0, 1, 2 */
+    private static void checkTree1(FlatTree tree) {
+        assertEquals(5, tree.getNodeCount());
+        assertEquals(3, tree.getLeafCount());
+
+        double [] heights = {2, 1, 0, 3, 4};
+        int [] parents = {3, 3, 4, 4, -1};
+        for (int i = 0; i < 5; i++) {
+            assertEquals(heights[i], tree.getHeight(i), TOLERANCE);
+            assertEquals(parents[i], tree.getParent(i));
+        }
+        assertEquals(4, tree.getRoot());
+        assertEquals("A", tree.getLabel(0));
+        assertEquals("B", tree.getLabel(1));
+        assertEquals("C", tree.getLabel(2));
+    }
+
+
+    /**
+     * Test reading several Newick trees with quoted labels, comments and metadata
+     */
+    @Test
+    public void testNewick() throws IOException {
+
+        System.out.println("StreamingTreeReader: Newick trees");
+
+        File file = write("((A:1.0,B:2.0):1.0,C:4.0);\n" +
+                          "(C:3.0e0,\n  ('B':0.5,A:1.5)[&rate=2.0,colour={1,2},name=\"x\"]:2)[&rate=1];\n");
+
+        StreamingTreeReader reader = new StreamingTreeReader(file);
+        reader.setMetaDataKeys("rate");
+        FlatTree tree = new FlatTree();
+
+        assertTrue(reader.next(tree));
+        checkTree1(tree);
+        assertNull(reader.getTreeName());
+
+        assertTrue(reader.next(tree));
+        double [] heights = {0, 1, 0.5, 1.5, 3.5};
+        int [] parents = {3, 3, 4, 4, -1};
+        for (int i = 0; i < 5; i++) {
+            assertEquals(heights[i], tree.getHeight(i), TOLERANCE);
+            assertEquals(parents[i], tree.getParent(i));
+        }
+        assertEquals(2.0, reader.getMetaData(0, 3), 0);
+        assertEquals(1.0, reader.getMetaData(0, 4), 0);
+        assertTrue(Double.isNaN(reader.getMetaData(0, 0)));
+
+        assertFalse(reader.next(tree));
+        assertEquals(2, reader.getTreeCount());
+        reader.close();
+    }
+
+
+    /**
+     * Test reading a NEXUS file with taxlabels, a translate table, tree names and other blocks
+     */
+    @Test
+    public void testNexus() throws IOException {
+
+        System.out.println("StreamingTreeReader: NEXUS trees");
+
+        File file = write("#NEXUS\n\n" +
+                          "Begin taxa;\n\tDimensions ntax=3;\n\tTaxlabels\n\t\tA\n\t\tB\n\t\tC\n\t\t;\nEnd;\n" +
+                          "Begin trees;\n\tTranslate\n\t\t1 C,\n\t\t2 A,\n\t\t3 'B'\n;\n" +
+                          "tree STATE_0 = [&R] ((2:1.0,3:2.0):1.0,1:4.0);\n" +
+                          "tree STATE_10 = [&lnP=-1.5] ((2[&rate=0.5]:1.0,3:2.0)[&rate=3]:1.0,C:4.0);\n" +
+                          "End;\n\n" +
+                          "begin figtree;\n\tset appearance.branchLineWidth=2.0;\n\tset legend.attribute=\"a;b\";\nend;\n");
+
+        StreamingTreeReader reader = new StreamingTreeReader(file);
+        reader.setMetaDataKeys("lnP", "rate");
+        reader.setPresentDate(2020);
+        FlatTree tree = new FlatTree();
+
+        assertTrue(reader.next(tree));
+        assertEquals("STATE_0", reader.getTreeName());
+        checkTree1(tree);
+        assertEquals(2018.0, tree.getDate(0), TOLERANCE);
+        assertEquals(2016.0, tree.getDate(4), TOLERANCE);
+
+        assertTrue(reader.next(tree));
+        assertEquals("STATE_10", reader.getTreeName());
+        checkTree1(tree);
+        assertEquals(0.5, reader.getMetaData(1, 0), 0);
+        assertEquals(3.0, reader.getMetaData(1, 3), 0);
+        assertTrue(Double.isNaN(reader.getMetaData(0, 3)));
+
+        assertFalse(reader.next(tree));
+        assertEquals(3, reader.getTaxonCount());
+        reader.close();
+    }
+
+
+    /**
+     * Test that branch lengths are parsed exactly as by Double.parseDouble
+     */
+    @Test
+    public void testNumbers() throws IOException {
+
+        System.out.println("StreamingTreeReader: Numbers");
+
+        String [] numbers = {"1", "0.1", "0.30000000000000004", "1e-5", "2.5E+3", "123456789.123456789", "007.50",
+                             "0.000000000000000000000000123", "9007199254740993", "1.7976931348623157E308", "4.9e-324",
+                             "12345678901234567890123", "0.1234567890123456789012345"};
+
+        StringBuilder content = new StringBuilder();
+        for (String number : numbers) {
+            content.append("(A:").append(number).append(",B:0);\n");
+        }
+        StreamingTreeReader reader = new StreamingTreeReader(write(content.toString()));
+        FlatTree tree = new FlatTree();
+        for (String number : numbers) {
+            assertTrue(reader.next(tree));
+            assertEquals(Double.parseDouble(number), tree.getHeight(tree.getRoot()), 0);
+        }
+        reader.close();
+    }
+
+
+    private static void toNewick(FlatTree tree, List<List<Integer>> children, int node, StringBuilder newick) {
+        if (tree.isLeaf(node)) {
+            newick.append("t").append(node + 1);
+        } else {
+            newick.append("(");
+            for (int i = 0; i < children.get(node).size(); i++) {
+                if (i > 0) newick.append(",");
+                toNewick(tree, children, children.get(node).get(i), newick);
+            }
+            newick.append(")");
+        }
+        if (tree.getParent(node) >= 0) {
+            newick.append(":").append(tree.getHeight(tree.getParent(node)) - tree.getHeight(node));
+        }
+    }
+
+
+    /**
+     * Test reading large simulated trees with a small memory-mapped window (so that trees span several windows)
+     */
+    @Test
+    public void testLargeTrees() throws IOException {
+
+        System.out.println("StreamingTreeReader: Large trees");
+
+        FlatTree original = new SyntheticTreeGenerator(7).coalescent(20000, 2, 10, null);
+
+        List<List<Integer>> children = new ArrayList<>();
+        for (int i = 0; i < original.getNodeCount(); i++) {
+            children.add(new ArrayList<>());
+        }
+        for (int i = 0; i < original.getNodeCount(); i++) {
+            if (original.getParent(i) >= 0) children.get(original.getParent(i)).add(i);
+        }
+        StringBuilder newick = new StringBuilder();
+        toNewick(original, children, original.getRoot(), newick);
+        newick.append(";\n");
+
+        File file = write(newick.toString() + newick.toString());
+        StreamingTreeReader reader = new StreamingTreeReader(file, 4096);
+        FlatTree tree = new FlatTree();
+
+        for (int rep = 0; rep < 2; rep++) {
+            assertTrue(reader.next(tree));
+            assertEquals(original.getNodeCount(), tree.getNodeCount());
+
+            // Internal nodes in the simulated tree are numbered by increasing height, so children come before parents
+            int [] map = new int[original.getNodeCount()];
+            java.util.Arrays.fill(map, -1);
+            for (int i = 0; i < tree.getLeafCount(); i++) {
+                map[Integer.parseInt(tree.getLabel(i).substring(1)) - 1] = i;
+            }
+            for (int i = 0; i < original.getNodeCount(); i++) {
+                assertTrue(map[i] >= 0);
+                assertEquals(original.getHeight(i), tree.getHeight(map[i]), 1e-9);
+
+                int parent = original.getParent(i);
+                if (parent < 0) {
+                    assertEquals(-1, tree.getParent(map[i]));
+                } else if (map[parent] < 0) {
+                    map[parent] = tree.getParent(map[i]);
+                } else {
+                    assertEquals(map[parent], tree.getParent(map[i]));
+                }
+            }
+        }
+        assertFalse(reader.next(tree));
+        reader.close();
+    }
+
+}
@@ -0,0 +1,161 @@
+package skylinetools.util;
+
+import beast.evolution.tree.Tree;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class SyntheticTreeGeneratorTest extends TestCase {
+
+
+    /* Check that the tree is binary, heights increase towards the root and leaves are sorted by height */
+    private static void checkTree(FlatTree tree, int tips) {
+        assertEquals(tips, tree.getLeafCount());
+        assertEquals(2*tips-1, tree.getNodeCount());
+
+        int [] childCounts = new int[tree.getNodeCount()];
+        int roots = 0;
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            int parent = tree.getParent(i);
+            if (parent < 0) {
+                roots++;
+            } else {
+                assertFalse(tree.isLeaf(parent));
+                assertTrue(tree.getHeight(parent) >= tree.getHeight(i));
+                childCounts[parent]++;
+            }
+        }
+        assertEquals(1, roots);
+
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            assertEquals(tree.isLeaf(i) ? 0 : 2, childCounts[i]);
+        }
+
+        assertEquals(0.0, tree.getHeight(0), 0);
+        for (int i = 1; i < tips; i++) {
+            assertTrue(tree.getHeight(i) >= tree.getHeight(i-1));
+        }
+    }
+
+
+    /**
+     * Test coalescent trees: structure, reproducibility and expected TMRCA of contemporaneous samples, 2N(1-1/n)
+     */
+    @Test
+    public void testCoalescent() {
+
+        System.out.println("SyntheticTreeGenerator: Coalescent");
+
+        FlatTree tree = new FlatTree(), other = new FlatTree();
+        new SyntheticTreeGenerator(1).coalescent(5000, 2, 10, tree);
+        checkTree(tree, 5000);
+
+        new SyntheticTreeGenerator(1).coalescent(5000, 2, 10, other);
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            assertEquals(tree.getParent(i), other.getParent(i));
+            assertEquals(tree.getHeight(i), other.getHeight(i), 0);
+        }
+
+        SyntheticTreeGenerator generator = new SyntheticTreeGenerator(2);
+        int n = 20, reps = 4000;
+        double tmrca = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            generator.coalescent(n, 1, 0, tree);
+            tmrca += tree.getHeight(tree.getRoot());
+        }
+        tmrca /= reps;
+        System.out.println(tmrca + "\t" + 2*(1-1.0/n));
+        assertEquals(2*(1-1.0/n), tmrca, 0.1);
+    }
+
+
+    /**
+     * Test birth-death trees: structure and reproducibility, and building a BEAST tree
+     */
+    @Test
+    public void testBirthDeath() {
+
+        System.out.println("SyntheticTreeGenerator: Birth-death");
+
+        FlatTree tree = new FlatTree(), other = new FlatTree();
+        SyntheticTreeGenerator generator = new SyntheticTreeGenerator(3);
+        for (int tips : new int[] {2, 10, 10000}) {
+            generator.birthDeath(tips, 1.5, 0.5, 0.5, tree);
+            checkTree(tree, tips);
+        }
+
+        new SyntheticTreeGenerator(4).birthDeath(1000, 1.5, 0.5, 0.5, tree);
+        new SyntheticTreeGenerator(4).birthDeath(1000, 1.5, 0.5, 0.5, other);
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            assertEquals(tree.getParent(i), other.getParent(i));
+            assertEquals(tree.getHeight(i), other.getHeight(i), 0);
+        }
+
+        Tree beastTree = tree.toTree();
+        assertEquals(1000, beastTree.getLeafNodeCount());
+        assertEquals(tree.getHeight(tree.getRoot()), beastTree.getRoot().getHeight(), 0);
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            assertEquals(tree.getHeight(i), beastTree.getNode(i).getHeight(), 0);
+            if (tree.getParent(i) >= 0) {
+                assertEquals(tree.getParent(i), beastTree.getNode(i).getParent().getNr());
+            }
+        }
+
+        other.fromTree(beastTree);
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            assertEquals(tree.getParent(i), other.getParent(i));
+            assertEquals(tree.getHeight(i), other.getHeight(i), 0);
+        }
+        assertEquals("t1", other.getLabel(0));
+    }
+
+
+    /**
+     * Test writing and reading trees of different sizes (with and without labels) in a binary tree file
+     */
+    @Test
+    public void testBinaryTreeFile() throws IOException {
+
+        System.out.println("SyntheticTreeGenerator: Binary tree file");
+
+        File file = File.createTempFile("trees", ".bin");
+        file.deleteOnExit();
+
+        SyntheticTreeGenerator generator = new SyntheticTreeGenerator(5);
+        FlatTree [] trees = {generator.coalescent(1000, 1, 1, null),
+                             generator.birthDeath(20, 2, 1, 1, null),
+                             generator.coalescent(3000, 1, 5, null)};
+        for (int i = 0; i < 20; i++) {
+            trees[1].setLabel(i, "taxon_" + i);
+        }
+
+        try (BinaryTreeFile.Writer writer = new BinaryTreeFile.Writer(file)) {
+            for (FlatTree tree : trees) {
+                writer.write(tree);
+            }
+        }
+        assertEquals(8 + 3*9 + 12*(1999 + 39 + 5999) + 20*2 + 20*"taxon_x".length() + 10*1, file.length());
+
+        FlatTree tree = new FlatTree();
+        int count = 0;
+        try (BinaryTreeFile.Reader reader = new BinaryTreeFile.Reader(file)) {
+            while (reader.next(tree)) {
+                FlatTree expected = trees[count++];
+                assertEquals(expected.getNodeCount(), tree.getNodeCount());
+                assertEquals(expected.getLeafCount(), tree.getLeafCount());
+                assertEquals(expected.hasLabels(), tree.hasLabels());
+                for (int i = 0; i < tree.getNodeCount(); i++) {
+                    assertEquals(expected.getParent(i), tree.getParent(i));
+                    assertEquals(expected.getHeight(i), tree.getHeight(i), 0);
+                }
+                for (int i = 0; i < tree.getLeafCount(); i++) {
+                    assertEquals(expected.getLabel(i), tree.getLabel(i));
+                }
+            }
+        }
+        assertEquals(3, count);
+    }
+
+}
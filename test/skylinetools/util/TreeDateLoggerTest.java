@@ -0,0 +1,201 @@
+package skylinetools.util;
+
+import beast.core.Logger;
+import beast.core.MCMC;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Taxon;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.operators.ScaleOperator;
+import beast.evolution.tree.TraitSet;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.Prior;
+import beast.math.distributions.Uniform;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TreeDateLoggerTest extends TestCase {
+
+
+    /* Tree with tips sampled in 2000, 1999 and 1996, so tMRCA = 1994 */
+    private static Tree getTree() {
+        String [] taxa = {"A", "B", "C"};
+        List<Taxon> taxalist = Taxon.createTaxonList(new ArrayList<String>(Arrays.asList(taxa)));
+        Tree tree = new TreeParser();
+        TaxonSet taxonSet  = new TaxonSet(taxalist);
+        TraitSet dateTrait = new TraitSet();
+
+        dateTrait.initByName("traitname","date","taxa",taxonSet,"value","A=2000,B=1999,C=1996");
+        tree.initByName("newick","((A:3.0,B:2.0):3.0,C:2.0);", "adjustTipHeights","false", "trait",dateTrait, "taxonset",taxonSet);
+        tree.setID("tree");
+        return tree;
+    }
+
+    private static String log(TreeDateLogger logger, boolean header) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(baos);
+        if (header) {
+            logger.init(out);
+        } else {
+            logger.log(0, out);
+        }
+        out.flush();
+        return baos.toString();
+    }
+
+
+    /**
+     * Test the tMRCA date and the combined header and dates of a parameter and several functions
+     */
+    @Test
+    public void testDates() {
+
+        System.out.println("TreeDateLogger: Dates of tMRCA, parameter and functions");
+
+        Tree tree = getTree();
+
+        TreeDateLogger tmrca = new TreeDateLogger();
+        tmrca.initByName("tree", tree);
+        assertEquals(1, tmrca.getDimension());
+        assertEquals(1994.0, tmrca.getArrayValue(), 0);
+        assertEquals("tree.height.date\t", log(tmrca, true));
+
+        RealParameter origin = new RealParameter("10"),
+                      times  = new RealParameter("1 2.5");
+        origin.setID("origin");
+        times.setID("times");
+
+        TreeSlicer treeSlicer = new TreeSlicer();
+        treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false", "dimension", "2");
+        treeSlicer.setID("slicer");
+
+        TreeDateLogger logger = new TreeDateLogger();
+        logger.initByName("tree", tree, "parameter", origin, "function", times, "function", treeSlicer);
+        assertEquals(5, logger.getDimension());
+        assertEquals("tree.origin.date\ttree.times.dates1\ttree.times.dates2\ttree.slicer.dates1\ttree.slicer.dates2\t", log(logger, true));
+
+        double [] expected = {1990, 1999, 1997.5, 2000, 1997};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], logger.getArrayValue(i), 1e-10);
+            assertEquals(tree.getDate(i == 0 ? origin.getArrayValue() : i < 3 ? times.getArrayValue(i-1) : treeSlicer.getArrayValue(i-3)),
+                         logger.getArrayValue(i), 1e-10);
+        }
+        assertEquals("1990.0\t1999.0\t1997.5\t2000.0\t1997.0\t", log(logger, false));
+    }
+
+
+    /**
+     * Test that dates are cached until an input changes, and restored when a proposal is rejected
+     */
+    @Test
+    public void testCache() {
+
+        System.out.println("TreeDateLogger: Caching");
+
+        Tree tree = getTree();
+        RealParameter origin = new RealParameter("10 20");
+
+        TreeDateLogger logger = new TreeDateLogger();
+        logger.initByName("tree", tree, "parameter", origin);
+        assertEquals(1990.0, logger.getArrayValue(0), 0);
+        assertEquals(1980.0, logger.getArrayValue(1), 0);
+
+        // Proposal: cached values are kept until the logger is told the parameter changed
+        logger.store();
+        origin.setValue(1, 30.0);
+        assertEquals(1980.0, logger.getArrayValue(1), 0);
+        assertTrue(logger.requiresRecalculation());
+        assertEquals(1970.0, logger.getArrayValue(1), 0);
+
+        // Rejected
+        origin.setValue(1, 20.0);
+        logger.restore();
+        assertEquals(1980.0, logger.getArrayValue(1), 0);
+
+        // Logging always recalculates (log entries are not told about changes)
+        origin.setValue(1, 40.0);
+        assertEquals("1990.0\t1960.0\t", log(logger, false));
+    }
+
+
+    /**
+     * Test that dates logged by a Logger follow the tree and parameter in an MCMC run (the logger is not on the path to
+     * the posterior, so requiresRecalculation() is never called)
+     */
+    @Test
+    public void testMCMC() throws Exception {
+
+        System.out.println("TreeDateLogger: Logged during MCMC");
+
+        Randomizer.setSeed(127);
+
+        Tree tree = getTree();
+        RealParameter origin = new RealParameter("10");
+        origin.setID("origin");
+
+        TreeDateLogger tmrca = new TreeDateLogger(),
+                       originDate = new TreeDateLogger();
+        tmrca.initByName("tree", tree);
+        originDate.initByName("tree", tree, "parameter", origin);
+
+        State state = new State();
+        state.initByName("stateNode", tree, "stateNode", origin);
+
+        Uniform uniform = new Uniform();
+        uniform.initByName("lower", 0.0, "upper", 1000.0);
+        Prior prior = new Prior();
+        prior.initByName("x", origin, "distr", uniform);
+
+        ScaleOperator treeScaler = new ScaleOperator(),
+                      originScaler = new ScaleOperator();
+        treeScaler.initByName("tree", tree, "scaleFactor", 0.75, "weight", 1.0);
+        originScaler.initByName("parameter", origin, "scaleFactor", 0.75, "weight", 1.0);
+
+        File logFile = File.createTempFile("treedates", ".log"),
+             stateFile = File.createTempFile("treedates", ".state");
+        logFile.delete();
+        logFile.deleteOnExit();
+        stateFile.deleteOnExit();
+
+        Logger logger = new Logger();
+        logger.initByName("fileName", logFile.getPath(), "logEvery", 10, "log", tmrca, "log", originDate);
+
+        MCMC mcmc = new MCMC();
+        mcmc.initByName("chainLength", 1000L, "state", state, "distribution", prior, "operator", treeScaler,
+                        "operator", originScaler, "logger", logger);
+        mcmc.setStateFile(stateFile.getPath(), false);
+        mcmc.run();
+
+        // Dates change during the run and the last row has the dates of the final state
+        Set<String> tmrcaDates = new HashSet<>(), originDates = new HashSet<>();
+        String [] last = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Sample") || line.startsWith("#") || line.trim().isEmpty()) continue;
+                last = line.trim().split("\t");
+                tmrcaDates.add(last[1]);
+                originDates.add(last[2]);
+            }
+        }
+        assertNotNull(last);
+        assertTrue(tmrcaDates.size() > 1);
+        assertTrue(originDates.size() > 1);
+        assertEquals(tree.getDate(tree.getRoot().getHeight()), Double.parseDouble(last[1]), 1e-10);
+        assertEquals(tree.getDate(origin.getArrayValue()), Double.parseDouble(last[2]), 1e-10);
+    }
+
+}
@@ -1,11 +1,17 @@
 package skylinetools.util;
 
+import beast.evolution.alignment.Taxon;
+import beast.evolution.alignment.TaxonSet;
 import beast.evolution.tree.*;
 import beast.util.*;
 import junit.framework.*;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * @author Julija Pecerska
  *         Date: 2019/04/17
@@ -136,4 +142,113 @@ public class TreeEventSlicerTest extends TestCase {
         Double [] expected5 = {0.0, 10.0, 24.0 + treeSlicer.EPS, 26.0};
         assertArrayEquals(treeSlicer.getValues(), expected5);
     }
+
+    @Test
+    public void testSliceExactQuantiles() {
+
+        // Sample heights 0..7, branching heights 8..14
+        Tree tree = new TreeParser("((((((((G:1,F:2):1,E:4):1,D:6):1,C:8):1,B:10):1,A:12):1,O:14):1);", false);
+        TreeEventSlicer treeSlicer = new TreeEventSlicer();
+        treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false",
+                "dimension", "4", "breakAt", "samples", "exact", "true");
+        Double [] expected0 = {0.0, 2.5, 4.5, 7.0 + treeSlicer.EPS};
+        assertArrayEquals(treeSlicer.getValues(), expected0);
+
+        treeSlicer = new TreeEventSlicer();
+        treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false",
+                "dimension", "3", "breakAt", "branchsamples", "exact", "true");
+        Double [] expected1 = {0.0, 7.5, 14.0 + treeSlicer.EPS};
+        assertArrayEquals(treeSlicer.getValues(), expected1);
+
+        // Same as non-exact slicing when the events divide evenly
+        treeSlicer = new TreeEventSlicer();
+        treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "true",
+                "dimension", "4", "breakAt", "samples", "exact", "true");
+        Double [] expected2 = {0.0, 3.5, 7.0 + treeSlicer.EPS, 15.0};
+        assertArrayEquals(treeSlicer.getValues(), expected2);
+    }
+
+    @Test
+    public void testSliceWeightedQuantiles() {
+
+        // Total weight 8 x 1 + 7 x 3 = 29, so the median falls between the branching events at 9 and 10
+        Tree tree = new TreeParser("((((((((G:1,F:2):1,E:4):1,D:6):1,C:8):1,B:10):1,A:12):1,O:14):1);", false);
+        TreeEventSlicer treeSlicer = new TreeEventSlicer();
+        treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false",
+                "dimension", "3", "breakAt", "branchsamples", "exact", "true", "branchWeight", "3.0");
+        Double [] expected0 = {0.0, 9.5, 14.0 + treeSlicer.EPS};
+        assertArrayEquals(treeSlicer.getValues(), expected0);
+
+        treeSlicer.tree.scale(2.0);
+        treeSlicer.requiresRecalculation();
+        Double [] expected1 = {0.0, 19.0, 28.0 + treeSlicer.EPS};
+        assertArrayEquals(treeSlicer.getValues(), expected1);
+    }
+
+    @Test
+    public void testSliceMultipleTrees() {
+
+        // Tree 1: samples 0, 1, 2, branching 3, 4. Tree 2: samples 0, 0, 2.5, branching 2, 3
+        Tree tree1 = new TreeParser("((A:1,B:2):1,C:4);", false);
+        Tree tree2 = new TreeParser("((D:1,E:1):2,F:0.5);", false);
+
+        // Pooled events: 0, 0, 0, 1, 2, 2, 2.5, 3, 3, 4
+        TreeEventSlicer treeSlicer = new TreeEventSlicer();
+        treeSlicer.initByName("tree", tree1, "trees", tree2, "to", "tmrca", "inclusive", "false",
+                "dimension", "4", "breakAt", "branchsamples");
+        Double [] expected0 = {0.0, 0.5, 2.25, 4.0 + treeSlicer.EPS};
+        assertArrayEquals(treeSlicer.getValues(), expected0);
+
+        TreeEventSlicer inclusiveSlicer = new TreeEventSlicer();
+        inclusiveSlicer.initByName("tree", tree1, "trees", tree2, "to", "tmrca", "inclusive", "true",
+                "dimension", "5", "breakAt", "branchsamples");
+        Double [] expected1 = {0.0, 0.5, 2.25, 4.0 + treeSlicer.EPS, 4.0};
+        assertArrayEquals(inclusiveSlicer.getValues(), expected1);
+
+        // Pooled samples: 0, 0, 0, 1, 2, 2.5
+        treeSlicer = new TreeEventSlicer();
+        treeSlicer.initByName("tree", tree1, "trees", tree2, "to", "tmrca", "inclusive", "false",
+                "dimension", "4", "breakAt", "samples");
+        Double [] expected2 = {0.0, 0.0, 1.5, 2.5 + treeSlicer.EPS};
+        assertArrayEquals(treeSlicer.getValues(), expected2);
+
+        treeSlicer = new TreeEventSlicer();
+        treeSlicer.initByName("tree", tree1, "trees", tree2, "to", "tmrca", "inclusive", "false",
+                "dimension", "4", "breakAt", "branchsamples", "exact", "true");
+        Double [] expected3 = {0.0, 0.5, 2.75, 4.0 + treeSlicer.EPS};
+        assertArrayEquals(treeSlicer.getValues(), expected3);
+
+        // Only tree 2 changes (root from 3 to 5), pooled events: 0, 0, 0, 1, 2, 2, 2.5, 3, 4, 5
+        tree2.getRoot().setHeight(5.0);
+        inclusiveSlicer.requiresRecalculation();
+        Double [] expected4 = {0.0, 0.5, 2.25, 5.0 + treeSlicer.EPS, 5.0};
+        assertArrayEquals(inclusiveSlicer.getValues(), expected4);
+    }
+
+    @Test
+    public void testSliceMultipleTreesDates() {
+
+        // Most recent sample on tree 2 is 1 year older than on tree 1, so its events are shifted by 1
+        String [] taxa = {"A", "B", "C", "D", "E", "F"};
+        List<Taxon> taxalist = Taxon.createTaxonList(new ArrayList<String>(Arrays.asList(taxa)));
+        TaxonSet taxonSet1 = new TaxonSet(taxalist.subList(0, 3)),
+                 taxonSet2 = new TaxonSet(taxalist.subList(3, 6));
+
+        TraitSet dateTrait1 = new TraitSet(),
+                 dateTrait2 = new TraitSet();
+        dateTrait1.initByName("traitname", "date", "taxa", taxonSet1, "value", "A=1998,B=1999,C=2000");
+        dateTrait2.initByName("traitname", "date", "taxa", taxonSet2, "value", "D=1999,E=1999,F=1996.5");
+
+        Tree tree1 = new TreeParser(),
+             tree2 = new TreeParser();
+        tree1.initByName("newick", "((A:1,B:2):1,C:4);", "adjustTipHeights", "false", "trait", dateTrait1, "taxonset", taxonSet1);
+        tree2.initByName("newick", "((D:1,E:1):2,F:0.5);", "adjustTipHeights", "false", "trait", dateTrait2, "taxonset", taxonSet2);
+
+        // Pooled events: 0, 1, 1, 1, 2, 3, 3, 3.5, 4, 4
+        TreeEventSlicer treeSlicer = new TreeEventSlicer();
+        treeSlicer.initByName("tree", tree1, "trees", tree2, "to", "tmrca", "inclusive", "true",
+                "dimension", "5", "breakAt", "branchsamples");
+        Double [] expected0 = {0.0, 1.0, 3.0, 4.0 + treeSlicer.EPS, 4.0};
+        assertArrayEquals(treeSlicer.getValues(), expected0);
+    }
 }
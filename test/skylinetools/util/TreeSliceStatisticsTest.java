@@ -0,0 +1,222 @@
+package skylinetools.util;
+
+import beast.core.Logger;
+import beast.core.MCMC;
+import beast.core.State;
+import beast.evolution.operators.ScaleOperator;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.Prior;
+import beast.math.distributions.Uniform;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.HashSet;
+import java.util.Set;
+
+public class TreeSliceStatisticsTest extends TestCase {
+
+    /**
+     * Test event counts and lineages on a small tree with equidistant slices
+     */
+    @Test
+    public void testStatistics1() {
+
+        System.out.println("TreeSliceStatistics: Event counts and lineages (equidistant slices)");
+
+        /*   Heights: C = 0, B = 1, A = 2, (A,B) = 3, root = 4
+
+             4 intervals: (0, 1, 2, 3)
+         */
+        Tree tree = new TreeParser("((A:1.0,B:2.0):1.0,C:4.0);", false);
+
+        TreeSlicer treeSlicer = new TreeSlicer();
+        treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false", "dimension", "4");
+
+        TreeSliceStatistics stats = new TreeSliceStatistics();
+        stats.initByName("treeSlice", treeSlicer);
+
+        int [] branchings = {0, 0, 0, 2},
+               samples    = {1, 1, 1, 0},
+               lineages   = {1, 2, 3, 2};
+
+        assertEquals(12, stats.getDimension());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(branchings[i], stats.getBranchings(i));
+            assertEquals(samples[i], stats.getSamples(i));
+            assertEquals(lineages[i], stats.getLineages(i));
+
+            assertEquals((double) branchings[i], stats.getArrayValue(i));
+            assertEquals((double) samples[i], stats.getArrayValue(4 + i));
+            assertEquals((double) lineages[i], stats.getArrayValue(8 + i));
+        }
+    }
+
+
+    /**
+     * Test that statistics are updated after the tree changes
+     */
+    @Test
+    public void testStatistics2() {
+
+        System.out.println("TreeSliceStatistics: Event counts and lineages (inclusive slices, scaled tree)");
+
+        Tree tree = new TreeParser("((A:1.0,B:2.0):1.0,C:4.0);", false);
+
+        /* 3 intervals: (0, 2, 4) */
+        TreeSlicer treeSlicer = new TreeSlicer();
+        treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "true", "dimension", "3");
+
+        TreeSliceStatistics stats = new TreeSliceStatistics();
+        stats.initByName("treeSlice", treeSlicer);
+
+        assertEquals(0, stats.getBranchings(0));
+        assertEquals(1, stats.getBranchings(1));
+        assertEquals(1, stats.getBranchings(2));
+        assertEquals(2, stats.getSamples(0));
+        assertEquals(1, stats.getSamples(1));
+        assertEquals(3, stats.getLineages(1));
+        assertEquals(1, stats.getLineages(2));
+
+        /* Heights: C = 0, B = 1, A = 2, (A,B) = 6, root = 8 (tip heights are not scaled) and slices at (0, 4, 8) */
+        tree.scale(2.0);
+        treeSlicer.requiresRecalculation();
+        stats.requiresRecalculation();
+
+        assertEquals(3, stats.getSamples(0));
+        assertEquals(0, stats.getSamples(1));
+        assertEquals(1, stats.getBranchings(1));
+        assertEquals(1, stats.getBranchings(2));
+        assertEquals(1, stats.getLineages(0));
+        assertEquals(3, stats.getLineages(1));
+        assertEquals(1, stats.getLineages(2));
+    }
+
+
+
+    /**
+     * Test that statistics are restored after a rejected proposal (the slicers keep the node index of the stored state)
+     */
+    @Test
+    public void testRestore() {
+
+        System.out.println("TreeSliceStatistics: Restore after a rejected proposal");
+
+        for (boolean events : new boolean[] {false, true}) {
+            /* Heights: A = B = 0, (A,B) = 1, C = 3, root = 4 */
+            Tree tree = new TreeParser("((A:1.0,B:1.0):3.0,C:1.0);", false);
+
+            TreeSlicer treeSlicer;
+            if (events) {
+                treeSlicer = new TreeEventSlicer();
+                treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "true", "dimension", "3", "breakAt", "samples");
+            } else {
+                treeSlicer = new TreeSlicer();
+                treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "true", "dimension", "3");
+            }
+
+            TreeSliceStatistics stats = new TreeSliceStatistics();
+            stats.initByName("treeSlice", treeSlicer);
+
+            double [] expected = new double[stats.getDimension()];
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = stats.getArrayValue(i);
+            }
+
+            // Proposal: internal nodes 4 times as high, so (A,B) is above C
+            treeSlicer.store();
+            tree.scale(4.0);
+            treeSlicer.requiresRecalculation();
+            stats.requiresRecalculation();
+            boolean changed = false;
+            for (int i = 0; i < expected.length; i++) {
+                changed |= stats.getArrayValue(i) != expected[i];
+            }
+            assertTrue(changed);
+
+            // Rejected
+            tree.scale(0.25);
+            treeSlicer.restore();
+            stats.restore();
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], stats.getArrayValue(i));
+            }
+        }
+    }
+
+
+
+    /**
+     * Test that statistics logged by a Logger follow the tree in an MCMC run (neither the statistics nor the TreeSlicer
+     * are on the path to the posterior, so requiresRecalculation() is never called)
+     */
+    @Test
+    public void testMCMC() throws Exception {
+
+        System.out.println("TreeSliceStatistics: Logged during MCMC");
+
+        Randomizer.setSeed(127);
+
+        Tree tree = new TreeParser("((A:1.0,B:1.0):3.0,C:1.0);", false);
+
+        TreeSlicer treeSlicer = new TreeSlicer();
+        treeSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false", "dimension", "3");
+        treeSlicer.setID("slicer");
+
+        TreeSliceStatistics stats = new TreeSliceStatistics();
+        stats.initByName("treeSlice", treeSlicer);
+
+        State state = new State();
+        state.initByName("stateNode", tree);
+
+        Uniform uniform = new Uniform();
+        uniform.initByName("lower", 0.0, "upper", 100.0);
+        Prior prior = new Prior();
+        prior.initByName("x", tree, "distr", uniform);
+
+        ScaleOperator treeScaler = new ScaleOperator();
+        treeScaler.initByName("tree", tree, "scaleFactor", 0.75, "weight", 1.0);
+
+        File logFile = File.createTempFile("slicestatistics", ".log"),
+             stateFile = File.createTempFile("slicestatistics", ".state");
+        logFile.delete();
+        logFile.deleteOnExit();
+        stateFile.deleteOnExit();
+
+        Logger logger = new Logger();
+        logger.initByName("fileName", logFile.getPath(), "logEvery", 10, "log", stats);
+
+        MCMC mcmc = new MCMC();
+        mcmc.initByName("chainLength", 1000L, "state", state, "distribution", prior, "operator", treeScaler,
+                        "logger", logger);
+        mcmc.setStateFile(stateFile.getPath(), false);
+        mcmc.run();
+
+        // Statistics change during the run and the last row has the statistics of the final tree
+        Set<String> rows = new HashSet<>();
+        String [] last = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Sample") || line.startsWith("#") || line.trim().isEmpty()) continue;
+                last = line.trim().split("\t");
+                rows.add(line.substring(line.indexOf('\t')));
+            }
+        }
+        assertNotNull(last);
+        assertTrue(rows.size() > 1);
+
+        TreeSlicer finalSlicer = new TreeSlicer();
+        finalSlicer.initByName("tree", tree, "to", "tmrca", "inclusive", "false", "dimension", "3");
+        TreeSliceStatistics finalStats = new TreeSliceStatistics();
+        finalStats.initByName("treeSlice", finalSlicer);
+        for (int i = 0; i < finalStats.getDimension(); i++) {
+            assertEquals(finalStats.getArrayValue(i), Double.parseDouble(last[i+1]));
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package skylinetools.util;
+
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TreeSlicerPoolTest extends TestCase {
+
+    static final String [] newicks =
+            {"((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",
+             "((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);",
+             "((((((((G:1,F:2):1,E:4):1,D:6):1,C:8):1,B:10):1,A:12):1,O:14):1);"};
+
+
+    private TreeSlicer [] createSlicers(Tree [] trees, TreeSlicerPool pool) {
+        TreeSlicer [] slicers = new TreeSlicer[2 * trees.length];
+
+        for (int i = 0; i < trees.length; i++) {
+            slicers[2*i] = new TreeSlicer();
+            slicers[2*i + 1] = new TreeEventSlicer();
+
+            if (pool == null) {
+                slicers[2*i].initByName("tree", trees[i], "to", "oldestsample", "dimension", "5");
+                slicers[2*i + 1].initByName("tree", trees[i], "dimension", "4", "breakAt", "branchsamples");
+            } else {
+                slicers[2*i].initByName("tree", trees[i], "to", "oldestsample", "dimension", "5", "pool", pool);
+                slicers[2*i + 1].initByName("tree", trees[i], "dimension", "4", "breakAt", "branchsamples", "pool", pool);
+            }
+        }
+
+        return slicers;
+    }
+
+
+    /**
+     * Test that TreeSlicers calculated concurrently give exactly the same times as when calculated one by one
+     */
+    @Test
+    public void testPool() {
+
+        System.out.println("TreeSlicerPool: Same times as without pool");
+
+        for (int threads = 1; threads <= 4; threads++) {
+            Tree [] trees = new Tree[newicks.length];
+            for (int i = 0; i < newicks.length; i++) {
+                trees[i] = new TreeParser(newicks[i], false);
+            }
+
+            TreeSlicerPool pool = new TreeSlicerPool();
+            pool.initByName("threads", threads);
+
+            TreeSlicer [] pooled   = createSlicers(trees, pool),
+                          unpooled = createSlicers(trees, null);
+
+            for (int i = 0; i < pooled.length; i++) {
+                assertArrayEquals(unpooled[i].getValues(), pooled[i].getValues());
+            }
+
+            // Change the trees, all pooled slicers are recalculated when the first one is read
+            for (Tree tree : trees) {
+                tree.scale(1.5);
+            }
+            for (int i = 0; i < pooled.length; i++) {
+                pooled[i].requiresRecalculation();
+                unpooled[i].requiresRecalculation();
+            }
+            pooled[pooled.length - 1].getValue();
+            for (TreeSlicer slicer : pooled) {
+                assertTrue(slicer.timesKnown);
+            }
+
+            for (int i = 0; i < pooled.length; i++) {
+                assertArrayEquals(unpooled[i].getValues(), pooled[i].getValues());
+            }
+        }
+    }
+
+}